@@ -0,0 +1,27 @@
+package com.cspdog.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so every run reports throughput, p99 latency (sample mode
+ * percentiles) and allocation rate (<code>gc.alloc.rate.norm</code>, bytes per operation).
+ * Any regular JMH command line option is accepted, e.g. <code>java -jar target/benchmarks.jar Filter -p page=SMALL</code>.
+ */
+public class BenchmarkRunner {
+
+    // Fixed, so every run rewrites the same bytes
+    static final String NONCE = "bm9uY2UtZm9yLWJlbmNobWFya3M";
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.cspdog.benchmarks;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.rewriter.RegexRewriter;
+import com.cspdog.utils.CSPUtils;
+import com.cspdog.utils.CSPedResponseBodyHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing inline handlers and styles and rendering the policy headers out of an already rewritten body,
+ * with the hash caches enabled (steady state of a real application) and disabled (every body hashed from scratch).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CSPUtilsBenchmark {
+
+    @Param({"SMALL", "LARGE", "HANDLER_HEAVY", "PARTIAL_RESPONSE"})
+    public HtmlCorpus.Page page;
+
+    @Param({"true", "false"})
+    public boolean hashCaches;
+
+    private final ServletStubs.Response response = new ServletStubs.Response("text/html;charset=UTF-8");
+    private String cspedBody;
+
+    @Setup
+    public void setUp() {
+        CSPConfiguration.Builder configuration = CSPConfiguration.builder();
+        if (!hashCaches) configuration.attributeHashCacheMaxEntries(0).bodyHashCacheMaxEntries(0);
+        CSPConfigurationHolder.setConfiguration(configuration.build());
+        cspedBody = new RegexRewriter().getCSPedResponseBody(HtmlCorpus.get(page), BenchmarkRunner.NONCE);
+    }
+
+    @Benchmark
+    public String setPolicyInResponse() {
+        response.reset();
+        CSPedResponseBodyHolder<String> holder = new CSPedResponseBodyHolder<>(cspedBody);
+        CSPUtils.setPolicyInResponse(holder, BenchmarkRunner.NONCE, response.get());
+        return holder.get();
+    }
+
+}
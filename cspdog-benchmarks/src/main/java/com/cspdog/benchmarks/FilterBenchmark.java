@@ -0,0 +1,70 @@
+package com.cspdog.benchmarks;
+
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.filter.CSPDogServletFilter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.http.HttpServletRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole pipeline as a container runs it: wrapping the response, the servlet writing the page through the writer
+ * or the output stream, rewriting, hashing and sending the headers and the body.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+
+    @Param({"SMALL", "LARGE", "HANDLER_HEAVY", "PARTIAL_RESPONSE"})
+    public HtmlCorpus.Page page;
+
+    @Param({"WRITER", "OUTPUT_STREAM"})
+    public String servletOutput;
+
+    @Param({"false", "true"})
+    public boolean streamingRewrite;
+
+    private final CSPDogServletFilter filter = new CSPDogServletFilter();
+    private final HttpServletRequest request = ServletStubs.newRequest("/orders");
+    private ServletStubs.Response response;
+    private FilterChain chain;
+
+    @Setup
+    public void setUp() {
+        filter.init();
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder()
+                .streamingRewrite(streamingRewrite).build());
+        response = new ServletStubs.Response(page == HtmlCorpus.Page.PARTIAL_RESPONSE ? "text/xml;charset=UTF-8" : "text/html;charset=UTF-8");
+        String body = HtmlCorpus.get(page);
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        if ("WRITER".equals(servletOutput)) {
+            chain = (req, res) -> res.getWriter().write(body);
+        } else {
+            chain = (req, res) -> res.getOutputStream().write(bodyBytes);
+        }
+    }
+
+    @Benchmark
+    public int doFilter() throws Exception {
+        response.reset();
+        filter.doFilter(request, response.get(), chain);
+        return response.getBodySize();
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.cspdog.benchmarks;
+
+/**
+ * Deterministic, generated corpus shaped after real application pages: a header with scripts and styles, inline
+ * event handlers, inline styles, <code>javascript:</code> links and plain text, in different proportions.
+ */
+public class HtmlCorpus {
+
+    public enum Page {
+        // Typical server-rendered page, ~20 KB
+        SMALL,
+        // Data-heavy page (large tables/reports), ~5 MB
+        LARGE,
+        // Component framework page where most elements carry handlers and inline styles, ~200 KB
+        HANDLER_HEAVY,
+        // JSF AJAX update, ~50 KB
+        PARTIAL_RESPONSE,
+        // Article with external scripts and styles only, nothing to rewrite, ~20 KB
+        STATIC
+    }
+
+    private static final int SMALL_PAGE_SIZE = 20 * 1024;
+    private static final int LARGE_PAGE_SIZE = 5 * 1024 * 1024;
+    private static final int HANDLER_HEAVY_PAGE_SIZE = 200 * 1024;
+    private static final int PARTIAL_RESPONSE_SIZE = 50 * 1024;
+    private static final int STATIC_PAGE_SIZE = 20 * 1024;
+
+    public static String get(Page page) {
+        switch (page) {
+            case SMALL:
+                return htmlPage(SMALL_PAGE_SIZE, 10);
+            case LARGE:
+                return htmlPage(LARGE_PAGE_SIZE, 10);
+            case HANDLER_HEAVY:
+                return htmlPage(HANDLER_HEAVY_PAGE_SIZE, 1);
+            case STATIC:
+                return staticPage(STATIC_PAGE_SIZE);
+            default:
+                return partialResponse(PARTIAL_RESPONSE_SIZE);
+        }
+    }
+
+    /**
+     * One in every <code>plainRowsPerHandlerRow</code> rows has event handlers, inline styles and links.
+     */
+    private static String htmlPage(int size, int plainRowsPerHandlerRow) {
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n")
+                .append("<meta charset=\"UTF-8\">\n<title>Orders</title>\n")
+                .append("<link rel=\"stylesheet\" href=\"/static/app.css\">\n")
+                .append("<script src=\"/static/vendor.js\"></script>\n")
+                .append("<script>window.config = { locale: 'en', currency: 'EUR' };</script>\n")
+                .append("<style>.row { padding: 2px; } .total { font-weight: bold; }</style>\n")
+                .append("</head>\n<body>\n<form id=\"orders\" action=\"/orders\" method=\"post\">\n<table class=\"grid\">\n");
+        int row = 0;
+        while (sb.length() < size) {
+            if (row % plainRowsPerHandlerRow == 0) {
+                sb.append("<tr class=\"row\" style=\"background-color: #f").append(row % 10).append("f\" onclick=\"selectRow(")
+                        .append(row % 50).append(")\" onmouseover=\"highlight(this)\">")
+                        .append("<td><a href=\"javascript:openOrder(").append(row % 50).append(")\">Order ").append(row).append("</a></td>")
+                        .append("<td><input type=\"checkbox\" name=\"selected\" onchange=\"toggle(this, ").append(row % 20).append(")\"></td>")
+                        .append("<td style=\"text-align: right\">").append(row * 7 % 1000).append(".00</td></tr>\n");
+            } else {
+                sb.append("<tr class=\"row\"><td>Order ").append(row).append("</td><td>Customer ").append(row % 300)
+                        .append(" &amp; partners, shipped on 2024-01-").append(10 + row % 20)
+                        .append("</td><td class=\"amount\">").append(row * 7 % 1000).append(".00</td></tr>\n");
+            }
+            row++;
+        }
+        sb.append("</table>\n<button type=\"submit\" onclick=\"return confirm('Submit?')\">Submit</button>\n</form>\n")
+                .append("<script>document.getElementById('orders').dataset.ready = 'true';</script>\n")
+                .append("</body>\n</html>\n");
+        return sb.toString();
+    }
+
+    private static String staticPage(int size) {
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n")
+                .append("<meta charset=\"UTF-8\">\n<title>Release notes</title>\n")
+                .append("<link rel=\"stylesheet\" href=\"/static/site.css\">\n")
+                .append("<script src=\"/static/site.js\" defer></script>\n")
+                .append("</head>\n<body>\n<article class=\"notes\">\n<h1>Release notes</h1>\n");
+        int section = 0;
+        while (sb.length() < size) {
+            sb.append("<h2 id=\"v").append(section).append("\">Version 1.").append(section).append("</h2>\n")
+                    .append("<p>Fixes and improvements to the reports module, see the <a href=\"/docs/reports#v").append(section)
+                    .append("\">documentation</a> for the details.</p>\n<ul><li>Faster exports</li><li>New filters</li></ul>\n");
+            section++;
+        }
+        sb.append("</article>\n</body>\n</html>\n");
+        return sb.toString();
+    }
+
+    private static String partialResponse(int size) {
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("<?xml version='1.0' encoding='UTF-8'?>\n<partial-response id=\"j_id1\"><changes>")
+                .append("<update id=\"orders:grid\"><![CDATA[<table id=\"orders:grid\" class=\"grid\">");
+        int row = 0;
+        while (sb.length() < size) {
+            sb.append("<tr style=\"color: #").append(row % 10).append("33\" onclick=\"PrimeFaces.ab({s:'orders:grid:")
+                    .append(row % 30).append("'});return false;\"><td>Order ").append(row)
+                    .append("</td><td style=\"width: 20%\">").append(row * 7 % 1000).append(".00</td></tr>");
+            row++;
+        }
+        sb.append("</table><script>PrimeFaces.cw('DataTable','grid',{id:'orders:grid'});</script>]]></update>")
+                .append("<update id=\"j_id1:javax.faces.ViewState:0\"><![CDATA[-4402717830573049387:1]]></update>")
+                .append("</changes></partial-response>");
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.cspdog.benchmarks;
+
+import com.cspdog.nonce.NonceProvider;
+import com.cspdog.nonce.SecureRandomNonceProvider;
+import com.cspdog.nonce.ThreadLocalNonceProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nonce generation by every request thread at once: the shared <code>SecureRandom</code> the filter used to draw from,
+ * against the per-thread DRBG default. Run with <code>-t 1</code> as well, to tell contention from raw cost.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class NonceBenchmark {
+
+    public enum Provider {
+        SECURE_RANDOM, THREAD_LOCAL
+    }
+
+    @Param({"SECURE_RANDOM", "THREAD_LOCAL"})
+    public Provider provider;
+
+    private NonceProvider nonceProvider;
+
+    @Setup
+    public void setUp() {
+        nonceProvider = provider == Provider.SECURE_RANDOM ? new SecureRandomNonceProvider() : new ThreadLocalNonceProvider();
+    }
+
+    @Benchmark
+    public String nextNonce() {
+        return nonceProvider.nextNonce();
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.cspdog.benchmarks;
+
+import com.cspdog.rewriter.PrefilterRewriter;
+import com.cspdog.rewriter.RegexRewriter;
+import com.cspdog.rewriter.StreamingRewriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Body rewriting alone, no servlet machinery: the original regex rewriter against the single-pass streaming one.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RewriterBenchmark {
+
+    @Param({"SMALL", "LARGE", "HANDLER_HEAVY", "PARTIAL_RESPONSE", "STATIC"})
+    public HtmlCorpus.Page page;
+
+    private final RegexRewriter regexRewriter = new RegexRewriter();
+    private final StreamingRewriter streamingRewriter = new StreamingRewriter();
+    private final PrefilterRewriter prefilterRewriter = new PrefilterRewriter();
+    private String body;
+
+    @Setup
+    public void setUp() {
+        body = HtmlCorpus.get(page);
+    }
+
+    @Benchmark
+    public String regexGetCSPedResponseBody() {
+        return regexRewriter.getCSPedResponseBody(body, BenchmarkRunner.NONCE);
+    }
+
+    @Benchmark
+    public String regexInjectNonce() {
+        return regexRewriter.injectNonce(body, BenchmarkRunner.NONCE);
+    }
+
+    @Benchmark
+    public String prefilterGetCSPedResponseBody() {
+        return prefilterRewriter.getCSPedResponseBody(body, BenchmarkRunner.NONCE);
+    }
+
+    @Benchmark
+    public String streamingGetCSPedResponseBody() {
+        return streamingRewriter.getCSPedResponseBody(body, BenchmarkRunner.NONCE);
+    }
+
+    @Benchmark
+    public String streamingInjectNonce() {
+        return streamingRewriter.injectNonce(body, BenchmarkRunner.NONCE);
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.cspdog.benchmarks;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal request and response stubs, so the numbers measure CSPDog and not a mocking library recording calls.
+ * Only what the filter uses is implemented, anything else returns a default value.
+ */
+public class ServletStubs {
+
+    public static HttpServletRequest newRequest(String servletPath) {
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getServletPath":
+                            return servletPath;
+                        case "getRequestURI":
+                            return servletPath;
+                        case "getMethod":
+                            return "GET";
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    /**
+     * Response collecting headers and body in memory, {@link #reset()} it between invocations.
+     */
+    public static class Response {
+
+        private final String contentType;
+        private final Map<String, String> headers = new HashMap<>();
+        private final CharArrayWriter body = new CharArrayWriter(64 * 1024);
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        private final PrintWriter writer = new PrintWriter(body);
+        private final ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+
+            @Override
+            public void write(int b) {
+                bytes.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                bytes.write(b, off, len);
+            }
+        };
+        private final HttpServletResponse response;
+
+        public Response(String contentType) {
+            this.contentType = contentType;
+            this.response = (HttpServletResponse) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(), new Class<?>[]{HttpServletResponse.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getWriter":
+                                return writer;
+                            case "getOutputStream":
+                                return outputStream;
+                            case "getContentType":
+                                return this.contentType;
+                            case "getCharacterEncoding":
+                                return "UTF-8";
+                            case "setHeader":
+                            case "addHeader":
+                                headers.put((String) args[0], (String) args[1]);
+                                return null;
+                            case "getHeader":
+                                return headers.get((String) args[0]);
+                            case "containsHeader":
+                                return headers.containsKey((String) args[0]);
+                            default:
+                                return defaultValue(method.getReturnType());
+                        }
+                    });
+        }
+
+        public HttpServletResponse get() {
+            return response;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        public int getBodySize() {
+            writer.flush();
+            return body.size() + bytes.size();
+        }
+
+        public void reset() {
+            headers.clear();
+            body.reset();
+            bytes.reset();
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+
+}
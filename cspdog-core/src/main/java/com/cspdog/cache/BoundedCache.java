@@ -0,0 +1,114 @@
+package com.cspdog.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Concurrent cache bounded in size and entry lifetime. Reads never lock; once full, a single writer at a time
+ * drops expired entries first and then arbitrary ones, down to 90% of the capacity.
+ * Hits, misses and evictions are counted so the cache efficiency can be monitored.
+ */
+public class BoundedCache<K, V> {
+
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public BoundedCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+    }
+
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.isExpired(System.nanoTime())) {
+            if (entries.remove(key, entry)) evictions.increment();
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    public void put(K key, V value) {
+        if (maxEntries <= 0) return;
+        if (entries.size() >= maxEntries && !entries.containsKey(key)) evict();
+        entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+    }
+
+    public V computeIfAbsent(K key, Function<K, V> valueFunction) {
+        V value = get(key);
+        if (value != null) return value;
+        value = valueFunction.apply(key);
+        if (value != null) put(key, value);
+        return value;
+    }
+
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) return;
+        try {
+            long now = System.nanoTime();
+            int target = maxEntries - Math.max(1, maxEntries / 10);
+            entries.entrySet().removeIf(entry -> {
+                boolean expired = entry.getValue().isExpired(now);
+                if (expired) evictions.increment();
+                return expired;
+            });
+            Iterator<K> keys = entries.keySet().iterator();
+            while (entries.size() > target && keys.hasNext()) {
+                keys.next();
+                keys.remove();
+                evictions.increment();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expiresAt > 0;
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.cspdog.cache;
+
+/**
+ * Count-min sketch of how often keys were seen lately, the TinyLFU admission filter of {@link RewrittenOutputCache}.
+ * Four 4-bit counters per key, packed sixteen to a long, saturate at 15 and are all halved once ten times as many
+ * increments as counters went by, so frequencies age. Updates are not synchronized: an increment lost to a race only
+ * makes the estimate a little lower, which an admission heuristic tolerates.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long HALVING_MASK = 0x7777777777777777L;
+    private static final int MAX_FREQUENCY = 15;
+
+    private final long[] table;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Rounded up to a power of two, 64 counters at least.
+     */
+    FrequencySketch(int counters) {
+        int size = Integer.highestOneBit(Math.max(counters, 64) - 1) << 1;
+        this.table = new long[size / 16];
+        this.counterMask = size - 1;
+        this.sampleSize = size * 10;
+    }
+
+    int frequency(long key) {
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, getCounter(index(key, i)));
+        }
+        return frequency;
+    }
+
+    void increment(long key) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementCounter(index(key, i));
+        }
+        if (added && ++additions >= sampleSize) halve();
+    }
+
+    private int index(long key, int i) {
+        long hash = (key + SEEDS[i]) * SEEDS[i];
+        hash ^= hash >>> 32;
+        return (int) hash & counterMask;
+    }
+
+    private int getCounter(int index) {
+        return (int) (table[index >>> 4] >>> ((index & 15) << 2)) & MAX_FREQUENCY;
+    }
+
+    private boolean incrementCounter(int index) {
+        int slot = index >>> 4;
+        int shift = (index & 15) << 2;
+        long mask = (long) MAX_FREQUENCY << shift;
+        if ((table[slot] & mask) == mask) return false;
+        table[slot] += 1L << shift;
+        return true;
+    }
+
+    private void halve() {
+        additions /= 2;
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & HALVING_MASK;
+        }
+    }
+
+}
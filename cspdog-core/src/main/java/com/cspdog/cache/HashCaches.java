@@ -0,0 +1,160 @@
+package com.cspdog.cache;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static com.cspdog.utils.Constants.BODY_DIGEST_BUFFER_SIZE;
+import static com.cspdog.utils.Constants.HASHING_ALGORITHM;
+
+/**
+ * Caches of CSP hashes: attribute text to its hash, and body digest to the whole set of hashes of the body.
+ * Pages come from a bounded number of templates whose inline handlers and styles barely change, so most lookups hit.
+ */
+public class HashCaches {
+
+    // MessageDigest instances are not thread-safe, but are reusable once digest() has been called
+    private static final ThreadLocal<MessageDigest> bodyDigest = ThreadLocal.withInitial(HashCaches::newMessageDigest);
+    private static final ThreadLocal<byte[]> bodyDigestBuffer = ThreadLocal.withInitial(() -> new byte[BODY_DIGEST_BUFFER_SIZE]);
+
+    private static volatile BoundedCache<String, String> attributeHashes = newAttributeHashCache();
+    private static volatile BoundedCache<BodyDigest, InlineHashes> bodyHashes = newBodyHashCache();
+
+    public static BoundedCache<String, String> getAttributeHashes() {
+        return attributeHashes;
+    }
+
+    public static BoundedCache<BodyDigest, InlineHashes> getBodyHashes() {
+        return bodyHashes;
+    }
+
+    /**
+     * Drops the caches, picking up the current size and lifetime configuration.
+     */
+    public static void reset() {
+        attributeHashes = newAttributeHashCache();
+        bodyHashes = newBodyHashCache();
+    }
+
+    private static BoundedCache<String, String> newAttributeHashCache() {
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        return new BoundedCache<>(configuration.getAttributeHashCacheMaxEntries(), configuration.getHashCacheTTLMillis());
+    }
+
+    private static BoundedCache<BodyDigest, InlineHashes> newBodyHashCache() {
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        return new BoundedCache<>(configuration.getBodyHashCacheMaxEntries(), configuration.getHashCacheTTLMillis());
+    }
+
+    /**
+     * Fast 64-bit fingerprint (FNV-1a) of a body, skipping every occurrence of the nonce so the fingerprint of a
+     * template does not change from one request to the next. The length is folded in to lower collisions further.
+     */
+    public static long fingerprint(String body, String nonce) {
+        long hash = 0xcbf29ce484222325L;
+        long hashedLength = 0;
+        int length = body.length();
+        int nonceLength = nonce == null ? 0 : nonce.length();
+        char nonceStart = nonceLength == 0 ? 0 : nonce.charAt(0);
+        for (int i = 0; i < length; i++) {
+            char c = body.charAt(i);
+            if (nonceLength > 0 && c == nonceStart && body.startsWith(nonce, i)) {
+                i += nonceLength - 1;
+                continue;
+            }
+            hash ^= c;
+            hash *= 0x100000001b3L;
+            hashedLength++;
+        }
+        return hash ^ (hashedLength << 32);
+    }
+
+    /**
+     * SHA-256 of a body, skipping every occurrence of the nonce as {@link #fingerprint(String, String)} does. The hashes
+     * a body is allowed are looked up by it rather than by the fingerprint, which a page reflecting its input could be
+     * made to collide with another page's, sharing that page's hashes with every user.
+     */
+    public static BodyDigest digest(String body, String nonce) {
+        MessageDigest digest = bodyDigest.get();
+        byte[] buffer = bodyDigestBuffer.get();
+        int buffered = 0;
+        int length = body.length();
+        int nonceLength = nonce == null ? 0 : nonce.length();
+        char nonceStart = nonceLength == 0 ? 0 : nonce.charAt(0);
+        for (int i = 0; i < length; i++) {
+            char c = body.charAt(i);
+            if (nonceLength > 0 && c == nonceStart && body.startsWith(nonce, i)) {
+                i += nonceLength - 1;
+                continue;
+            }
+            // UTF-16, no encoder needed as the digest is never compared with another implementation's
+            buffer[buffered++] = (byte) (c >>> 8);
+            buffer[buffered++] = (byte) c;
+            if (buffered == buffer.length) {
+                digest.update(buffer, 0, buffered);
+                buffered = 0;
+            }
+        }
+        digest.update(buffer, 0, buffered);
+        return new BodyDigest(digest.digest());
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(HASHING_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to provide SHA-256
+            throw new IllegalStateException(HASHING_ALGORITHM + " hashing algorithm not found", e);
+        }
+    }
+
+    /**
+     * Digest of a body, as returned by {@link #digest(String, String)}.
+     */
+    public static final class BodyDigest {
+        private final byte[] bytes;
+
+        public BodyDigest(byte[] bytes) {
+            this.bytes = bytes.clone();
+        }
+
+        public byte[] getBytes() {
+            return bytes.clone();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BodyDigest && Arrays.equals(bytes, ((BodyDigest) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+    }
+
+    /**
+     * Hashes of a body, as they are spliced into the policy placeholders.
+     */
+    public static class InlineHashes {
+        private final String eventHandlerHashes;
+        private final String inlinedStyleHashes;
+
+        public InlineHashes(String eventHandlerHashes, String inlinedStyleHashes) {
+            this.eventHandlerHashes = eventHandlerHashes;
+            this.inlinedStyleHashes = inlinedStyleHashes;
+        }
+
+        public String getEventHandlerHashes() {
+            return eventHandlerHashes;
+        }
+
+        public String getInlinedStyleHashes() {
+            return inlinedStyleHashes;
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+package com.cspdog.cache;
+
+import com.cspdog.rewriter.ResponseAnalysis;
+import com.cspdog.utils.CSPUtils;
+import jakarta.servlet.ServletContext;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static com.cspdog.utils.Constants.*;
+
+/**
+ * Hashes of the inline handlers and styles of static pages, computed once rather than on every request. Entries are
+ * keyed by the path the page is served from, along with the SHA-256 digest of its content: a response only takes its
+ * hashes out of the manifest when its body is the very page the entry was computed from, so a page changed since,
+ * or a template rendering something else than its source, is hashed as usual. Each entry holds the hashes of the page
+ * as it is, and as it is once its event handlers are externalized, only the ones left inline being hashed then.
+ * <p>
+ * The manifest is read from {@value com.cspdog.utils.Constants#HASH_MANIFEST_RESOURCE} when packaged in the
+ * application, e.g. written at build time by {@link #main(String[])}, and built out of the application resources at
+ * startup otherwise. One line per page, tab separated: path, hexadecimal digest, event handler hashes, inline style
+ * hashes and the event handler hashes left once handlers are externalized.
+ */
+public class HashManifest {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashManifest.class);
+
+    private static volatile Map<String, Entry> entries = Collections.emptyMap();
+
+    /**
+     * Hashes of the page served at the given path, provided the body is that page, null otherwise.
+     */
+    public static HashCaches.InlineHashes getHashes(String path, String body, boolean externalizeEventHandlers) {
+        Map<String, Entry> currentEntries = entries;
+        if (currentEntries.isEmpty() || path == null || body == null) return null;
+        Entry entry = currentEntries.get(path);
+        if (entry == null && path.endsWith(SLASH)) entry = getWelcomeFileEntry(currentEntries, path);
+        if (entry == null) return null;
+        if (!HashCaches.digest(body, null).equals(entry.digest)) {
+            logger.debug("getHashes(): {} does not match its manifest entry, hashing it", path);
+            return null;
+        }
+        return externalizeEventHandlers ? entry.externalizedHashes : entry.hashes;
+    }
+
+    private static Entry getWelcomeFileEntry(Map<String, Entry> currentEntries, String path) {
+        for (String welcomeFile : WELCOME_FILES) {
+            Entry entry = currentEntries.get(path + welcomeFile);
+            if (entry != null) return entry;
+        }
+        return null;
+    }
+
+    public static void setEntries(Map<String, Entry> newEntries) {
+        entries = Collections.unmodifiableMap(new TreeMap<>(newEntries));
+    }
+
+    public static Map<String, Entry> getEntries() {
+        return entries;
+    }
+
+    public static void reset() {
+        entries = Collections.emptyMap();
+    }
+
+    /**
+     * Loads the packaged manifest, or scans the static pages of the application when there is none.
+     */
+    public static void load(ServletContext servletContext) {
+        try (InputStream manifest = servletContext.getResourceAsStream(HASH_MANIFEST_RESOURCE)) {
+            if (manifest != null) {
+                setEntries(read(new InputStreamReader(manifest, StandardCharsets.UTF_8)));
+                logger.info("load(): {} pages read from {}", entries.size(), HASH_MANIFEST_RESOURCE);
+                return;
+            }
+            Map<String, Entry> scannedEntries = new TreeMap<>();
+            scan(servletContext, SLASH, scannedEntries);
+            setEntries(scannedEntries);
+            logger.info("load(): {} pages scanned for hashes", entries.size());
+        } catch (IOException | RuntimeException e) {
+            logger.error("load(): hash manifest could not be loaded, pages are hashed on every request: {}", e.getMessage());
+        }
+    }
+
+    private static void scan(ServletContext servletContext, String directory, Map<String, Entry> scannedEntries) throws IOException {
+        Set<String> resourcePaths = servletContext.getResourcePaths(directory);
+        if (resourcePaths == null) return;
+        for (String resourcePath : resourcePaths) {
+            if (resourcePath.endsWith(SLASH)) {
+                // Not served to clients
+                if (!resourcePath.equals(WEB_INF_DIRECTORY) && !resourcePath.equals(META_INF_DIRECTORY)) {
+                    scan(servletContext, resourcePath, scannedEntries);
+                }
+            } else if (isStaticPage(resourcePath)) {
+                try (InputStream page = servletContext.getResourceAsStream(resourcePath)) {
+                    if (page != null) scannedEntries.put(resourcePath, analyze(new String(page.readAllBytes(), StandardCharsets.UTF_8)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Static pages under a web application directory, keyed by the path they are served from.
+     */
+    public static Map<String, Entry> scan(Path webappDirectory, List<String> extensions) throws IOException {
+        Map<String, Entry> scannedEntries = new TreeMap<>();
+        try (Stream<Path> files = Files.walk(webappDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String path = SLASH + webappDirectory.relativize(file).toString().replace('\\', '/');
+                if (!Files.isRegularFile(file) || path.startsWith(WEB_INF_DIRECTORY) || path.startsWith(META_INF_DIRECTORY)
+                        || !hasExtension(path, extensions)) {
+                    continue;
+                }
+                scannedEntries.put(path, analyze(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)));
+            }
+        }
+        return scannedEntries;
+    }
+
+    private static boolean isStaticPage(String path) {
+        return hasExtension(path, Arrays.asList(STATIC_PAGE_EXTENSIONS));
+    }
+
+    private static boolean hasExtension(String path, List<String> extensions) {
+        String lowerCasePath = path.toLowerCase(Locale.ROOT);
+        for (String extension : extensions) {
+            if (lowerCasePath.endsWith(extension)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Same hashes as the filter computes out of a response with this body, with and without externalized handlers.
+     */
+    public static Entry analyze(String page) {
+        return new Entry(HashCaches.digest(page, null), CSPUtils.getInlineHashes(ResponseAnalysis.analyze(page, false)),
+                CSPUtils.getInlineHashes(ResponseAnalysis.analyze(page, true)));
+    }
+
+    public static Map<String, Entry> read(Reader reader) throws IOException {
+        Map<String, Entry> readEntries = new TreeMap<>();
+        BufferedReader bufferedReader = new BufferedReader(reader);
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            if (StringUtils.isBlank(line)) continue;
+            String[] fields = line.split(HASH_MANIFEST_SEPARATOR, -1);
+            if (fields.length != 5) throw new IOException("malformed manifest line " + line);
+            HashCaches.BodyDigest digest;
+            try {
+                digest = new HashCaches.BodyDigest(HexFormat.of().parseHex(fields[1]));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("malformed manifest digest " + fields[1], e);
+            }
+            readEntries.put(fields[0], new Entry(digest, new HashCaches.InlineHashes(fields[2], fields[3]),
+                    new HashCaches.InlineHashes(fields[4], fields[3])));
+        }
+        return readEntries;
+    }
+
+    public static void write(Map<String, Entry> entriesToWrite, Writer writer) throws IOException {
+        // Sorted by path, so the same pages always give the same manifest
+        for (Map.Entry<String, Entry> entry : new TreeMap<>(entriesToWrite).entrySet()) {
+            writer.write(entry.getKey());
+            writer.write(HASH_MANIFEST_SEPARATOR);
+            writer.write(HexFormat.of().formatHex(entry.getValue().digest.getBytes()));
+            writer.write(HASH_MANIFEST_SEPARATOR);
+            writer.write(entry.getValue().hashes.getEventHandlerHashes());
+            writer.write(HASH_MANIFEST_SEPARATOR);
+            writer.write(entry.getValue().hashes.getInlinedStyleHashes());
+            writer.write(HASH_MANIFEST_SEPARATOR);
+            writer.write(entry.getValue().externalizedHashes.getEventHandlerHashes());
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Build-time generation, e.g. from the exec-maven-plugin:
+     * <code>HashManifest &lt;webapp directory&gt; &lt;manifest file&gt; [extensions...]</code>,
+     * the manifest file being <code>WEB-INF/cspdog-hashes.manifest</code> of the packaged application.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: HashManifest <webapp directory> <manifest file> [extensions...]");
+            System.exit(1);
+        }
+        List<String> extensions = args.length > 2 ? Arrays.asList(args).subList(2, args.length) : Arrays.asList(STATIC_PAGE_EXTENSIONS);
+        Map<String, Entry> scannedEntries = scan(Paths.get(args[0]), extensions);
+        Path manifest = Paths.get(args[1]);
+        if (manifest.getParent() != null) Files.createDirectories(manifest.getParent());
+        try (Writer writer = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+            write(scannedEntries, writer);
+        }
+        System.out.println(scannedEntries.size() + " pages written to " + manifest);
+    }
+
+    public static class Entry {
+        private final HashCaches.BodyDigest digest;
+        private final HashCaches.InlineHashes hashes;
+        // Styles are the same, externalized handlers are not hashed
+        private final HashCaches.InlineHashes externalizedHashes;
+
+        public Entry(HashCaches.BodyDigest digest, HashCaches.InlineHashes hashes, HashCaches.InlineHashes externalizedHashes) {
+            this.digest = digest;
+            this.hashes = hashes;
+            this.externalizedHashes = externalizedHashes;
+        }
+
+        public HashCaches.BodyDigest getDigest() {
+            return digest;
+        }
+
+        public HashCaches.InlineHashes getHashes() {
+            return hashes;
+        }
+
+        public HashCaches.InlineHashes getExternalizedHashes() {
+            return externalizedHashes;
+        }
+    }
+
+}
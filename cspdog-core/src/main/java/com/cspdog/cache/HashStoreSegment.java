@@ -0,0 +1,264 @@
+package com.cspdog.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import static com.cspdog.utils.Constants.HASH_STORE_MAGIC;
+import static com.cspdog.utils.Constants.HASH_STORE_VERSION;
+
+/**
+ * One memory-mapped, append-only file of a {@link PersistentHashStore}: a header, then records of their length, the
+ * CRC-32 of what follows, the kind of entry, the key and the value. Nothing is ever rewritten in place, and the length
+ * of a record is written last, so a record torn by a crash fails its CRC or reads as the end of the file, and appends
+ * carry on from there. The index is an open-addressing table of key hashes to record offsets, rebuilt in memory from
+ * the records when the file is opened; keys are compared with the mapped record, so colliding hashes never return
+ * another entry's value. Not thread-safe, the store locks around it.
+ */
+final class HashStoreSegment implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashStoreSegment.class);
+
+    private static final int HEADER_SIZE = 8;
+    // Length and CRC-32 of the rest of the record
+    private static final int RECORD_HEADER_SIZE = 8;
+    // Kind and key length
+    private static final int RECORD_KEY_OFFSET = 5;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final boolean writable;
+    // Open addressing, linear probing, an offset of 0 marking a free slot as no record starts there
+    private long[] indexHashes = new long[1024];
+    private int[] indexOffsets = new int[1024];
+    private int entries;
+    // Where the next record goes
+    private int end = HEADER_SIZE;
+    private boolean dirty;
+
+    /**
+     * Opens, or creates, the file mapped with <code>maxBytes</code>, only reading it when <code>readOnly</code> or
+     * when another process holds its lock.
+     */
+    HashStoreSegment(Path file, long maxBytes, boolean readOnly) throws IOException {
+        this.file = file;
+        this.channel = readOnly ? FileChannel.open(file, StandardOpenOption.READ)
+                : FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            checkMagic(channel, file);
+            this.writable = !readOnly && tryLock(channel);
+            long size = writable ? Math.min(Math.max(maxBytes, channel.size()), Integer.MAX_VALUE) : channel.size();
+            if (size < HEADER_SIZE) throw new IOException("hash store " + file + " is too small");
+            this.buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+            readHeader();
+            load();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Fails on a file which is neither empty nor a store, before mapping it would grow it.
+     */
+    private static void checkMagic(FileChannel channel, Path file) throws IOException {
+        if (channel.size() == 0) return;
+        ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+        if (channel.read(magic, 0) < Integer.BYTES || magic.getInt(0) != HASH_STORE_MAGIC) {
+            throw new IOException(file + " is not a hash store");
+        }
+    }
+
+    private static boolean tryLock(FileChannel channel) throws IOException {
+        try {
+            FileLock fileLock = channel.tryLock();
+            return fileLock != null;
+        } catch (OverlappingFileLockException e) {
+            // Opened by this very process already
+            return false;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        if (buffer.getInt(0) != HASH_STORE_MAGIC) {
+            if (!writable) throw new IOException("hash store " + file + " is empty");
+            // A new file, all zeros
+            buffer.putInt(4, HASH_STORE_VERSION);
+            buffer.putInt(0, HASH_STORE_MAGIC);
+            return;
+        }
+        if (buffer.getInt(4) != HASH_STORE_VERSION) {
+            if (!writable) throw new IOException("hash store " + file + " was written by another version");
+            logger.warn("readHeader(): hash store {} was written by another version, starting over", file);
+            buffer.putInt(HEADER_SIZE, 0);
+            buffer.putInt(4, HASH_STORE_VERSION);
+        }
+    }
+
+    /**
+     * Indexes every record up to the first free or torn one.
+     */
+    private void load() {
+        int offset = HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length < RECORD_KEY_OFFSET || length > buffer.capacity() - offset - RECORD_HEADER_SIZE) break;
+            if (buffer.getInt(offset + 4) != crc(offset + RECORD_HEADER_SIZE, length)) {
+                logger.warn("load(): hash store {} has a torn record at {}, appending from there", file, offset);
+                break;
+            }
+            index(hash(buffer.get(offset + RECORD_HEADER_SIZE), readKey(offset)), offset);
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        end = offset;
+    }
+
+    /**
+     * Value of the entry, null if there is none.
+     */
+    byte[] get(byte kind, byte[] key) {
+        int offset = find(hash(kind, key), kind, key);
+        if (offset < 0) return null;
+        int valueOffset = offset + RECORD_HEADER_SIZE + RECORD_KEY_OFFSET + key.length;
+        byte[] value = new byte[offset + RECORD_HEADER_SIZE + buffer.getInt(offset) - valueOffset];
+        buffer.get(valueOffset, value);
+        return value;
+    }
+
+    /**
+     * Whether the entry is in the file, false when it did not fit in it.
+     */
+    boolean append(byte kind, byte[] key, byte[] value) {
+        long hash = hash(kind, key);
+        if (find(hash, kind, key) >= 0) return true;
+        int length = RECORD_KEY_OFFSET + key.length + value.length;
+        // Room left for the free record marking the end
+        if (!writable || (long) end + RECORD_HEADER_SIZE + length + 4 > buffer.capacity()) return false;
+        int recordStart = end + RECORD_HEADER_SIZE;
+        buffer.put(recordStart, kind);
+        buffer.putInt(recordStart + 1, key.length);
+        buffer.put(recordStart + RECORD_KEY_OFFSET, key);
+        buffer.put(recordStart + RECORD_KEY_OFFSET + key.length, value);
+        buffer.putInt(recordStart + length, 0);
+        buffer.putInt(end + 4, crc(recordStart, length));
+        buffer.putInt(end, length);
+        index(hash, end);
+        end = recordStart + length;
+        dirty = true;
+        return true;
+    }
+
+    private int find(long hash, byte kind, byte[] key) {
+        int mask = indexOffsets.length - 1;
+        for (int slot = (int) hash & mask; indexOffsets[slot] != 0; slot = (slot + 1) & mask) {
+            if (indexHashes[slot] == hash && matches(indexOffsets[slot], kind, key)) return indexOffsets[slot];
+        }
+        return -1;
+    }
+
+    private boolean matches(int offset, byte kind, byte[] key) {
+        int recordStart = offset + RECORD_HEADER_SIZE;
+        if (buffer.get(recordStart) != kind || buffer.getInt(recordStart + 1) != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(recordStart + RECORD_KEY_OFFSET + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private void index(long hash, int offset) {
+        // Kept at most half full, so probes stay short
+        if ((entries + 1) * 2 > indexOffsets.length) resize();
+        int mask = indexOffsets.length - 1;
+        int slot = (int) hash & mask;
+        while (indexOffsets[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        indexHashes[slot] = hash;
+        indexOffsets[slot] = offset;
+        entries++;
+    }
+
+    private void resize() {
+        long[] oldHashes = indexHashes;
+        int[] oldOffsets = indexOffsets;
+        indexHashes = new long[oldOffsets.length * 2];
+        indexOffsets = new int[oldOffsets.length * 2];
+        int mask = indexOffsets.length - 1;
+        for (int i = 0; i < oldOffsets.length; i++) {
+            if (oldOffsets[i] == 0) continue;
+            int slot = (int) oldHashes[i] & mask;
+            while (indexOffsets[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            indexHashes[slot] = oldHashes[i];
+            indexOffsets[slot] = oldOffsets[i];
+        }
+    }
+
+    private byte[] readKey(int offset) {
+        byte[] key = new byte[buffer.getInt(offset + RECORD_HEADER_SIZE + 1)];
+        buffer.get(offset + RECORD_HEADER_SIZE + RECORD_KEY_OFFSET, key);
+        return key;
+    }
+
+    private int crc(int from, int length) {
+        CRC32 crc = new CRC32();
+        // A view of its own, concurrent readers share the mapping
+        ByteBuffer record = buffer.duplicate();
+        record.limit(from + length).position(from);
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 64-bit FNV-1a of the kind and key, spread so the low bits index well.
+     */
+    private static long hash(byte kind, byte[] key) {
+        long hash = 0xcbf29ce484222325L ^ kind;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 29);
+    }
+
+    /**
+     * Writes what was appended since the last call out to the file.
+     */
+    void force() {
+        if (!dirty) return;
+        dirty = false;
+        buffer.force();
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    int size() {
+        return entries;
+    }
+
+    boolean isWritable() {
+        return writable;
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        // The mapping itself is released once collected
+        channel.close();
+    }
+
+}
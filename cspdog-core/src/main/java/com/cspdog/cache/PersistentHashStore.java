@@ -0,0 +1,262 @@
+package com.cspdog.cache;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.metrics.FilterMetrics;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.cspdog.utils.Constants.*;
+
+/**
+ * Hashes learned by a node, kept on disk so the next start of the application does not hash every inline handler
+ * and style again under full traffic: attribute text to its hash, and the SHA-256 digest of a nonce-stripped body,
+ * i.e. of a route's template, to the hash set of the body. Both are keyed by the very text, or a cryptographic
+ * digest of it, so no colliding key is ever served another entry's hashes.
+ * <p>
+ * Entries are appended to memory-mapped {@link HashStoreSegment} files, forced to disk in the background. The store
+ * keeps two generations of half the configured size each: once the current file is full, the background thread rolls
+ * it over into <code>&lt;file&gt;.1</code>, dropping the generation before, and starts a new one. Entries found in
+ * the previous generation are copied into the current one, so the hashes still in use survive the next rollover while
+ * those of bodies served once age out.
+ * <p>
+ * {@link #start()} opens the files off the startup path, lookups missing until they are indexed. A file locked by
+ * another process, e.g. another node sharing it, is only read.
+ */
+public class PersistentHashStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistentHashStore.class);
+
+    private static final byte ATTRIBUTE_HASH = 1;
+    private static final byte BODY_HASHES = 2;
+    private static final char HASHES_SEPARATOR = '\t';
+
+    private static volatile PersistentHashStore instance;
+    private static ScheduledExecutorService flusher;
+    // Filter instances sharing the store, the last one destroyed closes it
+    private static int starts;
+
+    private final Path file;
+    private final Path previousFile;
+    private final long segmentBytes;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Null once a rollover failed, the store then keeps nothing
+    private HashStoreSegment current;
+    private HashStoreSegment previous;
+    private volatile boolean rolloverRequested;
+
+    public PersistentHashStore(Path file, long maxBytes) throws IOException {
+        this.file = file;
+        this.previousFile = file.resolveSibling(file.getFileName() + HASH_STORE_PREVIOUS_SUFFIX);
+        this.segmentBytes = maxBytes / 2;
+        this.current = new HashStoreSegment(file, segmentBytes, false);
+        if (Files.exists(previousFile)) {
+            try {
+                this.previous = new HashStoreSegment(previousFile, 0, true);
+            } catch (IOException e) {
+                logger.warn("PersistentHashStore(): previous hash store {} could not be read, ignoring it: {}", previousFile, e.getMessage());
+            }
+        }
+    }
+
+    public static synchronized void start() {
+        if (starts++ > 0) return;
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        if (StringUtils.isBlank(configuration.getHashStoreFile())) return;
+        Path storeFile = Paths.get(configuration.getHashStoreFile().trim());
+        long maxBytes = configuration.getHashStoreMaxBytes();
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, HASH_STORE_THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Indexed off the startup path, lookups miss until then
+        flusher.execute(() -> open(storeFile, maxBytes));
+        long flushIntervalMillis = configuration.getHashStoreFlushIntervalMillis();
+        flusher.scheduleWithFixedDelay(PersistentHashStore::flushInstance, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void open(Path storeFile, long maxBytes) {
+        try {
+            PersistentHashStore store = new PersistentHashStore(storeFile, maxBytes);
+            instance = store;
+            logger.info("open(): {} hashes loaded from {}{}", store.size(), storeFile, store.isWritable() ? "" : ", read only as it is locked");
+        } catch (IOException | RuntimeException e) {
+            logger.error("open(): hash store {} could not be opened, hashes are not kept: {}", storeFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Forces what was appended to disk and closes the store.
+     */
+    public static synchronized void stop() {
+        if (starts == 0 || --starts > 0 || flusher == null) return;
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(HASH_STORE_CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) flusher.shutdownNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flusher = null;
+        PersistentHashStore store = instance;
+        instance = null;
+        if (store == null) return;
+        try {
+            store.close();
+        } catch (IOException e) {
+            logger.error("stop(): hash store {} could not be closed: {}", store.file, e.getMessage());
+        }
+    }
+
+    /**
+     * The open store, null when there is none or it is not indexed yet.
+     */
+    public static PersistentHashStore getInstance() {
+        return instance;
+    }
+
+    private static void flushInstance() {
+        PersistentHashStore store = instance;
+        if (store != null) store.flush();
+    }
+
+    public String getAttributeHash(String attribute) {
+        byte[] hash = get(ATTRIBUTE_HASH, attribute.getBytes(StandardCharsets.UTF_8));
+        if (hash == null) return null;
+        FilterMetrics.hashStoreHit();
+        return new String(hash, StandardCharsets.UTF_8);
+    }
+
+    public void putAttributeHash(String attribute, String hash) {
+        append(ATTRIBUTE_HASH, attribute.getBytes(StandardCharsets.UTF_8), hash.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public HashCaches.InlineHashes getBodyHashes(HashCaches.BodyDigest digest) {
+        byte[] value = get(BODY_HASHES, digest.getBytes());
+        if (value == null) return null;
+        FilterMetrics.hashStoreHit();
+        String hashes = new String(value, StandardCharsets.UTF_8);
+        int separator = hashes.indexOf(HASHES_SEPARATOR);
+        return new HashCaches.InlineHashes(hashes.substring(0, separator), hashes.substring(separator + 1));
+    }
+
+    public void putBodyHashes(HashCaches.BodyDigest digest, HashCaches.InlineHashes hashes) {
+        String value = hashes.getEventHandlerHashes() + HASHES_SEPARATOR + hashes.getInlinedStyleHashes();
+        append(BODY_HASHES, digest.getBytes(), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private byte[] get(byte kind, byte[] key) {
+        byte[] value;
+        boolean promote = false;
+        lock.readLock().lock();
+        try {
+            if (current == null) return null;
+            value = current.get(kind, key);
+            if (value == null && previous != null) {
+                value = previous.get(kind, key);
+                promote = value != null;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        // Still in use, kept past the next rollover
+        if (promote) append(kind, key, value);
+        return value;
+    }
+
+    private void append(byte kind, byte[] key, byte[] value) {
+        lock.writeLock().lock();
+        try {
+            if (current == null || !current.isWritable() || rolloverRequested) return;
+            if (!current.append(kind, key, value)) {
+                // Entries are dropped until the background thread has rolled the file over
+                rolloverRequested = true;
+                logger.info("append(): hash store {} is full at {} entries, rolling it over", file, current.size());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rolls the store over when full, then writes what was appended since the last call out to the file.
+     */
+    public void flush() {
+        if (rolloverRequested) rollOver();
+        lock.readLock().lock();
+        try {
+            if (current != null) current.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the current file over the previous generation and starts a new one.
+     */
+    private void rollOver() {
+        lock.writeLock().lock();
+        try {
+            if (current == null || !current.isWritable()) return;
+            current.close();
+            if (previous != null) previous.close();
+            previous = null;
+            Files.move(file, previousFile, StandardCopyOption.REPLACE_EXISTING);
+            previous = new HashStoreSegment(previousFile, 0, true);
+            current = new HashStoreSegment(file, segmentBytes, false);
+            rolloverRequested = false;
+        } catch (IOException | RuntimeException e) {
+            logger.error("rollOver(): hash store {} could not be rolled over, hashes are not kept any longer: {}", file, e.getMessage());
+            current = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Entries of both generations.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return (current == null ? 0 : current.size()) + (previous == null ? 0 : previous.size());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isWritable() {
+        lock.readLock().lock();
+        try {
+            return current != null && current.isWritable();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (previous != null) previous.close();
+            if (current != null) current.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.cspdog.cache;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.metrics.FilterMetrics;
+import com.cspdog.rewriter.Rewriter;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.cspdog.utils.Constants.OUTPUT_CACHE_BYTES_PER_COUNTER;
+import static com.cspdog.utils.Constants.OUTPUT_CACHE_ENTRY_OVERHEAD;
+
+/**
+ * Rewrites of bodies served over and over, e.g. the same page to every visitor. A body is only rewritten once: its
+ * rewrite is kept as a template, split where the nonce was inserted, along with the hashes its policies are rendered
+ * with, and later responses with the very same body get a fresh nonce spliced in and their headers rendered out of
+ * the cached hashes, with no analysis nor hashing.
+ * <p>
+ * Entries are keyed by the fingerprint of the body, and only served to a body equal to the one they were rewritten
+ * from, by the same engine under the same configuration, so a fingerprint collision or a reload is a miss. The cache
+ * is bounded in bytes, roughly two per character held; once full, the least recently used entry makes way for a new
+ * one only when the new body was seen more often lately than it, as told by a {@link FrequencySketch}, so pages
+ * served once do not flush the ones served all day. Entries are whole pages, so they are few, and the victim is
+ * looked for by a single writer at a time among all of them.
+ */
+public class RewrittenOutputCache {
+
+    private static volatile RewrittenOutputCache instance = newInstance();
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final long maxBytes;
+    private final FrequencySketch sketch;
+    private final AtomicLong weightedSize = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    public RewrittenOutputCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(0, maxBytes) / OUTPUT_CACHE_BYTES_PER_COUNTER));
+    }
+
+    public static RewrittenOutputCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Drops the cache, picking up the current size configuration.
+     */
+    public static void reset() {
+        instance = newInstance();
+    }
+
+    private static RewrittenOutputCache newInstance() {
+        return new RewrittenOutputCache(CSPConfigurationHolder.getConfiguration().getOutputCacheMaxBytes());
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Entry the body was rewritten into by <code>rewriter</code> under <code>configuration</code>, null if there is none.
+     */
+    public Entry get(long fingerprint, String body, Rewriter rewriter, CSPConfiguration configuration) {
+        if (!isEnabled()) return null;
+        sketch.increment(fingerprint);
+        Entry entry = entries.get(fingerprint);
+        if (entry == null || entry.rewriter != rewriter || entry.configuration != configuration || !entry.body.equals(body)) {
+            FilterMetrics.outputCacheMiss();
+            return null;
+        }
+        entry.lastAccess = System.nanoTime();
+        FilterMetrics.outputCacheHit();
+        return entry;
+    }
+
+    /**
+     * Keeps the rewrite of the body, <code>nonce</code> being the one it was rewritten with, if it is admitted.
+     */
+    public void put(long fingerprint, String body, Rewriter rewriter, CSPConfiguration configuration, String rewrittenBody, String nonce,
+                    HashCaches.InlineHashes hashes) {
+        // A nonce found in the body itself would be taken for an inserted one
+        if (!isEnabled() || StringUtils.isEmpty(nonce) || body.contains(nonce)) return;
+        Entry candidate = new Entry(body, rewriter, configuration, split(rewrittenBody, nonce), hashes);
+        if (candidate.weight > maxBytes || !makeRoom(fingerprint, candidate.weight)) {
+            FilterMetrics.outputCacheRejection();
+            return;
+        }
+        Entry previous = entries.put(fingerprint, candidate);
+        weightedSize.addAndGet(candidate.weight - (previous == null ? 0 : previous.weight));
+    }
+
+    private boolean makeRoom(long fingerprint, long weight) {
+        // Rewritten under another configuration, or colliding with another body
+        Entry stale = entries.get(fingerprint);
+        if (stale != null && entries.remove(fingerprint, stale)) weightedSize.addAndGet(-stale.weight);
+        if (weightedSize.get() + weight <= maxBytes) return true;
+        if (!evicting.compareAndSet(false, true)) return false;
+        try {
+            int frequency = sketch.frequency(fingerprint);
+            while (weightedSize.get() + weight > maxBytes) {
+                Map.Entry<Long, Entry> victim = findLeastRecentlyUsed();
+                if (victim == null || frequency <= sketch.frequency(victim.getKey())) return false;
+                if (entries.remove(victim.getKey(), victim.getValue())) {
+                    weightedSize.addAndGet(-victim.getValue().weight);
+                    FilterMetrics.outputCacheEviction();
+                }
+            }
+            return true;
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private Map.Entry<Long, Entry> findLeastRecentlyUsed() {
+        Map.Entry<Long, Entry> leastRecentlyUsed = null;
+        for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+            if (leastRecentlyUsed == null || entry.getValue().lastAccess - leastRecentlyUsed.getValue().lastAccess < 0) {
+                leastRecentlyUsed = entry;
+            }
+        }
+        return leastRecentlyUsed;
+    }
+
+    private static String[] split(String rewrittenBody, String nonce) {
+        List<String> segments = new ArrayList<>();
+        int copied = 0;
+        for (int i = rewrittenBody.indexOf(nonce); i >= 0; i = rewrittenBody.indexOf(nonce, copied)) {
+            segments.add(rewrittenBody.substring(copied, i));
+            copied = i + nonce.length();
+        }
+        segments.add(rewrittenBody.substring(copied));
+        return segments.toArray(new String[0]);
+    }
+
+    public void clear() {
+        entries.clear();
+        weightedSize.set(0);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Bytes held, as estimated by the entries.
+     */
+    public long getWeightedSize() {
+        return weightedSize.get();
+    }
+
+    public static class Entry {
+        private final String body;
+        private final Rewriter rewriter;
+        private final CSPConfiguration configuration;
+        // The rewritten body, cut at every nonce
+        private final String[] segments;
+        private final HashCaches.InlineHashes hashes;
+        private final long weight;
+        private volatile long lastAccess = System.nanoTime();
+
+        private Entry(String body, Rewriter rewriter, CSPConfiguration configuration, String[] segments, HashCaches.InlineHashes hashes) {
+            this.body = body;
+            this.rewriter = rewriter;
+            this.configuration = configuration;
+            this.segments = segments;
+            this.hashes = hashes;
+            long characters = body.length() + hashes.getEventHandlerHashes().length() + hashes.getInlinedStyleHashes().length();
+            for (String segment : segments) {
+                characters += segment.length();
+            }
+            this.weight = characters * 2 + OUTPUT_CACHE_ENTRY_OVERHEAD;
+        }
+
+        /**
+         * The rewritten body with <code>nonce</code> wherever the original rewrite had its own.
+         */
+        public String render(String nonce) {
+            int length = nonce.length() * (segments.length - 1);
+            for (String segment : segments) {
+                length += segment.length();
+            }
+            StringBuilder sb = new StringBuilder(length);
+            sb.append(segments[0]);
+            for (int i = 1; i < segments.length; i++) {
+                sb.append(nonce).append(segments[i]);
+            }
+            return sb.toString();
+        }
+
+        public HashCaches.InlineHashes getHashes() {
+            return hashes;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+    }
+
+}
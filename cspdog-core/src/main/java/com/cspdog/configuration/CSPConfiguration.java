@@ -1,8 +1,693 @@
 package com.cspdog.configuration;
 
-public class CSPConfiguration {
+import org.apache.commons.lang3.StringUtils;
 
-    public static String ENFORCED_POLICY;
-    public static String REPORT_ONLY_POLICY;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static com.cspdog.utils.Constants.*;
+
+/**
+ * Immutable configuration snapshot. Everything derived from the raw settings (policy templates, URL patterns...)
+ * is computed once when the snapshot is built, so the request path only ever reads the current snapshot
+ * out of {@link CSPConfigurationHolder}, with no locking.
+ */
+public final class CSPConfiguration {
+
+    /**
+     * @deprecated read {@link #getEnforcedPolicy()} off {@link CSPConfigurationHolder#getConfiguration()} instead.
+     * Mirrors the policy of the snapshot last published, assigning it has no effect.
+     */
+    @Deprecated
+    public static volatile String ENFORCED_POLICY;
+    /**
+     * @deprecated read {@link #getReportOnlyPolicy()} off {@link CSPConfigurationHolder#getConfiguration()} instead.
+     * Mirrors the policy of the snapshot last published, assigning it has no effect.
+     */
+    @Deprecated
+    public static volatile String REPORT_ONLY_POLICY;
+
+    private final String enforcedPolicy;
+    private final String reportOnlyPolicy;
+    private final PolicyTemplate enforcedPolicyTemplate;
+    private final PolicyTemplate reportOnlyPolicyTemplate;
+    // Rewrite the response as it is written, in a single pass, instead of buffering it first
+    private final boolean streamingRewrite;
+    // Pool direct (off-heap) buffers for bodies written as bytes instead of heap ones
+    private final boolean directByteBuffers;
+    // Only responses of these content types get buffered and rewritten
+    private final List<String> rewritableContentTypes;
+    // Responses declaring a larger Content-Length are passed through, in bytes
+    private final long maxRewritableContentLength;
+    // When not empty, only matching paths are rewritten
+    private final List<Pattern> includedURLPatterns;
+    private final List<Pattern> excludedURLPatterns;
+    // Hash caches bounds, set to 0 entries to disable them
+    private final int attributeHashCacheMaxEntries;
+    private final int bodyHashCacheMaxEntries;
+    private final long hashCacheTTLMillis;
+    // Name the classes of extracted partial-response styles after their declaration, instead of randomly
+    private final boolean contentAddressedStyleClasses;
+    // Memory all in-flight responses may buffer, in bytes. Beyond it, responses overflow to passthrough,
+    // as they do past maxRewritableContentLength
+    private final long bufferMemoryBudget;
+    // Rewrite buffered responses off the request thread, giving up on it past the latency budget, in milliseconds
+    private final boolean rewriteOffload;
+    private final long rewriteLatencyBudgetMillis;
+    // Replace inline event handlers with markers bound by a single nonced delegation script, instead of hashing them
+    private final boolean externalizeEventHandlers;
+    // Take the hashes of static pages out of a manifest, built at startup unless packaged in the application
+    private final boolean hashManifest;
+    // Class name of the NonceProvider generating nonces, the per-thread default when blank
+    private final String nonceProvider;
+    // Name of the engine rewriting buffered bodies, as registered with the Rewriter service loader
+    private final String rewriteEngine;
+    // Engines of the paths matching each pattern, the first match wins over rewriteEngine
+    private final Map<Pattern, String> rewriteEngineRoutes;
+    // Compress rewritten bodies as they are encoded, gzip or deflate as the client accepts, from this size on, in bytes
+    // (chars for bodies written as text). Leave off behind a compressing proxy or filter
+    private final boolean compressResponses;
+    private final long compressionMinSize;
+    // Violation reports received and not flushed yet, a power of two, further reports are refused with 429
+    private final int reportBufferCapacity;
+    // Reports are deduplicated and handed to the sink in batches, every this many milliseconds
+    private final long reportFlushIntervalMillis;
+    // Class name of the com.cspdog.report.ReportSink, a rolling file when blank
+    private final String reportSink;
+    // File the default sink writes to, cspdog-reports.jsonl in the temporary directory when blank, rolled over
+    // at reportFileMaxSize bytes
+    private final String reportFile;
+    private final long reportFileMaxSize;
+    // Fraction of sessions whose responses are rewritten and get the policies, between 0 and 1
+    private final double rewriteSampleRate;
+    // Rates of the paths matching each pattern, the first match wins over rewriteSampleRate
+    private final Map<Pattern, Double> rewriteSampleRoutes;
+    // Rates by user agent class (bot, mobile, desktop, other), multiplying the rate of the route
+    private final Map<String, Double> rewriteSampleUserAgents;
+    // Report-only policy sent as is on responses left out of the sample, which pass through otherwise
+    private final String unsampledPolicy;
+    // Memory bound of the rewritten output cache, in bytes, 0 disabling it
+    private final long outputCacheMaxBytes;
+    // File learned hashes are kept in across restarts, none when unset. Read at startup
+    private final String hashStoreFile;
+    // Size the hash store file is mapped with, appends stopping once it is full
+    private final long hashStoreMaxBytes;
+    // How often the hash store is forced to disk
+    private final long hashStoreFlushIntervalMillis;
+
+    private CSPConfiguration(Builder builder) {
+        this.enforcedPolicy = builder.enforcedPolicy;
+        this.reportOnlyPolicy = builder.reportOnlyPolicy;
+        this.enforcedPolicyTemplate = enforcedPolicy == null ? null : PolicyTemplate.parse(enforcedPolicy);
+        this.reportOnlyPolicyTemplate = reportOnlyPolicy == null ? null : PolicyTemplate.parse(reportOnlyPolicy);
+        this.streamingRewrite = builder.streamingRewrite;
+        this.directByteBuffers = builder.directByteBuffers;
+        this.rewritableContentTypes = Collections.unmodifiableList(new ArrayList<>(builder.rewritableContentTypes));
+        this.maxRewritableContentLength = builder.maxRewritableContentLength;
+        this.includedURLPatterns = Collections.unmodifiableList(new ArrayList<>(builder.includedURLPatterns));
+        this.excludedURLPatterns = Collections.unmodifiableList(new ArrayList<>(builder.excludedURLPatterns));
+        this.attributeHashCacheMaxEntries = builder.attributeHashCacheMaxEntries;
+        this.bodyHashCacheMaxEntries = builder.bodyHashCacheMaxEntries;
+        this.hashCacheTTLMillis = builder.hashCacheTTLMillis;
+        this.contentAddressedStyleClasses = builder.contentAddressedStyleClasses;
+        this.bufferMemoryBudget = builder.bufferMemoryBudget;
+        this.rewriteOffload = builder.rewriteOffload;
+        this.rewriteLatencyBudgetMillis = builder.rewriteLatencyBudgetMillis;
+        this.externalizeEventHandlers = builder.externalizeEventHandlers;
+        this.hashManifest = builder.hashManifest;
+        this.nonceProvider = builder.nonceProvider;
+        this.rewriteEngine = builder.rewriteEngine;
+        this.rewriteEngineRoutes = Collections.unmodifiableMap(new LinkedHashMap<>(builder.rewriteEngineRoutes));
+        this.compressResponses = builder.compressResponses;
+        this.compressionMinSize = builder.compressionMinSize;
+        this.reportBufferCapacity = builder.reportBufferCapacity;
+        this.reportFlushIntervalMillis = builder.reportFlushIntervalMillis;
+        this.reportSink = builder.reportSink;
+        this.reportFile = builder.reportFile;
+        this.reportFileMaxSize = builder.reportFileMaxSize;
+        this.rewriteSampleRate = builder.rewriteSampleRate;
+        this.rewriteSampleRoutes = Collections.unmodifiableMap(new LinkedHashMap<>(builder.rewriteSampleRoutes));
+        this.rewriteSampleUserAgents = Collections.unmodifiableMap(new HashMap<>(builder.rewriteSampleUserAgents));
+        this.unsampledPolicy = builder.unsampledPolicy;
+        this.outputCacheMaxBytes = builder.outputCacheMaxBytes;
+        this.hashStoreFile = builder.hashStoreFile;
+        this.hashStoreMaxBytes = builder.hashStoreMaxBytes;
+        this.hashStoreFlushIntervalMillis = builder.hashStoreFlushIntervalMillis;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.enforcedPolicy = enforcedPolicy;
+        builder.reportOnlyPolicy = reportOnlyPolicy;
+        builder.streamingRewrite = streamingRewrite;
+        builder.directByteBuffers = directByteBuffers;
+        builder.rewritableContentTypes = rewritableContentTypes;
+        builder.maxRewritableContentLength = maxRewritableContentLength;
+        builder.includedURLPatterns = includedURLPatterns;
+        builder.excludedURLPatterns = excludedURLPatterns;
+        builder.attributeHashCacheMaxEntries = attributeHashCacheMaxEntries;
+        builder.bodyHashCacheMaxEntries = bodyHashCacheMaxEntries;
+        builder.hashCacheTTLMillis = hashCacheTTLMillis;
+        builder.contentAddressedStyleClasses = contentAddressedStyleClasses;
+        builder.bufferMemoryBudget = bufferMemoryBudget;
+        builder.rewriteOffload = rewriteOffload;
+        builder.rewriteLatencyBudgetMillis = rewriteLatencyBudgetMillis;
+        builder.externalizeEventHandlers = externalizeEventHandlers;
+        builder.hashManifest = hashManifest;
+        builder.nonceProvider = nonceProvider;
+        builder.rewriteEngine = rewriteEngine;
+        builder.rewriteEngineRoutes = rewriteEngineRoutes;
+        builder.compressResponses = compressResponses;
+        builder.compressionMinSize = compressionMinSize;
+        builder.reportBufferCapacity = reportBufferCapacity;
+        builder.reportFlushIntervalMillis = reportFlushIntervalMillis;
+        builder.reportSink = reportSink;
+        builder.reportFile = reportFile;
+        builder.reportFileMaxSize = reportFileMaxSize;
+        builder.rewriteSampleRate = rewriteSampleRate;
+        builder.rewriteSampleRoutes = rewriteSampleRoutes;
+        builder.rewriteSampleUserAgents = rewriteSampleUserAgents;
+        builder.unsampledPolicy = unsampledPolicy;
+        builder.outputCacheMaxBytes = outputCacheMaxBytes;
+        builder.hashStoreFile = hashStoreFile;
+        builder.hashStoreMaxBytes = hashStoreMaxBytes;
+        builder.hashStoreFlushIntervalMillis = hashStoreFlushIntervalMillis;
+        return builder;
+    }
+
+    public String getEnforcedPolicy() {
+        return enforcedPolicy;
+    }
+
+    public String getReportOnlyPolicy() {
+        return reportOnlyPolicy;
+    }
+
+    public PolicyTemplate getEnforcedPolicyTemplate() {
+        return enforcedPolicyTemplate;
+    }
+
+    public PolicyTemplate getReportOnlyPolicyTemplate() {
+        return reportOnlyPolicyTemplate;
+    }
+
+    public boolean isStreamingRewrite() {
+        return streamingRewrite;
+    }
+
+    public boolean isDirectByteBuffers() {
+        return directByteBuffers;
+    }
+
+    public List<String> getRewritableContentTypes() {
+        return rewritableContentTypes;
+    }
+
+    public long getMaxRewritableContentLength() {
+        return maxRewritableContentLength;
+    }
+
+    public List<Pattern> getIncludedURLPatterns() {
+        return includedURLPatterns;
+    }
+
+    public List<Pattern> getExcludedURLPatterns() {
+        return excludedURLPatterns;
+    }
+
+    public int getAttributeHashCacheMaxEntries() {
+        return attributeHashCacheMaxEntries;
+    }
+
+    public int getBodyHashCacheMaxEntries() {
+        return bodyHashCacheMaxEntries;
+    }
+
+    public long getHashCacheTTLMillis() {
+        return hashCacheTTLMillis;
+    }
+
+    public boolean isContentAddressedStyleClasses() {
+        return contentAddressedStyleClasses;
+    }
+
+    public long getBufferMemoryBudget() {
+        return bufferMemoryBudget;
+    }
+
+    public boolean isRewriteOffload() {
+        return rewriteOffload;
+    }
+
+    public long getRewriteLatencyBudgetMillis() {
+        return rewriteLatencyBudgetMillis;
+    }
+
+    public boolean isExternalizeEventHandlers() {
+        return externalizeEventHandlers;
+    }
+
+    public boolean isHashManifest() {
+        return hashManifest;
+    }
+
+    public String getNonceProvider() {
+        return nonceProvider;
+    }
+
+    public String getRewriteEngine() {
+        return rewriteEngine;
+    }
+
+    public Map<Pattern, String> getRewriteEngineRoutes() {
+        return rewriteEngineRoutes;
+    }
+
+    public boolean isCompressResponses() {
+        return compressResponses;
+    }
+
+    public long getCompressionMinSize() {
+        return compressionMinSize;
+    }
+
+    public int getReportBufferCapacity() {
+        return reportBufferCapacity;
+    }
+
+    public long getReportFlushIntervalMillis() {
+        return reportFlushIntervalMillis;
+    }
+
+    public String getReportSink() {
+        return reportSink;
+    }
+
+    public String getReportFile() {
+        return reportFile;
+    }
+
+    public long getReportFileMaxSize() {
+        return reportFileMaxSize;
+    }
+
+    public double getRewriteSampleRate() {
+        return rewriteSampleRate;
+    }
+
+    public Map<Pattern, Double> getRewriteSampleRoutes() {
+        return rewriteSampleRoutes;
+    }
+
+    public Map<String, Double> getRewriteSampleUserAgents() {
+        return rewriteSampleUserAgents;
+    }
+
+    public String getUnsampledPolicy() {
+        return unsampledPolicy;
+    }
+
+    public long getOutputCacheMaxBytes() {
+        return outputCacheMaxBytes;
+    }
+
+    public String getHashStoreFile() {
+        return hashStoreFile;
+    }
+
+    public long getHashStoreMaxBytes() {
+        return hashStoreMaxBytes;
+    }
+
+    public long getHashStoreFlushIntervalMillis() {
+        return hashStoreFlushIntervalMillis;
+    }
+
+    public static class Builder {
+
+        private String enforcedPolicy = DEFAULT_POLICY;
+        private String reportOnlyPolicy = DEFAULT_POLICY;
+        private boolean streamingRewrite;
+        private boolean directByteBuffers;
+        private List<String> rewritableContentTypes = Arrays.asList(DEFAULT_REWRITABLE_CONTENT_TYPES);
+        private long maxRewritableContentLength = DEFAULT_MAX_REWRITABLE_CONTENT_LENGTH;
+        private List<Pattern> includedURLPatterns = Collections.emptyList();
+        private List<Pattern> excludedURLPatterns = Collections.emptyList();
+        private int attributeHashCacheMaxEntries = DEFAULT_ATTRIBUTE_HASH_CACHE_MAX_ENTRIES;
+        private int bodyHashCacheMaxEntries = DEFAULT_BODY_HASH_CACHE_MAX_ENTRIES;
+        private long hashCacheTTLMillis = DEFAULT_HASH_CACHE_TTL_MILLIS;
+        private boolean contentAddressedStyleClasses;
+        private long bufferMemoryBudget = DEFAULT_BUFFER_MEMORY_BUDGET;
+        private boolean rewriteOffload;
+        private long rewriteLatencyBudgetMillis = DEFAULT_REWRITE_LATENCY_BUDGET_MILLIS;
+        private boolean externalizeEventHandlers;
+        private boolean hashManifest;
+        private String nonceProvider;
+        private String rewriteEngine = DEFAULT_REWRITE_ENGINE;
+        private Map<Pattern, String> rewriteEngineRoutes = Collections.emptyMap();
+        private boolean compressResponses;
+        private long compressionMinSize = DEFAULT_COMPRESSION_MIN_SIZE;
+        private int reportBufferCapacity = DEFAULT_REPORT_BUFFER_CAPACITY;
+        private long reportFlushIntervalMillis = DEFAULT_REPORT_FLUSH_INTERVAL_MILLIS;
+        private String reportSink;
+        private String reportFile;
+        private long reportFileMaxSize = DEFAULT_REPORT_FILE_MAX_SIZE;
+        private double rewriteSampleRate = DEFAULT_REWRITE_SAMPLE_RATE;
+        private Map<Pattern, Double> rewriteSampleRoutes = Collections.emptyMap();
+        private Map<String, Double> rewriteSampleUserAgents = Collections.emptyMap();
+        private String unsampledPolicy;
+        private long outputCacheMaxBytes = DEFAULT_OUTPUT_CACHE_MAX_BYTES;
+        private String hashStoreFile;
+        private long hashStoreMaxBytes = DEFAULT_HASH_STORE_MAX_BYTES;
+        private long hashStoreFlushIntervalMillis = DEFAULT_HASH_STORE_FLUSH_INTERVAL_MILLIS;
+
+        public Builder enforcedPolicy(String enforcedPolicy) {
+            this.enforcedPolicy = enforcedPolicy;
+            return this;
+        }
+
+        public Builder reportOnlyPolicy(String reportOnlyPolicy) {
+            this.reportOnlyPolicy = reportOnlyPolicy;
+            return this;
+        }
+
+        public Builder streamingRewrite(boolean streamingRewrite) {
+            this.streamingRewrite = streamingRewrite;
+            return this;
+        }
+
+        public Builder directByteBuffers(boolean directByteBuffers) {
+            this.directByteBuffers = directByteBuffers;
+            return this;
+        }
+
+        public Builder rewritableContentTypes(List<String> rewritableContentTypes) {
+            this.rewritableContentTypes = rewritableContentTypes;
+            return this;
+        }
+
+        public Builder maxRewritableContentLength(long maxRewritableContentLength) {
+            this.maxRewritableContentLength = maxRewritableContentLength;
+            return this;
+        }
+
+        public Builder includedURLPatterns(List<Pattern> includedURLPatterns) {
+            this.includedURLPatterns = includedURLPatterns;
+            return this;
+        }
+
+        public Builder excludedURLPatterns(List<Pattern> excludedURLPatterns) {
+            this.excludedURLPatterns = excludedURLPatterns;
+            return this;
+        }
+
+        public Builder attributeHashCacheMaxEntries(int attributeHashCacheMaxEntries) {
+            this.attributeHashCacheMaxEntries = attributeHashCacheMaxEntries;
+            return this;
+        }
+
+        public Builder bodyHashCacheMaxEntries(int bodyHashCacheMaxEntries) {
+            this.bodyHashCacheMaxEntries = bodyHashCacheMaxEntries;
+            return this;
+        }
+
+        public Builder hashCacheTTLMillis(long hashCacheTTLMillis) {
+            this.hashCacheTTLMillis = hashCacheTTLMillis;
+            return this;
+        }
+
+        public Builder contentAddressedStyleClasses(boolean contentAddressedStyleClasses) {
+            this.contentAddressedStyleClasses = contentAddressedStyleClasses;
+            return this;
+        }
+
+        public Builder bufferMemoryBudget(long bufferMemoryBudget) {
+            this.bufferMemoryBudget = bufferMemoryBudget;
+            return this;
+        }
+
+        public Builder rewriteOffload(boolean rewriteOffload) {
+            this.rewriteOffload = rewriteOffload;
+            return this;
+        }
+
+        public Builder rewriteLatencyBudgetMillis(long rewriteLatencyBudgetMillis) {
+            this.rewriteLatencyBudgetMillis = rewriteLatencyBudgetMillis;
+            return this;
+        }
+
+        public Builder externalizeEventHandlers(boolean externalizeEventHandlers) {
+            this.externalizeEventHandlers = externalizeEventHandlers;
+            return this;
+        }
+
+        public Builder hashManifest(boolean hashManifest) {
+            this.hashManifest = hashManifest;
+            return this;
+        }
+
+        public Builder nonceProvider(String nonceProvider) {
+            this.nonceProvider = nonceProvider;
+            return this;
+        }
+
+        public Builder rewriteEngine(String rewriteEngine) {
+            this.rewriteEngine = rewriteEngine;
+            return this;
+        }
+
+        public Builder rewriteEngineRoutes(Map<Pattern, String> rewriteEngineRoutes) {
+            this.rewriteEngineRoutes = rewriteEngineRoutes;
+            return this;
+        }
+
+        public Builder compressResponses(boolean compressResponses) {
+            this.compressResponses = compressResponses;
+            return this;
+        }
+
+        public Builder compressionMinSize(long compressionMinSize) {
+            this.compressionMinSize = compressionMinSize;
+            return this;
+        }
+
+        public Builder reportBufferCapacity(int reportBufferCapacity) {
+            this.reportBufferCapacity = reportBufferCapacity;
+            return this;
+        }
+
+        public Builder reportFlushIntervalMillis(long reportFlushIntervalMillis) {
+            this.reportFlushIntervalMillis = reportFlushIntervalMillis;
+            return this;
+        }
+
+        public Builder reportSink(String reportSink) {
+            this.reportSink = reportSink;
+            return this;
+        }
+
+        public Builder reportFile(String reportFile) {
+            this.reportFile = reportFile;
+            return this;
+        }
+
+        public Builder reportFileMaxSize(long reportFileMaxSize) {
+            this.reportFileMaxSize = reportFileMaxSize;
+            return this;
+        }
+
+        public Builder rewriteSampleRate(double rewriteSampleRate) {
+            this.rewriteSampleRate = rewriteSampleRate;
+            return this;
+        }
+
+        public Builder rewriteSampleRoutes(Map<Pattern, Double> rewriteSampleRoutes) {
+            this.rewriteSampleRoutes = rewriteSampleRoutes;
+            return this;
+        }
+
+        public Builder rewriteSampleUserAgents(Map<String, Double> rewriteSampleUserAgents) {
+            this.rewriteSampleUserAgents = rewriteSampleUserAgents;
+            return this;
+        }
+
+        public Builder unsampledPolicy(String unsampledPolicy) {
+            this.unsampledPolicy = unsampledPolicy;
+            return this;
+        }
+
+        public Builder outputCacheMaxBytes(long outputCacheMaxBytes) {
+            this.outputCacheMaxBytes = outputCacheMaxBytes;
+            return this;
+        }
+
+        public Builder hashStoreFile(String hashStoreFile) {
+            this.hashStoreFile = hashStoreFile;
+            return this;
+        }
+
+        public Builder hashStoreMaxBytes(long hashStoreMaxBytes) {
+            this.hashStoreMaxBytes = hashStoreMaxBytes;
+            return this;
+        }
+
+        public Builder hashStoreFlushIntervalMillis(long hashStoreFlushIntervalMillis) {
+            this.hashStoreFlushIntervalMillis = hashStoreFlushIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Applies the settings present in the given source, keyed as in {@link com.cspdog.utils.Constants}
+         * (e.g. <code>enforcedPolicy</code>, <code>streamingRewrite</code>), leaving the rest untouched.
+         * Throws {@link IllegalArgumentException} on malformed values.
+         */
+        public Builder apply(Map<String, String> settings) {
+            String value;
+            if ((value = settings.get(ENFORCED_POLICY_KEY)) != null) enforcedPolicy = value;
+            if ((value = settings.get(REPORT_ONLY_POLICY_KEY)) != null) reportOnlyPolicy = value;
+            if ((value = settings.get(STREAMING_REWRITE_KEY)) != null) streamingRewrite = Boolean.parseBoolean(value.trim());
+            if ((value = settings.get(DIRECT_BYTE_BUFFERS_KEY)) != null) directByteBuffers = Boolean.parseBoolean(value.trim());
+            if ((value = settings.get(REWRITABLE_CONTENT_TYPES_KEY)) != null) {
+                rewritableContentTypes = Arrays.asList(StringUtils.stripAll(StringUtils.split(value, LIST_SEPARATOR)));
+            }
+            if ((value = settings.get(MAX_REWRITABLE_CONTENT_LENGTH_KEY)) != null) maxRewritableContentLength = Long.parseLong(value.trim());
+            if ((value = settings.get(INCLUDED_URL_PATTERNS_KEY)) != null) includedURLPatterns = compilePatterns(value);
+            if ((value = settings.get(EXCLUDED_URL_PATTERNS_KEY)) != null) excludedURLPatterns = compilePatterns(value);
+            if ((value = settings.get(ATTRIBUTE_HASH_CACHE_MAX_ENTRIES_KEY)) != null) attributeHashCacheMaxEntries = Integer.parseInt(value.trim());
+            if ((value = settings.get(BODY_HASH_CACHE_MAX_ENTRIES_KEY)) != null) bodyHashCacheMaxEntries = Integer.parseInt(value.trim());
+            if ((value = settings.get(HASH_CACHE_TTL_MILLIS_KEY)) != null) hashCacheTTLMillis = Long.parseLong(value.trim());
+            if ((value = settings.get(CONTENT_ADDRESSED_STYLE_CLASSES_KEY)) != null) contentAddressedStyleClasses = Boolean.parseBoolean(value.trim());
+            if ((value = settings.get(BUFFER_MEMORY_BUDGET_KEY)) != null) bufferMemoryBudget = Long.parseLong(value.trim());
+            if ((value = settings.get(REWRITE_OFFLOAD_KEY)) != null) rewriteOffload = Boolean.parseBoolean(value.trim());
+            if ((value = settings.get(REWRITE_LATENCY_BUDGET_MILLIS_KEY)) != null) rewriteLatencyBudgetMillis = Long.parseLong(value.trim());
+            if ((value = settings.get(EXTERNALIZE_EVENT_HANDLERS_KEY)) != null) externalizeEventHandlers = Boolean.parseBoolean(value.trim());
+            if ((value = settings.get(HASH_MANIFEST_KEY)) != null) hashManifest = Boolean.parseBoolean(value.trim());
+            if ((value = settings.get(NONCE_PROVIDER_KEY)) != null) nonceProvider = value.trim();
+            if ((value = settings.get(REWRITE_ENGINE_KEY)) != null) rewriteEngine = value.trim();
+            if ((value = settings.get(REWRITE_ENGINE_ROUTES_KEY)) != null) rewriteEngineRoutes = compileRoutes(value);
+            if ((value = settings.get(COMPRESS_RESPONSES_KEY)) != null) compressResponses = Boolean.parseBoolean(value.trim());
+            if ((value = settings.get(COMPRESSION_MIN_SIZE_KEY)) != null) compressionMinSize = Long.parseLong(value.trim());
+            if ((value = settings.get(REPORT_BUFFER_CAPACITY_KEY)) != null) reportBufferCapacity = Integer.parseInt(value.trim());
+            if ((value = settings.get(REPORT_FLUSH_INTERVAL_MILLIS_KEY)) != null) reportFlushIntervalMillis = Long.parseLong(value.trim());
+            if ((value = settings.get(REPORT_SINK_KEY)) != null) reportSink = value.trim();
+            if ((value = settings.get(REPORT_FILE_KEY)) != null) reportFile = value.trim();
+            if ((value = settings.get(REPORT_FILE_MAX_SIZE_KEY)) != null) reportFileMaxSize = Long.parseLong(value.trim());
+            if ((value = settings.get(REWRITE_SAMPLE_RATE_KEY)) != null) rewriteSampleRate = parseRate(value);
+            if ((value = settings.get(REWRITE_SAMPLE_ROUTES_KEY)) != null) rewriteSampleRoutes = compileRates(value);
+            if ((value = settings.get(REWRITE_SAMPLE_USER_AGENTS_KEY)) != null) rewriteSampleUserAgents = parseUserAgentRates(value);
+            if ((value = settings.get(UNSAMPLED_POLICY_KEY)) != null) unsampledPolicy = value.trim();
+            if ((value = settings.get(OUTPUT_CACHE_MAX_BYTES_KEY)) != null) outputCacheMaxBytes = Long.parseLong(value.trim());
+            if ((value = settings.get(HASH_STORE_FILE_KEY)) != null) hashStoreFile = value.trim();
+            if ((value = settings.get(HASH_STORE_MAX_BYTES_KEY)) != null) hashStoreMaxBytes = Long.parseLong(value.trim());
+            if ((value = settings.get(HASH_STORE_FLUSH_INTERVAL_MILLIS_KEY)) != null) hashStoreFlushIntervalMillis = Long.parseLong(value.trim());
+            return this;
+        }
+
+        private static List<Pattern> compilePatterns(String commaSeparatedRegexes) {
+            List<Pattern> patterns = new ArrayList<>();
+            for (String regex : splitRegexes(commaSeparatedRegexes)) {
+                if (StringUtils.isNotBlank(regex)) patterns.add(Pattern.compile(regex.trim()));
+            }
+            return patterns;
+        }
+
+        /**
+         * Splits a comma separated list of regexes, or of pairs starting with one. A comma inside brackets, braces or
+         * parentheses, e.g. in <code>\d{1,3}</code>, or escaped as <code>\,</code>, is part of the regex.
+         */
+        private static List<String> splitRegexes(String commaSeparatedRegexes) {
+            List<String> regexes = new ArrayList<>();
+            char separator = LIST_SEPARATOR.charAt(0);
+            int depth = 0;
+            int start = 0;
+            for (int i = 0; i < commaSeparatedRegexes.length(); i++) {
+                char c = commaSeparatedRegexes.charAt(i);
+                switch (c) {
+                    case '\\':
+                        // Whatever follows is escaped
+                        i++;
+                        break;
+                    case '[':
+                    case '{':
+                    case '(':
+                        depth++;
+                        break;
+                    case ']':
+                    case '}':
+                    case ')':
+                        if (depth > 0) depth--;
+                        break;
+                    default:
+                        if (c == separator && depth == 0) {
+                            regexes.add(commaSeparatedRegexes.substring(start, i));
+                            start = i + 1;
+                        }
+                        break;
+                }
+            }
+            regexes.add(commaSeparatedRegexes.substring(start));
+            return regexes;
+        }
+
+        /**
+         * Comma separated <code>regex=engine</code> pairs, e.g. <code>/static/.*=prefilter,/app/.*=regex</code>.
+         */
+        private static Map<Pattern, String> compileRoutes(String commaSeparatedRoutes) {
+            Map<Pattern, String> routes = new LinkedHashMap<>();
+            for (String route : splitRegexes(commaSeparatedRoutes)) {
+                if (StringUtils.isBlank(route)) continue;
+                // Engine names have no '=', patterns may
+                int separator = route.lastIndexOf(ROUTE_ENGINE_SEPARATOR);
+                if (separator <= 0) throw new IllegalArgumentException("no engine for route " + route.trim());
+                routes.put(Pattern.compile(route.substring(0, separator).trim()), route.substring(separator + 1).trim());
+            }
+            return routes;
+        }
+
+        /**
+         * Comma separated <code>regex=rate</code> pairs, e.g. <code>/checkout/.*=0,/blog/.*=0.5</code>.
+         */
+        private static Map<Pattern, Double> compileRates(String commaSeparatedRates) {
+            Map<Pattern, Double> rates = new LinkedHashMap<>();
+            for (Map.Entry<Pattern, String> route : compileRoutes(commaSeparatedRates).entrySet()) {
+                rates.put(route.getKey(), parseRate(route.getValue()));
+            }
+            return rates;
+        }
+
+        /**
+         * Comma separated <code>class=rate</code> pairs, e.g. <code>bot=0,mobile=0.1</code>.
+         */
+        private static Map<String, Double> parseUserAgentRates(String commaSeparatedRates) {
+            Map<String, Double> rates = new HashMap<>();
+            for (String classRate : StringUtils.split(commaSeparatedRates, LIST_SEPARATOR)) {
+                int separator = classRate.indexOf(ROUTE_ENGINE_SEPARATOR);
+                if (separator <= 0) throw new IllegalArgumentException("no rate for user agent class " + classRate.trim());
+                rates.put(classRate.substring(0, separator).trim().toLowerCase(Locale.ROOT), parseRate(classRate.substring(separator + 1)));
+            }
+            return rates;
+        }
+
+        private static double parseRate(String value) {
+            double rate = Double.parseDouble(value.trim());
+            if (!(rate >= 0 && rate <= 1)) throw new IllegalArgumentException("sample rate " + value.trim() + " is not between 0 and 1");
+            return rate;
+        }
+
+        public CSPConfiguration build() {
+            return new CSPConfiguration(this);
+        }
+    }
 
 }
@@ -1,29 +1,238 @@
 package com.cspdog.configuration;
 
+import com.cspdog.cache.HashCaches;
+import com.cspdog.cache.RewrittenOutputCache;
+import jakarta.servlet.FilterConfig;
 import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static com.cspdog.utils.Constants.*;
 
 public class CSPConfigurationHolder {
 
-    // Hook into startup lifecycle, read configuration from different sources:
-    // - Config file
-    // - Environment variable
-    // - Configuration server
-    // - Passed as a parameter
-    // - Custom passing a lambda
-    // - ...
-    // Runs periodically, so configuration can be hot-reloaded
+    private static final Logger logger = LoggerFactory.getLogger(CSPConfigurationHolder.class);
+
+    // Single reference read by the request path, swapped as a whole on every reload
+    private static final AtomicReference<CSPConfiguration> configuration = new AtomicReference<>(CSPConfiguration.builder().build());
+    private static volatile Map<String, String> initParameters = Collections.emptyMap();
+    private static volatile Supplier<Map<String, String>> configurationSupplier;
+    private static ConfigurationFileWatcher configurationFileWatcher;
+    private static ScheduledExecutorService reloadScheduler;
+
+    static {
+        publishLegacyPolicies(configuration.get());
+    }
+
+    // Reads the configuration out of its different sources, latest ones override the earliest:
+    // - Defaults
+    // - Config file (properties or flat YAML), watched for changes
+    // - Environment variables
+    // - Filter init-params
+    // - Custom passing a Supplier
+    // The new snapshot is published at once, on failure the current one is kept
     public static void readCSPConfiguration() {
-        CSPConfiguration.ENFORCED_POLICY = "script-src 'self' 'nonce-{nonce}' 'unsafe-eval' 'unsafe-hashes' {eventhandlerhashes} ; style-src 'unsafe-hashes' {inlinestyleshashes} ;";
-        CSPConfiguration.REPORT_ONLY_POLICY = "script-src 'self' 'nonce-{nonce}' 'unsafe-eval' 'unsafe-hashes' {eventhandlerhashes} ; style-src 'unsafe-hashes' {inlinestyleshashes} ;";
+        try {
+            Map<String, String> settings = new HashMap<>();
+            Path configurationFile = getConfigurationFile();
+            if (configurationFile != null && Files.isRegularFile(configurationFile)) {
+                settings.putAll(readConfigurationFile(configurationFile));
+            }
+            settings.putAll(readEnvironmentVariables(System.getenv()));
+            settings.putAll(initParameters);
+            Supplier<Map<String, String>> supplier = configurationSupplier;
+            if (supplier != null) {
+                Map<String, String> suppliedSettings = supplier.get();
+                if (suppliedSettings != null) settings.putAll(suppliedSettings);
+            }
+            setConfiguration(CSPConfiguration.builder().apply(settings).build());
+        } catch (Exception e) {
+            logger.error("readCSPConfiguration(): configuration could not be read, keeping the current one: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the configuration taking the filter init-params as a source too, and starts watching the configuration
+     * file and/or reloading periodically when configured to.
+     */
+    public static void readFilterConfiguration(FilterConfig filterConfig) {
+        if (filterConfig == null) {
+            // Not deployed through a container, the other sources still apply
+            readCSPConfiguration();
+            return;
+        }
+        Map<String, String> parameters = new HashMap<>();
+        Enumeration<String> parameterNames = filterConfig.getInitParameterNames();
+        while (parameterNames != null && parameterNames.hasMoreElements()) {
+            String parameterName = parameterNames.nextElement();
+            parameters.put(parameterName, filterConfig.getInitParameter(parameterName));
+        }
+        initParameters = Collections.unmodifiableMap(parameters);
+        readCSPConfiguration();
+        startWatchingConfigurationFile();
+        String reloadSeconds = getSetting(CONFIGURATION_RELOAD_SECONDS_KEY);
+        if (StringUtils.isNumeric(reloadSeconds) && Long.parseLong(reloadSeconds) > 0) {
+            scheduleReload(Long.parseLong(reloadSeconds));
+        }
     }
 
-    public static void setConfiguration(CSPConfiguration configuration) {
-        // TODO: hot-reload configuration
+    public static CSPConfiguration getConfiguration() {
+        return configuration.get();
+    }
+
+    public static void setConfiguration(CSPConfiguration newConfiguration) {
+        if (newConfiguration == null) throw new IllegalArgumentException("configuration cannot be null, build one with CSPConfiguration.builder()");
+        CSPConfiguration previousConfiguration = configuration.getAndSet(newConfiguration);
+        if (previousConfiguration.getAttributeHashCacheMaxEntries() != newConfiguration.getAttributeHashCacheMaxEntries()
+                || previousConfiguration.getBodyHashCacheMaxEntries() != newConfiguration.getBodyHashCacheMaxEntries()
+                || previousConfiguration.getHashCacheTTLMillis() != newConfiguration.getHashCacheTTLMillis()) {
+            HashCaches.reset();
+        }
+        if (previousConfiguration.getOutputCacheMaxBytes() != newConfiguration.getOutputCacheMaxBytes()) RewrittenOutputCache.reset();
+        publishLegacyPolicies(newConfiguration);
+        logger.debug("setConfiguration(): configuration published, enforced policy {}", newConfiguration.getEnforcedPolicy());
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void publishLegacyPolicies(CSPConfiguration newConfiguration) {
+        CSPConfiguration.ENFORCED_POLICY = newConfiguration.getEnforcedPolicy();
+        CSPConfiguration.REPORT_ONLY_POLICY = newConfiguration.getReportOnlyPolicy();
+    }
+
+    /**
+     * Custom configuration source, e.g. a configuration server client. Queried on every reload,
+     * its settings override any other source.
+     */
+    public static void setConfigurationSupplier(Supplier<Map<String, String>> supplier) {
+        configurationSupplier = supplier;
     }
 
     public static boolean isCSPConfigured() {
-        return StringUtils.isNotBlank(CSPConfiguration.ENFORCED_POLICY) &&
-                StringUtils.isNotBlank(CSPConfiguration.REPORT_ONLY_POLICY);
+        CSPConfiguration currentConfiguration = configuration.get();
+        return StringUtils.isNotBlank(currentConfiguration.getEnforcedPolicy()) &&
+                StringUtils.isNotBlank(currentConfiguration.getReportOnlyPolicy());
+    }
+
+    public static synchronized void startWatchingConfigurationFile() {
+        Path configurationFile = getConfigurationFile();
+        if (configurationFile == null || configurationFileWatcher != null) return;
+        try {
+            configurationFileWatcher = new ConfigurationFileWatcher(configurationFile, CSPConfigurationHolder::readCSPConfiguration);
+            configurationFileWatcher.start();
+        } catch (IOException e) {
+            logger.error("startWatchingConfigurationFile(): {} cannot be watched: {}", configurationFile, e.getMessage());
+            configurationFileWatcher = null;
+        }
+    }
+
+    private static synchronized void scheduleReload(long reloadSeconds) {
+        if (reloadScheduler != null) return;
+        reloadScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, CONFIGURATION_RELOAD_THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloadScheduler.scheduleWithFixedDelay(CSPConfigurationHolder::readCSPConfiguration, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopWatching() {
+        if (configurationFileWatcher != null) {
+            configurationFileWatcher.close();
+            configurationFileWatcher = null;
+        }
+        if (reloadScheduler != null) {
+            reloadScheduler.shutdownNow();
+            reloadScheduler = null;
+        }
+    }
+
+    private static Path getConfigurationFile() {
+        String configurationFile = getSetting(CONFIGURATION_FILE_KEY);
+        return StringUtils.isBlank(configurationFile) ? null : Paths.get(configurationFile.trim());
+    }
+
+    /**
+     * Settings which tell where the configuration lives, looked up in init-params, system properties and environment.
+     */
+    private static String getSetting(String key) {
+        String value = initParameters.get(key);
+        if (value == null) value = System.getProperty(SYSTEM_PROPERTY_PREFIX + key);
+        if (value == null) value = System.getenv(toEnvironmentVariableName(key));
+        return value;
+    }
+
+    static Map<String, String> readConfigurationFile(Path configurationFile) throws IOException {
+        String fileName = configurationFile.getFileName().toString();
+        if (fileName.endsWith(".yml") || fileName.endsWith(".yaml")) {
+            return readFlatYAML(Files.readAllLines(configurationFile, StandardCharsets.UTF_8));
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(configurationFile, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Map<String, String> settings = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            settings.put(name, properties.getProperty(name));
+        }
+        return settings;
+    }
+
+    /**
+     * Flat <code>key: value</code> YAML, the only shape CSPDog settings need, values may be quoted.
+     */
+    static Map<String, String> readFlatYAML(List<String> lines) {
+        Map<String, String> settings = new HashMap<>();
+        for (String line : lines) {
+            String trimmedLine = line.trim();
+            if (trimmedLine.isEmpty() || trimmedLine.startsWith("#") || trimmedLine.equals("---")) continue;
+            int separator = trimmedLine.indexOf(':');
+            if (separator <= 0) continue;
+            String value = trimmedLine.substring(separator + 1).trim();
+            if (value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'')
+                    && value.charAt(value.length() - 1) == value.charAt(0)) {
+                value = value.substring(1, value.length() - 1);
+            }
+            settings.put(trimmedLine.substring(0, separator).trim(), value);
+        }
+        return settings;
+    }
+
+    static Map<String, String> readEnvironmentVariables(Map<String, String> environment) {
+        Map<String, String> settings = new HashMap<>();
+        for (String key : CONFIGURATION_KEYS) {
+            String value = environment.get(toEnvironmentVariableName(key));
+            if (value != null) settings.put(key, value);
+        }
+        return settings;
+    }
+
+    // streamingRewrite -> CSPDOG_STREAMING_REWRITE
+    static String toEnvironmentVariableName(String key) {
+        StringBuilder sb = new StringBuilder(ENVIRONMENT_VARIABLE_PREFIX);
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (Character.isUpperCase(c)) sb.append('_');
+            sb.append(Character.toUpperCase(c));
+        }
+        return sb.toString();
     }
 
 }
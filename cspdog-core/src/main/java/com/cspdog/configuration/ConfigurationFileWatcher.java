@@ -0,0 +1,75 @@
+package com.cspdog.configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import static com.cspdog.utils.Constants.CONFIGURATION_WATCHER_THREAD_NAME;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Watches the configuration file from a daemon thread and triggers a reload whenever it is created or modified.
+ * The parent directory is watched, since editors and config management tools usually replace files rather than
+ * writing them in place.
+ */
+public class ConfigurationFileWatcher implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConfigurationFileWatcher.class);
+
+    private final Path configurationFile;
+    private final Runnable onChange;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    public ConfigurationFileWatcher(Path configurationFile, Runnable onChange) throws IOException {
+        this.configurationFile = configurationFile.toAbsolutePath();
+        this.onChange = onChange;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.configurationFile.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        this.thread = new Thread(this::watch, CONFIGURATION_WATCHER_THREAD_NAME);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    private void watch() {
+        Path fileName = configurationFile.getFileName();
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (fileName.equals(event.context())) changed = true;
+                }
+                key.reset();
+                if (changed) {
+                    logger.info("watch(): {} changed, reloading the configuration", configurationFile);
+                    onChange.run();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.debug("watch(): stopped watching {}", configurationFile);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("close(): {}", e.getMessage());
+        }
+        thread.interrupt();
+    }
+
+}
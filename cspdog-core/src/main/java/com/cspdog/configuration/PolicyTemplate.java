@@ -0,0 +1,126 @@
+package com.cspdog.configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.cspdog.utils.Constants.*;
+
+/**
+ * Policy parsed once into literal segments and typed placeholders, e.g.
+ * <code>script-src 'nonce-{nonce}' {eventhandlerhashes}</code> becomes
+ * <code>["script-src 'nonce-", NONCE, "' ", EVENT_HANDLER_HASHES]</code>, so rendering a header per response is
+ * a plain concatenation into a presized builder instead of one regex compilation and copy per placeholder.
+ * Unknown <code>{...}</code> segments are kept as literals.
+ */
+public final class PolicyTemplate {
+
+    public enum Placeholder {
+        NONCE(NONCE_PLACEHOLDER),
+        EVENT_HANDLER_HASHES(EVENT_HANDLER_HASHES_PLACEHOLDER, INVOCATION_HASHES_PLACEHOLDER),
+        INLINE_STYLE_HASHES(INLINE_STYLE_HASHES_PLACEHOLDER, INLINE_STYLE_HASHES_ALIAS_PLACEHOLDER);
+
+        private final String[] names;
+
+        Placeholder(String... names) {
+            this.names = names;
+        }
+
+        static Placeholder forName(String name) {
+            for (Placeholder placeholder : values()) {
+                for (String placeholderName : placeholder.names) {
+                    if (placeholderName.equals(name)) return placeholder;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final String policy;
+    // literals[i] goes right before placeholders[i], the last literal closes the policy
+    private final String[] literals;
+    private final Placeholder[] placeholders;
+    private final int literalsLength;
+
+    private PolicyTemplate(String policy, String[] literals, Placeholder[] placeholders) {
+        this.policy = policy;
+        this.literals = literals;
+        this.placeholders = placeholders;
+        int length = 0;
+        for (String literal : literals) length += literal.length();
+        this.literalsLength = length;
+    }
+
+    public static PolicyTemplate parse(String policy) {
+        List<String> literals = new ArrayList<>();
+        List<Placeholder> placeholders = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < policy.length()) {
+            char c = policy.charAt(i);
+            int placeholderEnd = c == '{' ? policy.indexOf('}', i) : -1;
+            Placeholder placeholder = placeholderEnd < 0 ? null : Placeholder.forName(policy.substring(i + 1, placeholderEnd));
+            if (placeholder == null) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+            literals.add(literal.toString());
+            literal.setLength(0);
+            placeholders.add(placeholder);
+            i = placeholderEnd + 1;
+        }
+        literals.add(literal.toString());
+        return new PolicyTemplate(policy, literals.toArray(new String[0]), placeholders.toArray(new Placeholder[0]));
+    }
+
+    public int getRenderedLength(Values values) {
+        int length = literalsLength;
+        for (Placeholder placeholder : placeholders) length += values.get(placeholder).length();
+        return length;
+    }
+
+    public void renderTo(StringBuilder sb, Values values) {
+        for (int i = 0; i < placeholders.length; i++) {
+            sb.append(literals[i]).append(values.get(placeholders[i]));
+        }
+        sb.append(literals[literals.length - 1]);
+    }
+
+    public String render(Values values) {
+        StringBuilder sb = new StringBuilder(getRenderedLength(values));
+        renderTo(sb, values);
+        return sb.toString();
+    }
+
+    public boolean contains(Placeholder placeholder) {
+        for (Placeholder templatePlaceholder : placeholders) {
+            if (templatePlaceholder == placeholder) return true;
+        }
+        return false;
+    }
+
+    public String getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Per-response values of the placeholders, missing ones render empty.
+     */
+    public static final class Values {
+
+        private static final int PLACEHOLDER_COUNT = Placeholder.values().length;
+
+        private final String[] values = new String[PLACEHOLDER_COUNT];
+
+        public Values with(Placeholder placeholder, String value) {
+            values[placeholder.ordinal()] = value;
+            return this;
+        }
+
+        public String get(Placeholder placeholder) {
+            String value = values[placeholder.ordinal()];
+            return value == null ? EMPTY_CHAR : value;
+        }
+    }
+
+}
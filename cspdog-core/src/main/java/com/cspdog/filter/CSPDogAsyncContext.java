@@ -0,0 +1,212 @@
+package com.cspdog.filter;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * {@link AsyncContext} of the container, completing through CSPDog: {@link #complete()} hands the response over to the
+ * filter, which rewrites it and sends it without blocking, and only then completes the container context.
+ * Listeners see this context too, so completing from a timeout or error listener goes through CSPDog as well.
+ * Timed out with nothing completing it, the response is sent by the {@link #addTimeoutFallback(Consumer) fallback}.
+ */
+public class CSPDogAsyncContext implements AsyncContext {
+
+    private static final Logger logger = LoggerFactory.getLogger(CSPDogAsyncContext.class);
+
+    /**
+     * Rewrites and sends the response, calling <code>complete</code> on the container context once sent.
+     */
+    public interface CompletionHandler {
+        void onComplete(CSPDogResponseWrapper responseWrapper, AsyncContext containerAsyncContext);
+    }
+
+    private final AsyncContext delegate;
+    private final ServletRequest request;
+    private final CSPDogResponseWrapper responseWrapper;
+    private final CompletionHandler completionHandler;
+    private boolean completed;
+
+    CSPDogAsyncContext(AsyncContext delegate, ServletRequest request, CSPDogResponseWrapper responseWrapper, CompletionHandler completionHandler) {
+        this.delegate = delegate;
+        this.request = request;
+        this.responseWrapper = responseWrapper;
+        this.completionHandler = completionHandler;
+        // Safety net, buffers are handed back even if the response never gets completed through this context
+        delegate.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                responseWrapper.releaseBuffers();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                responseWrapper.releaseBuffers();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+    }
+
+    AsyncContext getDelegate() {
+        return delegate;
+    }
+
+    synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    private synchronized boolean markCompleted() {
+        if (completed) return false;
+        completed = true;
+        return true;
+    }
+
+    /**
+     * Hands the response to <code>fallback</code> if the container times it out and none of the listeners completes
+     * it, the container would finish it empty otherwise. Added once the servlet returned, so it is called after the
+     * listeners the servlet added.
+     */
+    void addTimeoutFallback(Consumer<CSPDogResponseWrapper> fallback) {
+        delegate.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (!markCompleted()) return;
+                logger.warn("onTimeout(): async response timed out before being completed");
+                fallback.accept(responseWrapper);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+    }
+
+    @Override
+    public void complete() {
+        if (!markCompleted()) return;
+        logger.trace("complete(): rewriting the async response");
+        completionHandler.onComplete(responseWrapper, delegate);
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        return request;
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        return responseWrapper;
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+        return delegate.hasOriginalRequestAndResponse();
+    }
+
+    // The filter has to be mapped for ASYNC dispatches too, so the dispatched response is rewritten
+    @Override
+    public void dispatch() {
+        delegate.dispatch();
+    }
+
+    @Override
+    public void dispatch(String path) {
+        delegate.dispatch(path);
+    }
+
+    @Override
+    public void dispatch(ServletContext context, String path) {
+        delegate.dispatch(context, path);
+    }
+
+    @Override
+    public void start(Runnable run) {
+        delegate.start(run);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener) {
+        delegate.addListener(new ListenerAdapter(listener));
+    }
+
+    @Override
+    public void addListener(AsyncListener listener, ServletRequest servletRequest, ServletResponse servletResponse) {
+        delegate.addListener(new ListenerAdapter(listener), servletRequest, servletResponse);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> clazz) throws ServletException {
+        return delegate.createListener(clazz);
+    }
+
+    @Override
+    public void setTimeout(long timeout) {
+        delegate.setTimeout(timeout);
+    }
+
+    @Override
+    public long getTimeout() {
+        return delegate.getTimeout();
+    }
+
+    /**
+     * Hands listeners this context instead of the container one.
+     */
+    private class ListenerAdapter implements AsyncListener {
+
+        private final AsyncListener listener;
+
+        ListenerAdapter(AsyncListener listener) {
+            this.listener = listener;
+        }
+
+        private AsyncEvent adapt(AsyncEvent event) {
+            return new AsyncEvent(CSPDogAsyncContext.this, event.getSuppliedRequest(), event.getSuppliedResponse(), event.getThrowable());
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            listener.onComplete(adapt(event));
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            listener.onTimeout(adapt(event));
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            listener.onError(adapt(event));
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+            listener.onStartAsync(adapt(event));
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.cspdog.filter;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+
+import java.util.function.Consumer;
+
+/**
+ * Keeps async processing going through CSPDog: <code>startAsync()</code> with no arguments would hand the servlet the
+ * original response, bypassing the rewriting wrapper, and <code>AsyncContext.complete()</code> has to rewrite and send
+ * the body before the container finishes the response.
+ */
+public class CSPDogRequestWrapper extends HttpServletRequestWrapper {
+
+    private final CSPDogResponseWrapper responseWrapper;
+    private final CSPDogAsyncContext.CompletionHandler completionHandler;
+    private CSPDogAsyncContext asyncContext;
+
+    public CSPDogRequestWrapper(HttpServletRequest request, CSPDogResponseWrapper responseWrapper, CSPDogAsyncContext.CompletionHandler completionHandler) {
+        super(request);
+        this.responseWrapper = responseWrapper;
+        this.completionHandler = completionHandler;
+    }
+
+    @Override
+    public AsyncContext startAsync() {
+        return startAsync(this, responseWrapper);
+    }
+
+    @Override
+    public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+        AsyncContext containerAsyncContext = super.startAsync(servletRequest, servletResponse);
+        if (asyncContext == null || asyncContext.getDelegate() != containerAsyncContext) {
+            asyncContext = new CSPDogAsyncContext(containerAsyncContext, this, responseWrapper, completionHandler);
+            responseWrapper.setAsyncContext(asyncContext);
+        }
+        return asyncContext;
+    }
+
+    @Override
+    public AsyncContext getAsyncContext() {
+        if (asyncContext != null && isAsyncStarted()) return asyncContext;
+        return super.getAsyncContext();
+    }
+
+    /**
+     * Whether async processing was started at any point, even if already completed by now.
+     */
+    public boolean wasAsyncStarted() {
+        return asyncContext != null;
+    }
+
+    public boolean isAsyncCompleted() {
+        return asyncContext != null && asyncContext.isCompleted();
+    }
+
+    /**
+     * Sends the response through <code>fallback</code> if the async processing last started times out uncompleted.
+     */
+    void addTimeoutFallback(Consumer<CSPDogResponseWrapper> fallback) {
+        if (asyncContext != null) asyncContext.addTimeoutFallback(fallback);
+    }
+
+    public CSPDogResponseWrapper getResponseWrapper() {
+        return responseWrapper;
+    }
+
+}
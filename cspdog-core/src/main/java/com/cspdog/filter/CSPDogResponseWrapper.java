@@ -1,29 +1,379 @@
 package com.cspdog.filter;
 
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.rewriter.RewritingOutputStream;
+import com.cspdog.rewriter.RewritingWriter;
+import com.cspdog.rewriter.StreamingRewriter;
+import com.cspdog.utils.BufferPool;
+import com.cspdog.utils.CSPUtils;
+import com.cspdog.utils.ChunkedByteBuffer;
+import com.cspdog.utils.ChunkedCharBuffer;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.CharArrayWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+import static com.cspdog.utils.Constants.BUFFER_RESERVATION_SIZE;
+import static com.cspdog.utils.Constants.CONTENT_LENGTH_HEADER_NAME;
 
 public class CSPDogResponseWrapper extends HttpServletResponseWrapper {
 
-    private CharArrayWriter charArrayWriter;
+    private static final Logger logger = LoggerFactory.getLogger(CSPDogResponseWrapper.class);
+
+    private ChunkedCharBuffer charBuffer;
     private PrintWriter writer;
+    private StreamingRewriter rewriter;
+    private Supplier<String> nonceSupplier;
+    private boolean streamWriter;
+    private String nonce;
+    private StreamingRewriter.Session session;
+    private CSPDogServletOutputStream outputStream;
+    private boolean rewriteOutputStream = true;
+    private boolean writerUsed;
+    private boolean passthrough;
+    private long declaredContentLength = -1;
+    private boolean overflowed;
+    // Chars or bytes the servlet wrote so far, and the memory reserved out of the budget to buffer them
+    private long bufferedLength;
+    private long reservedBytes;
+    private long unusedReservedBytes;
+    private AsyncContext asyncContext;
+    private CompressionStage.Encoding acceptedEncoding;
 
     public CSPDogResponseWrapper(HttpServletResponse response) {
+        this(response, new StreamingRewriter(), () -> null, false);
+    }
+
+    /**
+     * Nothing gets allocated until the servlet starts writing a rewritable response: the nonce and the rewriting
+     * session are created on first use. Whatever is written through the output stream is rewritten byte by byte,
+     * unless {@link #setRewriteOutputStream(boolean) told otherwise}, when <code>streamWriter</code> is set the writer
+     * is rewritten on the fly as well instead of being buffered.
+     */
+    public CSPDogResponseWrapper(HttpServletResponse response, StreamingRewriter rewriter, Supplier<String> nonceSupplier, boolean streamWriter) {
         super(response);
-        charArrayWriter = new CharArrayWriter();
-        writer = new PrintWriter(charArrayWriter);
+        this.rewriter = rewriter;
+        this.nonceSupplier = nonceSupplier;
+        this.streamWriter = streamWriter;
     }
 
-    public PrintWriter getWriter() {
+    public PrintWriter getWriter() throws IOException {
+        if (outputStream != null) {
+            throw new IllegalStateException("getOutputStream() has already been called for this response");
+        }
+        if (decidePassthrough()) {
+            return super.getWriter();
+        }
+        if (writer == null) {
+            if (streamWriter) {
+                writer = new PrintWriter(new BufferingWriter(new RewritingWriter(getSession())));
+            } else {
+                charBuffer = new ChunkedCharBuffer();
+                writer = new PrintWriter(new BufferingWriter(charBuffer));
+            }
+        }
+        writerUsed = true;
         return writer;
     }
 
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writerUsed) {
+            throw new IllegalStateException("getWriter() has already been called for this response");
+        }
+        if (decidePassthrough()) {
+            return super.getOutputStream();
+        }
+        if (outputStream == null) {
+            RewritingOutputStream rewritingOutputStream = rewriteOutputStream
+                    ? new RewritingOutputStream(getSession(), getResponseCharset()) : RewritingOutputStream.buffering(getResponseCharset());
+            outputStream = new CSPDogServletOutputStream(rewritingOutputStream, this);
+        }
+        return outputStream;
+    }
+
+    /**
+     * Once the servlet starts writing, content type and declared length are known: anything which is not worth
+     * rewriting goes straight to the client, unbuffered.
+     */
+    private boolean decidePassthrough() {
+        if (passthrough || writerUsed || outputStream != null) return passthrough;
+        if (RewriteGate.isContentTypeRewritable(getContentType()) && RewriteGate.isContentLengthRewritable(declaredContentLength)) {
+            return false;
+        }
+        passthrough = true;
+        if (declaredContentLength >= 0) super.setContentLengthLong(declaredContentLength);
+        return true;
+    }
+
+    public boolean isPassthrough() {
+        return passthrough;
+    }
+
+    public boolean isStreamWriter() {
+        return streamWriter;
+    }
+
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * Coding the client accepts the rewritten body in, null to send it as is.
+     */
+    public CompressionStage.Encoding getAcceptedEncoding() {
+        return acceptedEncoding;
+    }
+
+    public void setAcceptedEncoding(CompressionStage.Encoding acceptedEncoding) {
+        this.acceptedEncoding = acceptedEncoding;
+    }
+
+    /**
+     * Whether bytes written through the output stream are rewritten on the fly by the streaming rewriter, or buffered
+     * as they are, to be read back decoded with {@link #toString()} and rewritten as writer output is. To be set before
+     * the servlet writes.
+     */
+    public void setRewriteOutputStream(boolean rewriteOutputStream) {
+        this.rewriteOutputStream = rewriteOutputStream;
+    }
+
+    /**
+     * Admits <code>length</code> more chars or bytes into the buffer, unless that takes the response past
+     * <code>maxRewritableContentLength</code> or the buffer memory budget is spent. In that case the response
+     * overflows: what was buffered so far is sent and the rest of it is passed through, only reported on.
+     */
+    boolean admit(long length, int bytesPerUnit) throws IOException {
+        if (passthrough) return false;
+        long bytes = length * bytesPerUnit;
+        if (bufferedLength + length <= CSPConfigurationHolder.getConfiguration().getMaxRewritableContentLength()
+                && (bytes <= unusedReservedBytes || reserve(bytes))) {
+            bufferedLength += length;
+            unusedReservedBytes -= bytes;
+            return true;
+        }
+        overflow();
+        return false;
+    }
+
+    // Reserved ahead in large steps, so writing a byte at a time does not hit the shared budget every time
+    private boolean reserve(long bytes) {
+        long missing = bytes - unusedReservedBytes;
+        long reservation = Math.max(missing, BUFFER_RESERVATION_SIZE);
+        if (!BufferPool.tryReserve(reservation)) {
+            // Close to the budget, just what is missing may still fit
+            reservation = missing;
+            if (!BufferPool.tryReserve(reservation)) return false;
+        }
+        reservedBytes += reservation;
+        unusedReservedBytes += reservation;
+        return true;
+    }
+
+    private void overflow() throws IOException {
+        BufferPool.overflowed();
+        logger.warn("overflow(): response over {} chars/bytes or out of buffer memory budget, passing the rest of it through", bufferedLength);
+        passthrough = true;
+        overflowed = true;
+        HttpServletResponse response = (HttpServletResponse) getResponse();
+        CSPUtils.setOverflowHeaders(getNonce(), response);
+        if (outputStream != null) {
+            // Nothing was modified unless rewritten on the fly, the declared length still holds then
+            if (!rewriteOutputStream && declaredContentLength >= 0) response.setContentLengthLong(declaredContentLength);
+            ChunkedByteBuffer buffered = outputStream.getRewritingOutputStream().drain();
+            try {
+                buffered.writeTo(response.getOutputStream());
+            } finally {
+                buffered.release();
+            }
+        } else if (streamWriter) {
+            response.getWriter().write(getSession().drain());
+        } else {
+            // Nothing was modified, the declared length still holds
+            if (declaredContentLength >= 0) response.setContentLengthLong(declaredContentLength);
+            charBuffer.writeTo(response.getWriter());
+        }
+        releaseBuffers();
+    }
+
+    /**
+     * Hands the buffers and their memory back, once the response has been sent.
+     */
+    public void releaseBuffers() {
+        if (charBuffer != null) charBuffer.release();
+        if (outputStream != null) outputStream.getRewritingOutputStream().release();
+        BufferPool.unreserve(reservedBytes);
+        reservedBytes = 0;
+        unusedReservedBytes = 0;
+    }
+
+    /**
+     * Set once the servlet goes async, write listeners are called back through it instead of on the writing thread.
+     */
+    void setAsyncContext(AsyncContext asyncContext) {
+        this.asyncContext = asyncContext;
+    }
+
+    AsyncContext getAsyncContext() {
+        return asyncContext;
+    }
+
+    public String getNonce() {
+        if (nonce == null) nonce = nonceSupplier.get();
+        return nonce;
+    }
+
+    public StreamingRewriter.Session getSession() {
+        if (session == null) session = rewriter.newSession(getNonce());
+        return session;
+    }
+
+    public boolean isOutputStreamUsed() {
+        return outputStream != null;
+    }
+
+    /**
+     * Whether the body was written through the output stream and rewritten on the fly, to be sent with
+     * {@link #finishOutputStream()}.
+     */
+    public boolean isOutputStreamRewritten() {
+        return outputStream != null && rewriteOutputStream;
+    }
+
+    /**
+     * Body written through the output stream, rewritten on the fly, to be released by the caller once sent.
+     */
+    public ChunkedByteBuffer finishOutputStream() {
+        return outputStream.getRewritingOutputStream().finish();
+    }
+
+    public Charset getResponseCharset() {
+        String characterEncoding = getCharacterEncoding();
+        try {
+            return characterEncoding != null ? Charset.forName(characterEncoding) : StandardCharsets.ISO_8859_1;
+        } catch (IllegalArgumentException e) {
+            return StandardCharsets.ISO_8859_1;
+        }
+    }
+
+    // Unless passed through, the body is modified before being sent and the length declared by the servlet
+    // does not hold anymore, it is only kept to decide whether the response is worth rewriting
+    @Override
+    public void setContentLength(int len) {
+        setContentLengthLong(len);
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        if (passthrough) {
+            super.setContentLengthLong(len);
+            return;
+        }
+        declaredContentLength = len;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (CONTENT_LENGTH_HEADER_NAME.equalsIgnoreCase(name) && !passthrough) {
+            declaredContentLength = value == null ? -1 : Long.parseLong(value.trim());
+            return;
+        }
+        super.setHeader(name, value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        if (CONTENT_LENGTH_HEADER_NAME.equalsIgnoreCase(name) && !passthrough) {
+            declaredContentLength = value;
+            return;
+        }
+        super.setIntHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (CONTENT_LENGTH_HEADER_NAME.equalsIgnoreCase(name) && !passthrough) {
+            declaredContentLength = value == null ? -1 : Long.parseLong(value.trim());
+            return;
+        }
+        super.addHeader(name, value);
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        if (CONTENT_LENGTH_HEADER_NAME.equalsIgnoreCase(name) && !passthrough) {
+            declaredContentLength = value;
+            return;
+        }
+        super.addIntHeader(name, value);
+    }
+
+    // Committing the response here would send it before the CSP headers are set
+    @Override
+    public void flushBuffer() throws IOException {
+        if (passthrough) {
+            super.flushBuffer();
+            return;
+        }
+        if (writer != null) writer.flush();
+    }
+
     public String toString() {
+        if (outputStream != null && !rewriteOutputStream) {
+            return new String(outputStream.getRewritingOutputStream().finish().toByteArray(), getResponseCharset());
+        }
+        if (writer == null || charBuffer == null) return "";
         writer.flush();
-        return charArrayWriter.toString();
+        return charBuffer.toString();
+    }
+
+    /**
+     * Feeds the servlet output to the buffer while it fits, to the response itself once overflowed.
+     */
+    private class BufferingWriter extends Writer {
+
+        private final Writer buffer;
+
+        BufferingWriter(Writer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (admit(len, Character.BYTES)) {
+                buffer.write(cbuf, off, len);
+            } else {
+                getResponse().getWriter().write(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            if (admit(len, Character.BYTES)) {
+                buffer.write(str, off, len);
+            } else {
+                getResponse().getWriter().write(str, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (passthrough) getResponse().getWriter().flush();
+        }
+
+        @Override
+        public void close() {
+            // The body is sent by the filter, after the whole chain has run
+        }
     }
 
 }
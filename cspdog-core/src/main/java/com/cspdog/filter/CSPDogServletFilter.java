@@ -1,11 +1,32 @@
 package com.cspdog.filter;
 
+import com.cspdog.cache.HashCaches;
+import com.cspdog.cache.HashManifest;
+import com.cspdog.cache.PersistentHashStore;
+import com.cspdog.cache.RewrittenOutputCache;
+import com.cspdog.configuration.CSPConfiguration;
 import com.cspdog.configuration.CSPConfigurationHolder;
-import com.cspdog.rewriter.RegexRewriter;
+import com.cspdog.metrics.FilterMetrics;
+import com.cspdog.metrics.FilterMetrics.Stage;
+import com.cspdog.metrics.RouteCounters;
+import com.cspdog.nonce.NonceProvider;
+import com.cspdog.nonce.NonceProviders;
+import com.cspdog.nonce.ThreadLocalNonceProvider;
+import com.cspdog.rewriter.ResponseAnalysis;
+import com.cspdog.rewriter.Rewriter;
+import com.cspdog.rewriter.Rewriters;
+import com.cspdog.rewriter.StreamingRewriter;
 import com.cspdog.utils.CSPUtils;
 import com.cspdog.utils.CSPedResponseBodyHolder;
+import com.cspdog.utils.ChunkedByteBuffer;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.DispatcherType;
 import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
 import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletRequestWrapper;
 import jakarta.servlet.http.HttpFilter;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -14,8 +35,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.security.SecureRandom;
-import java.util.Base64;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import static com.cspdog.utils.Constants.ENFORCED_POLICY_HEADER_NAME;
 import static com.cspdog.utils.Constants.REPORT_ONLY_POLICY_HEADER_NAME;
@@ -25,51 +48,427 @@ public class CSPDogServletFilter extends HttpFilter {
     private static final Logger logger = LoggerFactory.getLogger(CSPDogServletFilter.class);
 
     private static final long serialVersionUID = 1L;
-    private static final RegexRewriter cspRewriter = new RegexRewriter();
-    private static final SecureRandom secureRandom = new SecureRandom();
+    private static final StreamingRewriter streamingRewriter = new StreamingRewriter();
+
+    private transient volatile NonceProvider nonceProvider = new ThreadLocalNonceProvider();
 
     @Override
     public void init() {
         // Initialize  the config
-        CSPConfigurationHolder.readCSPConfiguration();
+        CSPConfigurationHolder.readFilterConfiguration(getFilterConfig());
+        FilterConfig filterConfig = getFilterConfig();
+        if (filterConfig != null && CSPConfigurationHolder.getConfiguration().isHashManifest()) {
+            HashManifest.load(filterConfig.getServletContext());
+        }
+        nonceProvider = NonceProviders.create(CSPConfigurationHolder.getConfiguration().getNonceProvider());
+        // Engines packaged with the application are found too
+        Rewriters.load(Thread.currentThread().getContextClassLoader());
+        PersistentHashStore.start();
+        FilterMetrics.register();
+    }
+
+    @Override
+    public void destroy() {
+        CSPConfigurationHolder.stopWatching();
+        PersistentHashStore.stop();
+        FilterMetrics.unregister();
     }
 
     @Override
     protected void doFilter(HttpServletRequest req, HttpServletResponse res, FilterChain chain) throws ServletException, IOException {
 
+        CSPDogRequestWrapper dispatchedRequest = findRequestWrapper(req);
+        if (req.getDispatcherType() == DispatcherType.ASYNC && dispatchedRequest != null) {
+            // Async dispatch of a response already wrapped, the servlet keeps writing to the same buffer
+            chain.doFilter(req, res);
+            if (dispatchedRequest.isAsyncStarted()) {
+                HttpServletResponse dispatchedResponse = (HttpServletResponse) dispatchedRequest.getResponseWrapper().getResponse();
+                dispatchedRequest.addTimeoutFallback(timedOutResponse -> sendTimedOut(timedOutResponse, dispatchedResponse));
+            } else if (!dispatchedRequest.isAsyncCompleted()) {
+                // Not gone async again, the container completes the response as soon as this returns
+                CSPDogResponseWrapper responseWrapper = dispatchedRequest.getResponseWrapper();
+                try {
+                    sendResponse(responseWrapper, RewriteGate.getRoute(req), RewriteGate.getRequestPath(req), responseWrapper.isStreamWriter(),
+                            (HttpServletResponse) responseWrapper.getResponse());
+                } finally {
+                    responseWrapper.releaseBuffers();
+                }
+            }
+            return;
+        }
+
         if (!CSPConfigurationHolder.isCSPConfigured()) {
             chain.doFilter(req, res);
+            return;
+        }
+
+        String route = RewriteGate.getRoute(req);
+        String path = RewriteGate.getRequestPath(req);
+        if (!RewriteGate.isURLIncluded(path)) {
+            RouteCounters.bypassed(route);
+            chain.doFilter(req, res);
+            return;
+        }
+        if (!RewriteSampling.isSampled(req, path)) {
+            RouteCounters.unsampled(route);
+            RewriteSampling.setUnsampledHeaders(res);
+            chain.doFilter(req, res);
+            return;
+        }
+
+        // A reload in the middle of the request does not change how this response is handled
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        boolean streamingRewrite = configuration.isStreamingRewrite();
+        // Streamed bodies are rewritten while the servlet writes them, so the nonce is generated on first write
+        CSPDogResponseWrapper responseWrapper = new CSPDogResponseWrapper(res, streamingRewriter, this::getNonce, streamingRewrite);
+        responseWrapper.setAcceptedEncoding(CompressionStage.getAcceptedEncoding(req));
+        responseWrapper.setRewriteOutputStream(streamingRewrite || isStreamable(path, configuration));
+        CSPDogRequestWrapper requestWrapper = new CSPDogRequestWrapper(req, responseWrapper,
+                (completedResponse, asyncContext) -> completeAsync(completedResponse, route, path, streamingRewrite, res, asyncContext));
+        boolean async = false;
+        try {
+            chain.doFilter(requestWrapper, responseWrapper);
+            // Gone async, the response is rewritten once completed, which may have happened already
+            async = requestWrapper.wasAsyncStarted();
+            if (async) {
+                requestWrapper.addTimeoutFallback(timedOutResponse -> sendTimedOut(timedOutResponse, res));
+            } else {
+                sendResponse(responseWrapper, route, path, streamingRewrite, res);
+            }
+        } finally {
+            if (!async) responseWrapper.releaseBuffers();
+        }
+    }
+
+    /**
+     * Rewrites an async response on the thread completing it, then sends it without blocking that thread,
+     * completing the container context once the client took the whole body.
+     */
+    private void completeAsync(CSPDogResponseWrapper responseWrapper, String route, String path, boolean streamingRewrite, HttpServletResponse res,
+                               AsyncContext asyncContext) {
+        CapturedResponse capturedResponse = new CapturedResponse(res, responseWrapper.getResponseCharset());
+        try {
+            sendResponse(responseWrapper, route, path, streamingRewrite, capturedResponse);
+        } catch (Exception e) {
+            logger.error("completeAsync(): exception happened, details {}", e.getMessage());
+        } finally {
+            responseWrapper.releaseBuffers();
+        }
+        ChunkedByteBuffer body = capturedResponse.getBody();
+        if (body.size() == 0) {
+            // Passed through, or nothing written at all
+            body.release();
+            asyncContext.complete();
+            return;
+        }
+        try {
+            res.setContentLengthLong(body.size());
+            new NonBlockingBodyWriter(body, res.getOutputStream(), asyncContext::complete).start();
+        } catch (IOException | IllegalStateException e) {
+            logger.error("completeAsync(): response could not be sent, details {}", e.getMessage());
+            body.release();
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Sends an async response timed out before anything completed it, as it was written and without CSP headers,
+     * blocking the container thread which would finish it once this returns.
+     */
+    private void sendTimedOut(CSPDogResponseWrapper responseWrapper, HttpServletResponse res) {
+        try {
+            // Already went straight to the client
+            if (responseWrapper.isPassthrough()) return;
+            logger.warn("sendTimedOut(): sending CSP-unprocessed response as a fallback");
+            res.setHeader(ENFORCED_POLICY_HEADER_NAME, null);
+            res.setHeader(REPORT_ONLY_POLICY_HEADER_NAME, null);
+            if (responseWrapper.isOutputStreamUsed()) {
+                // Rewritten on the fly, or buffered as it is
+                ChunkedByteBuffer body = responseWrapper.finishOutputStream();
+                res.setContentLengthLong(body.size());
+                body.writeTo(res.getOutputStream());
+                return;
+            }
+            String body;
+            if (responseWrapper.isStreamWriter()) {
+                responseWrapper.getWriter().flush();
+                body = responseWrapper.getSession().finish();
+            } else {
+                body = responseWrapper.toString();
+            }
+            writeBody(body, null, null, responseWrapper.getResponseCharset(), res);
+        } catch (IOException | IllegalStateException e) {
+            logger.error("sendTimedOut(): response could not be sent, details {}", e.getMessage());
+        } finally {
+            responseWrapper.releaseBuffers();
         }
+    }
+
+    /**
+     * Whether rewriting the bytes the servlet writes on the fly, with the streaming rewriter, loses none of the
+     * configured processing: the default engine rewrites the path, and neither handler externalization, rewrite
+     * offload, the rewritten output cache nor the hash manifest are on. Otherwise the bytes are buffered as they are
+     * and rewritten as writer output is.
+     */
+    private static boolean isStreamable(String path, CSPConfiguration configuration) {
+        return Rewriters.forPath(path) == Rewriters.getDefault() && !configuration.isExternalizeEventHandlers() && !configuration.isRewriteOffload()
+                && !RewrittenOutputCache.getInstance().isEnabled() && !configuration.isHashManifest();
+    }
+
+    private static CSPDogRequestWrapper findRequestWrapper(ServletRequest request) {
+        while (request instanceof ServletRequestWrapper) {
+            if (request instanceof CSPDogRequestWrapper) return (CSPDogRequestWrapper) request;
+            request = ((ServletRequestWrapper) request).getRequest();
+        }
+        return null;
+    }
 
-        CSPDogResponseWrapper responseWrapper = new CSPDogResponseWrapper((HttpServletResponse) res);
-        chain.doFilter(req, responseWrapper);
+    private void sendResponse(CSPDogResponseWrapper responseWrapper, String route, String path, boolean streamingRewrite, HttpServletResponse res)
+            throws IOException {
+        if (responseWrapper.isPassthrough()) {
+            // Not worth rewriting (content type, size...) or overflowed its buffer, it already went straight to the client
+            RouteCounters.bypassed(route);
+            return;
+        }
+        RouteCounters.rewritten(route);
+        String nonce = responseWrapper.getNonce();
+        if (responseWrapper.isOutputStreamRewritten()) {
+            sendRewrittenBytes(responseWrapper, responseWrapper.getSession(), nonce, res);
+            return;
+        }
+        if (streamingRewrite) {
+            sendStreamingRewrite(responseWrapper, responseWrapper.getSession(), nonce, res);
+            return;
+        }
 
-        // TODO: accounting for memory footprint, this should be configurable to be used only in test environments
+        long bufferStart = System.nanoTime();
         String originalResponse = responseWrapper.toString();
-        PrintWriter responseWriter = res.getWriter();
+        FilterMetrics.stageTime(Stage.BUFFER, bufferStart);
+        FilterMetrics.bodySize(originalResponse.length());
+        // Decided out of the original size, the rewritten body barely differs and may be a fallback to the original
+        CompressionStage.Encoding encoding = CompressionStage.select(responseWrapper.getAcceptedEncoding(), res, originalResponse.length());
+        // Bytes the servlet wrote go back to the output stream
+        PrintWriter responseWriter = encoding == null && !responseWrapper.isOutputStreamUsed() ? res.getWriter() : null;
+        Charset charset = responseWrapper.getResponseCharset();
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
         try {
-            String nonce = getNonce();
-            CSPedResponseBodyHolder<String> cspedResponseBodyHolder = new CSPedResponseBodyHolder<>(cspRewriter.getCSPedResponseBody(originalResponse, nonce));
-            CSPUtils.setPolicyInResponse(cspedResponseBodyHolder, nonce, res);
-            logger.trace("doFilter(): sending CSP-processed response {}", cspedResponseBodyHolder.get());
-            responseWriter.write(cspedResponseBodyHolder.get());
+            CSPedResponseBodyHolder<String> cspedResponseBodyHolder = configuration.isRewriteOffload()
+                    ? rewriteOffloaded(originalResponse, path, nonce, res, configuration)
+                    : rewrite(originalResponse, path, nonce, res, configuration.isExternalizeEventHandlers());
+            logger.trace("sendResponse(): sending CSP-processed response {}", cspedResponseBodyHolder.get());
+            writeBody(cspedResponseBodyHolder.get(), responseWriter, encoding, charset, res);
+        } catch (TimeoutException e) {
+            RouteCounters.timedOut(route);
+            logger.warn("sendResponse(): rewrite over the {} ms latency budget, sending CSP-unprocessed response as a fallback",
+                    configuration.getRewriteLatencyBudgetMillis());
+            sendUnprocessed(originalResponse, responseWriter, encoding, charset, res);
+        } catch (RejectedExecutionException e) {
+            FilterMetrics.offloadRejection();
+            logger.warn("sendResponse(): {}, sending CSP-unprocessed response as a fallback", e.getMessage());
+            sendUnprocessed(originalResponse, responseWriter, encoding, charset, res);
         } catch (Exception e) {
             // Log and fail gracefully avoiding application failures
             // TODO: this would be the right point to send alerts on failures
-            logger.error("doFilter(): exception happened, details {}", e.getMessage());
+            FilterMetrics.exceptionFallback();
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            logger.error("sendResponse(): exception happened, details {}", cause.getMessage());
             // The next best thing to be done is to send the response with no CSP processing
-            logger.warn("doFilter(): sending CSP-unprocessed response as a fallback");
+            logger.warn("sendResponse(): sending CSP-unprocessed response as a fallback");
+            sendUnprocessed(originalResponse, responseWriter, encoding, charset, res);
+        }
+    }
+
+    private CSPedResponseBodyHolder<String> rewrite(String originalResponse, String path, String nonce, HttpServletResponse res, boolean externalizeEventHandlers) {
+        long rewriteStart = System.nanoTime();
+        Rewriter rewriter = Rewriters.forPath(path);
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        // Bodies rewritten before only get the nonce spliced into their cached rewrite
+        RewrittenOutputCache outputCache = RewrittenOutputCache.getInstance();
+        long fingerprint = outputCache.isEnabled() ? HashCaches.fingerprint(originalResponse, null) : 0;
+        RewrittenOutputCache.Entry cachedOutput = outputCache.get(fingerprint, originalResponse, rewriter, configuration);
+        if (cachedOutput != null) {
+            CSPedResponseBodyHolder<String> cspedResponseBodyHolder = new CSPedResponseBodyHolder<>(cachedOutput.render(nonce));
+            FilterMetrics.stageTime(Stage.REWRITE, rewriteStart);
+            HashCaches.InlineHashes cachedHashes = cachedOutput.getHashes();
+            CSPUtils.setPolicyInResponse(cspedResponseBodyHolder, nonce, res, cachedHashes.getEventHandlerHashes(), cachedHashes.getInlinedStyleHashes());
+            return cspedResponseBodyHolder;
+        }
+        // Scanned once, both the rewrite and the headers are built out of the analysis
+        ResponseAnalysis analysis = rewriter.analyze(originalResponse, externalizeEventHandlers);
+        String rewrittenResponse = rewriter.getCSPedResponseBody(originalResponse, nonce, analysis);
+        FilterMetrics.stageTime(Stage.REWRITE, rewriteStart);
+        // Static pages have their hashes computed once and for all
+        HashCaches.InlineHashes inlineHashes = HashManifest.getHashes(path, originalResponse, externalizeEventHandlers);
+        if (inlineHashes != null) {
+            FilterMetrics.hashManifestHit();
+        } else {
+            long hashStart = System.nanoTime();
+            inlineHashes = CSPUtils.getInlineHashes(analysis);
+            FilterMetrics.stageTime(Stage.HASH, hashStart);
+        }
+        // Before the meta tag fallback, which setting the policies may add to the body
+        outputCache.put(fingerprint, originalResponse, rewriter, configuration, rewrittenResponse, nonce, inlineHashes);
+        CSPedResponseBodyHolder<String> cspedResponseBodyHolder = new CSPedResponseBodyHolder<>(rewrittenResponse);
+        CSPUtils.setPolicyInResponse(cspedResponseBodyHolder, nonce, res, inlineHashes.getEventHandlerHashes(), inlineHashes.getInlinedStyleHashes());
+        return cspedResponseBodyHolder;
+    }
+
+    /**
+     * Rewrites on the offload executor, while this thread waits no longer than the budget. Headers are only set
+     * on the response once the rewrite made it in time.
+     */
+    private CSPedResponseBodyHolder<String> rewriteOffloaded(String originalResponse, String path, String nonce, HttpServletResponse res,
+                                                             CSPConfiguration configuration)
+            throws TimeoutException, ExecutionException, InterruptedException {
+        HeaderRecordingResponse headers = new HeaderRecordingResponse(res);
+        CSPedResponseBodyHolder<String> cspedResponseBodyHolder = RewriteOffload.call(
+                () -> rewrite(originalResponse, path, nonce, headers, configuration.isExternalizeEventHandlers()), configuration.getRewriteLatencyBudgetMillis());
+        headers.replayTo(res);
+        return cspedResponseBodyHolder;
+    }
+
+    private void sendUnprocessed(String originalResponse, PrintWriter responseWriter, CompressionStage.Encoding encoding, Charset charset,
+                                 HttpServletResponse res) throws IOException {
+        res.setHeader(ENFORCED_POLICY_HEADER_NAME, null);
+        res.setHeader(REPORT_ONLY_POLICY_HEADER_NAME, null);
+        writeBody(originalResponse, responseWriter, encoding, charset, res);
+    }
+
+    /**
+     * Writes the body to the writer, or compresses it as it is encoded when <code>encoding</code> is set, in which
+     * case there is no writer and the body goes to the output stream. With neither, the body is encoded to the
+     * output stream as it is.
+     */
+    private static void writeBody(String body, PrintWriter responseWriter, CompressionStage.Encoding encoding, Charset charset,
+                                  HttpServletResponse res) throws IOException {
+        if (encoding != null) {
+            CompressionStage.write(body, charset, encoding, res.getOutputStream());
+        } else if (responseWriter != null) {
+            responseWriter.write(body);
+        } else {
+            byte[] bytes = body.getBytes(charset);
+            res.setContentLength(bytes.length);
+            res.getOutputStream().write(bytes);
+        }
+    }
+
+    private void sendStreamingRewrite(CSPDogResponseWrapper responseWrapper, StreamingRewriter.Session session, String nonce, HttpServletResponse res) throws IOException {
+        long bufferStart = System.nanoTime();
+        responseWrapper.getWriter().flush();
+        // The body was rewritten as it was written, what is left is flushing the session
+        String cspedResponse = session.finish();
+        FilterMetrics.stageTime(Stage.BUFFER, bufferStart);
+        FilterMetrics.bodySize(cspedResponse.length());
+        CompressionStage.Encoding encoding = CompressionStage.select(responseWrapper.getAcceptedEncoding(), res, cspedResponse.length());
+        PrintWriter responseWriter = encoding == null ? res.getWriter() : null;
+        Charset charset = responseWrapper.getResponseCharset();
+        try {
+            CSPedResponseBodyHolder<String> cspedResponseBodyHolder = new CSPedResponseBodyHolder<>(cspedResponse);
+            if (session.hasCollectedHashes()) {
+                CSPUtils.setPolicyInResponse(cspedResponseBodyHolder, nonce, res, session.getEventHandlerHashes(), session.getInlinedStyleHashes());
+            } else {
+                CSPUtils.setPolicyInResponse(cspedResponseBodyHolder, nonce, res);
+            }
+            logger.trace("sendStreamingRewrite(): sending CSP-processed response {}", cspedResponseBodyHolder.get());
+            writeBody(cspedResponseBodyHolder.get(), responseWriter, encoding, charset, res);
+        } catch (Exception e) {
+            FilterMetrics.exceptionFallback();
+            logger.error("sendStreamingRewrite(): exception happened, details {}", e.getMessage());
+            // The original body is not retained in this mode, the rewritten one keeps working without the headers
+            logger.warn("sendStreamingRewrite(): sending CSP-rewritten response without CSP headers as a fallback");
             res.setHeader(ENFORCED_POLICY_HEADER_NAME, null);
             res.setHeader(REPORT_ONLY_POLICY_HEADER_NAME, null);
-            responseWriter.write(originalResponse);
+            writeBody(cspedResponse, responseWriter, encoding, charset, res);
         }
+    }
 
+    private void sendRewrittenBytes(CSPDogResponseWrapper responseWrapper, StreamingRewriter.Session session, String nonce, HttpServletResponse res) throws IOException {
+        long bufferStart = System.nanoTime();
+        ChunkedByteBuffer cspedResponse = responseWrapper.finishOutputStream();
+        FilterMetrics.stageTime(Stage.BUFFER, bufferStart);
+        FilterMetrics.bodySize(cspedResponse.size());
+        Charset charset = responseWrapper.getResponseCharset();
+        CompressionStage.Encoding encoding = CompressionStage.select(responseWrapper.getAcceptedEncoding(), res, cspedResponse.size());
+        ServletOutputStream responseOutputStream = res.getOutputStream();
+        try {
+            // Only decoded if the policy has to be inserted in the body, or hashes have to be computed out of it
+            DecodedBodyHolder cspedResponseBodyHolder = new DecodedBodyHolder(cspedResponse, charset);
+            if (session.hasCollectedHashes()) {
+                CSPUtils.setPolicyInResponse(cspedResponseBodyHolder, nonce, res, session.getEventHandlerHashes(), session.getInlinedStyleHashes());
+            } else {
+                CSPUtils.setPolicyInResponse(cspedResponseBodyHolder, nonce, res);
+            }
+            if (encoding != null) {
+                // Compressed length only known once sent
+                if (cspedResponseBodyHolder.isModified()) {
+                    CompressionStage.write(cspedResponseBodyHolder.get(), charset, encoding, responseOutputStream);
+                } else {
+                    CompressionStage.write(cspedResponse, encoding, responseOutputStream);
+                }
+            } else if (cspedResponseBodyHolder.isModified()) {
+                byte[] body = cspedResponseBodyHolder.get().getBytes(charset);
+                res.setContentLength(body.length);
+                responseOutputStream.write(body);
+            } else {
+                res.setContentLengthLong(cspedResponse.size());
+                cspedResponse.writeTo(responseOutputStream);
+            }
+            logger.trace("sendRewrittenBytes(): sent CSP-processed response of {} bytes", cspedResponse.size());
+        } catch (Exception e) {
+            FilterMetrics.exceptionFallback();
+            logger.error("sendRewrittenBytes(): exception happened, details {}", e.getMessage());
+            logger.warn("sendRewrittenBytes(): sending CSP-rewritten response without CSP headers as a fallback");
+            res.setHeader(ENFORCED_POLICY_HEADER_NAME, null);
+            res.setHeader(REPORT_ONLY_POLICY_HEADER_NAME, null);
+            if (encoding != null) {
+                CompressionStage.write(cspedResponse, encoding, responseOutputStream);
+            } else {
+                cspedResponse.writeTo(responseOutputStream);
+            }
+        } finally {
+            cspedResponse.release();
+        }
     }
 
     private String getNonce() {
-        byte[] nonceBytes = new byte[16]; // 16 bytes for a 128-bit nonce
-        secureRandom.nextBytes(nonceBytes);
-        return Base64.getEncoder().encodeToString(nonceBytes);
+        return nonceProvider.nextNonce();
+    }
+
+    /**
+     * Body holder over the rewritten bytes, decoding them only when the body is actually read.
+     */
+    private static class DecodedBodyHolder extends CSPedResponseBodyHolder<String> {
+
+        private final ChunkedByteBuffer bytes;
+        private final Charset charset;
+        private boolean decoded;
+        private boolean modified;
+
+        DecodedBodyHolder(ChunkedByteBuffer bytes, Charset charset) {
+            super(null);
+            this.bytes = bytes;
+            this.charset = charset;
+        }
+
+        @Override
+        public String get() {
+            if (!decoded) {
+                super.set(new String(bytes.toByteArray(), charset));
+                decoded = true;
+            }
+            return super.get();
+        }
+
+        @Override
+        public void set(String newVal) {
+            super.set(newVal);
+            decoded = true;
+            modified = true;
+        }
+
+        boolean isModified() {
+            return modified;
+        }
     }
 
 }
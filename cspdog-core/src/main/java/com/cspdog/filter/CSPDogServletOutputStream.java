@@ -0,0 +1,75 @@
+package com.cspdog.filter;
+
+import com.cspdog.rewriter.RewritingOutputStream;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+import java.io.IOException;
+
+public class CSPDogServletOutputStream extends ServletOutputStream {
+
+    private final RewritingOutputStream rewritingOutputStream;
+    private final CSPDogResponseWrapper responseWrapper;
+
+    /**
+     * Bytes go to the rewriting stream as long as the wrapper admits them, to the response itself once it overflowed.
+     */
+    public CSPDogServletOutputStream(RewritingOutputStream rewritingOutputStream, CSPDogResponseWrapper responseWrapper) {
+        this.rewritingOutputStream = rewritingOutputStream;
+        this.responseWrapper = responseWrapper;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (responseWrapper.admit(1, 1)) {
+            rewritingOutputStream.write(b);
+        } else {
+            responseWrapper.getResponse().getOutputStream().write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (responseWrapper.admit(len, 1)) {
+            rewritingOutputStream.write(b, off, len);
+        } else {
+            responseWrapper.getResponse().getOutputStream().write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (responseWrapper.isPassthrough()) responseWrapper.getResponse().getOutputStream().flush();
+    }
+
+    @Override
+    public boolean isReady() {
+        // Writes only land in memory, they never block
+        return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+        AsyncContext asyncContext = responseWrapper.getAsyncContext();
+        if (asyncContext == null) {
+            notifyWritePossible(writeListener);
+            return;
+        }
+        // Called back on a container thread, as the servlet expects, rather than from within this call
+        asyncContext.start(() -> notifyWritePossible(writeListener));
+    }
+
+    private static void notifyWritePossible(WriteListener writeListener) {
+        try {
+            writeListener.onWritePossible();
+        } catch (IOException e) {
+            writeListener.onError(e);
+        }
+    }
+
+    public RewritingOutputStream getRewritingOutputStream() {
+        return rewritingOutputStream;
+    }
+
+}
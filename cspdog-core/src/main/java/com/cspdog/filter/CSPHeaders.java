@@ -1,13 +1,18 @@
 package com.cspdog.filter;
 
 import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
 
 public class CSPHeaders {
     public String ENFORCED_POLICY;
     public String REPORT_ONLY_POLICY;
 
     public CSPHeaders() {
-        this.ENFORCED_POLICY = CSPConfiguration.ENFORCED_POLICY;
-        this.REPORT_ONLY_POLICY = CSPConfiguration.REPORT_ONLY_POLICY;
+        this(CSPConfigurationHolder.getConfiguration());
+    }
+
+    public CSPHeaders(CSPConfiguration configuration) {
+        this.ENFORCED_POLICY = configuration.getEnforcedPolicy();
+        this.REPORT_ONLY_POLICY = configuration.getReportOnlyPolicy();
     }
 }
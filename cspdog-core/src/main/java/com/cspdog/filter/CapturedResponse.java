@@ -0,0 +1,71 @@
+package com.cspdog.filter;
+
+import com.cspdog.utils.ChunkedByteBuffer;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Response whose headers go to the wrapped one but whose body is kept in memory, encoded as it would be sent.
+ * Lets the filter prepare an async response on the completing thread and send it without blocking afterwards.
+ */
+class CapturedResponse extends HttpServletResponseWrapper {
+
+    private final ChunkedByteBuffer body = new ChunkedByteBuffer();
+    private final Charset charset;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    CapturedResponse(HttpServletResponse response, Charset charset) {
+        super(response);
+        this.charset = charset;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (outputStream == null) {
+            outputStream = new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    body.write(b, off, len);
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    throw new IllegalStateException("Captured output is not meant for non-blocking writes");
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        if (writer == null) writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), charset));
+        return writer;
+    }
+
+    /**
+     * Body written so far, to be released by the caller once sent.
+     */
+    ChunkedByteBuffer getBody() {
+        if (writer != null) writer.flush();
+        return body;
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.cspdog.filter;
+
+import com.cspdog.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static com.cspdog.utils.Constants.MAX_POOLED_DEFLATERS;
+
+/**
+ * Deflates whatever is written into it straight to the response output stream, in the gzip or zlib (deflate content
+ * coding) format. Compressed bytes go through a single pooled buffer, and deflaters are pooled as well, their native
+ * state being costly to set up for every response. {@link #finish()} must be called once everything is written.
+ */
+class CompressingOutputStream extends OutputStream {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final byte[] GZIP_HEADER = {(byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final ConcurrentLinkedQueue<Deflater> gzipDeflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Deflater> zlibDeflaters = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledDeflaters = new AtomicInteger();
+    private static final byte[] NO_INPUT = new byte[0];
+
+    private final OutputStream out;
+    private final boolean gzip;
+    private final CRC32 crc;
+    private Deflater deflater;
+    private ByteBuffer compressed;
+    private WritableByteChannel channel;
+
+    CompressingOutputStream(OutputStream out, CompressionStage.Encoding encoding) throws IOException {
+        this.out = out;
+        this.gzip = encoding == CompressionStage.Encoding.GZIP;
+        this.crc = gzip ? new CRC32() : null;
+        this.deflater = acquireDeflater(gzip);
+        this.compressed = BufferPool.acquire();
+        if (gzip) out.write(GZIP_HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return;
+        if (gzip) crc.update(b, off, len);
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) drain();
+    }
+
+    /**
+     * Writes the remaining bytes of <code>input</code>, heap or direct.
+     */
+    void write(ByteBuffer input) throws IOException {
+        if (!input.hasRemaining()) return;
+        if (gzip) crc.update(input.duplicate());
+        deflater.setInput(input);
+        while (!deflater.needsInput()) drain();
+        // The deflater would otherwise read the buffer again once the caller clears it for reuse
+        deflater.setInput(NO_INPUT);
+    }
+
+    /**
+     * Ends the compressed stream, trailer included, and gives the deflater and the buffer back. The response output
+     * stream is left open.
+     */
+    void finish() throws IOException {
+        if (deflater == null) return;
+        try {
+            deflater.finish();
+            while (!deflater.finished()) drain();
+            if (gzip) {
+                writeIntLE((int) crc.getValue());
+                writeIntLE(deflater.getTotalIn());
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Gives the deflater and the buffer back without ending the stream, e.g. once writing failed.
+     */
+    void release() {
+        if (deflater == null) return;
+        releaseDeflater(deflater, gzip);
+        BufferPool.release(compressed);
+        deflater = null;
+        compressed = null;
+    }
+
+    private void drain() throws IOException {
+        compressed.clear();
+        deflater.deflate(compressed);
+        compressed.flip();
+        if (compressed.hasArray()) {
+            out.write(compressed.array(), compressed.arrayOffset(), compressed.remaining());
+            return;
+        }
+        if (channel == null) channel = Channels.newChannel(out);
+        while (compressed.hasRemaining()) channel.write(compressed);
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static Deflater acquireDeflater(boolean gzip) {
+        Deflater deflater = (gzip ? gzipDeflaters : zlibDeflaters).poll();
+        if (deflater == null) return new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+        pooledDeflaters.decrementAndGet();
+        return deflater;
+    }
+
+    private static void releaseDeflater(Deflater deflater, boolean gzip) {
+        // Beyond the limit the native state is freed right away
+        if (pooledDeflaters.incrementAndGet() > MAX_POOLED_DEFLATERS * 2) {
+            pooledDeflaters.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        (gzip ? gzipDeflaters : zlibDeflaters).offer(deflater);
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.cspdog.filter;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.utils.BufferPool;
+import com.cspdog.utils.ChunkedByteBuffer;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Locale;
+
+import static com.cspdog.utils.Constants.*;
+
+/**
+ * Optional last stage of the filter, compressing the rewritten body as it is encoded and sent, instead of leaving a
+ * compression filter or the container to read the encoded body once more. Only bodies of at least
+ * <code>compressionMinSize</code> are compressed, with the coding the client prefers out of gzip and deflate, and
+ * never a body the servlet already encoded.
+ */
+public class CompressionStage {
+
+    public enum Encoding {
+        GZIP(GZIP_ENCODING), DEFLATE(DEFLATE_ENCODING);
+
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        public String getToken() {
+            return token;
+        }
+    }
+
+    /**
+     * The coding to compress the response to the request with, null when compression is off or none is accepted.
+     * Equal weights go to gzip, an unlisted coding gets the weight of <code>*</code>.
+     */
+    public static Encoding getAcceptedEncoding(HttpServletRequest req) {
+        if (!CSPConfigurationHolder.getConfiguration().isCompressResponses()) return null;
+        String acceptEncoding = req.getHeader(ACCEPT_ENCODING_HEADER_NAME);
+        if (StringUtils.isBlank(acceptEncoding)) return null;
+        float gzipWeight = -1;
+        float deflateWeight = -1;
+        float wildcardWeight = -1;
+        for (String coding : StringUtils.split(acceptEncoding, LIST_SEPARATOR)) {
+            int parametersStart = coding.indexOf(';');
+            String name = (parametersStart < 0 ? coding : coding.substring(0, parametersStart)).trim().toLowerCase(Locale.ROOT);
+            float weight = parametersStart < 0 ? 1 : getWeight(coding.substring(parametersStart + 1));
+            if (name.equals(GZIP_ENCODING) || name.equals(X_GZIP_ENCODING)) gzipWeight = Math.max(gzipWeight, weight);
+            else if (name.equals(DEFLATE_ENCODING)) deflateWeight = weight;
+            else if (name.equals(WILDCARD_ENCODING)) wildcardWeight = weight;
+        }
+        if (gzipWeight < 0) gzipWeight = wildcardWeight;
+        if (deflateWeight < 0) deflateWeight = wildcardWeight;
+        // A zero weight means not acceptable
+        if (gzipWeight <= 0 && deflateWeight <= 0) return null;
+        return gzipWeight >= deflateWeight ? Encoding.GZIP : Encoding.DEFLATE;
+    }
+
+    private static float getWeight(String parameters) {
+        for (String parameter : StringUtils.split(parameters, ';')) {
+            String trimmed = parameter.trim();
+            if (!trimmed.startsWith(QUALITY_PARAMETER)) continue;
+            try {
+                return Float.parseFloat(trimmed.substring(QUALITY_PARAMETER.length()).trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Whether to compress a body of the given size, in bytes or chars, setting the headers of the response
+     * accordingly: <code>Vary</code> on every response compression was considered for, as its representation
+     * depends on <code>Accept-Encoding</code>, and <code>Content-Encoding</code> on compressed ones.
+     */
+    static Encoding select(Encoding acceptedEncoding, HttpServletResponse res, long size) {
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        if (!configuration.isCompressResponses() || size < configuration.getCompressionMinSize()
+                || res.containsHeader(CONTENT_ENCODING_HEADER_NAME)) {
+            return null;
+        }
+        if (!varies(res)) res.addHeader(VARY_HEADER_NAME, ACCEPT_ENCODING_HEADER_NAME);
+        if (acceptedEncoding == null) return null;
+        res.setHeader(CONTENT_ENCODING_HEADER_NAME, acceptedEncoding.getToken());
+        return acceptedEncoding;
+    }
+
+    private static boolean varies(HttpServletResponse res) {
+        for (String vary : res.getHeaders(VARY_HEADER_NAME)) {
+            for (String header : StringUtils.split(vary, LIST_SEPARATOR)) {
+                if (header.trim().equalsIgnoreCase(ACCEPT_ENCODING_HEADER_NAME) || header.trim().equals(WILDCARD_ENCODING)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encodes the body with the charset straight into the deflater, a pooled buffer at a time.
+     */
+    static void write(String body, Charset charset, Encoding encoding, OutputStream out) throws IOException {
+        CompressingOutputStream compressingStream = new CompressingOutputStream(out, encoding);
+        ByteBuffer encoded = BufferPool.acquire();
+        try {
+            CharsetEncoder encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.wrap(body);
+            // Replacing whatever cannot be encoded, the encoder only ever stops on a full buffer
+            while (encoder.encode(chars, encoded, true).isOverflow()) {
+                writeEncoded(encoded, compressingStream);
+            }
+            while (encoder.flush(encoded).isOverflow()) {
+                writeEncoded(encoded, compressingStream);
+            }
+            writeEncoded(encoded, compressingStream);
+            compressingStream.finish();
+        } finally {
+            compressingStream.release();
+            BufferPool.release(encoded);
+        }
+    }
+
+    private static void writeEncoded(ByteBuffer encoded, CompressingOutputStream compressingStream) throws IOException {
+        encoded.flip();
+        compressingStream.write(encoded);
+        encoded.clear();
+    }
+
+    static void write(ChunkedByteBuffer body, Encoding encoding, OutputStream out) throws IOException {
+        CompressingOutputStream compressingStream = new CompressingOutputStream(out, encoding);
+        try {
+            body.writeTo(compressingStream);
+            compressingStream.finish();
+        } finally {
+            compressingStream.release();
+        }
+    }
+
+    static void write(byte[] body, Encoding encoding, OutputStream out) throws IOException {
+        CompressingOutputStream compressingStream = new CompressingOutputStream(out, encoding);
+        try {
+            compressingStream.write(body, 0, body.length);
+            compressingStream.finish();
+        } finally {
+            compressingStream.release();
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.cspdog.filter;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Holds back every header, status and content metadata change made on it until {@link #replayTo(HttpServletResponse)},
+ * so a rewrite running on another thread cannot touch the response once the filter has stopped waiting for it.
+ * Anything which would commit the response or write its body is refused, the filter sends the body itself.
+ */
+class HeaderRecordingResponse extends HttpServletResponseWrapper {
+
+    private final List<Consumer<HttpServletResponse>> changes = new ArrayList<>();
+
+    HeaderRecordingResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    private synchronized void record(Consumer<HttpServletResponse> change) {
+        changes.add(change);
+    }
+
+    /**
+     * Applies the changes recorded so far, in order.
+     */
+    synchronized void replayTo(HttpServletResponse response) {
+        for (Consumer<HttpServletResponse> change : changes) {
+            change.accept(response);
+        }
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        record(response -> response.setHeader(name, value));
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        record(response -> response.addHeader(name, value));
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        record(response -> response.setIntHeader(name, value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        record(response -> response.addIntHeader(name, value));
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        record(response -> response.setDateHeader(name, date));
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        record(response -> response.addDateHeader(name, date));
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        record(response -> response.addCookie(cookie));
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        record(response -> response.setStatus(sc));
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        record(response -> response.setContentLength(len));
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        record(response -> response.setContentLengthLong(len));
+    }
+
+    @Override
+    public void setContentType(String type) {
+        record(response -> response.setContentType(type));
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+        record(response -> response.setCharacterEncoding(charset));
+    }
+
+    @Override
+    public void setCharacterEncoding(Charset charset) {
+        record(response -> response.setCharacterEncoding(charset));
+    }
+
+    @Override
+    public void setLocale(Locale loc) {
+        record(response -> response.setLocale(loc));
+    }
+
+    @Override
+    public void setTrailerFields(Supplier<Map<String, String>> supplier) {
+        record(response -> response.setTrailerFields(supplier));
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+        record(response -> response.setBufferSize(size));
+    }
+
+    @Override
+    public void sendError(int sc, String msg) {
+        throw unavailable("sendError()");
+    }
+
+    @Override
+    public void sendError(int sc) {
+        throw unavailable("sendError()");
+    }
+
+    @Override
+    public void sendRedirect(String location) {
+        throw unavailable("sendRedirect()");
+    }
+
+    @Override
+    public void sendRedirect(String location, int sc) {
+        throw unavailable("sendRedirect()");
+    }
+
+    @Override
+    public void sendRedirect(String location, boolean clearBuffer) {
+        throw unavailable("sendRedirect()");
+    }
+
+    @Override
+    public void sendRedirect(String location, int sc, boolean clearBuffer) {
+        throw unavailable("sendRedirect()");
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        throw unavailable("getOutputStream()");
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        throw unavailable("getWriter()");
+    }
+
+    @Override
+    public void flushBuffer() {
+        throw unavailable("flushBuffer()");
+    }
+
+    @Override
+    public void reset() {
+        throw unavailable("reset()");
+    }
+
+    @Override
+    public void resetBuffer() {
+        throw unavailable("resetBuffer()");
+    }
+
+    private static IllegalStateException unavailable(String method) {
+        return new IllegalStateException(method + " is not available to an offloaded rewrite");
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.cspdog.filter;
+
+import com.cspdog.utils.ChunkedByteBuffer;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Sends a body chunk by chunk whenever the container reports the output ready, so no thread ever waits on the client.
+ * Once the whole body is out, or the client is gone, the chunks are released and <code>onDone</code> is run.
+ */
+class NonBlockingBodyWriter implements WriteListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(NonBlockingBodyWriter.class);
+
+    private final ChunkedByteBuffer body;
+    private final ServletOutputStream out;
+    private final Runnable onDone;
+    private int nextChunk;
+    private boolean done;
+
+    NonBlockingBodyWriter(ChunkedByteBuffer body, ServletOutputStream out, Runnable onDone) {
+        this.body = body;
+        this.out = out;
+        this.onDone = onDone;
+    }
+
+    /**
+     * The container calls {@link #onWritePossible()} as soon as the output can take the first chunk.
+     */
+    void start() {
+        out.setWriteListener(this);
+    }
+
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        while (!done && out.isReady()) {
+            if (nextChunk == body.getChunkCount()) {
+                finish();
+                return;
+            }
+            body.writeChunkTo(nextChunk++, out);
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        logger.warn("onError(): response could not be sent, details {}", t.getMessage());
+        finish();
+    }
+
+    private void finish() {
+        if (done) return;
+        done = true;
+        body.release();
+        onDone.run();
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.cspdog.filter;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import jakarta.servlet.http.HttpServletMapping;
+import jakarta.servlet.http.HttpServletRequest;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static com.cspdog.utils.Constants.UNKNOWN_ROUTE;
+
+/**
+ * Decides which responses are worth buffering and rewriting: only the configured URLs, only markup content types
+ * and only up to the configured size. Anything else goes straight to the client.
+ */
+public class RewriteGate {
+
+    public static boolean isURLIncluded(String path) {
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        if (!configuration.getIncludedURLPatterns().isEmpty() && !anyMatches(configuration.getIncludedURLPatterns(), path)) {
+            return false;
+        }
+        return !anyMatches(configuration.getExcludedURLPatterns(), path);
+    }
+
+    /**
+     * Responses with no content type are rewritten, as they used to, a servlet writing HTML may not bother setting it.
+     */
+    public static boolean isContentTypeRewritable(String contentType) {
+        if (StringUtils.isBlank(contentType)) return true;
+        int parametersStart = contentType.indexOf(';');
+        String mimeType = (parametersStart < 0 ? contentType : contentType.substring(0, parametersStart)).trim();
+        for (String rewritableContentType : CSPConfigurationHolder.getConfiguration().getRewritableContentTypes()) {
+            if (rewritableContentType.equalsIgnoreCase(mimeType)) return true;
+        }
+        return false;
+    }
+
+    public static boolean isContentLengthRewritable(long contentLength) {
+        return contentLength < 0 || contentLength <= CSPConfigurationHolder.getConfiguration().getMaxRewritableContentLength();
+    }
+
+    public static String getRequestPath(HttpServletRequest req) {
+        String servletPath = StringUtils.defaultString(req.getServletPath());
+        String pathInfo = req.getPathInfo();
+        return pathInfo == null ? servletPath : servletPath + pathInfo;
+    }
+
+    /**
+     * Low-cardinality route name, the servlet mapping pattern when the container provides it.
+     */
+    public static String getRoute(HttpServletRequest req) {
+        HttpServletMapping mapping = req.getHttpServletMapping();
+        if (mapping != null && StringUtils.isNotEmpty(mapping.getPattern())) return mapping.getPattern();
+        String servletPath = req.getServletPath();
+        return StringUtils.isNotEmpty(servletPath) ? servletPath : UNKNOWN_ROUTE;
+    }
+
+    private static boolean anyMatches(List<Pattern> patterns, String path) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).matches()) return true;
+        }
+        return false;
+    }
+
+}
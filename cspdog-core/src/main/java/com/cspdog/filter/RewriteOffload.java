@@ -0,0 +1,102 @@
+package com.cspdog.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.cspdog.utils.Constants.REWRITE_OFFLOAD_MAX_IN_FLIGHT_PER_CORE;
+import static com.cspdog.utils.Constants.REWRITE_OFFLOAD_THREAD_NAME;
+
+/**
+ * Runs rewrites off the request thread, waiting for them no longer than the latency budget. On Java 21+ every rewrite
+ * gets a virtual thread of its own, earlier runtimes share a pool of daemon threads, one per core.
+ * <p>
+ * A rewrite given up on is interrupted, yet a regex pass does not check for it: it runs to its end in the background,
+ * its result is dropped. Rewrites still running, given up on or not, are bounded to
+ * {@link com.cspdog.utils.Constants#REWRITE_OFFLOAD_MAX_IN_FLIGHT_PER_CORE} per core: past that, a rewrite is refused
+ * right away rather than piling up behind those a slow page keeps busy.
+ */
+public class RewriteOffload {
+
+    private static final Logger logger = LoggerFactory.getLogger(RewriteOffload.class);
+
+    private static final ExecutorService executor = createExecutor();
+    private static final int maxInFlight = Runtime.getRuntime().availableProcessors() * REWRITE_OFFLOAD_MAX_IN_FLIGHT_PER_CORE;
+    // Released once a rewrite ends, not once it is given up on
+    private static final Semaphore inFlight = new Semaphore(maxInFlight);
+
+    /**
+     * Result of the task, or {@link TimeoutException} if it is not done within <code>budgetMillis</code>.
+     * Whatever the task throws comes wrapped in an {@link ExecutionException}, and {@link RejectedExecutionException}
+     * is thrown, without running it, if as many rewrites as allowed are still running.
+     */
+    public static <T> T call(Callable<T> task, long budgetMillis) throws TimeoutException, ExecutionException, InterruptedException {
+        if (!inFlight.tryAcquire()) throw new RejectedExecutionException(maxInFlight + " rewrites already in flight");
+        // Whoever claims it releases the permit: the task once it ends, or the caller if it never started
+        AtomicBoolean claimed = new AtomicBoolean();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                if (!claimed.compareAndSet(false, true)) return null;
+                try {
+                    return task.call();
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw e;
+        }
+        try {
+            return future.get(budgetMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | InterruptedException e) {
+            future.cancel(true);
+            if (claimed.compareAndSet(false, true)) inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Rewrites running, including those given up on.
+     */
+    public static int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public static int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    private static ExecutorService createExecutor() {
+        try {
+            // Looked up rather than linked against, the library still runs on Java 17
+            ExecutorService virtualThreadExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            logger.debug("createExecutor(): offloading rewrites to virtual threads");
+            return virtualThreadExecutor;
+        } catch (ReflectiveOperationException e) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            logger.debug("createExecutor(): no virtual threads, offloading rewrites to {} platform threads", threads);
+            ThreadPoolExecutor platformThreadExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, REWRITE_OFFLOAD_THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            });
+            platformThreadExecutor.allowCoreThreadTimeOut(true);
+            return platformThreadExecutor;
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.cspdog.filter;
+
+import com.cspdog.cache.HashCaches;
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static com.cspdog.utils.Constants.*;
+
+/**
+ * Decides which requests are part of the rewrite sample, for rolling CSP out to a fraction of the traffic first:
+ * sampled ones are rewritten and get the policies, the others pass through untouched, with the static
+ * <code>unsampledPolicy</code> as report-only header if set.
+ * <p>
+ * The rate is that of the first <code>rewriteSampleRoutes</code> pattern matching the path, or
+ * <code>rewriteSampleRate</code>, times that of the user agent class in <code>rewriteSampleUserAgents</code>.
+ * Sessions are hashed to a fixed point between 0 and 1 and sampled while under the rate, so a user keeps getting the
+ * same kind of pages, and raising the rate, which a configuration reload does on the fly, only ever adds sessions
+ * to the sample. Requests without a session are keyed by client address and user agent until they get one.
+ */
+public class RewriteSampling {
+
+    public enum UserAgentClass {
+        BOT, MOBILE, DESKTOP, OTHER;
+
+        /**
+         * Name used in <code>rewriteSampleUserAgents</code>.
+         */
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public static boolean isSampled(HttpServletRequest req, String path) {
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        // Nothing to hash while everything is sampled, as by default
+        if (configuration.getRewriteSampleRoutes().isEmpty() && configuration.getRewriteSampleUserAgents().isEmpty()
+                && configuration.getRewriteSampleRate() >= 1) {
+            return true;
+        }
+        String userAgent = req.getHeader(USER_AGENT_HEADER_NAME);
+        double rate = getRate(configuration, path, classify(userAgent));
+        if (rate >= 1) return true;
+        if (rate <= 0) return false;
+        return getSessionPoint(getSessionKey(req, userAgent)) < rate;
+    }
+
+    static double getRate(CSPConfiguration configuration, String path, UserAgentClass userAgentClass) {
+        double rate = configuration.getRewriteSampleRate();
+        for (Map.Entry<Pattern, Double> route : configuration.getRewriteSampleRoutes().entrySet()) {
+            if (route.getKey().matcher(path).matches()) {
+                rate = route.getValue();
+                break;
+            }
+        }
+        Double userAgentRate = configuration.getRewriteSampleUserAgents().get(userAgentClass.getName());
+        return userAgentRate == null ? rate : rate * userAgentRate;
+    }
+
+    public static UserAgentClass classify(String userAgent) {
+        if (StringUtils.isBlank(userAgent)) return UserAgentClass.OTHER;
+        String lowerCaseUserAgent = userAgent.toLowerCase(Locale.ROOT);
+        if (containsAny(lowerCaseUserAgent, BOT_USER_AGENT_TOKENS)) return UserAgentClass.BOT;
+        if (containsAny(lowerCaseUserAgent, MOBILE_USER_AGENT_TOKENS)) return UserAgentClass.MOBILE;
+        if (lowerCaseUserAgent.contains(DESKTOP_USER_AGENT_TOKEN)) return UserAgentClass.DESKTOP;
+        return UserAgentClass.OTHER;
+    }
+
+    private static boolean containsAny(String text, String[] tokens) {
+        for (String token : tokens) {
+            if (text.contains(token)) return true;
+        }
+        return false;
+    }
+
+    private static String getSessionKey(HttpServletRequest req, String userAgent) {
+        // As sent by the client, no session is created for sampling
+        String sessionId = req.getRequestedSessionId();
+        if (StringUtils.isNotEmpty(sessionId)) return sessionId;
+        return req.getRemoteAddr() + ' ' + StringUtils.defaultString(userAgent);
+    }
+
+    /**
+     * Uniformly spread point in [0, 1) of the session.
+     */
+    static double getSessionPoint(String sessionKey) {
+        long hash = HashCaches.fingerprint(sessionKey, null);
+        // FNV-1a leaves the high bits of short keys poorly mixed, finalized as in MurmurHash3
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (hash >>> 11) * 0x1.0p-53;
+    }
+
+    public static void setUnsampledHeaders(HttpServletResponse res) {
+        String unsampledPolicy = CSPConfigurationHolder.getConfiguration().getUnsampledPolicy();
+        if (StringUtils.isNotBlank(unsampledPolicy)) res.setHeader(REPORT_ONLY_POLICY_HEADER_NAME, unsampledPolicy);
+    }
+
+}
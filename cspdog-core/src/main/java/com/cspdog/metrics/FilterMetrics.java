@@ -0,0 +1,483 @@
+package com.cspdog.metrics;
+
+import com.cspdog.cache.HashCaches;
+import com.cspdog.cache.RewrittenOutputCache;
+import com.cspdog.utils.BufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import static com.cspdog.utils.Constants.METRICS_OBJECT_NAME;
+
+/**
+ * Filter wide timings, sizes and fallback counts, rewritten output cache efficiency, and counts of the violation reports
+ * received. Recording only increments counters, so they are always on, and they are read over JMX once
+ * {@link #register()} has been called, along with {@link RouteCounters}, the hash cache counts and the buffer gauges.
+ */
+public class FilterMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(FilterMetrics.class);
+
+    public enum Stage {
+        // Getting the buffered body out of the response wrapper
+        BUFFER,
+        // Nonces and javascript: URLs, the analysis of the body included
+        REWRITE,
+        // Hashing inline handlers and styles, or looking their hashes up
+        HASH,
+        // Rendering the policies and setting them on the response
+        HEADER
+    }
+
+    private static final Histogram[] stageTimes = new Histogram[Stage.values().length];
+    private static final Histogram bodySize = new Histogram();
+    private static final Histogram headerSize = new Histogram();
+    private static final Histogram hashesPerResponse = new Histogram();
+    private static final LongAdder hashManifestHits = new LongAdder();
+    private static final LongAdder prefilterSkips = new LongAdder();
+    private static final LongAdder policyCompactions = new LongAdder();
+    private static final LongAdder metaTagFallbacks = new LongAdder();
+    private static final LongAdder reportOnlyHashStrippings = new LongAdder();
+    private static final LongAdder exceptionFallbacks = new LongAdder();
+    private static final LongAdder offloadRejections = new LongAdder();
+    private static final LongAdder reportsAccepted = new LongAdder();
+    private static final LongAdder reportsShed = new LongAdder();
+    private static final LongAdder reportSinkFailures = new LongAdder();
+    private static final LongAdder outputCacheHits = new LongAdder();
+    private static final LongAdder outputCacheMisses = new LongAdder();
+    private static final LongAdder outputCacheEvictions = new LongAdder();
+    private static final LongAdder outputCacheRejections = new LongAdder();
+    private static final LongAdder hashStoreHits = new LongAdder();
+    // Filter instances sharing the registration, the last one destroyed unregisters it
+    private static int registrations;
+
+    static {
+        for (int i = 0; i < stageTimes.length; i++) {
+            stageTimes[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records the time elapsed since <code>startNanos</code>, as read from {@link System#nanoTime()}.
+     */
+    public static void stageTime(Stage stage, long startNanos) {
+        stageTimes[stage.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public static void bodySize(long size) {
+        bodySize.record(size);
+    }
+
+    public static void headerSize(long size) {
+        headerSize.record(size);
+    }
+
+    public static void hashesPerResponse(long hashes) {
+        hashesPerResponse.record(hashes);
+    }
+
+    public static void hashManifestHit() {
+        hashManifestHits.increment();
+    }
+
+    public static void prefilterSkip() {
+        prefilterSkips.increment();
+    }
+
+    public static void policyCompaction() {
+        policyCompactions.increment();
+    }
+
+    public static void metaTagFallback() {
+        metaTagFallbacks.increment();
+    }
+
+    public static void reportOnlyHashStripping() {
+        reportOnlyHashStrippings.increment();
+    }
+
+    public static void exceptionFallback() {
+        exceptionFallbacks.increment();
+    }
+
+    public static void offloadRejection() {
+        offloadRejections.increment();
+    }
+
+    public static void reportAccepted() {
+        reportsAccepted.increment();
+    }
+
+    public static void reportShed() {
+        reportsShed.increment();
+    }
+
+    public static void reportSinkFailure() {
+        reportSinkFailures.increment();
+    }
+
+    public static void outputCacheHit() {
+        outputCacheHits.increment();
+    }
+
+    public static void outputCacheMiss() {
+        outputCacheMisses.increment();
+    }
+
+    public static void outputCacheEviction() {
+        outputCacheEvictions.increment();
+    }
+
+    public static void outputCacheRejection() {
+        outputCacheRejections.increment();
+    }
+
+    public static void hashStoreHit() {
+        hashStoreHits.increment();
+    }
+
+    public static Histogram getStageTime(Stage stage) {
+        return stageTimes[stage.ordinal()];
+    }
+
+    public static Histogram getBodySize() {
+        return bodySize;
+    }
+
+    public static Histogram getHeaderSize() {
+        return headerSize;
+    }
+
+    public static Histogram getHashesPerResponse() {
+        return hashesPerResponse;
+    }
+
+    public static long getHashManifestHits() {
+        return hashManifestHits.sum();
+    }
+
+    public static long getPrefilterSkips() {
+        return prefilterSkips.sum();
+    }
+
+    public static long getPolicyCompactions() {
+        return policyCompactions.sum();
+    }
+
+    public static long getMetaTagFallbacks() {
+        return metaTagFallbacks.sum();
+    }
+
+    public static long getReportOnlyHashStrippings() {
+        return reportOnlyHashStrippings.sum();
+    }
+
+    public static long getExceptionFallbacks() {
+        return exceptionFallbacks.sum();
+    }
+
+    public static long getOffloadRejections() {
+        return offloadRejections.sum();
+    }
+
+    public static long getReportsAccepted() {
+        return reportsAccepted.sum();
+    }
+
+    public static long getReportsShed() {
+        return reportsShed.sum();
+    }
+
+    public static long getReportSinkFailures() {
+        return reportSinkFailures.sum();
+    }
+
+    public static long getOutputCacheHits() {
+        return outputCacheHits.sum();
+    }
+
+    public static long getOutputCacheMisses() {
+        return outputCacheMisses.sum();
+    }
+
+    /**
+     * Share of the lookups in the rewritten output cache which hit, 0 before the first one.
+     */
+    public static double getOutputCacheHitRatio() {
+        long hits = outputCacheHits.sum();
+        long lookups = hits + outputCacheMisses.sum();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public static long getOutputCacheEvictions() {
+        return outputCacheEvictions.sum();
+    }
+
+    public static long getOutputCacheRejections() {
+        return outputCacheRejections.sum();
+    }
+
+    public static long getHashStoreHits() {
+        return hashStoreHits.sum();
+    }
+
+    public static void reset() {
+        for (Histogram stageTime : stageTimes) {
+            stageTime.reset();
+        }
+        bodySize.reset();
+        headerSize.reset();
+        hashesPerResponse.reset();
+        hashManifestHits.reset();
+        prefilterSkips.reset();
+        policyCompactions.reset();
+        metaTagFallbacks.reset();
+        reportOnlyHashStrippings.reset();
+        exceptionFallbacks.reset();
+        offloadRejections.reset();
+        reportsAccepted.reset();
+        reportsShed.reset();
+        reportSinkFailures.reset();
+        outputCacheHits.reset();
+        outputCacheMisses.reset();
+        outputCacheEvictions.reset();
+        outputCacheRejections.reset();
+        hashStoreHits.reset();
+    }
+
+    public static synchronized void register() {
+        if (registrations++ > 0) return;
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(METRICS_OBJECT_NAME);
+            // Left behind by a previous deployment of the same application
+            if (mBeanServer.isRegistered(objectName)) mBeanServer.unregisterMBean(objectName);
+            mBeanServer.registerMBean(new MXBean(), objectName);
+        } catch (JMException e) {
+            logger.error("register(): metrics could not be registered as {}: {}", METRICS_OBJECT_NAME, e.getMessage());
+        }
+    }
+
+    public static synchronized void unregister() {
+        if (registrations == 0 || --registrations > 0) return;
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(METRICS_OBJECT_NAME);
+            if (mBeanServer.isRegistered(objectName)) mBeanServer.unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.error("unregister(): metrics could not be unregistered from {}: {}", METRICS_OBJECT_NAME, e.getMessage());
+        }
+    }
+
+    private static class MXBean implements FilterMetricsMXBean {
+
+        @Override
+        public HistogramSnapshot getBufferTime() {
+            return new HistogramSnapshot(getStageTime(Stage.BUFFER));
+        }
+
+        @Override
+        public HistogramSnapshot getRewriteTime() {
+            return new HistogramSnapshot(getStageTime(Stage.REWRITE));
+        }
+
+        @Override
+        public HistogramSnapshot getHashTime() {
+            return new HistogramSnapshot(getStageTime(Stage.HASH));
+        }
+
+        @Override
+        public HistogramSnapshot getHeaderTime() {
+            return new HistogramSnapshot(getStageTime(Stage.HEADER));
+        }
+
+        @Override
+        public HistogramSnapshot getBodySize() {
+            return new HistogramSnapshot(bodySize);
+        }
+
+        @Override
+        public HistogramSnapshot getHeaderSize() {
+            return new HistogramSnapshot(headerSize);
+        }
+
+        @Override
+        public HistogramSnapshot getHashesPerResponse() {
+            return new HistogramSnapshot(hashesPerResponse);
+        }
+
+        @Override
+        public long getHashManifestHits() {
+            return FilterMetrics.getHashManifestHits();
+        }
+
+        @Override
+        public long getPrefilterSkips() {
+            return FilterMetrics.getPrefilterSkips();
+        }
+
+        @Override
+        public long getPolicyCompactions() {
+            return FilterMetrics.getPolicyCompactions();
+        }
+
+        @Override
+        public long getMetaTagFallbacks() {
+            return FilterMetrics.getMetaTagFallbacks();
+        }
+
+        @Override
+        public long getReportOnlyHashStrippings() {
+            return FilterMetrics.getReportOnlyHashStrippings();
+        }
+
+        @Override
+        public long getExceptionFallbacks() {
+            return FilterMetrics.getExceptionFallbacks();
+        }
+
+        @Override
+        public long getOffloadRejections() {
+            return FilterMetrics.getOffloadRejections();
+        }
+
+        @Override
+        public long getReportsAccepted() {
+            return FilterMetrics.getReportsAccepted();
+        }
+
+        @Override
+        public long getReportsShed() {
+            return FilterMetrics.getReportsShed();
+        }
+
+        @Override
+        public long getReportSinkFailures() {
+            return FilterMetrics.getReportSinkFailures();
+        }
+
+        @Override
+        public long getOutputCacheHits() {
+            return FilterMetrics.getOutputCacheHits();
+        }
+
+        @Override
+        public long getOutputCacheMisses() {
+            return FilterMetrics.getOutputCacheMisses();
+        }
+
+        @Override
+        public double getOutputCacheHitRatio() {
+            return FilterMetrics.getOutputCacheHitRatio();
+        }
+
+        @Override
+        public long getOutputCacheEvictions() {
+            return FilterMetrics.getOutputCacheEvictions();
+        }
+
+        @Override
+        public long getOutputCacheRejections() {
+            return FilterMetrics.getOutputCacheRejections();
+        }
+
+        @Override
+        public long getOutputCacheBytes() {
+            return RewrittenOutputCache.getInstance().getWeightedSize();
+        }
+
+        @Override
+        public long getHashStoreHits() {
+            return FilterMetrics.getHashStoreHits();
+        }
+
+        @Override
+        public Map<String, Long> getBypassedByRoute() {
+            return byRoute(RouteCounters::getBypassed);
+        }
+
+        @Override
+        public Map<String, Long> getRewrittenByRoute() {
+            return byRoute(RouteCounters::getRewritten);
+        }
+
+        @Override
+        public Map<String, Long> getTimedOutByRoute() {
+            return byRoute(RouteCounters::getTimedOut);
+        }
+
+        @Override
+        public Map<String, Long> getUnsampledByRoute() {
+            return byRoute(RouteCounters::getUnsampled);
+        }
+
+        @Override
+        public long getAttributeHashCacheHits() {
+            return HashCaches.getAttributeHashes().getHits();
+        }
+
+        @Override
+        public long getAttributeHashCacheMisses() {
+            return HashCaches.getAttributeHashes().getMisses();
+        }
+
+        @Override
+        public long getAttributeHashCacheEvictions() {
+            return HashCaches.getAttributeHashes().getEvictions();
+        }
+
+        @Override
+        public long getBodyHashCacheHits() {
+            return HashCaches.getBodyHashes().getHits();
+        }
+
+        @Override
+        public long getBodyHashCacheMisses() {
+            return HashCaches.getBodyHashes().getMisses();
+        }
+
+        @Override
+        public long getBodyHashCacheEvictions() {
+            return HashCaches.getBodyHashes().getEvictions();
+        }
+
+        @Override
+        public long getBufferBytesInUse() {
+            return BufferPool.getBytesInUse();
+        }
+
+        @Override
+        public long getBufferHighWaterMark() {
+            return BufferPool.getHighWaterMark();
+        }
+
+        @Override
+        public long getBufferOverflows() {
+            return BufferPool.getOverflows();
+        }
+
+        @Override
+        public void reset() {
+            FilterMetrics.reset();
+            RouteCounters.reset();
+            BufferPool.resetGauges();
+        }
+
+        private static Map<String, Long> byRoute(ToLongFunction<String> counter) {
+            Map<String, Long> counts = new TreeMap<>();
+            for (String route : RouteCounters.getRoutes()) {
+                counts.put(route, counter.applyAsLong(route));
+            }
+            return counts;
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.cspdog.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link FilterMetrics}, registered as {@value com.cspdog.utils.Constants#METRICS_OBJECT_NAME}.
+ * Stage timings are in nanoseconds, body sizes in characters or bytes as buffered, header sizes in characters.
+ * Alongside the filter wide metrics, it exposes the per-route {@link RouteCounters} keyed by route, the hash cache
+ * counts since the caches were last dropped, and the response buffer gauges.
+ */
+public interface FilterMetricsMXBean {
+
+    HistogramSnapshot getBufferTime();
+
+    HistogramSnapshot getRewriteTime();
+
+    HistogramSnapshot getHashTime();
+
+    HistogramSnapshot getHeaderTime();
+
+    HistogramSnapshot getBodySize();
+
+    HistogramSnapshot getHeaderSize();
+
+    HistogramSnapshot getHashesPerResponse();
+
+    long getHashManifestHits();
+
+    long getPrefilterSkips();
+
+    long getPolicyCompactions();
+
+    long getMetaTagFallbacks();
+
+    long getReportOnlyHashStrippings();
+
+    long getExceptionFallbacks();
+
+    long getOffloadRejections();
+
+    long getReportsAccepted();
+
+    long getReportsShed();
+
+    long getReportSinkFailures();
+
+    long getOutputCacheHits();
+
+    long getOutputCacheMisses();
+
+    double getOutputCacheHitRatio();
+
+    long getOutputCacheEvictions();
+
+    long getOutputCacheRejections();
+
+    long getOutputCacheBytes();
+
+    long getHashStoreHits();
+
+    Map<String, Long> getBypassedByRoute();
+
+    Map<String, Long> getRewrittenByRoute();
+
+    Map<String, Long> getTimedOutByRoute();
+
+    Map<String, Long> getUnsampledByRoute();
+
+    long getAttributeHashCacheHits();
+
+    long getAttributeHashCacheMisses();
+
+    long getAttributeHashCacheEvictions();
+
+    long getBodyHashCacheHits();
+
+    long getBodyHashCacheMisses();
+
+    long getBodyHashCacheEvictions();
+
+    long getBufferBytesInUse();
+
+    long getBufferHighWaterMark();
+
+    long getBufferOverflows();
+
+    /**
+     * Resets the filter wide metrics, the per-route counters and the buffer gauges.
+     */
+    void reset();
+
+}
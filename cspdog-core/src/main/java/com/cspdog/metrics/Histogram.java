@@ -0,0 +1,80 @@
+package com.cspdog.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values over power-of-two buckets: recording a value only increments counters,
+ * nothing is allocated, so it can stay on in production. Percentiles are read as the upper bound of the bucket
+ * they fall into, i.e. within a factor of two.
+ */
+public final class Histogram {
+
+    // Bucket i holds the values needing i bits, 0 in bucket 0, 1 in bucket 1, 2-3 in bucket 2...
+    private final LongAdder[] buckets = new LongAdder[Long.SIZE + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets[Long.SIZE - Long.numberOfLeadingZeros(value)].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Upper bound of the bucket the given quantile, between 0 and 1, falls into, never over the maximum recorded.
+     */
+    public long getPercentile(double quantile) {
+        long total = 0;
+        for (LongAdder bucket : buckets) {
+            total += bucket.sum();
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank) {
+                long upperBound = i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upperBound, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.cspdog.metrics;
+
+/**
+ * Point in time read of a {@link Histogram}, exposed over JMX as composite data.
+ */
+public final class HistogramSnapshot {
+
+    private final long count;
+    private final double mean;
+    private final long max;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+
+    public HistogramSnapshot(Histogram histogram) {
+        this.count = histogram.getCount();
+        this.mean = histogram.getMean();
+        this.max = histogram.getMax();
+        this.p50 = histogram.getPercentile(0.5);
+        this.p90 = histogram.getPercentile(0.9);
+        this.p99 = histogram.getPercentile(0.99);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+}
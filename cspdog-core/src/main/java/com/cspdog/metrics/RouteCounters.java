@@ -0,0 +1,80 @@
+package com.cspdog.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.cspdog.utils.Constants.MAX_TRACKED_ROUTES;
+import static com.cspdog.utils.Constants.OTHER_ROUTES;
+
+/**
+ * Per-route count of responses passed through untouched versus rewritten by the filter, of those left out of the
+ * rewrite sample, and of rewrites given up on for taking longer than the latency budget.
+ * Routes beyond {@link com.cspdog.utils.Constants#MAX_TRACKED_ROUTES} are accounted together, so a crawler
+ * hitting random URLs cannot grow this without limit.
+ */
+public class RouteCounters {
+
+    private static final Map<String, Counters> countersByRoute = new ConcurrentHashMap<>();
+
+    public static void bypassed(String route) {
+        getCounters(route).bypassed.increment();
+    }
+
+    public static void rewritten(String route) {
+        getCounters(route).rewritten.increment();
+    }
+
+    public static void timedOut(String route) {
+        getCounters(route).timedOut.increment();
+    }
+
+    public static void unsampled(String route) {
+        getCounters(route).unsampled.increment();
+    }
+
+    public static long getBypassed(String route) {
+        Counters counters = countersByRoute.get(route);
+        return counters == null ? 0 : counters.bypassed.sum();
+    }
+
+    public static long getRewritten(String route) {
+        Counters counters = countersByRoute.get(route);
+        return counters == null ? 0 : counters.rewritten.sum();
+    }
+
+    public static long getTimedOut(String route) {
+        Counters counters = countersByRoute.get(route);
+        return counters == null ? 0 : counters.timedOut.sum();
+    }
+
+    public static long getUnsampled(String route) {
+        Counters counters = countersByRoute.get(route);
+        return counters == null ? 0 : counters.unsampled.sum();
+    }
+
+    public static Set<String> getRoutes() {
+        return Collections.unmodifiableSet(countersByRoute.keySet());
+    }
+
+    public static void reset() {
+        countersByRoute.clear();
+    }
+
+    private static Counters getCounters(String route) {
+        Counters counters = countersByRoute.get(route);
+        if (counters != null) return counters;
+        if (countersByRoute.size() >= MAX_TRACKED_ROUTES) route = OTHER_ROUTES;
+        return countersByRoute.computeIfAbsent(route, r -> new Counters());
+    }
+
+    private static class Counters {
+        private final LongAdder bypassed = new LongAdder();
+        private final LongAdder rewritten = new LongAdder();
+        private final LongAdder timedOut = new LongAdder();
+        private final LongAdder unsampled = new LongAdder();
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.cspdog.nonce;
+
+/**
+ * Base64 encoding of 128-bit nonces into a caller-owned buffer, the same text as
+ * {@link java.util.Base64#getEncoder()} gives, padding included.
+ */
+final class NonceEncoding {
+
+    static final int NONCE_BYTES = 16;
+    // 16 bytes are five 3-byte groups and one byte left, padded
+    static final int NONCE_CHARS = 24;
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private NonceEncoding() {
+    }
+
+    /**
+     * Encodes the {@value #NONCE_BYTES} bytes of <code>source</code> from <code>offset</code> into the first
+     * {@value #NONCE_CHARS} chars of <code>target</code>.
+     */
+    static void encode(byte[] source, int offset, char[] target) {
+        int t = 0;
+        int end = offset + NONCE_BYTES - 1;
+        for (int s = offset; s < end; s += 3) {
+            int group = (source[s] & 0xff) << 16 | (source[s + 1] & 0xff) << 8 | (source[s + 2] & 0xff);
+            target[t++] = ALPHABET[group >>> 18];
+            target[t++] = ALPHABET[(group >>> 12) & 0x3f];
+            target[t++] = ALPHABET[(group >>> 6) & 0x3f];
+            target[t++] = ALPHABET[group & 0x3f];
+        }
+        int last = source[end] & 0xff;
+        target[t++] = ALPHABET[last >>> 2];
+        target[t++] = ALPHABET[(last << 4) & 0x3f];
+        target[t++] = '=';
+        target[t] = '=';
+    }
+
+}
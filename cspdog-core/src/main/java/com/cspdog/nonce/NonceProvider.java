@@ -0,0 +1,14 @@
+package com.cspdog.nonce;
+
+/**
+ * Source of the per-response nonces. Implementations are named by the <code>nonceProvider</code> setting, need a
+ * public no-argument constructor, and are called concurrently by every request thread.
+ */
+public interface NonceProvider {
+
+    /**
+     * A fresh nonce, at least 128 bits out of a cryptographically strong generator, Base64 encoded.
+     */
+    String nextNonce();
+
+}
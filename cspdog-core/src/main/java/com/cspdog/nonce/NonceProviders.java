@@ -0,0 +1,34 @@
+package com.cspdog.nonce;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instantiates the {@link NonceProvider} named by the configuration.
+ */
+public final class NonceProviders {
+
+    private static final Logger logger = LoggerFactory.getLogger(NonceProviders.class);
+
+    private NonceProviders() {
+    }
+
+    /**
+     * The provider of the given class name, {@link ThreadLocalNonceProvider} when blank or when it cannot be
+     * instantiated.
+     */
+    public static NonceProvider create(String className) {
+        if (StringUtils.isBlank(className)) return new ThreadLocalNonceProvider();
+        try {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            if (classLoader == null) classLoader = NonceProviders.class.getClassLoader();
+            Class<?> providerClass = Class.forName(className.trim(), true, classLoader);
+            return (NonceProvider) providerClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+            logger.error("create(): nonce provider {} could not be instantiated, using the default one: {}", className, e.toString());
+            return new ThreadLocalNonceProvider();
+        }
+    }
+
+}
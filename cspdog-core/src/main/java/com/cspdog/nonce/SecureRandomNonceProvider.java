@@ -0,0 +1,21 @@
+package com.cspdog.nonce;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * 128-bit nonces out of one shared {@link SecureRandom}, as the filter used to generate them. Every thread contends
+ * on the lock of the generator, kept for comparison and for platforms whose default generator is the one to use.
+ */
+public class SecureRandomNonceProvider implements NonceProvider {
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    @Override
+    public String nextNonce() {
+        byte[] nonceBytes = new byte[NonceEncoding.NONCE_BYTES];
+        secureRandom.nextBytes(nonceBytes);
+        return Base64.getEncoder().encodeToString(nonceBytes);
+    }
+
+}
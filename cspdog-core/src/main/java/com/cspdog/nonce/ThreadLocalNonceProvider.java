@@ -0,0 +1,67 @@
+package com.cspdog.nonce;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static java.security.DrbgParameters.Capability.NONE;
+
+/**
+ * The default {@link NonceProvider}: every thread draws from its own DRBG instance, seeded from the platform
+ * entropy source, so request threads never wait on each other's generator. Random bytes are drawn a batch of
+ * nonces at a time, and encoded into a per-thread buffer, the nonce string being the only allocation of a call.
+ */
+public class ThreadLocalNonceProvider implements NonceProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThreadLocalNonceProvider.class);
+
+    private static final int BATCH_NONCES = 32;
+    private static final int SECURITY_STRENGTH_BITS = 128;
+    private static final ThreadLocal<State> states = ThreadLocal.withInitial(State::new);
+
+    @Override
+    public String nextNonce() {
+        return states.get().nextNonce();
+    }
+
+    /**
+     * Random 64 bits out of the current thread's generator, e.g. for names which must not be guessed.
+     */
+    public static long nextLong() {
+        return states.get().random.nextLong();
+    }
+
+    private static SecureRandom newRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG", DrbgParameters.instantiation(SECURITY_STRENGTH_BITS, NONE, null));
+        } catch (NoSuchAlgorithmException e) {
+            logger.warn("newRandom(): no DRBG available, falling back to the default generator: {}", e.getMessage());
+            return new SecureRandom();
+        }
+    }
+
+    private static class State {
+        private final SecureRandom random = newRandom();
+        private final byte[] batch = new byte[BATCH_NONCES * NonceEncoding.NONCE_BYTES];
+        private final char[] encoded = new char[NonceEncoding.NONCE_CHARS];
+        // Past the end, so the first call fills the batch
+        private int position = batch.length;
+
+        String nextNonce() {
+            if (position == batch.length) {
+                random.nextBytes(batch);
+                position = 0;
+            }
+            NonceEncoding.encode(batch, position, encoded);
+            // Handed out, not left lying around in the batch
+            Arrays.fill(batch, position, position + NonceEncoding.NONCE_BYTES, (byte) 0);
+            position += NonceEncoding.NONCE_BYTES;
+            return new String(encoded);
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.cspdog.report;
+
+/**
+ * A violation along with how many times it was reported since the previous flush.
+ */
+public final class AggregatedViolation {
+
+    private final Violation violation;
+    private long count;
+
+    AggregatedViolation(Violation violation) {
+        this.violation = violation;
+    }
+
+    void increment() {
+        count++;
+    }
+
+    public Violation getViolation() {
+        return violation;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.cspdog.report;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.cspdog.utils.Constants.*;
+
+/**
+ * Receiver of the violation reports browsers send to the <code>report-uri</code> and <code>report-to</code> endpoints
+ * of the policies, to be mapped at their URL with async support on. Bodies are read with the non-blocking input API,
+ * so a slow or stalled client holds no container thread, then pulled apart into violations without building a tree,
+ * each buffered by {@link ReportIngestion} as soon as it is parsed.
+ * <p>
+ * Load is shed with <code>429 Too Many Requests</code>, before reading the body, whenever the buffer is full or too
+ * many bodies are being received at once, and after parsing when the buffer filled up in the meantime. Browsers do
+ * not retry reports, these are lost, but the application keeps serving.
+ */
+public class CSPReportServlet extends HttpServlet {
+
+    private static final Logger logger = LoggerFactory.getLogger(CSPReportServlet.class);
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient AtomicInteger readsInFlight = new AtomicInteger();
+
+    @Override
+    public void init() {
+        ReportIngestion.start();
+    }
+
+    @Override
+    public void destroy() {
+        ReportIngestion.stop();
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        if (!isReportContentType(req.getContentType())) {
+            res.setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+        if (req.getContentLengthLong() > MAX_REPORT_BODY_SIZE) {
+            res.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        if (ReportIngestion.isOverloaded()) {
+            shed(res);
+            return;
+        }
+        if (readsInFlight.incrementAndGet() > MAX_REPORT_READS_IN_FLIGHT) {
+            readsInFlight.decrementAndGet();
+            shed(res);
+            return;
+        }
+        if (!req.isAsyncSupported()) {
+            // Mapped without async support, the body is read on the request thread
+            try {
+                readBlocking(req.getInputStream(), res);
+            } finally {
+                readsInFlight.decrementAndGet();
+            }
+            return;
+        }
+        AsyncContext asyncContext = req.startAsync();
+        asyncContext.setTimeout(REPORT_READ_TIMEOUT_MILLIS);
+        ServletInputStream in = req.getInputStream();
+        ReportBodyReader reader = new ReportBodyReader(in, res, asyncContext, readsInFlight);
+        asyncContext.addListener(reader);
+        in.setReadListener(reader);
+    }
+
+    private static boolean isReportContentType(String contentType) {
+        if (contentType == null) return false;
+        String mediaType = StringUtils.substringBefore(contentType, ";").trim().toLowerCase(Locale.ROOT);
+        // Some browsers send report-uri reports as plain JSON
+        return mediaType.equals(CSP_REPORT_CONTENT_TYPE) || mediaType.equals(REPORTS_CONTENT_TYPE) || mediaType.equals(JSON_CONTENT_TYPE);
+    }
+
+    private static void readBlocking(InputStream in, HttpServletResponse res) throws IOException {
+        byte[] body = in.readNBytes(MAX_REPORT_BODY_SIZE + 1);
+        if (body.length > MAX_REPORT_BODY_SIZE) {
+            res.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        ingest(body, body.length, res);
+    }
+
+    /**
+     * Offers the violations of the body as they are parsed, answering <code>204 No Content</code> once all were
+     * buffered.
+     */
+    static void ingest(byte[] body, int length, HttpServletResponse res) {
+        int[] shed = new int[1];
+        try {
+            ReportParser.parse(new String(body, 0, length, StandardCharsets.UTF_8), violation -> {
+                if (!ReportIngestion.offer(violation)) shed[0]++;
+            });
+        } catch (IOException e) {
+            logger.debug("ingest(): report discarded, {}", e.getMessage());
+            res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (shed[0] > 0) {
+            shed(res);
+            return;
+        }
+        res.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    private static void shed(HttpServletResponse res) {
+        res.setStatus(SC_TOO_MANY_REQUESTS);
+        res.setHeader(RETRY_AFTER_HEADER_NAME, REPORT_RETRY_AFTER_SECONDS);
+    }
+
+    /**
+     * Reads the body whenever the container reports data available, up to
+     * {@value com.cspdog.utils.Constants#MAX_REPORT_BODY_SIZE} bytes. Also listens to the async context, so a timeout
+     * or an error completes it through the same {@link #finish()} as the reads do, once and for all.
+     */
+    private static class ReportBodyReader implements ReadListener, AsyncListener {
+
+        private final ServletInputStream in;
+        private final HttpServletResponse res;
+        private final AsyncContext asyncContext;
+        private final AtomicInteger readsInFlight;
+        private final byte[] chunk = new byte[REPORT_READ_CHUNK_SIZE];
+        private byte[] body = new byte[REPORT_READ_CHUNK_SIZE];
+        private int length;
+        private boolean done;
+
+        ReportBodyReader(ServletInputStream in, HttpServletResponse res, AsyncContext asyncContext, AtomicInteger readsInFlight) {
+            this.in = in;
+            this.res = res;
+            this.asyncContext = asyncContext;
+            this.readsInFlight = readsInFlight;
+        }
+
+        @Override
+        public synchronized void onDataAvailable() throws IOException {
+            int read;
+            while (!done && in.isReady() && (read = in.read(chunk)) != -1) {
+                if (length + read > MAX_REPORT_BODY_SIZE) {
+                    res.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                    finish();
+                    return;
+                }
+                if (length + read > body.length) body = Arrays.copyOf(body, Math.min(MAX_REPORT_BODY_SIZE, body.length * 2));
+                System.arraycopy(chunk, 0, body, length, read);
+                length += read;
+            }
+        }
+
+        @Override
+        public synchronized void onAllDataRead() {
+            if (done) return;
+            ingest(body, length, res);
+            finish();
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            logger.debug("onError(): report could not be read, details {}", t.getMessage());
+            finish();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            readsInFlight.decrementAndGet();
+        }
+
+        @Override
+        public synchronized void onTimeout(AsyncEvent event) {
+            if (done) return;
+            res.setStatus(HttpServletResponse.SC_REQUEST_TIMEOUT);
+            finish();
+        }
+
+        @Override
+        public synchronized void onError(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        private void finish() {
+            if (done) return;
+            done = true;
+            asyncContext.complete();
+        }
+    }
+
+}
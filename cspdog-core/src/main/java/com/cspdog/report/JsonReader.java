@@ -0,0 +1,276 @@
+package com.cspdog.report;
+
+import java.io.IOException;
+
+/**
+ * Pull parser over a JSON text, reading one token at a time with no tree built, so only the fields of interest are
+ * ever turned into strings and the rest is skipped over. Strict about structure, lenient about nothing.
+ */
+final class JsonReader {
+
+    enum Token {BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, LITERAL, END_DOCUMENT}
+
+    private static final int MAX_DEPTH = 32;
+
+    private final CharSequence text;
+    private final int length;
+    private int position;
+    // Per nesting level: whether in an object, and whether a name (in objects) or a value was read last
+    private final boolean[] inObject = new boolean[MAX_DEPTH];
+    private final boolean[] expectingValue = new boolean[MAX_DEPTH];
+    private final boolean[] empty = new boolean[MAX_DEPTH];
+    private int depth;
+    private Token peeked;
+
+    JsonReader(CharSequence text) {
+        this.text = text;
+        this.length = text.length();
+    }
+
+    Token peek() throws IOException {
+        if (peeked != null) return peeked;
+        skipWhitespace();
+        if (depth == 0) {
+            if (position == length) return peeked = Token.END_DOCUMENT;
+            return peeked = valueToken();
+        }
+        char c = position < length ? text.charAt(position) : 0;
+        int level = depth - 1;
+        if (inObject[level] && !expectingValue[level]) {
+            if (c == '}') return peeked = Token.END_OBJECT;
+            if (!empty[level]) {
+                expect(',');
+                skipWhitespace();
+            }
+            if (position >= length || text.charAt(position) != '"') throw syntaxError("name expected");
+            return peeked = Token.NAME;
+        }
+        if (inObject[level]) {
+            expect(':');
+            skipWhitespace();
+            return peeked = valueToken();
+        }
+        if (c == ']') return peeked = Token.END_ARRAY;
+        if (!empty[level]) {
+            expect(',');
+            skipWhitespace();
+        }
+        return peeked = valueToken();
+    }
+
+    private Token valueToken() throws IOException {
+        if (position >= length) throw syntaxError("value expected");
+        char c = text.charAt(position);
+        if (c == '{') return Token.BEGIN_OBJECT;
+        if (c == '[') return Token.BEGIN_ARRAY;
+        if (c == '"') return Token.STRING;
+        if (c == '-' || (c >= '0' && c <= '9') || c == 't' || c == 'f' || c == 'n') return Token.LITERAL;
+        throw syntaxError("value expected");
+    }
+
+    boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    void beginObject() throws IOException {
+        consume(Token.BEGIN_OBJECT);
+        push(true);
+    }
+
+    void endObject() throws IOException {
+        consume(Token.END_OBJECT);
+        pop();
+    }
+
+    void beginArray() throws IOException {
+        consume(Token.BEGIN_ARRAY);
+        push(false);
+    }
+
+    void endArray() throws IOException {
+        consume(Token.END_ARRAY);
+        pop();
+    }
+
+    String nextName() throws IOException {
+        consume(Token.NAME);
+        String name = readString();
+        expectingValue[depth - 1] = true;
+        return name;
+    }
+
+    /**
+     * A string value, or the text of a number or boolean, null for <code>null</code>.
+     */
+    String nextString() throws IOException {
+        Token token = peek();
+        if (token != Token.STRING && token != Token.LITERAL) throw syntaxError("string expected");
+        peeked = null;
+        String value = token == Token.STRING ? readString() : readLiteral();
+        valueRead();
+        return value;
+    }
+
+    /**
+     * Skips the next value, nested objects and arrays included.
+     */
+    void skipValue() throws IOException {
+        int startDepth = depth;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    break;
+                case NAME:
+                    nextName();
+                    break;
+                case STRING:
+                case LITERAL:
+                    nextString();
+                    break;
+                default:
+                    throw syntaxError("value expected");
+            }
+        } while (depth > startDepth);
+    }
+
+    private void consume(Token expected) throws IOException {
+        if (peek() != expected) throw syntaxError(expected + " expected");
+        peeked = null;
+        if (expected != Token.NAME) position++;
+    }
+
+    private void push(boolean object) throws IOException {
+        if (depth == MAX_DEPTH) throw syntaxError("nested too deep");
+        inObject[depth] = object;
+        expectingValue[depth] = false;
+        empty[depth] = true;
+        depth++;
+    }
+
+    private void pop() {
+        depth--;
+        valueRead();
+    }
+
+    private void valueRead() {
+        if (depth == 0) return;
+        expectingValue[depth - 1] = false;
+        empty[depth - 1] = false;
+    }
+
+    private String readString() throws IOException {
+        // Past the opening quote
+        int start = ++position;
+        StringBuilder sb = null;
+        while (position < length) {
+            char c = text.charAt(position);
+            if (c == '"') {
+                String value = sb == null ? text.subSequence(start, position).toString() : sb.append(text, start, position).toString();
+                position++;
+                return value;
+            }
+            if (c < 0x20) throw syntaxError("control character in string");
+            if (c != '\\') {
+                position++;
+                continue;
+            }
+            if (sb == null) sb = new StringBuilder();
+            sb.append(text, start, position);
+            if (++position >= length) break;
+            char escaped = text.charAt(position++);
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append(escaped);
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    sb.append(readUnicodeEscape());
+                    break;
+                default:
+                    throw syntaxError("malformed escape");
+            }
+            start = position;
+        }
+        throw syntaxError("unterminated string");
+    }
+
+    private char readUnicodeEscape() throws IOException {
+        if (position + 4 > length) throw syntaxError("truncated escape");
+        int value = 0;
+        for (int end = position + 4; position < end; position++) {
+            int digit = Character.digit(text.charAt(position), 16);
+            if (digit < 0) throw syntaxError("malformed escape");
+            value = value << 4 | digit;
+        }
+        return (char) value;
+    }
+
+    private String readLiteral() throws IOException {
+        int start = position;
+        while (position < length) {
+            char c = text.charAt(position);
+            if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) break;
+            position++;
+        }
+        String literal = text.subSequence(start, position).toString();
+        if (literal.equals("null")) return null;
+        if (!literal.equals("true") && !literal.equals("false") && !isNumber(literal)) throw syntaxError("malformed literal");
+        return literal;
+    }
+
+    private static boolean isNumber(String literal) {
+        try {
+            Double.parseDouble(literal);
+            // Not the hexadecimal or named forms Java accepts on top of JSON ones
+            char last = literal.charAt(literal.length() - 1);
+            return last >= '0' && last <= '9';
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void expect(char c) throws IOException {
+        if (position >= length || text.charAt(position) != c) throw syntaxError("'" + c + "' expected");
+        position++;
+    }
+
+    private void skipWhitespace() {
+        while (position < length && isWhitespace(text.charAt(position))) position++;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("malformed JSON at " + position + ": " + message);
+    }
+
+}
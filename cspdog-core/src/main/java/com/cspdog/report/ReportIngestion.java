@@ -0,0 +1,113 @@
+package com.cspdog.report;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.metrics.FilterMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.cspdog.utils.Constants.REPORT_FLUSH_THREAD_NAME;
+
+/**
+ * Buffers the violations received by {@link CSPReportServlet} and flushes them to the {@link ReportSink} from a
+ * single background thread. Request threads only ever offer to a bounded lock-free ring: once it is full, reports
+ * are shed rather than queued, so a flood of reports after a bad policy change costs bounded memory and no blocked
+ * threads. Every flush deduplicates what it drained, the sink getting each violation once, with its count.
+ */
+public class ReportIngestion {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportIngestion.class);
+
+    private static volatile ReportRingBuffer buffer;
+    private static ReportSink sink;
+    private static ScheduledExecutorService flusher;
+    // Servlet instances sharing the ingestion, the last one destroyed stops it
+    private static int starts;
+
+    public static synchronized void start() {
+        if (starts++ > 0) return;
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        sink = ReportSinks.create(configuration.getReportSink());
+        buffer = new ReportRingBuffer(configuration.getReportBufferCapacity());
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, REPORT_FLUSH_THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long flushIntervalMillis = configuration.getReportFlushIntervalMillis();
+        flusher.scheduleWithFixedDelay(ReportIngestion::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("start(): ingesting violation reports, up to {} buffered", buffer.getCapacity());
+    }
+
+    /**
+     * Flushes what is left and closes the sink.
+     */
+    public static synchronized void stop() {
+        if (starts == 0 || --starts > 0) return;
+        flusher.shutdownNow();
+        flusher = null;
+        flush();
+        try {
+            sink.close();
+        } catch (IOException e) {
+            logger.error("stop(): report sink could not be closed: {}", e.getMessage());
+        }
+        buffer = null;
+        sink = null;
+    }
+
+    /**
+     * Whether the violation was buffered, false when shed as the buffer is full or ingestion is not started.
+     */
+    public static boolean offer(Violation violation) {
+        ReportRingBuffer currentBuffer = buffer;
+        if (currentBuffer == null || !currentBuffer.offer(violation)) {
+            FilterMetrics.reportShed();
+            return false;
+        }
+        FilterMetrics.reportAccepted();
+        return true;
+    }
+
+    /**
+     * Whether further reports would be shed, checked before their bodies are even read.
+     */
+    public static boolean isOverloaded() {
+        ReportRingBuffer currentBuffer = buffer;
+        return currentBuffer == null || currentBuffer.size() >= currentBuffer.getCapacity();
+    }
+
+    /**
+     * Hands everything buffered so far to the sink, one batch per buffer's worth of reports.
+     */
+    public static synchronized void flush() {
+        ReportRingBuffer currentBuffer = buffer;
+        if (currentBuffer == null) return;
+        int drained;
+        do {
+            Map<Violation, AggregatedViolation> batch = new LinkedHashMap<>();
+            Violation violation;
+            drained = 0;
+            while (drained < currentBuffer.getCapacity() && (violation = currentBuffer.poll()) != null) {
+                batch.computeIfAbsent(violation, AggregatedViolation::new).increment();
+                drained++;
+            }
+            if (batch.isEmpty()) return;
+            try {
+                sink.write(new ArrayList<>(batch.values()));
+            } catch (IOException | RuntimeException e) {
+                FilterMetrics.reportSinkFailure();
+                logger.error("flush(): {} violations could not be written, dropping them: {}", batch.size(), e.getMessage());
+            }
+        } while (drained == currentBuffer.getCapacity());
+    }
+
+}
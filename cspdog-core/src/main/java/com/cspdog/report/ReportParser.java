@@ -0,0 +1,112 @@
+package com.cspdog.report;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+import static com.cspdog.utils.Constants.CSP_VIOLATION_REPORT_TYPE;
+import static com.cspdog.utils.Constants.MAX_REPORT_FIELD_LENGTH;
+
+/**
+ * Reads violations out of report bodies as they are parsed, in both formats browsers send:
+ * <ul>
+ *     <li><code>application/csp-report</code>, from <code>report-uri</code>: a single
+ *     <code>{"csp-report": {"violated-directive": ..., "blocked-uri": ..., ...}}</code> object</li>
+ *     <li><code>application/reports+json</code>, from <code>report-to</code>: an array of reports of any type, those of
+ *     type <code>csp-violation</code> holding <code>{"effectiveDirective": ..., "blockedURL": ..., ...}</code> as body</li>
+ * </ul>
+ * Fields are cut to {@value com.cspdog.utils.Constants#MAX_REPORT_FIELD_LENGTH} characters, anything else in the
+ * reports is skipped without being read into strings.
+ */
+final class ReportParser {
+
+    private ReportParser() {
+    }
+
+    static void parse(CharSequence body, Consumer<Violation> consumer) throws IOException {
+        JsonReader reader = new JsonReader(body);
+        switch (reader.peek()) {
+            case BEGIN_ARRAY:
+                parseReports(reader, consumer);
+                break;
+            case BEGIN_OBJECT:
+                parseCSPReport(reader, consumer);
+                break;
+            default:
+                throw new IOException("neither a CSP report nor a list of reports");
+        }
+    }
+
+    private static void parseCSPReport(JsonReader reader, Consumer<Violation> consumer) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("csp-report")) {
+                consumer.accept(readViolation(reader, "effective-directive", "violated-directive", "blocked-uri", "source-file",
+                        "document-uri", "disposition"));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void parseReports(JsonReader reader, Consumer<Violation> consumer) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String type = null;
+            Violation violation = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("type")) {
+                    type = reader.nextString();
+                } else if (name.equals("body") && reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                    // The type may only come after the body
+                    violation = readViolation(reader, "effectiveDirective", "violatedDirective", "blockedURL", "sourceFile",
+                            "documentURL", "disposition");
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (CSP_VIOLATION_REPORT_TYPE.equals(type) && violation != null) consumer.accept(violation);
+        }
+        reader.endArray();
+    }
+
+    private static Violation readViolation(JsonReader reader, String effectiveDirectiveName, String violatedDirectiveName, String blockedUriName,
+                                           String sourceFileName, String documentUriName, String dispositionName) throws IOException {
+        String effectiveDirective = null;
+        String violatedDirective = null;
+        String blockedUri = null;
+        String sourceFile = null;
+        String documentUri = null;
+        String disposition = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(effectiveDirectiveName)) effectiveDirective = readField(reader);
+            else if (name.equals(violatedDirectiveName)) violatedDirective = readField(reader);
+            else if (name.equals(blockedUriName)) blockedUri = readField(reader);
+            else if (name.equals(sourceFileName)) sourceFile = readField(reader);
+            else if (name.equals(documentUriName)) documentUri = readField(reader);
+            else if (name.equals(dispositionName)) disposition = readField(reader);
+            else reader.skipValue();
+        }
+        reader.endObject();
+        // Older browsers only send the violated directive, sources included
+        String directive = effectiveDirective != null ? effectiveDirective : StringUtils.substringBefore(violatedDirective, " ");
+        return new Violation(directive, blockedUri, sourceFile, documentUri, disposition);
+    }
+
+    private static String readField(JsonReader reader) throws IOException {
+        JsonReader.Token token = reader.peek();
+        if (token != JsonReader.Token.STRING && token != JsonReader.Token.LITERAL) {
+            reader.skipValue();
+            return null;
+        }
+        return StringUtils.truncate(reader.nextString(), MAX_REPORT_FIELD_LENGTH);
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.cspdog.report;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue of violations, offered to by any number of request threads and polled by the single flush
+ * thread. Every slot carries a sequence number telling whether it is free for the producer claiming position
+ * <code>p</code> (sequence <code>p</code>) or filled for the consumer (sequence <code>p + 1</code>), so producers only
+ * contend on one compare-and-set and never wait on each other. A full buffer refuses offers instead of blocking.
+ */
+class ReportRingBuffer {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Violation> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Only moved by the consumer, read by producers sizing the buffer
+    private volatile long head;
+
+    /**
+     * Capacity rounded up to a power of two.
+     */
+    ReportRingBuffer(int capacity) {
+        this.capacity = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Whether the violation was queued, false when the buffer is full.
+     */
+    boolean offer(Violation violation) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long lag = sequences.get(index) - position;
+            if (lag == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, violation);
+                    // Published to the consumer
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (lag < 0) {
+                // Slot not consumed yet since the last lap
+                return false;
+            }
+            // Claimed by another producer in the meantime, retrying with the new tail
+        }
+    }
+
+    /**
+     * Next violation, null when there is none. Only ever called from a single thread at a time.
+     */
+    Violation poll() {
+        long position = head;
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) return null;
+        Violation violation = slots.get(index);
+        slots.set(index, null);
+        // Free for the producer one lap ahead
+        sequences.set(index, position + capacity);
+        head = position + 1;
+        return violation;
+    }
+
+    int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.cspdog.report;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where deduplicated violation reports go, e.g. a file, a log or a reporting server. Batches are written from a
+ * single thread, one after the other; a batch failing to be written is dropped.
+ * <p>
+ * Implementations named by the <code>reportSink</code> setting need a public no-argument constructor.
+ */
+public interface ReportSink {
+
+    void write(List<AggregatedViolation> batch) throws IOException;
+
+    default void close() throws IOException {
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.cspdog.report;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instantiates the {@link ReportSink} named by the configuration.
+ */
+public final class ReportSinks {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportSinks.class);
+
+    private ReportSinks() {
+    }
+
+    /**
+     * The sink of the given class name, {@link RollingFileReportSink} when blank or when it cannot be instantiated.
+     */
+    public static ReportSink create(String className) {
+        if (StringUtils.isBlank(className)) return new RollingFileReportSink();
+        try {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            if (classLoader == null) classLoader = ReportSinks.class.getClassLoader();
+            Class<?> sinkClass = Class.forName(className.trim(), true, classLoader);
+            return (ReportSink) sinkClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+            logger.error("create(): report sink {} could not be instantiated, using the default one: {}", className, e.toString());
+            return new RollingFileReportSink();
+        }
+    }
+
+}
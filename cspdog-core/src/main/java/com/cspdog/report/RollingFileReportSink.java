@@ -0,0 +1,127 @@
+package com.cspdog.report;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+import static com.cspdog.utils.Constants.DEFAULT_REPORT_FILE_NAME;
+import static com.cspdog.utils.Constants.REPORT_FILES_KEPT;
+
+/**
+ * Default sink, appending one JSON object per deduplicated violation to a local file, with its count and the time
+ * of the flush. Once the file reaches its
+ * maximum size it is renamed with a <code>.1</code> suffix, shifting the previous ones, the oldest being deleted.
+ */
+public class RollingFileReportSink implements ReportSink {
+
+    private final Path file;
+    private final long maxSize;
+    private final int filesKept;
+    private OutputStream out;
+    private long size;
+
+    /**
+     * File and size as configured.
+     */
+    public RollingFileReportSink() {
+        this(getConfiguredFile(), CSPConfigurationHolder.getConfiguration().getReportFileMaxSize(), REPORT_FILES_KEPT);
+    }
+
+    public RollingFileReportSink(Path file, long maxSize, int filesKept) {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.filesKept = filesKept;
+    }
+
+    private static Path getConfiguredFile() {
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        if (StringUtils.isNotBlank(configuration.getReportFile())) return Paths.get(configuration.getReportFile());
+        return Paths.get(System.getProperty("java.io.tmpdir"), DEFAULT_REPORT_FILE_NAME);
+    }
+
+    @Override
+    public void write(List<AggregatedViolation> batch) throws IOException {
+        if (out == null) open();
+        String flushed = Instant.now().toString();
+        for (AggregatedViolation aggregatedViolation : batch) {
+            byte[] line = toJson(aggregatedViolation, flushed).getBytes(StandardCharsets.UTF_8);
+            if (size > 0 && size + line.length > maxSize) roll();
+            out.write(line);
+            size += line.length;
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out == null) return;
+        out.close();
+        out = null;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    private void open() throws IOException {
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        size = Files.size(file);
+    }
+
+    private void roll() throws IOException {
+        close();
+        Files.deleteIfExists(rolledFile(filesKept));
+        for (int i = filesKept - 1; i >= 1; i--) {
+            if (Files.exists(rolledFile(i))) Files.move(rolledFile(i), rolledFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (filesKept > 0) Files.move(file, rolledFile(1), StandardCopyOption.REPLACE_EXISTING);
+        else Files.deleteIfExists(file);
+        open();
+    }
+
+    private Path rolledFile(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    static String toJson(AggregatedViolation aggregatedViolation, String time) {
+        Violation violation = aggregatedViolation.getViolation();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append('{');
+        appendField("directive", violation.getDirective(), sb).append(',');
+        appendField("blockedUri", violation.getBlockedUri(), sb).append(',');
+        appendField("sourceFile", violation.getSourceFile(), sb).append(',');
+        appendField("documentUri", violation.getDocumentUri(), sb).append(',');
+        appendField("disposition", violation.getDisposition(), sb).append(',');
+        sb.append("\"count\":").append(aggregatedViolation.getCount()).append(',');
+        appendField("time", time, sb);
+        return sb.append("}\n").toString();
+    }
+
+    private static StringBuilder appendField(String name, String value, StringBuilder sb) {
+        sb.append('"').append(name).append("\":");
+        if (value == null) return sb.append("null");
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            // Slashes left as they are, URLs stay readable
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"');
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.cspdog.report;
+
+import java.util.Objects;
+
+/**
+ * A CSP violation as reported by a browser, whichever the report format. Violations are the same, and counted
+ * together, when their directive, blocked URI and source file are.
+ */
+public final class Violation {
+
+    private final String directive;
+    private final String blockedUri;
+    private final String sourceFile;
+    private final String documentUri;
+    private final String disposition;
+
+    public Violation(String directive, String blockedUri, String sourceFile, String documentUri, String disposition) {
+        this.directive = directive;
+        this.blockedUri = blockedUri;
+        this.sourceFile = sourceFile;
+        this.documentUri = documentUri;
+        this.disposition = disposition;
+    }
+
+    public String getDirective() {
+        return directive;
+    }
+
+    public String getBlockedUri() {
+        return blockedUri;
+    }
+
+    public String getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * Page the first of the counted violations happened in.
+     */
+    public String getDocumentUri() {
+        return documentUri;
+    }
+
+    /**
+     * <code>enforce</code> or <code>report</code>, null when the browser does not tell.
+     */
+    public String getDisposition() {
+        return disposition;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Violation)) return false;
+        Violation other = (Violation) o;
+        return Objects.equals(directive, other.directive) && Objects.equals(blockedUri, other.blockedUri)
+                && Objects.equals(sourceFile, other.sourceFile);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(directive, blockedUri, sourceFile);
+    }
+
+    @Override
+    public String toString() {
+        return directive + " " + blockedUri + " " + sourceFile;
+    }
+
+}
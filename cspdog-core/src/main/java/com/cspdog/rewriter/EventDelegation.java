@@ -0,0 +1,277 @@
+package com.cspdog.rewriter;
+
+import com.cspdog.utils.HtmlEscapes;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+
+import static com.cspdog.utils.Constants.*;
+
+/**
+ * The nonced script binding externalized event handlers, in place of one hash per inline handler. Every handler
+ * becomes a function of a single table, and elements point at it with a marker, e.g.
+ * <code>onclick="go(1)"</code> becomes <code>data-cspdog-onclick="0"</code>. One listener per event type on the
+ * document walks from the target up the ancestors, as the event would have bubbled through the inline handlers,
+ * calling each with the element as <code>this</code> and the event as <code>event</code>, and with the element, its
+ * form and the document in its scope chain, as inline handlers have them. Only handlers of events
+ * which bubble are externalized, see {@link com.cspdog.utils.Constants#DELEGABLE_EVENT_TYPES}, one which does not,
+ * e.g. <code>load</code>, could fire before the script is run.
+ * <p>
+ * Only handlers whose brackets, strings and comments are balanced are externalized, see {@link #isDelegable(String)},
+ * so none can close its function and run as the page loads. Still, the table being a single script, a handler with
+ * any other syntax error, which inline would only have lost itself, keeps every other one from being bound.
+ * <p>
+ * Unlike inline handlers, these run once the event reaches the document, after the listeners of the elements.
+ */
+final class EventDelegation {
+
+    private static final String SCRIPT_OPENING = "<script>";
+    private static final String SCRIPT_NONCED_OPENING = "<script nonce=\"";
+    private static final String SCRIPT_NONCED_OPENING_CLOSURE = "\">";
+    private static final String SCRIPT_CLOSURE = "</script>";
+    private static final String TABLE_OPENING = "(function(){var h=[";
+    private static final String DISPATCH = "];function d(e){var a='"
+            + EXTERNALIZED_HANDLER_PREFIX + "'+e.type;for(var n=e.target;n&&n.getAttribute;n=n.parentNode){"
+            + "var i=n.getAttribute(a),f=i!==null&&h[i];if(f&&f.call(n,e)===false)e.preventDefault();if(e.cancelBubble)break;}}[";
+    private static final String LISTENERS = "].forEach(function(t){document.addEventListener(t,d);});})();";
+    // The scope chain of an inline handler, innermost last
+    private static final String HANDLER_OPENING = "function(event){with(document)with(this.form||{})with(this){";
+    // On its own line, so a trailing line comment in the handler does not swallow it
+    private static final String HANDLER_CLOSURE = "\n}}";
+    // Punctuators after which a slash starts a regular expression rather than a division
+    private static final String REGEX_PRECEDING = "(,=:[!&|?{;+-*%<>~^/";
+    // Neither yield nor await are keywords in the plain function a handler becomes
+    private static final Set<String> REGEX_PRECEDING_KEYWORDS = Set.of("return", "typeof", "instanceof", "in", "new", "delete", "void",
+            "throw", "case", "do", "else");
+    // Keywords in some places only, e.g. "for (a of /x/)" versus "of / 2"
+    private static final String CONTEXTUAL_KEYWORD = "of";
+    // Stands for the end of an operand, e.g. a name, a literal or a closing bracket, after which a slash divides
+    private static final char EXPRESSION_END = 'x';
+
+    private EventDelegation() {
+    }
+
+    /**
+     * Handlers are the attribute values, in marker order, event types the attribute names without <code>on</code>.
+     */
+    static String getScript(String nonce, List<String> handlers, Iterable<String> eventTypes) {
+        StringBuilder sb = new StringBuilder(256 + handlers.size() * 96);
+        appendScriptOpening(nonce, sb);
+        sb.append(TABLE_OPENING);
+        for (int i = 0; i < handlers.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(HANDLER_OPENING);
+            appendScriptText(HtmlEscapes.unescapeHtml4(handlers.get(i)), sb);
+            sb.append(HANDLER_CLOSURE);
+        }
+        sb.append(DISPATCH);
+        boolean first = true;
+        for (String eventType : eventTypes) {
+            if (!first) sb.append(',');
+            // Letters only, as event handler attribute names are
+            sb.append('\'').append(eventType).append('\'');
+            first = false;
+        }
+        return sb.append(LISTENERS).append(SCRIPT_CLOSURE).toString();
+    }
+
+    private static void appendScriptOpening(String nonce, StringBuilder sb) {
+        if (StringUtils.isBlank(nonce)) {
+            sb.append(SCRIPT_OPENING);
+        } else {
+            sb.append(SCRIPT_NONCED_OPENING).append(nonce).append(SCRIPT_NONCED_OPENING_CLOSURE);
+        }
+    }
+
+    /**
+     * Whether the handler, an attribute value, can be the body of a function of its own: every bracket is closed
+     * in order, and strings, template literals, comments and regular expressions are terminated. A slash the
+     * browser could read either as a division or as a regular expression, e.g. after a closing parenthesis or brace,
+     * rejects the handler, as do HTML-like comments, so none is read otherwise than the browser would.
+     */
+    static boolean isDelegable(String handler) {
+        String text = HtmlEscapes.unescapeHtml4(handler);
+        Deque<Character> brackets = new ArrayDeque<>();
+        // The last token as far as a slash is concerned: a punctuator, or EXPRESSION_END after an operand
+        char previous = '{';
+        int previousStart = 0;
+        // Before the last one, a property named after a keyword being an operand
+        char beforePrevious = '{';
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (text.startsWith(COMMENT_OPENING, i) || text.startsWith("-->", i)) return false;
+            if (Character.isWhitespace(c) || isLineTerminator(c)) {
+                i++;
+                continue;
+            }
+            int tokenStart = i;
+            char token = c;
+            switch (c) {
+                case '\'':
+                case '"':
+                    i = skipString(text, i, c);
+                    token = EXPRESSION_END;
+                    break;
+                case '`':
+                    i = skipTemplate(text, i + 1, brackets);
+                    if (i >= 0) token = text.charAt(i) == '{' ? '{' : EXPRESSION_END;
+                    break;
+                case '/':
+                    if (text.startsWith("//", i)) {
+                        i = skipLineComment(text, i);
+                        continue;
+                    } else if (text.startsWith("/*", i)) {
+                        int end = text.indexOf("*/", i + 2);
+                        if (end < 0) return false;
+                        i = end + 2;
+                        continue;
+                    } else if (previous == ')' || previous == '}' || previous == '+' && isIncrement(text, previousStart)
+                            || previous == '-' && isIncrement(text, previousStart)) {
+                        return false;
+                    } else if (REGEX_PRECEDING.indexOf(previous) >= 0) {
+                        i = skipRegex(text, i);
+                        token = EXPRESSION_END;
+                    } else if (previous == EXPRESSION_END && beforePrevious != '.') {
+                        String word = text.substring(previousStart, tokenStart).trim();
+                        if (word.equals(CONTEXTUAL_KEYWORD)) return false;
+                        if (REGEX_PRECEDING_KEYWORDS.contains(word)) {
+                            i = skipRegex(text, i);
+                            token = EXPRESSION_END;
+                        }
+                    }
+                    break;
+                case '(':
+                case '[':
+                case '{':
+                    brackets.push(c);
+                    break;
+                case ')':
+                case ']':
+                case '}':
+                    if (brackets.isEmpty()) return false;
+                    char opening = brackets.pop();
+                    if (opening == '$' && c == '}') {
+                        // The end of a template substitution, back into the template
+                        i = skipTemplate(text, i + 1, brackets);
+                        if (i >= 0) token = text.charAt(i) == '{' ? '{' : EXPRESSION_END;
+                    } else if (opening != (c == ')' ? '(' : c == ']' ? '[' : '{')) {
+                        return false;
+                    }
+                    break;
+                default:
+                    if (Character.isJavaIdentifierPart(c)) {
+                        // A name, a keyword or a number, read whole
+                        while (i + 1 < text.length() && (Character.isJavaIdentifierPart(text.charAt(i + 1)) || text.charAt(i + 1) == '.'
+                                && Character.isDigit(c))) {
+                            i++;
+                        }
+                        token = EXPRESSION_END;
+                    }
+                    break;
+            }
+            if (i < 0) return false;
+            beforePrevious = previous;
+            previous = token;
+            previousStart = tokenStart;
+            i++;
+        }
+        return brackets.isEmpty();
+    }
+
+    /**
+     * Offset of the closing quote, -1 if the string is not terminated on its line.
+     */
+    private static int skipString(String text, int start, char quote) {
+        for (int i = start + 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote) {
+                return i;
+            } else if (c == '\n' || c == '\r') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Offset of the closing backquote, or of the <code>{</code> of a substitution, pushed as <code>$</code> so its
+     * closing brace resumes the template. -1 if the template is not terminated.
+     */
+    private static int skipTemplate(String text, int start, Deque<Character> brackets) {
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '`') {
+                return i;
+            } else if (c == '$' && i + 1 < text.length() && text.charAt(i + 1) == '{') {
+                brackets.push('$');
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipLineComment(String text, int start) {
+        for (int i = start + 2; i < text.length(); i++) {
+            if (isLineTerminator(text.charAt(i))) return i;
+        }
+        return text.length();
+    }
+
+    /**
+     * Offset of the closing slash, -1 if the regular expression is not terminated on its line.
+     */
+    private static int skipRegex(String text, int start) {
+        boolean inClass = false;
+        for (int i = start + 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (isLineTerminator(c)) return -1;
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == ']') {
+                inClass = false;
+            } else if (c == '/' && !inClass) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether the <code>+</code> or <code>-</code> at <code>offset</code> ends a <code>++</code> or <code>--</code>,
+     * which may be postfix.
+     */
+    private static boolean isIncrement(String text, int offset) {
+        return offset > 0 && text.charAt(offset - 1) == text.charAt(offset);
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Appends the handler so that it cannot end the script element early, <code>&lt;/script</code> and
+     * <code>&lt;!--</code> being escaped the way they are inside script strings.
+     */
+    private static void appendScriptText(String handler, StringBuilder sb) {
+        int copied = 0;
+        for (int i = handler.indexOf('<'); i >= 0; i = handler.indexOf('<', i + 1)) {
+            if (handler.regionMatches(true, i, SCRIPT_CLOSURE, 0, SCRIPT_CLOSURE.length() - 1)
+                    || handler.startsWith(COMMENT_OPENING, i)) {
+                sb.append(handler, copied, i + 1).append('\\');
+                copied = i + 1;
+            }
+        }
+        sb.append(handler, copied, handler.length());
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.cspdog.rewriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lightweight, linear-time view over a single markup tag, e.g. <code>&lt;a href="#" onclick="sayHi();"&gt;</code>.
+ * It does not build any DOM, it only records the offsets of the tag name and its attributes so callers
+ * can read or splice them without running regular expressions over the tag.
+ */
+public final class HtmlTag {
+
+    private final String text;
+    private final String name;
+    private final boolean closing;
+    private final List<Attribute> attributes;
+
+    private HtmlTag(String text, String name, boolean closing, List<Attribute> attributes) {
+        this.text = text;
+        this.name = name;
+        this.closing = closing;
+        this.attributes = attributes;
+    }
+
+    /**
+     * Parses a complete tag, from the opening <code>&lt;</code> to the closing <code>&gt;</code> both included.
+     */
+    public static HtmlTag parse(String text) {
+        int length = text.length();
+        int i = 1;
+        boolean closing = i < length && text.charAt(i) == '/';
+        if (closing) i++;
+        int nameStart = i;
+        while (i < length && !isNameTerminator(text.charAt(i))) i++;
+        String name = text.substring(nameStart, i);
+        if (closing || name.startsWith("!") || name.startsWith("?")) {
+            return new HtmlTag(text, name, closing, Collections.emptyList());
+        }
+        List<Attribute> attributes = new ArrayList<>();
+        while (i < length) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c) || c == '/') {
+                i++;
+                continue;
+            }
+            if (c == '>') break;
+            int attributeNameStart = i;
+            while (i < length && !isNameTerminator(text.charAt(i)) && text.charAt(i) != '=') i++;
+            int attributeNameEnd = i;
+            int afterName = i;
+            while (i < length && Character.isWhitespace(text.charAt(i))) i++;
+            if (i >= length || text.charAt(i) != '=') {
+                // Valueless attribute, e.g. <script async>
+                attributes.add(new Attribute(text, attributeNameStart, attributeNameEnd, afterName, afterName, afterName, (char) 0));
+                i = afterName;
+                continue;
+            }
+            i++;
+            while (i < length && Character.isWhitespace(text.charAt(i))) i++;
+            char quote = i < length ? text.charAt(i) : 0;
+            if (quote == '"' || quote == '\'') {
+                int valueStart = i + 1;
+                int valueEnd = text.indexOf(quote, valueStart);
+                if (valueEnd < 0) {
+                    // Unterminated value, let it run up to the end of the tag
+                    valueEnd = Math.max(valueStart, length - 1);
+                    attributes.add(new Attribute(text, attributeNameStart, attributeNameEnd, valueStart, valueEnd, valueEnd, quote));
+                    break;
+                }
+                i = valueEnd + 1;
+                attributes.add(new Attribute(text, attributeNameStart, attributeNameEnd, valueStart, valueEnd, i, quote));
+            } else {
+                int valueStart = i;
+                while (i < length && !Character.isWhitespace(text.charAt(i)) && text.charAt(i) != '>') i++;
+                attributes.add(new Attribute(text, attributeNameStart, attributeNameEnd, valueStart, i, i, (char) 0));
+            }
+        }
+        return new HtmlTag(text, name, false, attributes);
+    }
+
+    private static boolean isNameTerminator(char c) {
+        return Character.isWhitespace(c) || c == '>' || c == '/';
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isClosing() {
+        return closing;
+    }
+
+    public boolean isSelfClosing() {
+        return text.length() > 1 && text.charAt(text.length() - 2) == '/';
+    }
+
+    public boolean isNamed(String tagName) {
+        return name.equalsIgnoreCase(tagName);
+    }
+
+    public List<Attribute> getAttributes() {
+        return attributes;
+    }
+
+    public Attribute getAttribute(String attributeName) {
+        for (Attribute attribute : attributes) {
+            if (attribute.isNamed(attributeName)) return attribute;
+        }
+        return null;
+    }
+
+    public boolean hasAttribute(String attributeName) {
+        return getAttribute(attributeName) != null;
+    }
+
+    /**
+     * A single attribute inside a tag. Offsets are relative to the tag text, <code>end</code> points right after
+     * the closing quote (if any), so <code>[nameStart, end)</code> spans the whole <code>name="value"</code> segment.
+     */
+    public static final class Attribute {
+
+        private final String tagText;
+        public final int nameStart;
+        public final int nameEnd;
+        public final int valueStart;
+        public final int valueEnd;
+        public final int end;
+        public final char quote;
+
+        Attribute(String tagText, int nameStart, int nameEnd, int valueStart, int valueEnd, int end, char quote) {
+            this.tagText = tagText;
+            this.nameStart = nameStart;
+            this.nameEnd = nameEnd;
+            this.valueStart = valueStart;
+            this.valueEnd = valueEnd;
+            this.end = end;
+            this.quote = quote;
+        }
+
+        public String getName() {
+            return tagText.substring(nameStart, nameEnd);
+        }
+
+        public String getValue() {
+            return tagText.substring(valueStart, valueEnd);
+        }
+
+        public boolean isQuoted() {
+            return quote != 0;
+        }
+
+        public boolean isNamed(String attributeName) {
+            return nameEnd - nameStart == attributeName.length()
+                    && tagText.regionMatches(true, nameStart, attributeName, 0, attributeName.length());
+        }
+
+        /**
+         * Inline event handler attributes, e.g. onclick, onblur, onmouseover...
+         */
+        public boolean isEventHandler() {
+            int length = nameEnd - nameStart;
+            if (length < 3 || !tagText.regionMatches(true, nameStart, "on", 0, 2)) return false;
+            for (int i = nameStart + 2; i < nameEnd; i++) {
+                char c = tagText.charAt(i);
+                if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))) return false;
+            }
+            return true;
+        }
+
+        public boolean valueStartsWithIgnoreCase(String prefix) {
+            return valueEnd - valueStart >= prefix.length()
+                    && tagText.regionMatches(true, valueStart, prefix, 0, prefix.length());
+        }
+    }
+
+}
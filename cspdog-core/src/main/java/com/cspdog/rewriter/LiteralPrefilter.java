@@ -0,0 +1,152 @@
+package com.cspdog.rewriter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Multi-literal (Aho-Corasick) search for everything {@link ResponseAnalysis} can act upon: the openings of tags to
+ * nonce, and the literals any attribute to rewrite or hash holds. A single pass over the body, one table lookup per
+ * char, case-insensitive. Whitespace, <code>/</code> and quotes, the characters an attribute name can follow, all read
+ * as a space, so <code>" on"</code> matches every event handler whatever comes before it.
+ */
+final class LiteralPrefilter {
+
+    private static final String[] TAG_OPENINGS = {"<script", "<style"};
+    // The analysis flags partial responses out of their root tag too
+    private static final String[] ATTRIBUTE_LITERALS = {" on", " style", "javascript:", "partial-response"};
+    private static final int OTHER = 128;
+    private static final int SYMBOLS = OTHER + 1;
+    private static final char[] SYMBOL_OF = new char[OTHER];
+
+    // Complete transition table, state * SYMBOLS + symbol, failure links already followed
+    private static final int[] transitions;
+    // Per state, the length of the tag opening it ends, or 0, and whether it ends an attribute literal
+    private static final int[] tagOpeningLengths;
+    private static final boolean[] attributeLiteralEnds;
+
+    static {
+        for (char c = 0; c < OTHER; c++) {
+            SYMBOL_OF[c] = Character.isWhitespace(c) || c == '/' || c == '"' || c == '\'' ? ' ' : Character.toLowerCase(c);
+        }
+        List<int[]> trie = new ArrayList<>();
+        List<Integer> tagLengths = new ArrayList<>();
+        List<Boolean> attributeEnds = new ArrayList<>();
+        trie.add(newState());
+        tagLengths.add(0);
+        attributeEnds.add(false);
+        for (String literal : concat(TAG_OPENINGS, ATTRIBUTE_LITERALS)) {
+            int state = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                int symbol = literal.charAt(i);
+                if (trie.get(state)[symbol] < 0) {
+                    trie.get(state)[symbol] = trie.size();
+                    trie.add(newState());
+                    tagLengths.add(0);
+                    attributeEnds.add(false);
+                }
+                state = trie.get(state)[symbol];
+            }
+            if (Arrays.asList(TAG_OPENINGS).contains(literal)) tagLengths.set(state, literal.length());
+            else attributeEnds.set(state, true);
+        }
+        int stateCount = trie.size();
+        transitions = new int[stateCount * SYMBOLS];
+        tagOpeningLengths = new int[stateCount];
+        attributeLiteralEnds = new boolean[stateCount];
+        int[] failures = new int[stateCount];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int symbol = 0; symbol < SYMBOLS; symbol++) {
+            int next = trie.get(0)[symbol];
+            transitions[symbol] = Math.max(next, 0);
+            if (next > 0) queue.add(next);
+        }
+        // Breadth first, so the failure state of every state is complete by the time it is reached
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            tagOpeningLengths[state] = tagLengths.get(state);
+            attributeLiteralEnds[state] = attributeEnds.get(state) || attributeLiteralEnds[failures[state]];
+            for (int symbol = 0; symbol < SYMBOLS; symbol++) {
+                int next = trie.get(state)[symbol];
+                if (next < 0) {
+                    transitions[state * SYMBOLS + symbol] = transitions[failures[state] * SYMBOLS + symbol];
+                } else {
+                    failures[next] = transitions[failures[state] * SYMBOLS + symbol];
+                    transitions[state * SYMBOLS + symbol] = next;
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    private LiteralPrefilter() {
+    }
+
+    static Matches find(String html) {
+        Matches matches = new Matches();
+        int state = 0;
+        for (int i = 0, length = html.length(); i < length; i++) {
+            char c = html.charAt(i);
+            int symbol = c < OTHER ? SYMBOL_OF[c] : Character.isWhitespace(c) ? ' ' : OTHER;
+            state = transitions[state * SYMBOLS + symbol];
+            if (state == 0) continue;
+            // No tag opening is the suffix of another literal, only its own state ends it
+            if (tagOpeningLengths[state] > 0) matches.tagOpenings = add(matches.tagOpenings, matches.tagOpeningCount++, i - tagOpeningLengths[state] + 1);
+            if (attributeLiteralEnds[state]) matches.attributeLiterals = add(matches.attributeLiterals, matches.attributeLiteralCount++, i);
+        }
+        return matches;
+    }
+
+    private static int[] newState() {
+        int[] state = new int[SYMBOLS];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] all = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        return all;
+    }
+
+    private static int[] add(int[] offsets, int count, int offset) {
+        if (count == offsets.length) offsets = Arrays.copyOf(offsets, Math.max(8, count * 2));
+        offsets[count] = offset;
+        return offsets;
+    }
+
+    /**
+     * Offsets of the matches, in body order: where each tag opening starts, and where each attribute literal ends.
+     * Attribute literals hold no <code>&lt;</code>, so one ending inside a tag lies entirely inside it.
+     */
+    static final class Matches {
+
+        private int[] tagOpenings = new int[0];
+        private int tagOpeningCount;
+        private int[] attributeLiterals = new int[0];
+        private int attributeLiteralCount;
+
+        boolean isEmpty() {
+            return tagOpeningCount == 0 && attributeLiteralCount == 0;
+        }
+
+        int getTagOpeningCount() {
+            return tagOpeningCount;
+        }
+
+        int getTagOpening(int index) {
+            return tagOpenings[index];
+        }
+
+        int getAttributeLiteralCount() {
+            return attributeLiteralCount;
+        }
+
+        int getAttributeLiteralEnd(int index) {
+            return attributeLiterals[index];
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package com.cspdog.rewriter;
+
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.nonce.ThreadLocalNonceProvider;
+import com.cspdog.utils.HtmlEscapes;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.cspdog.utils.Constants.*;
+
+/**
+ * Moves the inline styles of JSF <code>partial-response</code> updates into a nonced <code>&lt;style&gt;</code> block,
+ * in a single pass over the response and without building any DOM: every CDATA block is scanned tag by tag, tags with
+ * a <code>style</code> attribute get it replaced by a generated class, and the block of classes is inserted right
+ * before the first of them. Everything else is copied through untouched.
+ * <p>
+ * With content-addressed style classes, a class is named after a hash of its declaration, so identical styles share
+ * a single rule within an update and the browser sees the same rules from one update to the next. The style block
+ * then goes inside the root element of the update, so replacing that element on the next update drops the former
+ * block, rather than piling up one more block per update next to it.
+ */
+final class PartialResponseStyleExtractor {
+
+    private PartialResponseStyleExtractor() {
+    }
+
+    /**
+     * Returns the very same instance when there is nothing to move.
+     */
+    static String process(String partialResponse, String nonce) {
+        boolean contentAddressed = CSPConfigurationHolder.getConfiguration().isContentAddressedStyleClasses();
+        StringBuilder sb = null;
+        int copied = 0;
+        int blockStart = partialResponse.indexOf(CDATA_OPENING);
+        while (blockStart >= 0) {
+            int contentStart = blockStart + CDATA_OPENING.length();
+            int contentEnd = partialResponse.indexOf(CDATA_CLOSING, contentStart);
+            if (contentEnd < 0) break;
+            int firstStylishTag = findStylishTag(partialResponse, contentStart, contentEnd);
+            if (firstStylishTag >= 0) {
+                if (sb == null) sb = new StringBuilder(partialResponse.length() + 256);
+                sb.append(partialResponse, copied, firstStylishTag);
+                int rootTagEnd = contentAddressed ? findRootTagEnd(partialResponse, contentStart, firstStylishTag, contentEnd) : -1;
+                extractStyles(partialResponse, firstStylishTag, contentEnd, nonce, contentAddressed, rootTagEnd, sb);
+                copied = contentEnd;
+            }
+            blockStart = partialResponse.indexOf(CDATA_OPENING, contentEnd + CDATA_CLOSING.length());
+        }
+        if (sb == null) return partialResponse;
+        sb.append(partialResponse, copied, partialResponse.length());
+        return sb.toString();
+    }
+
+    /**
+     * Rewrites <code>[start, end)</code>, which starts at a tag with a style attribute, into <code>sb</code>.
+     * The style block goes right after <code>rootTagEnd</code> if set, where the first stylish tag was otherwise.
+     */
+    private static void extractStyles(String text, int start, int end, String nonce, boolean contentAddressed, int rootTagEnd, StringBuilder sb) {
+        // Inserted once all the classes are known, -1 while the root tag, being the first stylish one, is not written yet
+        int styleBlockPosition = rootTagEnd < 0 ? sb.length() : rootTagEnd <= start ? sb.length() - (start - rootTagEnd) : -1;
+        Set<String> classNames = contentAddressed ? new HashSet<>() : null;
+        StringBuilder styles = new StringBuilder(STYLE_BLOCK_OPENING_NONCED).append(nonce).append(STYLE_BLOCK_OPENING_CLOSURE);
+        int copied = start;
+        int tagStart = start;
+        while (tagStart >= 0) {
+            int tagEnd = findTagEnd(text, tagStart, end);
+            HtmlTag tag = HtmlTag.parse(text.substring(tagStart, tagEnd));
+            HtmlTag.Attribute style = tag.getAttribute(STYLE);
+            if (style != null) {
+                sb.append(text, copied, tagStart);
+                String declaration = toStyleText(style.getValue());
+                String className = contentAddressed ? getContentAddressedClassName(declaration) : CSPDOG_STYLE_PREFIX + Math.abs(ThreadLocalNonceProvider.nextLong());
+                if (classNames == null || classNames.add(className)) {
+                    styles.append(DOT).append(className)
+                            .append(OPENING_CURLY_BRACE)
+                            .append(declaration)
+                            .append(CLOSING_CURLY_BRACE);
+                }
+                appendWithClassInsteadOfStyle(tag, style, className, sb);
+                if (styleBlockPosition < 0) styleBlockPosition = sb.length();
+                copied = tagEnd;
+            }
+            tagStart = findStylishTag(text, tagEnd, end);
+        }
+        sb.append(text, copied, end);
+        styles.append(STYLE_CLOSURE);
+        sb.insert(styleBlockPosition, styles);
+    }
+
+    /**
+     * <code>cspdog-style-</code> followed by a 64-bit FNV-1a hash of the declaration, in base 36.
+     */
+    static String getContentAddressedClassName(String declaration) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < declaration.length(); i++) {
+            hash ^= declaration.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return CSPDOG_STYLE_PREFIX + Long.toUnsignedString(hash, 36);
+    }
+
+    /**
+     * End of the opening tag of the element the update starts with, provided it comes no later than the first
+     * stylish tag and can hold a style element, -1 otherwise.
+     */
+    private static int findRootTagEnd(String text, int contentStart, int firstStylishTag, int end) {
+        int i = contentStart;
+        while (i < firstStylishTag) {
+            if (Character.isWhitespace(text.charAt(i))) {
+                i++;
+            } else if (text.startsWith(COMMENT_OPENING, i)) {
+                int commentEnd = text.indexOf(COMMENT_CLOSING, i + COMMENT_OPENING.length());
+                if (commentEnd < 0) return -1;
+                i = commentEnd + COMMENT_CLOSING.length();
+            } else {
+                break;
+            }
+        }
+        if (i > firstStylishTag || text.charAt(i) != '<' || !Character.isLetter(text.charAt(i + 1))) return -1;
+        int tagEnd = findTagEnd(text, i, end);
+        if (tagEnd > end) return -1;
+        HtmlTag root = HtmlTag.parse(text.substring(i, tagEnd));
+        String name = root.getName().toLowerCase();
+        if (root.isSelfClosing() || VOID_ELEMENTS.contains(name) || RAW_TEXT_ELEMENTS.contains(name)) return -1;
+        return tagEnd;
+    }
+
+    private static void appendWithClassInsteadOfStyle(HtmlTag tag, HtmlTag.Attribute style, String className, StringBuilder sb) {
+        String text = tag.getText();
+        HtmlTag.Attribute classAttribute = tag.getAttribute(CLASS);
+        // Whitespace ahead of the style attribute goes along with it
+        int styleStart = style.nameStart;
+        while (styleStart > 0 && Character.isWhitespace(text.charAt(styleStart - 1))) styleStart--;
+        if (classAttribute == null) {
+            // Added as the last attribute
+            int insertion = style.end;
+            for (HtmlTag.Attribute attribute : tag.getAttributes()) {
+                insertion = Math.max(insertion, attribute.end);
+            }
+            appendWithout(text, 0, insertion, styleStart, style.end, sb);
+            sb.append(BLANK_SPACE).append(CLASS).append(OPENING_EQUALS).append(className).append(DOUBLE_QUOTES);
+            appendWithout(text, insertion, text.length(), styleStart, style.end, sb);
+            return;
+        }
+        String classes = classAttribute.getValue().trim();
+        String newClasses = classes.isEmpty() ? className : classes + BLANK_SPACE + className;
+        int valueStart = classAttribute.isQuoted() ? classAttribute.valueStart : classAttribute.nameStart;
+        int valueEnd = classAttribute.isQuoted() ? classAttribute.valueEnd : classAttribute.end;
+        appendWithout(text, 0, valueStart, styleStart, style.end, sb);
+        if (classAttribute.isQuoted()) {
+            sb.append(newClasses);
+        } else {
+            sb.append(CLASS).append(OPENING_EQUALS).append(newClasses).append(DOUBLE_QUOTES);
+        }
+        appendWithout(text, valueEnd, text.length(), styleStart, style.end, sb);
+    }
+
+    /**
+     * Appends <code>[from, to)</code> of the text leaving out whatever overlaps <code>[skipFrom, skipTo)</code>.
+     */
+    private static void appendWithout(String text, int from, int to, int skipFrom, int skipTo, StringBuilder sb) {
+        if (to <= skipFrom || from >= skipTo) {
+            sb.append(text, from, to);
+            return;
+        }
+        if (from < skipFrom) sb.append(text, from, skipFrom);
+        if (to > skipTo) sb.append(text, skipTo, to);
+    }
+
+    /**
+     * The attribute value as it reads once unescaped, escaped back as element text.
+     */
+    private static String toStyleText(String attributeValue) {
+        String value = attributeValue.indexOf('&') < 0 ? attributeValue : HtmlEscapes.unescapeHtml4(attributeValue);
+        if (value.indexOf('&') < 0 && value.indexOf('<') < 0 && value.indexOf('>') < 0) return value;
+        StringBuilder sb = new StringBuilder(value.length() + 16);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Start of the next opening tag in <code>[from, end)</code> carrying a style attribute, or -1.
+     * Comments are skipped, as their content is not markup.
+     */
+    private static int findStylishTag(String text, int from, int end) {
+        int i = from;
+        while (true) {
+            int tagStart = text.indexOf('<', i);
+            if (tagStart < 0 || tagStart + 1 >= end) return -1;
+            char next = text.charAt(tagStart + 1);
+            if (next == '!' && text.startsWith(COMMENT_OPENING, tagStart)) {
+                int commentEnd = text.indexOf(COMMENT_CLOSING, tagStart + COMMENT_OPENING.length());
+                if (commentEnd < 0 || commentEnd >= end) return -1;
+                i = commentEnd + COMMENT_CLOSING.length();
+                continue;
+            }
+            if (!Character.isLetter(next)) {
+                i = tagStart + 1;
+                continue;
+            }
+            int tagEnd = findTagEnd(text, tagStart, end);
+            if (tagEnd > end) return -1;
+            if (hasStyleAttribute(text, tagStart, tagEnd)) return tagStart;
+            i = tagEnd;
+        }
+    }
+
+    private static boolean hasStyleAttribute(String text, int tagStart, int tagEnd) {
+        for (int i = tagStart + 1; i + STYLE.length() < tagEnd; i++) {
+            if (Character.isWhitespace(text.charAt(i - 1)) && text.regionMatches(true, i, STYLE, 0, STYLE.length())) {
+                return HtmlTag.parse(text.substring(tagStart, tagEnd)).hasAttribute(STYLE);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Index right after the <code>&gt;</code> closing the tag starting at <code>tagStart</code>, quoted values
+     * included, or <code>end + 1</code> if it is not closed before <code>end</code>.
+     */
+    private static int findTagEnd(String text, int tagStart, int end) {
+        char quote = 0;
+        boolean afterEquals = false;
+        for (int i = tagStart + 1; i < end; i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+                continue;
+            }
+            if ((c == '"' || c == '\'') && afterEquals) {
+                quote = c;
+            } else if (c == '>') {
+                return i + 1;
+            }
+            if (!Character.isWhitespace(c)) afterEquals = c == '=';
+        }
+        return end + 1;
+    }
+
+}
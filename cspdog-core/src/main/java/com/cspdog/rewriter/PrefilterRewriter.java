@@ -0,0 +1,27 @@
+package com.cspdog.rewriter;
+
+import com.cspdog.metrics.FilterMetrics;
+
+/**
+ * {@link RegexRewriter} behind a {@link LiteralPrefilter}, for bodies with little or nothing to rewrite. One
+ * multi-literal pass finds where tags to nonce and attributes to rewrite or hash can be: bodies with none are handed
+ * back untouched, and otherwise only the tags around the matches are parsed. Same output as {@link RegexRewriter}.
+ */
+public class PrefilterRewriter extends RegexRewriter {
+
+    public static final String NAME = "prefilter";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public ResponseAnalysis analyze(String regularHTMLResponse, boolean externalizeEventHandlers) {
+        if (regularHTMLResponse == null) return ResponseAnalysis.analyze(null, externalizeEventHandlers);
+        LiteralPrefilter.Matches matches = LiteralPrefilter.find(regularHTMLResponse);
+        if (matches.isEmpty()) FilterMetrics.prefilterSkip();
+        return ResponseAnalysis.analyze(regularHTMLResponse, externalizeEventHandlers, matches);
+    }
+
+}
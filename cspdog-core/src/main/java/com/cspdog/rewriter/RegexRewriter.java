@@ -1,16 +1,10 @@
 package com.cspdog.rewriter;
 
 import org.apache.commons.lang3.StringUtils;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.parser.Parser;
-import org.jsoup.select.Elements;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
 import static com.cspdog.utils.Constants.*;
 
@@ -19,8 +13,26 @@ public class RegexRewriter implements Rewriter {
     private static final Logger logger = LoggerFactory.getLogger(
             RegexRewriter.class);
 
+    public static final String NAME = DEFAULT_REWRITE_ENGINE;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
     public String getCSPedResponseBody(String regularHTMLResponse, String nonce) {
-        return processPartialResponses(injectNonce(processHREFJavascript(regularHTMLResponse), nonce), nonce);
+        return getCSPedResponseBody(regularHTMLResponse, nonce, analyze(regularHTMLResponse, false));
+    }
+
+    /**
+     * Rewrites the body out of its analysis, in a single copy: <code>javascript:</code> URLs and nonces are spliced
+     * in as the body is copied. JSF partial responses with inline styles get them moved afterwards.
+     */
+    @Override
+    public String getCSPedResponseBody(String regularHTMLResponse, String nonce, ResponseAnalysis analysis) {
+        if (StringUtils.isEmpty(regularHTMLResponse)) return regularHTMLResponse;
+        String rewrittenResponse = applyEdits(regularHTMLResponse, nonce, analysis);
+        return processPartialResponses(rewrittenResponse, nonce, analysis);
     }
 
     @Override
@@ -32,24 +44,56 @@ public class RegexRewriter implements Rewriter {
         logger.trace("injectNonce(): Pre-CSP-Processing HTML output {}", preNonceResponse);
         logger.debug("injectNonce(): inserting nonce {} in response", nonce);
         final String nonceSegment = NONCE_OPENING + nonce + CLOSING_QUOTE_SPACED;
-        Matcher patternMatcher = NONCE_PATTERN.matcher(preNonceResponse);
-        StringBuilder sb = new StringBuilder();
-        while (patternMatcher.find()) {
-            patternMatcher.appendReplacement(sb, addNoncesToScriptBlocks(patternMatcher.group(), nonceSegment));
-        }
-        patternMatcher.appendTail(sb);
-
-        String noncedResponse = sb.toString();
+        // Linear-time scan, whatever unterminated tags the response holds
+        String noncedResponse = TagScanner.injectNonce(preNonceResponse, nonceSegment);
         logger.debug("injectNonce(): nonce {} inserted in response", nonce);
         return noncedResponse;
     }
 
-    private static String addNoncesToScriptBlocks(String unNoncedScriptTag, String nonce) {
-        if (noProcessingNeeded(unNoncedScriptTag, nonce)) {
-            return unNoncedScriptTag;
+    private static String applyEdits(String html, String nonce, ResponseAnalysis analysis) {
+        List<ResponseAnalysis.AttributeRewrite> attributeRewrites = analysis.getAttributeRewrites();
+        boolean noncing = !noProcessingNeeded(html, nonce);
+        int nonceOffsetCount = noncing ? analysis.getNonceOffsetCount() : 0;
+        // Binds the handlers the markers replaced
+        String delegationScript = analysis.hasExternalizedHandlers()
+                ? EventDelegation.getScript(noncing ? nonce : null, analysis.getExternalizedHandlers(), analysis.getExternalizedEventTypes())
+                : null;
+        if (attributeRewrites.isEmpty() && nonceOffsetCount == 0 && delegationScript == null) return html;
+        logger.trace("applyEdits(): Pre-CSP-Processing HTML output {}", html);
+        String nonceSegment = noncing ? NONCE_OPENING + nonce + CLOSING_QUOTE_SPACED : null;
+        StringBuilder sb = new StringBuilder(html.length() + nonceOffsetCount * (nonceSegment == null ? 0 : nonceSegment.length())
+                + attributeRewrites.size() * 16 + (delegationScript == null ? 0 : delegationScript.length()));
+        int delegationScriptOffset = delegationScript == null ? Integer.MAX_VALUE : analysis.getDelegationScriptOffset();
+        int copied = 0;
+        int nextURL = 0;
+        int nextNonce = 0;
+        // All edits are in body order, merged as they are copied
+        while (nextURL < attributeRewrites.size() || nextNonce < nonceOffsetCount || delegationScript != null) {
+            ResponseAnalysis.AttributeRewrite url = nextURL < attributeRewrites.size() ? attributeRewrites.get(nextURL) : null;
+            int nonceOffset = nextNonce < nonceOffsetCount ? analysis.getNonceOffset(nextNonce) : Integer.MAX_VALUE;
+            if (delegationScript != null && delegationScriptOffset <= nonceOffset && (url == null || delegationScriptOffset <= url.start)) {
+                if (delegationScriptOffset >= copied) {
+                    sb.append(html, copied, delegationScriptOffset);
+                    copied = delegationScriptOffset;
+                }
+                sb.append(delegationScript);
+                delegationScript = null;
+            } else if (url != null && url.start <= nonceOffset) {
+                sb.append(html, copied, url.start).append(url.replacement);
+                copied = url.end;
+                nextURL++;
+            } else {
+                // A tag to nonce found inside a rewritten URL is gone along with it
+                if (nonceOffset >= copied) {
+                    sb.append(html, copied, nonceOffset).append(nonceSegment);
+                    copied = nonceOffset;
+                }
+                nextNonce++;
+            }
         }
-        // Optimized into a StringBuilder by the JVM
-        return unNoncedScriptTag.substring(0, unNoncedScriptTag.length() - 1) + nonce + unNoncedScriptTag.charAt(unNoncedScriptTag.length() - 1);
+        sb.append(html, copied, html.length());
+        logger.debug("applyEdits(): {} attributes rewritten, nonce {} inserted {} times", attributeRewrites.size(), nonce, nonceOffsetCount);
+        return sb.toString();
     }
 
     private static boolean noProcessingNeeded(String tag, String nonce) {
@@ -57,96 +101,32 @@ public class RegexRewriter implements Rewriter {
         return StringUtils.isBlank(tag) || StringUtils.isBlank(nonce);
     }
 
-    private static String processHREFJavascript(String preCSPResponse) {
-        String processedResponse = HREF_JAVASCRIPT_PATTERN.matcher(preCSPResponse).replaceAll(matchResult -> {
-            String doubleQuotedInvocation = matchResult.group(1);
-            String singleQuotedInvocation = matchResult.group(2);
-
-            if (StringUtils.isNotBlank(doubleQuotedInvocation)) {
-                // href="javascript:alert('Hello');" -> onclick="alert('Hello')"
-                return transformHREFIntoOnclickEventHandler(doubleQuotedInvocation);
-            }
-            if (StringUtils.isNotBlank(singleQuotedInvocation)) {
-                // href='javascript:alert("Hello");' -> onclick="alert('Hello')"
-                return transformHREFIntoOnclickEventHandler(singleQuotedInvocation.replaceAll(DOUBLE_QUOTES, SINGLE_QUOTE));
-            }
-            // href="javascript:" -> href="#"
-            return transformHREFIntoOnclickEventHandler(null);
-        });
-        return processedResponse.replaceAll(SRC_JAVASCRIPT_FALSE_REGEX, SRC_ABOUT_BLANK);
-    }
-
-    private static String transformHREFIntoOnclickEventHandler(String scriptContent) {
+    static String transformHREFIntoOnclickEventHandler(String scriptContent) {
         if (StringUtils.isBlank(scriptContent) || VOID0_PATTERN.matcher(scriptContent).matches()) return HREF_ANCHOR;
         return new StringBuilder(HREF_ANCHOR).append(BLANK_SPACE).append(ONCLICK).append(OPENING_EQUALS).append(scriptContent).append(DOUBLE_QUOTES).toString();
     }
 
 
-    private static String processPartialResponses(String htmlOutput, String nonce) {
-        if (StringUtils.isBlank(htmlOutput) || StringUtils.isBlank(nonce)) {
-            return htmlOutput;
-        }
-        if (!INLINED_STYLE_PATTERN.matcher(htmlOutput).find()) {
+    /**
+     * For bodies rewritten without an analysis, e.g. by the streaming rewriter.
+     */
+    static String processPartialResponses(String htmlOutput, String nonce) {
+        if (StringUtils.isBlank(htmlOutput) || StringUtils.isBlank(nonce) || !htmlOutput.contains(PARTIAL_RESPONSE_ATTRIBUTE)) {
             return htmlOutput;
         }
-        if (htmlOutput.contains(PARTIAL_RESPONSE_ATTRIBUTE)) {
-            return processPartialResponseStyles(htmlOutput, nonce);
-        }
-        return htmlOutput;
+        return processPartialResponses(htmlOutput, nonce, ResponseAnalysis.analyze(htmlOutput));
     }
 
-    private static String processPartialResponseStyles(String htmlOutput, String nonce) {
-        // The regex pattern for extracting CDATA content
-        Pattern pattern = Pattern.compile(CDATA_BLOCK_REGEX);
-
-        // The Matcher object to find all occurrences
-        Matcher matcher = pattern.matcher(htmlOutput);
-        StringBuffer resultBuffer = new StringBuffer();
-
-        while (matcher.find()) {
-            // group(1) contains the content of the first capturing group
-            String cdataContent = matcher.group(1);
-            String allClassyNodes = processBlocksWithInlineStyles(cdataContent, nonce);
-            String replacement = CDATA_OPENING + allClassyNodes + CDATA_CLOSING;
-            matcher.appendReplacement(resultBuffer, Matcher.quoteReplacement(replacement));
-        }
-        matcher.appendTail(resultBuffer);
-        return resultBuffer.toString();
-    }
-
-    private static String processBlocksWithInlineStyles(String htmlBlock, String nonce) {
-        StringBuilder sb = new StringBuilder(STYLE_BLOCK_OPENING_NONCED + nonce + STYLE_BLOCK_OPENING_CLOSURE);
-        Document content = Jsoup.parse(htmlBlock, EMPTY_CHAR, Parser.xmlParser());
-        Elements allStylishNodes = content.select(STYLE_DOM_SELECTOR);
-        if (allStylishNodes.isEmpty()) {
-            logger.debug("processBlocksWithInlineStyles(): no style found, returning HTML as-is, avoiding JSoup processing");
-            return htmlBlock;
-        }
-        int i = 0;
-        Element firstStylishNode = null;
-        for (Element stylishNode : allStylishNodes) {
-            // Transform nodes with inlined styles
-            if (i == 0) firstStylishNode = stylishNode;
-            transformNodeWithInlineStyle(stylishNode, sb);
-            // Prepending them, to be available ahead
-            // of browser evaluation of upcoming nodes
-            if (i == allStylishNodes.size() - 1) {
-                sb.append(STYLE_CLOSURE);
-                firstStylishNode.before(sb.toString());
-            }
-            i++;
+    static String processPartialResponses(String htmlOutput, String nonce, ResponseAnalysis analysis) {
+        if (StringUtils.isBlank(htmlOutput) || StringUtils.isBlank(nonce) || !analysis.hasExtractableStyles()) {
+            return htmlOutput;
         }
-        return content.html();
+        analysis.stylesExtracted();
+        return processPartialResponseStyles(htmlOutput, nonce);
     }
 
-    private static void transformNodeWithInlineStyle(Element stylishNode, StringBuilder sb) {
-        String newCSSClassName = CSPDOG_STYLE_PREFIX + Math.abs(random.nextLong());
-        sb.append(DOT).append(newCSSClassName)
-                .append(OPENING_CURLY_BRACE)
-                .append(stylishNode.attr(STYLE))
-                .append(CLOSING_CURLY_BRACE);
-        stylishNode.removeAttr(STYLE);
-        stylishNode.addClass(newCSSClassName);
+    private static String processPartialResponseStyles(String htmlOutput, String nonce) {
+        return PartialResponseStyleExtractor.process(htmlOutput, nonce);
     }
 
 }
@@ -0,0 +1,274 @@
+package com.cspdog.rewriter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static com.cspdog.utils.Constants.*;
+
+/**
+ * Everything the rewriter and the header builder need to know about a body, gathered in a single tokenizer pass:
+ * the script and style tags to nonce, the <code>javascript:</code> URLs to rewrite, and the inline event handlers
+ * and styles to hash. Handlers and styles are the ones of the body once rewritten, <code>javascript:</code> URLs
+ * turned into handlers included, so the headers do not need another scan of the rewritten body.
+ * <p>
+ * When externalizing event handlers, handlers are replaced with markers instead, to be bound by
+ * {@link EventDelegation}, and are not hashed. Handlers of JSF partial responses, which cannot carry a script, window
+ * handlers of <code>&lt;body&gt;</code>, handlers of events which do not bubble, e.g. the <code>onload</code> of an
+ * image which may load before the delegation script runs, and handlers which are not a function body on their own,
+ * e.g. with an unbalanced brace, stay inline.
+ */
+public final class ResponseAnalysis {
+
+    private final String html;
+    private final boolean externalizeEventHandlers;
+    // Offsets of the '>' closing each tag to nonce, in order
+    private int[] nonceOffsets = new int[8];
+    private int nonceOffsetCount;
+    private final List<AttributeRewrite> attributeRewrites = new ArrayList<>();
+    private final Set<String> eventHandlers = new LinkedHashSet<>();
+    // Styles inside CDATA blocks are moved out of partial responses, the others stay
+    private final Set<String> inlinedStyles = new LinkedHashSet<>();
+    private final Set<String> cdataInlinedStyles = new LinkedHashSet<>();
+    private boolean partialResponse;
+    private boolean stylesExtracted;
+    // Externalized handler -> marker, and the event types they handle
+    private final Map<String, Integer> externalizedHandlers = new LinkedHashMap<>();
+    private final Set<String> externalizedEventTypes = new LinkedHashSet<>();
+    private int bodyClosingTagOffset = -1;
+
+    private ResponseAnalysis(String html, boolean externalizeEventHandlers) {
+        this.html = html;
+        this.externalizeEventHandlers = externalizeEventHandlers;
+    }
+
+    public static ResponseAnalysis analyze(String html) {
+        return analyze(html, false);
+    }
+
+    public static ResponseAnalysis analyze(String html, boolean externalizeEventHandlers) {
+        ResponseAnalysis analysis = new ResponseAnalysis(html, externalizeEventHandlers);
+        if (html != null) analysis.scan(null);
+        return analysis;
+    }
+
+    /**
+     * The same analysis, out of the matches of the literal prefilter: only tags holding an attribute literal are
+     * parsed, and tags to nonce are only looked for at the matched openings. No match, no scan at all.
+     */
+    static ResponseAnalysis analyze(String html, boolean externalizeEventHandlers, LiteralPrefilter.Matches matches) {
+        ResponseAnalysis analysis = new ResponseAnalysis(html, externalizeEventHandlers);
+        if (html != null && !matches.isEmpty()) analysis.scan(matches);
+        return analysis;
+    }
+
+    private void scan(LiteralPrefilter.Matches matches) {
+        TagScanner scanner = new TagScanner(html);
+        if (matches != null) {
+            for (int m = 0; m < matches.getTagOpeningCount(); m++) {
+                int nonceOffset = scanner.findNonceOffset(matches.getTagOpening(m));
+                if (nonceOffset >= 0) addNonceOffset(nonceOffset);
+            }
+            // No attribute to rewrite or hash, where the closing body tag is does not matter either
+            if (matches.getAttributeLiteralCount() == 0) return;
+        }
+        int lastLiteralEnd = matches == null ? Integer.MAX_VALUE : matches.getAttributeLiteralEnd(matches.getAttributeLiteralCount() - 1);
+        int nextLiteral = 0;
+        int length = html.length();
+        int tagFrom = 0;
+        int cdataEnd = -1;
+        boolean tagsLeft = true;
+        for (int i = html.indexOf('<'); i >= 0; i = html.indexOf('<', i + 1)) {
+            if (matches == null) {
+                // Every '<' is looked at for nonces, as the regular expression did, tags are walked over as a whole
+                int nonceOffset = scanner.findNonceOffset(i);
+                if (nonceOffset >= 0) addNonceOffset(nonceOffset);
+            } else if (i > lastLiteralEnd && !externalizeEventHandlers) {
+                // Only the closing body tag is looked for past the last literal
+                break;
+            }
+            if (!tagsLeft || i < tagFrom || i + 1 >= length) continue;
+            char next = html.charAt(i + 1);
+            if (next == '!' && html.startsWith(CDATA_OPENING, i)) {
+                int cdataClosing = html.indexOf(CDATA_CLOSING, i + CDATA_OPENING.length());
+                cdataEnd = cdataClosing < 0 ? length : cdataClosing;
+                continue;
+            }
+            if (next == '/' && externalizeEventHandlers && html.regionMatches(true, i, BODY_CLOSING_TAG, 0, BODY_CLOSING_TAG.length())) {
+                bodyClosingTagOffset = i;
+            }
+            if (!Character.isLetter(next)) continue;
+            int tagEnd = scanner.findTagEnd(i);
+            if (tagEnd < 0) {
+                // No '>' left outside quoted values, no later tag can be complete either
+                tagsLeft = false;
+                continue;
+            }
+            tagFrom = tagEnd;
+            if (matches != null) {
+                // Tags with no literal inside have nothing to rewrite or hash
+                while (nextLiteral < matches.getAttributeLiteralCount() && matches.getAttributeLiteralEnd(nextLiteral) < i) nextLiteral++;
+                if (nextLiteral == matches.getAttributeLiteralCount() || matches.getAttributeLiteralEnd(nextLiteral) >= tagEnd) continue;
+            }
+            analyzeTag(HtmlTag.parse(html.substring(i, tagEnd)), i, i < cdataEnd);
+        }
+    }
+
+    private void analyzeTag(HtmlTag tag, int tagStart, boolean inCdata) {
+        if (tag.isNamed(PARTIAL_RESPONSE_ATTRIBUTE)) partialResponse = true;
+        String tagText = tag.getText();
+        StringBuilder rewritten = null;
+        int copied = 0;
+        int rewriteCount = attributeRewrites.size();
+        for (HtmlTag.Attribute attribute : tag.getAttributes()) {
+            String replacement = StreamingRewriter.Session.rewriteAttribute(attribute);
+            if (replacement == null) continue;
+            attributeRewrites.add(new AttributeRewrite(tagStart + attribute.nameStart, tagStart + attribute.end, replacement));
+            if (rewritten == null) rewritten = new StringBuilder(tagText.length() + 32);
+            rewritten.append(tagText, copied, attribute.nameStart).append(replacement);
+            copied = attribute.end;
+        }
+        // Handlers the rewritten URLs turned into have to be hashed, or externalized, as well
+        HtmlTag rewrittenTag = rewritten == null ? tag : HtmlTag.parse(rewritten.append(tagText, copied, tagText.length()).toString());
+        if (externalizeEventHandlers && !partialResponse && !inCdata && !WINDOW_HANDLER_ELEMENTS.contains(tag.getName().toLowerCase(Locale.ROOT))) {
+            String externalizedTag = externalizeHandlers(rewrittenTag);
+            if (externalizedTag != rewrittenTag.getText()) {
+                // A single rewrite of the whole tag but its closing bracket, where a nonce may go
+                attributeRewrites.subList(rewriteCount, attributeRewrites.size()).clear();
+                attributeRewrites.add(new AttributeRewrite(tagStart, tagStart + tagText.length() - 1, externalizedTag.substring(0, externalizedTag.length() - 1)));
+                rewrittenTag = HtmlTag.parse(externalizedTag);
+            }
+        }
+        for (HtmlTag.Attribute attribute : rewrittenTag.getAttributes()) {
+            if (!attribute.isQuoted() || attribute.valueStart == attribute.valueEnd) continue;
+            if (attribute.isEventHandler()) {
+                eventHandlers.add(attribute.getValue());
+            } else if (attribute.isNamed(STYLE)) {
+                (inCdata ? cdataInlinedStyles : inlinedStyles).add(attribute.getValue());
+            }
+        }
+    }
+
+    /**
+     * The tag text with its event handlers replaced with markers, the very same instance if it has none.
+     */
+    private String externalizeHandlers(HtmlTag tag) {
+        String tagText = tag.getText();
+        StringBuilder sb = null;
+        int copied = 0;
+        for (HtmlTag.Attribute attribute : tag.getAttributes()) {
+            if (!attribute.isEventHandler() || !attribute.isQuoted() || attribute.valueStart == attribute.valueEnd) continue;
+            String eventType = attribute.getName().substring(2).toLowerCase(Locale.ROOT);
+            // Left inline, and hashed, unless the document sees the event after the script runs, and it is a function body of its own
+            if (!DELEGABLE_EVENT_TYPES.contains(eventType) || !EventDelegation.isDelegable(attribute.getValue())) continue;
+            // Identical handlers share a function
+            Integer marker = externalizedHandlers.computeIfAbsent(attribute.getValue(), handler -> externalizedHandlers.size());
+            externalizedEventTypes.add(eventType);
+            if (sb == null) sb = new StringBuilder(tagText.length() + 16);
+            sb.append(tagText, copied, attribute.nameStart)
+                    .append(EXTERNALIZED_HANDLER_PREFIX).append(eventType)
+                    .append(OPENING_EQUALS).append(marker).append(DOUBLE_QUOTES);
+            copied = attribute.end;
+        }
+        if (sb == null) return tagText;
+        return sb.append(tagText, copied, tagText.length()).toString();
+    }
+
+    private void addNonceOffset(int offset) {
+        if (nonceOffsetCount == nonceOffsets.length) nonceOffsets = Arrays.copyOf(nonceOffsets, nonceOffsetCount * 2);
+        nonceOffsets[nonceOffsetCount++] = offset;
+    }
+
+    public String getHtml() {
+        return html;
+    }
+
+    public int getNonceOffsetCount() {
+        return nonceOffsetCount;
+    }
+
+    public int getNonceOffset(int index) {
+        return nonceOffsets[index];
+    }
+
+    /**
+     * <code>javascript:</code> URLs to rewrite, and tags to externalize the handlers of, in body order.
+     */
+    public List<AttributeRewrite> getAttributeRewrites() {
+        return Collections.unmodifiableList(attributeRewrites);
+    }
+
+    public Set<String> getEventHandlers() {
+        return Collections.unmodifiableSet(eventHandlers);
+    }
+
+    /**
+     * Inline styles left in the body, the ones moved into a nonced block of a partial response aside.
+     */
+    public Set<String> getInlinedStyles() {
+        if (stylesExtracted || cdataInlinedStyles.isEmpty()) return Collections.unmodifiableSet(inlinedStyles);
+        Set<String> styles = new LinkedHashSet<>(inlinedStyles);
+        styles.addAll(cdataInlinedStyles);
+        return styles;
+    }
+
+    public boolean isPartialResponse() {
+        return partialResponse;
+    }
+
+    /**
+     * Whether a JSF partial response has inline styles in its updates, to be moved into a nonced block.
+     */
+    public boolean hasExtractableStyles() {
+        return partialResponse && !cdataInlinedStyles.isEmpty();
+    }
+
+    void stylesExtracted() {
+        stylesExtracted = true;
+    }
+
+    public boolean hasExternalizedHandlers() {
+        return !externalizedHandlers.isEmpty();
+    }
+
+    /**
+     * Externalized handlers, the marker of each being its index.
+     */
+    public List<String> getExternalizedHandlers() {
+        return new ArrayList<>(externalizedHandlers.keySet());
+    }
+
+    public Set<String> getExternalizedEventTypes() {
+        return Collections.unmodifiableSet(externalizedEventTypes);
+    }
+
+    /**
+     * Where the delegation script goes: right before the last <code>&lt;/body&gt;</code>, or at the very end.
+     */
+    public int getDelegationScriptOffset() {
+        return bodyClosingTagOffset >= 0 ? bodyClosingTagOffset : html.length();
+    }
+
+    /**
+     * Attributes <code>[start, end)</code> of the body, and what they are rewritten into.
+     */
+    public static final class AttributeRewrite {
+
+        public final int start;
+        public final int end;
+        public final String replacement;
+
+        AttributeRewrite(int start, int end, String replacement) {
+            this.start = start;
+            this.end = end;
+            this.replacement = replacement;
+        }
+    }
+
+}
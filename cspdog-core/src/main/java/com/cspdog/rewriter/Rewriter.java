@@ -1,8 +1,35 @@
 package com.cspdog.rewriter;
 
+/**
+ * Rewrite engine of buffered bodies. Engines are found with {@link java.util.ServiceLoader}, listed in
+ * <code>META-INF/services/com.cspdog.rewriter.Rewriter</code>, and picked by name per path out of the
+ * <code>rewriteEngine</code> and <code>rewriteEngineRoutes</code> settings. A single instance serves every request.
+ */
 public interface Rewriter {
 
     String getCSPedResponseBody(String  regularHTMLResponse, String nonce);
     String injectNonce(String preNonceResponse, String nonce);
 
+    /**
+     * Name the engine is configured by, e.g. <code>regex</code>. Engines written before names were introduced are
+     * configured by their class name.
+     */
+    default String getName() {
+        return getClass().getName();
+    }
+
+    /**
+     * What the rewrite and the policy headers of the body are built out of.
+     */
+    default ResponseAnalysis analyze(String regularHTMLResponse, boolean externalizeEventHandlers) {
+        return ResponseAnalysis.analyze(regularHTMLResponse, externalizeEventHandlers);
+    }
+
+    /**
+     * Rewrites the body out of its analysis, as returned by {@link #analyze(String, boolean)}.
+     */
+    default String getCSPedResponseBody(String regularHTMLResponse, String nonce, ResponseAnalysis analysis) {
+        return getCSPedResponseBody(regularHTMLResponse, nonce);
+    }
+
 }
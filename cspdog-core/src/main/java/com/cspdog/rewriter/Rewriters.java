@@ -0,0 +1,92 @@
+package com.cspdog.rewriter;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The rewrite engines registered with the {@link Rewriter} service loader, by name, and which one rewrites a path.
+ */
+public final class Rewriters {
+
+    private static final Logger logger = LoggerFactory.getLogger(Rewriters.class);
+
+    private static final Rewriter defaultRewriter = new RegexRewriter();
+    private static volatile Map<String, Rewriter> rewriters = Collections.singletonMap(defaultRewriter.getName(), defaultRewriter);
+    private static volatile boolean loaded;
+
+    private Rewriters() {
+    }
+
+    /**
+     * Looks the engines up with the given class loader, e.g. the one of the web application, so engines packaged
+     * with it are found too. Engines configured but not found are reported, the default one rewriting in their place.
+     */
+    public static synchronized void load(ClassLoader classLoader) {
+        Map<String, Rewriter> loadedRewriters = new LinkedHashMap<>();
+        loadedRewriters.put(defaultRewriter.getName(), defaultRewriter);
+        try {
+            for (Rewriter rewriter : ServiceLoader.load(Rewriter.class, classLoader)) {
+                // The default instance stays, so it is shared with the fallback
+                loadedRewriters.putIfAbsent(rewriter.getName(), rewriter);
+            }
+        } catch (ServiceConfigurationError e) {
+            logger.error("load(): rewrite engines could not all be loaded: {}", e.getMessage());
+        }
+        rewriters = Collections.unmodifiableMap(loadedRewriters);
+        loaded = true;
+        logger.info("load(): rewrite engines {}", loadedRewriters.keySet());
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        warnIfMissing(configuration.getRewriteEngine());
+        for (String engine : configuration.getRewriteEngineRoutes().values()) {
+            warnIfMissing(engine);
+        }
+    }
+
+    private static void warnIfMissing(String name) {
+        if (name != null && !rewriters.containsKey(name)) {
+            logger.warn("load(): no rewrite engine named {}, {} rewrites in its place", name, defaultRewriter.getName());
+        }
+    }
+
+    public static Set<String> getNames() {
+        if (!loaded) load(Rewriters.class.getClassLoader());
+        return rewriters.keySet();
+    }
+
+    public static Rewriter getDefault() {
+        return defaultRewriter;
+    }
+
+    /**
+     * The engine of the given name, the default one when there is none.
+     */
+    public static Rewriter get(String name) {
+        if (!loaded) load(Rewriters.class.getClassLoader());
+        Rewriter rewriter = name == null ? null : rewriters.get(name);
+        return rewriter == null ? defaultRewriter : rewriter;
+    }
+
+    /**
+     * The engine of the first route pattern matching the path, the <code>rewriteEngine</code> one otherwise.
+     */
+    public static Rewriter forPath(String path) {
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        if (path != null) {
+            for (Map.Entry<Pattern, String> route : configuration.getRewriteEngineRoutes().entrySet()) {
+                if (route.getKey().matcher(path).matches()) return get(route.getValue());
+            }
+        }
+        return get(configuration.getRewriteEngine());
+    }
+
+}
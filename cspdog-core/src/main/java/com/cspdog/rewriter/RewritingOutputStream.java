@@ -0,0 +1,214 @@
+package com.cspdog.rewriter;
+
+import com.cspdog.utils.ChunkedByteBuffer;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.cspdog.utils.Constants.CDATA_OPENING;
+
+/**
+ * Byte counterpart of {@link RewritingWriter}: tags are tokenized straight out of the response bytes, by the same
+ * {@link TagTokenizer} as the chars of a {@link StreamingRewriter.Session}.
+ * For ASCII-compatible charsets (UTF-8, ISO-8859-*, windows-125*...) markup delimiters are single bytes which never
+ * show up inside multibyte sequences, so only the tags themselves get decoded and everything in between is copied
+ * as-is into pooled buffers. Any other charset is buffered and decoded as a whole when finishing.
+ * <p>
+ * Without a session, see {@link #buffering(Charset)}, bytes are only buffered as they are, for the body to be
+ * rewritten as a whole by the configured engine.
+ */
+public class RewritingOutputStream extends OutputStream {
+
+    private static final byte[] CDATA_OPENING_BYTES = CDATA_OPENING.getBytes(StandardCharsets.US_ASCII);
+
+    private final StreamingRewriter.Session session;
+    private final Charset charset;
+    private final boolean asciiCompatible;
+    private final ChunkedByteBuffer output = new ChunkedByteBuffer();
+    private final Tokenizer tokenizer = new Tokenizer();
+
+    private final byte[] singleByte = new byte[1];
+    private byte[] pendingTag = new byte[256];
+    private int pendingTagLength;
+    private boolean finished;
+
+    public RewritingOutputStream(StreamingRewriter.Session session, Charset charset) {
+        this.session = session;
+        this.charset = charset;
+        this.asciiCompatible = session != null && isAsciiCompatible(charset);
+    }
+
+    /**
+     * Buffers the bytes written as they are, {@link #finish()} returning them unmodified.
+     */
+    public static RewritingOutputStream buffering(Charset charset) {
+        return new RewritingOutputStream(null, charset);
+    }
+
+    /**
+     * Whether the charset encodes every ASCII char as that same single byte, and no other char with a byte below 0x80:
+     * UTF-8, whose multibyte sequences only use bytes above, and single-byte charsets. Charsets such as Shift_JIS
+     * also encode ASCII as itself but reuse those bytes inside their multibyte sequences.
+     */
+    static boolean isAsciiCompatible(Charset charset) {
+        if (!charset.canEncode()) return false;
+        CharsetEncoder encoder = charset.newEncoder();
+        if (!charset.equals(StandardCharsets.UTF_8) && encoder.maxBytesPerChar() != 1.0f) return false;
+        char[] ascii = new char[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (char) i;
+        }
+        try {
+            ByteBuffer encoded = encoder.encode(CharBuffer.wrap(ascii));
+            if (encoded.remaining() != ascii.length) return false;
+            for (int i = 0; i < ascii.length; i++) {
+                if (encoded.get(i) != i) return false;
+            }
+            return true;
+        } catch (CharacterCodingException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        if (!asciiCompatible) {
+            output.write(bytes, offset, length);
+            return;
+        }
+        tokenizer.chunk = bytes;
+        tokenizer.tokenize(offset, offset + length);
+        tokenizer.chunk = null;
+    }
+
+    /**
+     * Flushes whatever is left pending and returns the rewritten body, which the caller has to
+     * {@link ChunkedByteBuffer#release()} once sent.
+     */
+    public ChunkedByteBuffer finish() {
+        if (finished) return output;
+        finished = true;
+        if (session == null) return output;
+        if (!asciiCompatible) {
+            String body = new String(output.toByteArray(), charset);
+            session.write(body);
+            replaceOutput(session.finish());
+            return output;
+        }
+        tokenizer.flushPendingTag();
+        if (session.isRewritingJavascriptURLs() && session.needsPartialResponseProcessing()) {
+            String body = new String(output.toByteArray(), charset);
+            String processedBody = RegexRewriter.processPartialResponses(body, session.getNonce());
+            if (!processedBody.equals(body)) {
+                session.invalidateCollectedHashes();
+                replaceOutput(processedBody);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Gives up rewriting: returns whatever was written so far, rewritten up to the last complete tag and as-is after
+     * it, so the rest of the response can go to the client unmodified. To be released by the caller once sent.
+     */
+    public ChunkedByteBuffer drain() {
+        finished = true;
+        tokenizer.flushPendingTag();
+        return output;
+    }
+
+    /**
+     * Hands the buffered bytes back to the pool, whether finished or not.
+     */
+    public void release() {
+        output.release();
+    }
+
+    private void replaceOutput(String body) {
+        output.reset();
+        output.write(body.getBytes(charset));
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to flush, the body is sent once the whole chain has run
+    }
+
+    /**
+     * Tokenizes the bytes written, tags held aside undecoded until complete.
+     */
+    private class Tokenizer extends TagTokenizer {
+        private byte[] chunk;
+
+        @Override
+        protected int unitAt(int index) {
+            return chunk[index] & 0xff;
+        }
+
+        @Override
+        protected void appendText(int start, int end) {
+            output.write(chunk, start, end - start);
+        }
+
+        @Override
+        protected void appendToPendingTag(int index) {
+            if (pendingTagLength == pendingTag.length) {
+                pendingTag = Arrays.copyOf(pendingTag, pendingTag.length * 2);
+            }
+            pendingTag[pendingTagLength++] = chunk[index];
+        }
+
+        @Override
+        protected int getPendingTagLength() {
+            return pendingTagLength;
+        }
+
+        @Override
+        protected boolean isPendingTagCDATAOpening() {
+            return pendingTagLength == CDATA_OPENING_BYTES.length
+                    && Arrays.equals(pendingTag, 0, pendingTagLength, CDATA_OPENING_BYTES, 0, pendingTagLength);
+        }
+
+        @Override
+        protected void writePendingTag() {
+            output.write(pendingTag, 0, pendingTagLength);
+            pendingTagLength = 0;
+        }
+
+        @Override
+        protected void processPendingTag() {
+            String tagText = new String(pendingTag, 0, pendingTagLength, charset);
+            String rewrittenTag = session.processTag(tagText);
+            if (rewrittenTag == tagText) {
+                output.write(pendingTag, 0, pendingTagLength);
+            } else {
+                output.write(rewrittenTag.getBytes(charset));
+            }
+            pendingTagLength = 0;
+        }
+
+        @Override
+        protected boolean isInRawText() {
+            return session.isInRawText();
+        }
+
+        @Override
+        protected boolean isLetter(int unit) {
+            // Bytes of multibyte sequences are not letters of their own
+            return (unit >= 'a' && unit <= 'z') || (unit >= 'A' && unit <= 'Z');
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+package com.cspdog.rewriter;
+
+import java.io.Writer;
+
+/**
+ * {@link Writer} feeding a {@link StreamingRewriter.Session}, so the response is rewritten as the servlet writes it.
+ */
+public class RewritingWriter extends Writer {
+
+    private final StreamingRewriter.Session session;
+
+    public RewritingWriter(StreamingRewriter.Session session) {
+        this.session = session;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        session.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        char[] chunk = new char[len];
+        str.getChars(off, off + len, chunk, 0);
+        session.write(chunk, 0, len);
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to flush, the session output is read once the response is complete
+    }
+
+    @Override
+    public void close() {
+        // The session is finished by the filter, after the whole chain has run
+    }
+
+}
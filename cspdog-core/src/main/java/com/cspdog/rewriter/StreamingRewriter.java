@@ -0,0 +1,318 @@
+package com.cspdog.rewriter;
+
+import com.cspdog.utils.CSPUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static com.cspdog.utils.Constants.*;
+
+/**
+ * Single-pass rewriter: tags are tokenized incrementally while the servlet writes, so nonces are injected,
+ * <code>javascript:</code> URLs are rewritten and event handler/inline style hashes are collected in one go,
+ * instead of running several regular expressions over the whole buffered body.
+ * Only the tag being currently written is held aside (bounded by {@link com.cspdog.utils.Constants#MAX_TAG_LOOKAHEAD}),
+ * everything else is appended straight to the output.
+ */
+public class StreamingRewriter implements Rewriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingRewriter.class);
+
+    public static final String NAME = "streaming";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getCSPedResponseBody(String regularHTMLResponse, String nonce) {
+        if (StringUtils.isEmpty(regularHTMLResponse)) {
+            return regularHTMLResponse;
+        }
+        Session session = newSession(nonce);
+        session.write(regularHTMLResponse);
+        return session.finish();
+    }
+
+    @Override
+    public String injectNonce(String preNonceResponse, String nonce) {
+        if (StringUtils.isBlank(preNonceResponse) || StringUtils.isBlank(nonce)) {
+            logger.trace("injectNonce(): skipping {} for nonce injection", preNonceResponse);
+            return preNonceResponse;
+        }
+        Session session = new Session(nonce, false);
+        session.write(preNonceResponse);
+        return session.finish();
+    }
+
+    public Session newSession(String nonce) {
+        return new Session(nonce, true);
+    }
+
+    /**
+     * Rewriting state for a single response. Not thread-safe, one per request.
+     */
+    public static class Session {
+
+        private final String nonce;
+        private final boolean rewriteJavascriptURLs;
+        private final StringBuilder output = new StringBuilder();
+        private final StringBuilder pendingTag = new StringBuilder();
+        private final Set<String> eventHandlerHashes = new LinkedHashSet<>();
+        private final Set<String> inlinedStyleHashes = new LinkedHashSet<>();
+
+        private final Tokenizer tokenizer = new Tokenizer();
+        // Name of the script/style element whose raw text is being written, if any
+        private String rawTextElement;
+        private boolean hashesCollected = true;
+        private boolean partialResponse;
+        private boolean finished;
+        private char[] stringChunk;
+
+        Session(String nonce, boolean rewriteJavascriptURLs) {
+            this.nonce = nonce;
+            this.rewriteJavascriptURLs = rewriteJavascriptURLs;
+        }
+
+        public void write(String chunk) {
+            // Copied a slice at a time into a buffer reused across writes, rather than into a new array each time
+            int size = Math.min(chunk.length(), CHAR_BUFFER_CHUNK_SIZE);
+            if (stringChunk == null || stringChunk.length < size) stringChunk = new char[size];
+            for (int copied = 0; copied < chunk.length(); ) {
+                int length = Math.min(stringChunk.length, chunk.length() - copied);
+                chunk.getChars(copied, copied + length, stringChunk, 0);
+                write(stringChunk, 0, length);
+                copied += length;
+            }
+        }
+
+        public void write(char[] chunk, int offset, int length) {
+            tokenizer.chunk = chunk;
+            tokenizer.tokenize(offset, offset + length);
+            tokenizer.chunk = null;
+        }
+
+        /**
+         * Rewrites a complete tag and collects its hashes, keeping track of script/style raw text.
+         * Returns the very same instance when nothing had to be changed.
+         */
+        String processTag(String tagText) {
+            HtmlTag tag = HtmlTag.parse(tagText);
+            if (rawTextElement != null) {
+                // Inside <script> or <style>, only the matching closing tag is meaningful
+                if (tag.isClosing() && tag.isNamed(rawTextElement)) rawTextElement = null;
+                return tagText;
+            }
+            if (tag.isClosing() || tagText.startsWith("<!") || tagText.startsWith("<?")) {
+                return tagText;
+            }
+            if (tag.isNamed(PARTIAL_RESPONSE_ATTRIBUTE)) partialResponse = true;
+            String rewrittenTag = rewriteTag(tag);
+            collectHashes(rewrittenTag == tagText ? tag : HtmlTag.parse(rewrittenTag));
+            if ((tag.isNamed(SCRIPT) || tag.isNamed(STYLE)) && !tag.isSelfClosing()) {
+                rawTextElement = tag.getName();
+            }
+            return rewrittenTag;
+        }
+
+        boolean isInRawText() {
+            return rawTextElement != null;
+        }
+
+        private String rewriteTag(HtmlTag tag) {
+            String tagText = tag.getText();
+            StringBuilder rewritten = null;
+            int copied = 0;
+            for (HtmlTag.Attribute attribute : tag.getAttributes()) {
+                String replacement = rewriteJavascriptURLs ? rewriteAttribute(attribute) : null;
+                if (replacement == null) continue;
+                if (rewritten == null) rewritten = new StringBuilder(tagText.length() + 32);
+                rewritten.append(tagText, copied, attribute.nameStart).append(replacement);
+                copied = attribute.end;
+            }
+            if (needsNonce(tag)) {
+                if (rewritten == null) rewritten = new StringBuilder(tagText.length() + nonce.length() + 10);
+                // Same layout as RegexRewriter, nonce right before the closing angle bracket
+                rewritten.append(tagText, copied, tagText.length() - 1)
+                        .append(NONCE_OPENING).append(nonce).append(CLOSING_QUOTE_SPACED);
+                copied = tagText.length() - 1;
+            }
+            if (rewritten == null) return tagText;
+            return rewritten.append(tagText, copied, tagText.length()).toString();
+        }
+
+        /**
+         * Replacement of a <code>javascript:</code> URL attribute, or null when the attribute is to be kept.
+         */
+        static String rewriteAttribute(HtmlTag.Attribute attribute) {
+            if (attribute.isNamed(HREF) && attribute.isQuoted() && attribute.valueStartsWithIgnoreCase(JAVASCRIPT_SCHEME)) {
+                String invocation = attribute.getValue().substring(JAVASCRIPT_SCHEME.length());
+                if (attribute.quote == '\'') invocation = invocation.replace(DOUBLE_QUOTES, SINGLE_QUOTE);
+                // href="javascript:alert('Hello');" -> href="#" onclick="alert('Hello');"
+                return RegexRewriter.transformHREFIntoOnclickEventHandler(invocation);
+            }
+            if (attribute.isNamed(SRC) && isJavascriptFalse(attribute.getValue())) {
+                return SRC_ABOUT_BLANK;
+            }
+            return null;
+        }
+
+        private static boolean isJavascriptFalse(String value) {
+            if (!value.startsWith(JAVASCRIPT_SCHEME)) return false;
+            String remainder = value.substring(JAVASCRIPT_SCHEME.length()).trim();
+            return remainder.equals(FALSE) || remainder.equals(FALSE + SEMICOLON);
+        }
+
+        private boolean needsNonce(HtmlTag tag) {
+            if (StringUtils.isBlank(nonce) || tag.isClosing() || tag.hasAttribute(NONCE)) return false;
+            if (tag.isNamed(SCRIPT)) return !tag.hasAttribute(SRC);
+            return tag.isNamed(STYLE);
+        }
+
+        private void collectHashes(HtmlTag tag) {
+            for (HtmlTag.Attribute attribute : tag.getAttributes()) {
+                if (!attribute.isQuoted() || attribute.valueStart == attribute.valueEnd) continue;
+                if (attribute.isEventHandler()) {
+                    eventHandlerHashes.add(quoteHash(attribute.getValue()));
+                } else if (attribute.isNamed(STYLE)) {
+                    inlinedStyleHashes.add(quoteHash(attribute.getValue()));
+                }
+            }
+        }
+
+        private static String quoteHash(String inlinedElement) {
+            // 'sha256-gbbBOORvGXZmIA6BOnpHAMAWTvCqLZu3ENf57MWLd+Y=' followed by a separator, as CSPUtils does
+            return SINGLE_QUOTE + CSPUtils.generateCSPHashForInlinedElement(inlinedElement) + SINGLE_QUOTE + WHITE_SPACE_SEPARATOR;
+        }
+
+        /**
+         * Flushes whatever is left pending and returns the rewritten body. JSF partial responses carrying inline
+         * styles are post-processed as a whole, since their styles are moved into a new block.
+         */
+        public String finish() {
+            if (!finished) {
+                tokenizer.flushPendingTag();
+                finished = true;
+            }
+            String body = output.toString();
+            if (!rewriteJavascriptURLs || !needsPartialResponseProcessing()) return body;
+            String processedBody = RegexRewriter.processPartialResponses(body, nonce);
+            if (!processedBody.equals(body)) {
+                invalidateCollectedHashes();
+                output.setLength(0);
+                output.append(processedBody);
+            }
+            return processedBody;
+        }
+
+        /**
+         * Gives up rewriting: returns whatever was written so far, rewritten up to the last complete tag and as-is
+         * after it, so the rest of the response can go to the client unmodified.
+         */
+        public String drain() {
+            tokenizer.flushPendingTag();
+            finished = true;
+            String body = output.toString();
+            output.setLength(0);
+            return body;
+        }
+
+        /**
+         * Whether {@link #getEventHandlerHashes()} and {@link #getInlinedStyleHashes()} describe the finished body,
+         * if not, callers should compute the hashes out of the body itself.
+         */
+        public boolean hasCollectedHashes() {
+            return hashesCollected;
+        }
+
+        /**
+         * Styles were moved around after the tags were processed, hashes collected on the fly do not describe the body anymore.
+         */
+        void invalidateCollectedHashes() {
+            hashesCollected = false;
+        }
+
+        /**
+         * JSF partial response carrying inline styles, which still needs {@link RegexRewriter#processPartialResponses(String, String)}.
+         */
+        boolean needsPartialResponseProcessing() {
+            return partialResponse && !inlinedStyleHashes.isEmpty();
+        }
+
+        String getNonce() {
+            return nonce;
+        }
+
+        boolean isRewritingJavascriptURLs() {
+            return rewriteJavascriptURLs;
+        }
+
+        public String getEventHandlerHashes() {
+            return StringUtils.join(eventHandlerHashes, StringUtils.EMPTY);
+        }
+
+        public String getInlinedStyleHashes() {
+            return StringUtils.join(inlinedStyleHashes, StringUtils.EMPTY);
+        }
+
+        /**
+         * Tokenizes the chars written, tags held aside in a builder.
+         */
+        private class Tokenizer extends TagTokenizer {
+            private char[] chunk;
+
+            @Override
+            protected int unitAt(int index) {
+                return chunk[index];
+            }
+
+            @Override
+            protected void appendText(int start, int end) {
+                output.append(chunk, start, end - start);
+            }
+
+            @Override
+            protected void appendToPendingTag(int index) {
+                pendingTag.append(chunk[index]);
+            }
+
+            @Override
+            protected int getPendingTagLength() {
+                return pendingTag.length();
+            }
+
+            @Override
+            protected boolean isPendingTagCDATAOpening() {
+                return pendingTag.length() == CDATA_OPENING.length() && CDATA_OPENING.contentEquals(pendingTag);
+            }
+
+            @Override
+            protected void writePendingTag() {
+                output.append(pendingTag);
+                pendingTag.setLength(0);
+            }
+
+            @Override
+            protected void processPendingTag() {
+                String tagText = pendingTag.toString();
+                pendingTag.setLength(0);
+                output.append(processTag(tagText));
+            }
+
+            @Override
+            protected boolean isInRawText() {
+                return Session.this.isInRawText();
+            }
+
+            @Override
+            protected boolean isLetter(int unit) {
+                return Character.isLetter(unit);
+            }
+        }
+    }
+
+}
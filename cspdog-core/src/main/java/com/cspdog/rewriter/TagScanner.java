@@ -0,0 +1,173 @@
+package com.cspdog.rewriter;
+
+import java.util.function.Consumer;
+
+import static com.cspdog.utils.Constants.HEAD_TAG_OPENING;
+import static com.cspdog.utils.Constants.NONCE;
+import static com.cspdog.utils.Constants.SRC;
+
+/**
+ * Hand-written, linear-time scans over a whole body, in place of the regular expressions which used to find the tags
+ * to nonce and the tags carrying event handlers. No input position is visited more than a bounded number of times,
+ * whatever unterminated tags, quotes or script fragments the body holds.
+ */
+public final class TagScanner {
+
+    private static final String SCRIPT_OPENING = "<script";
+    private static final String STYLE_OPENING = "<style";
+
+    private final String text;
+    private final int length;
+    // Positions from which no closing quote of each kind is left, so an unterminated value is only scanned once
+    private int noDoubleQuoteFrom = Integer.MAX_VALUE;
+    private int noSingleQuoteFrom = Integer.MAX_VALUE;
+    // Where the nonce scan resumes, and where scans of script and style tags are known to fail up to
+    private int nonceFrom;
+    private int scriptNoMatchBefore;
+    private int styleNoMatchBefore;
+
+    TagScanner(String text) {
+        this.text = text;
+        this.length = text.length();
+    }
+
+    /**
+     * Inserts <code>nonceSegment</code> right before the <code>&gt;</code> of every <code>&lt;script</code> tag with
+     * neither nonce nor src, and every <code>&lt;style</code> tag with no nonce. The tags are the ones
+     * <code>&lt;script(?:(?!nonce|src).)*?&gt;|&lt;style(?:(?!nonce).)*?&gt;</code> used to match, single-line ones,
+     * case-sensitive. Returns the very same instance when there is none.
+     */
+    public static String injectNonce(String html, String nonceSegment) {
+        TagScanner scanner = new TagScanner(html);
+        StringBuilder sb = null;
+        int copied = 0;
+        for (int i = html.indexOf('<'); i >= 0; i = html.indexOf('<', i + 1)) {
+            int nonceOffset = scanner.findNonceOffset(i);
+            if (nonceOffset < 0) continue;
+            if (sb == null) sb = new StringBuilder(html.length() + 256);
+            sb.append(html, copied, nonceOffset).append(nonceSegment);
+            copied = nonceOffset;
+        }
+        if (sb == null) return html;
+        sb.append(html, copied, html.length());
+        return sb.toString();
+    }
+
+    /**
+     * Offset of the <code>&gt;</code> to insert the nonce before, when the tag starting at <code>i</code> is to be
+     * nonced, -1 otherwise. Meant to be called on every <code>&lt;</code> of the text, in order.
+     */
+    int findNonceOffset(int i) {
+        if (i < nonceFrom) return -1;
+        int result;
+        if (i >= scriptNoMatchBefore && text.startsWith(SCRIPT_OPENING, i)) {
+            result = findUnnoncedTagEnd(text, i + SCRIPT_OPENING.length(), true);
+            // A failed scan from a tag start fails the same way from any later start it went past
+            if (result < 0) scriptNoMatchBefore = -result - 1 - (SCRIPT_OPENING.length() - 1);
+        } else if (i >= styleNoMatchBefore && text.startsWith(STYLE_OPENING, i)) {
+            result = findUnnoncedTagEnd(text, i + STYLE_OPENING.length(), false);
+            if (result < 0) styleNoMatchBefore = -result - 1 - (STYLE_OPENING.length() - 1);
+        } else {
+            return -1;
+        }
+        if (result < 0) return -1;
+        // Tags nested in this one are not looked at, as the regular expression resumed after its match
+        nonceFrom = result + 1;
+        return result;
+    }
+
+    /**
+     * Index of the <code>&gt;</code> ending the tag, or <code>-(failure position) - 1</code> if a nonce (or src),
+     * a line terminator or the end of the text comes first.
+     */
+    private static int findUnnoncedTagEnd(String html, int from, boolean script) {
+        int length = html.length();
+        for (int p = from; p < length; p++) {
+            char c = html.charAt(p);
+            if (c == '>') return p;
+            if ((c == 'n' && html.startsWith(NONCE, p)) || (script && c == 's' && html.startsWith(SRC, p)) || isLineTerminator(c)) {
+                return -p - 1;
+            }
+        }
+        return -length - 1;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        // The line terminators '.' does not match in a regular expression
+        return c == '\n' || c == '\r' || c == 0x85 || c == 0x2028 || c == 0x2029;
+    }
+
+    /**
+     * Hands every opening tag of the text to <code>consumer</code>, in order. Quoted attribute values may hold
+     * <code>&gt;</code>, a value left unterminated ends at the first <code>&gt;</code> after it instead.
+     */
+    public static void forEachOpeningTag(String html, Consumer<HtmlTag> consumer) {
+        new TagScanner(html).scanOpeningTags(consumer);
+    }
+
+    /**
+     * Index right after the <code>&gt;</code> of the first <code>&lt;head&gt;</code> tag, or -1. The scan stops there,
+     * which is at the very beginning of a document.
+     */
+    public static int findHeadTagEnd(String html) {
+        TagScanner scanner = new TagScanner(html);
+        int length = html.length();
+        for (int i = html.indexOf('<'); i >= 0; i = html.indexOf('<', i + 1)) {
+            int nameEnd = i + HEAD_TAG_OPENING.length();
+            if (nameEnd >= length || !html.regionMatches(true, i, HEAD_TAG_OPENING, 0, HEAD_TAG_OPENING.length())) continue;
+            char next = html.charAt(nameEnd);
+            // Not <header>
+            if (next == '>' || next == '/' || Character.isWhitespace(next)) return scanner.findTagEnd(i);
+        }
+        return -1;
+    }
+
+    private void scanOpeningTags(Consumer<HtmlTag> consumer) {
+        int i = text.indexOf('<');
+        while (i >= 0 && i + 1 < length) {
+            if (!Character.isLetter(text.charAt(i + 1))) {
+                i = text.indexOf('<', i + 1);
+                continue;
+            }
+            int tagEnd = findTagEnd(i);
+            // No '>' left outside quoted values, no later tag can be complete either
+            if (tagEnd < 0) return;
+            consumer.accept(HtmlTag.parse(text.substring(i, tagEnd)));
+            i = text.indexOf('<', tagEnd);
+        }
+    }
+
+    /**
+     * Index right after the <code>&gt;</code> closing the tag starting at <code>tagStart</code>, or -1.
+     */
+    int findTagEnd(int tagStart) {
+        boolean afterEquals = false;
+        for (int i = tagStart + 1; i < length; i++) {
+            char c = text.charAt(i);
+            if ((c == '"' || c == '\'') && afterEquals) {
+                int closingQuote = findClosingQuote(c, i + 1);
+                if (closingQuote < 0) {
+                    int tagEnd = text.indexOf('>', i);
+                    return tagEnd < 0 ? -1 : tagEnd + 1;
+                }
+                i = closingQuote;
+                afterEquals = false;
+                continue;
+            }
+            if (c == '>') return i + 1;
+            if (!Character.isWhitespace(c)) afterEquals = c == '=';
+        }
+        return -1;
+    }
+
+    private int findClosingQuote(char quote, int from) {
+        if (from >= (quote == '"' ? noDoubleQuoteFrom : noSingleQuoteFrom)) return -1;
+        int closingQuote = text.indexOf(quote, from);
+        if (closingQuote < 0) {
+            if (quote == '"') noDoubleQuoteFrom = from;
+            else noSingleQuoteFrom = from;
+        }
+        return closingQuote;
+    }
+
+}
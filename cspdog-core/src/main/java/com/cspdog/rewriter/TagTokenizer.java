@@ -0,0 +1,129 @@
+package com.cspdog.rewriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.cspdog.utils.Constants.MAX_TAG_LOOKAHEAD;
+
+/**
+ * Incremental tag tokenizer of {@link StreamingRewriter.Session}, over chars, and of {@link RewritingOutputStream},
+ * over the bytes of ASCII-compatible charsets. Text is handed back in runs, to be copied as-is, while a tag is held
+ * aside up to its closing angle bracket, quoted attribute values included, then handed back whole to be processed.
+ * Markup delimiters are ASCII, so units only need telling apart, never decoding. Chunks may end anywhere, the state
+ * carries over to the next one.
+ */
+abstract class TagTokenizer {
+
+    private static final Logger logger = LoggerFactory.getLogger(TagTokenizer.class);
+
+    private static final int TEXT = 0;
+    private static final int TAG_OPEN = 1;
+    private static final int TAG = 2;
+
+    private int state = TEXT;
+    private int quote;
+    private boolean afterEquals;
+
+    /**
+     * Unit at <code>index</code> of the chunk being tokenized.
+     */
+    protected abstract int unitAt(int index);
+
+    /**
+     * Copies the units of the chunk from <code>start</code> to <code>end</code> to the output as they are.
+     */
+    protected abstract void appendText(int start, int end);
+
+    protected abstract void appendToPendingTag(int index);
+
+    protected abstract int getPendingTagLength();
+
+    protected abstract boolean isPendingTagCDATAOpening();
+
+    /**
+     * Copies the pending tag to the output as it is, and empties it.
+     */
+    protected abstract void writePendingTag();
+
+    /**
+     * Rewrites the complete pending tag into the output, and empties it.
+     */
+    protected abstract void processPendingTag();
+
+    protected abstract boolean isInRawText();
+
+    protected abstract boolean isLetter(int unit);
+
+    /**
+     * Tokenizes the units of the chunk from <code>offset</code> to <code>end</code>.
+     */
+    final void tokenize(int offset, int end) {
+        int i = offset;
+        while (i < end) {
+            int unit = unitAt(i);
+            switch (state) {
+                case TEXT:
+                    int tagStart = i;
+                    while (tagStart < end && unitAt(tagStart) != '<') tagStart++;
+                    // Unmodified stretch, copied as it is
+                    appendText(i, tagStart);
+                    if (tagStart < end) {
+                        appendToPendingTag(tagStart);
+                        state = TAG_OPEN;
+                    }
+                    i = tagStart + 1;
+                    continue;
+                case TAG_OPEN:
+                    if (isTagStart(unit)) {
+                        appendToPendingTag(i);
+                        state = TAG;
+                        i++;
+                    } else {
+                        // Not markup, e.g. "a < b", hand the unit back to the text state
+                        flushPendingTag();
+                    }
+                    continue;
+                default:
+                    appendToPendingTag(i);
+                    i++;
+                    if (quote != 0) {
+                        if (unit == quote) quote = 0;
+                    } else if ((unit == '"' || unit == '\'') && afterEquals) {
+                        quote = unit;
+                    } else if (unit == '>') {
+                        processPendingTag();
+                        resetTagState();
+                        continue;
+                    }
+                    if (!Character.isWhitespace(unit)) afterEquals = unit == '=';
+                    if (isPendingTagCDATAOpening()) {
+                        // CDATA blocks of partial responses carry markup, keep processing their content
+                        flushPendingTag();
+                    } else if (getPendingTagLength() > MAX_TAG_LOOKAHEAD) {
+                        logger.debug("tokenize(): tag exceeds {} units, passing it through unprocessed", MAX_TAG_LOOKAHEAD);
+                        flushPendingTag();
+                    }
+            }
+        }
+    }
+
+    private boolean isTagStart(int unit) {
+        if (isInRawText()) return unit == '/';
+        return isLetter(unit) || unit == '/' || unit == '!' || unit == '?';
+    }
+
+    /**
+     * Copies whatever tag is pending to the output as it is, back in the text state.
+     */
+    final void flushPendingTag() {
+        writePendingTag();
+        resetTagState();
+    }
+
+    private void resetTagState() {
+        state = TEXT;
+        quote = 0;
+        afterEquals = false;
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.cspdog.utils;
+
+import com.cspdog.configuration.CSPConfigurationHolder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.cspdog.utils.Constants.BYTE_BUFFER_CHUNK_SIZE;
+import static com.cspdog.utils.Constants.CHAR_BUFFER_CHUNK_SIZE;
+import static com.cspdog.utils.Constants.MAX_POOLED_BYTE_BUFFERS;
+import static com.cspdog.utils.Constants.MAX_POOLED_CHAR_BUFFERS;
+
+/**
+ * Pools of fixed-size chunks used to hold response bodies, {@link ByteBuffer}s for bodies written as bytes and
+ * <code>char[]</code>s for bodies written as characters, so each request does not allocate (and grow) its own buffers.
+ * <p>
+ * It also keeps the global memory budget of buffered responses: every response reserves what it buffers, and once the
+ * budget is spent further responses overflow to passthrough instead of growing the heap.
+ */
+public class BufferPool {
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+    private static final ConcurrentLinkedQueue<char[]> charPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledChars = new AtomicInteger();
+
+    // Gauges
+    private static final AtomicLong bytesInUse = new AtomicLong();
+    private static final AtomicLong highWaterMark = new AtomicLong();
+    private static final LongAdder overflows = new LongAdder();
+
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return CSPConfigurationHolder.getConfiguration().isDirectByteBuffers()
+                    ? ByteBuffer.allocateDirect(BYTE_BUFFER_CHUNK_SIZE)
+                    : ByteBuffer.allocate(BYTE_BUFFER_CHUNK_SIZE);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != BYTE_BUFFER_CHUNK_SIZE) return;
+        // Beyond the limit the buffer is just left to the garbage collector
+        if (pooled.incrementAndGet() > MAX_POOLED_BYTE_BUFFERS) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    public static char[] acquireChars() {
+        char[] chunk = charPool.poll();
+        if (chunk == null) return new char[CHAR_BUFFER_CHUNK_SIZE];
+        pooledChars.decrementAndGet();
+        return chunk;
+    }
+
+    public static void releaseChars(char[] chunk) {
+        if (chunk == null || chunk.length != CHAR_BUFFER_CHUNK_SIZE) return;
+        if (pooledChars.incrementAndGet() > MAX_POOLED_CHAR_BUFFERS) {
+            pooledChars.decrementAndGet();
+            return;
+        }
+        charPool.offer(chunk);
+    }
+
+    /**
+     * Reserves room for <code>bytes</code> more buffered bytes, unless that would go over the memory budget.
+     */
+    public static boolean tryReserve(long bytes) {
+        long budget = CSPConfigurationHolder.getConfiguration().getBufferMemoryBudget();
+        while (true) {
+            long current = bytesInUse.get();
+            long reserved = current + bytes;
+            if (reserved > budget) return false;
+            if (bytesInUse.compareAndSet(current, reserved)) {
+                highWaterMark.accumulateAndGet(reserved, Math::max);
+                return true;
+            }
+        }
+    }
+
+    public static void unreserve(long bytes) {
+        if (bytes > 0) bytesInUse.addAndGet(-bytes);
+    }
+
+    public static void overflowed() {
+        overflows.increment();
+    }
+
+    public static long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    public static long getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    public static long getOverflows() {
+        return overflows.sum();
+    }
+
+    public static void resetGauges() {
+        highWaterMark.set(bytesInUse.get());
+        overflows.reset();
+    }
+
+}
@@ -1,8 +1,16 @@
 package com.cspdog.utils;
 
+import com.cspdog.cache.HashCaches;
+import com.cspdog.cache.PersistentHashStore;
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.configuration.PolicyTemplate;
+import com.cspdog.configuration.PolicyTemplate.Placeholder;
 import com.cspdog.filter.CSPHeaders;
+import com.cspdog.metrics.FilterMetrics;
+import com.cspdog.rewriter.ResponseAnalysis;
+import com.cspdog.rewriter.TagScanner;
 import jakarta.servlet.http.HttpServletResponse;
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,72 +21,52 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.regex.Matcher;
 
 import static com.cspdog.utils.Constants.*;
 
 public class CSPUtils {
 
     private static final Logger logger = LoggerFactory.getLogger(CSPUtils.class);
+    // MessageDigest instances are not thread-safe, but are reusable once digest() has been called
+    private static final ThreadLocal<MessageDigest> messageDigest = ThreadLocal.withInitial(CSPUtils::newMessageDigest);
 
-    private static CSPHeaders getResponseHeaders(CSPedResponseBodyHolder<String> cspedResponseBody, String nonce, HttpServletResponse response) {
-        CSPHeaders cspHeaders = new CSPHeaders();
-        cspHeaders.ENFORCED_POLICY = cspHeaders.ENFORCED_POLICY
-                .replaceAll("\\{nonce}", nonce)
-                .replaceAll("\\{eventhandlerhashes}", getEventHandlerHashes(cspedResponseBody.get()))
-                .replaceAll("\\{inlinestyleshashes}", getInlinedStyleHashes(cspedResponseBody.get()));
-        cspHeaders.REPORT_ONLY_POLICY = cspHeaders.REPORT_ONLY_POLICY.replaceAll("\\{nonce}", nonce)
-                .replaceAll("\\{nonce}", nonce)
-                .replaceAll("\\{eventhandlerhashes}", getEventHandlerHashes(cspedResponseBody.get()))
-                .replaceAll("\\{inlinestyleshashes}", getInlinedStyleHashes(cspedResponseBody.get()));
+    private static CSPHeaders getResponseHeaders(String nonce, String eventHandlerHashes, String inlinedStyleHashes) {
+        // Templates of a single snapshot, parsed when it was built
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        PolicyTemplate enforcedPolicyTemplate = configuration.getEnforcedPolicyTemplate();
+        PolicyTemplate reportOnlyPolicyTemplate = configuration.getReportOnlyPolicyTemplate();
+        PolicyTemplate.Values values = new PolicyTemplate.Values()
+                .with(Placeholder.NONCE, nonce)
+                .with(Placeholder.EVENT_HANDLER_HASHES, eventHandlerHashes)
+                .with(Placeholder.INLINE_STYLE_HASHES, inlinedStyleHashes);
+        // Both headers rendered into the same, presized, builder
+        int enforcedPolicyLength = enforcedPolicyTemplate.getRenderedLength(values);
+        StringBuilder sb = new StringBuilder(enforcedPolicyLength + reportOnlyPolicyTemplate.getRenderedLength(values));
+        enforcedPolicyTemplate.renderTo(sb, values);
+        reportOnlyPolicyTemplate.renderTo(sb, values);
+        CSPHeaders cspHeaders = new CSPHeaders(configuration);
+        cspHeaders.ENFORCED_POLICY = sb.substring(0, enforcedPolicyLength);
+        cspHeaders.REPORT_ONLY_POLICY = sb.substring(enforcedPolicyLength);
+        FilterMetrics.headerSize(cspHeaders.ENFORCED_POLICY.length());
+        FilterMetrics.headerSize(cspHeaders.REPORT_ONLY_POLICY.length());
         return cspHeaders;
     }
 
-    private static String getEventHandlerHashes(String htmlOutput) {
-        if (StringUtils.isBlank(htmlOutput)) {
-            return StringUtils.EMPTY;
-        }
-        Matcher eventAttributeMatcher = TAGS_WITH_EVENT_HANDLERS_PATTERN.matcher(htmlOutput);
-        Set<String> handlerHashes = new HashSet<>();
-        while (eventAttributeMatcher.find()) {
-            String eventAttributeMatch = eventAttributeMatcher.group(0);
-            Matcher invocationMatcher = EVENT_HANDLER_INVOCATION_PATTERN.matcher(eventAttributeMatch);
-            logger.trace("getEventHandlerHashes(): event handler {} ", eventAttributeMatch);
-            // There could be more than one event attribute, e.g.: onclick="..." onblur="..."
-            while (invocationMatcher.find()) {
-                String invocationMatch = invocationMatcher.group(2);
-                logger.trace("getEventHandlerHashes(): invocation {} ", invocationMatch);
-                String correspondingHash = generateCSPHashForInlinedElement(invocationMatch);
-                logger.trace("getEventHandlerHashes(): corresponding hash {}", correspondingHash);
-                // The line below appends hashes single quoted, e.g.:
-                // 'sha256-gbbBOORvGXZmIA6BOnpHAMAWTvCqLZu3ENf57MWLd+Y='
-                StringBuilder sb = new StringBuilder();
-                sb.append(SINGLE_QUOTE).append(correspondingHash).append(SINGLE_QUOTE).append(WHITE_SPACE_SEPARATOR);
-                handlerHashes.add(sb.toString());
-            }
-        }
-        return StringUtils.join(handlerHashes, StringUtils.EMPTY);
-    }
-
-    private static String getInlinedStyleHashes(String htmlOutput) {
-        if (StringUtils.isEmpty(htmlOutput)) {
-            return StringUtils.EMPTY;
-        }
-        if (!INLINED_STYLE_PATTERN.matcher(htmlOutput).find()) {
-            return StringUtils.EMPTY;
-        }
-        Matcher inlineStyleAttributeMatcher = INLINED_STYLE_PATTERN.matcher(htmlOutput);
-        Set<String> inlineStyleHashes = new HashSet<>();
-        while (inlineStyleAttributeMatcher.find()) {
-            String inlineStyleMatch = inlineStyleAttributeMatcher.group(2);
-            logger.trace("getInlinedStyleHashes(): detected style attribute {} ", inlineStyleMatch);
-            String correspondingHash = generateCSPHashForInlinedElement(inlineStyleMatch);
-            logger.trace("getInlinedStyleHashes(): corresponding hash {}", correspondingHash);
+    /**
+     * Hashes of inline handlers or styles, single quoted and separated as they are spliced into the policy, e.g.:
+     * 'sha256-gbbBOORvGXZmIA6BOnpHAMAWTvCqLZu3ENf57MWLd+Y='
+     */
+    private static String getHashes(Set<String> inlinedElements) {
+        if (inlinedElements.isEmpty()) return StringUtils.EMPTY;
+        Set<String> hashes = new HashSet<>();
+        for (String inlinedElement : inlinedElements) {
+            String correspondingHash = generateCSPHashForInlinedElement(inlinedElement);
+            logger.trace("getHashes(): {} corresponding hash {}", inlinedElement, correspondingHash);
             StringBuilder sb = new StringBuilder();
             sb.append(SINGLE_QUOTE).append(correspondingHash).append(SINGLE_QUOTE).append(WHITE_SPACE_SEPARATOR);
-            inlineStyleHashes.add(sb.toString());
+            hashes.add(sb.toString());
         }
-        return StringUtils.join(inlineStyleHashes, StringUtils.EMPTY);
+        return StringUtils.join(hashes, StringUtils.EMPTY);
     }
 
     /**
@@ -89,59 +77,170 @@ public class CSPUtils {
      * - If inlinedElement value is font-family: Verdana; color: green; (extracted by the invoker from an inlined style attribute)
      * this method will return Hn7UXd9eddwUHOboQALO8jCkSiOuoWVjc/3b/4JTsL4=
      */
-    private static String generateCSPHashForInlinedElement(String inlinedElement) {
+    public static String generateCSPHashForInlinedElement(String inlinedElement) {
         if  (StringUtils.isEmpty(inlinedElement)) return inlinedElement;
+        String cachedHash = HashCaches.getAttributeHashes().get(inlinedElement);
+        if (cachedHash != null) return cachedHash;
+        // Learned before the last restart
+        PersistentHashStore store = PersistentHashStore.getInstance();
+        String storedHash = store == null ? null : store.getAttributeHash(inlinedElement);
+        if (storedHash != null) {
+            HashCaches.getAttributeHashes().put(inlinedElement, storedHash);
+            return storedHash;
+        }
+        MessageDigest digest = messageDigest.get();
+        if (digest == null) {
+            logger.error("generateCSPHashForInlinedElement(): {} hashing algorithm not found", HASHING_ALGORITHM);
+            return StringUtils.EMPTY;
+        }
+        // Avoid producing the wrong hashes due to already encoded HTML
+        String unescapedElement = HtmlEscapes.unescapeHtml4(inlinedElement);
+        byte[] hash = digest.digest(unescapedElement.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hexString = new StringBuilder(HASHING_ALGORITHM_PREFIX);
+        hexString.append(Base64.getEncoder().encodeToString(hash));
+        String cspHash = hexString.toString();
+        HashCaches.getAttributeHashes().put(inlinedElement, cspHash);
+        if (store != null) store.putAttributeHash(inlinedElement, cspHash);
+        return cspHash;
+    }
+
+    private static MessageDigest newMessageDigest() {
         try {
-            MessageDigest digest = MessageDigest.getInstance(HASHING_ALGORITHM);
-            // Avoid producing the wrong hashes due to already encoded HTML
-            inlinedElement = StringEscapeUtils.unescapeHtml4(inlinedElement);
-            byte[] hash = digest.digest(inlinedElement.getBytes(StandardCharsets.UTF_8));
-            StringBuilder hexString = new StringBuilder(HASHING_ALGORITHM_PREFIX);
-            hexString.append(Base64.getEncoder().encodeToString(hash));
-            return hexString.toString();
+            return MessageDigest.getInstance(HASHING_ALGORITHM);
         } catch (NoSuchAlgorithmException e) {
-            logger.error("generateCSPHashForInlinedElement(): {} hashing algorithm not found: {}", HASHING_ALGORITHM, e.getMessage());
-            return StringUtils.EMPTY;
+            logger.error("newMessageDigest(): {} hashing algorithm not found: {}", HASHING_ALGORITHM, e.getMessage());
+            return null;
         }
     }
 
     public static void setPolicyInResponse(CSPedResponseBodyHolder<String> cspedResponseBodyHolder, String nonce, HttpServletResponse res) {
-        CSPHeaders cspHeaders = CSPUtils.getResponseHeaders(cspedResponseBodyHolder, nonce, res);
+        String htmlOutput = cspedResponseBodyHolder.get();
+        long hashStart = System.nanoTime();
+        HashCaches.InlineHashes inlineHashes = getInlineHashes(htmlOutput, nonce);
+        FilterMetrics.stageTime(FilterMetrics.Stage.HASH, hashStart);
+        setPolicyInResponse(cspedResponseBodyHolder, nonce, res, inlineHashes.getEventHandlerHashes(), inlineHashes.getInlinedStyleHashes());
+    }
+
+    /**
+     * Pages rendered out of the same template only differ in their nonce, so their hashes are looked up by the
+     * digest of the nonce-stripped body before scanning it.
+     */
+    private static HashCaches.InlineHashes getInlineHashes(String htmlOutput, String nonce) {
+        if (StringUtils.isEmpty(htmlOutput)) {
+            return new HashCaches.InlineHashes(StringUtils.EMPTY, StringUtils.EMPTY);
+        }
+        // A single scan for both handlers and styles
+        return HashCaches.getBodyHashes().computeIfAbsent(HashCaches.digest(htmlOutput, nonce), digest -> {
+            PersistentHashStore store = PersistentHashStore.getInstance();
+            HashCaches.InlineHashes storedHashes = store == null ? null : store.getBodyHashes(digest);
+            if (storedHashes != null) return storedHashes;
+            HashCaches.InlineHashes inlineHashes = getInlineHashes(ResponseAnalysis.analyze(htmlOutput));
+            if (store != null) store.putBodyHashes(digest, inlineHashes);
+            return inlineHashes;
+        });
+    }
+
+    /**
+     * Hashes of the inline handlers and styles of an analyzed body.
+     */
+    public static HashCaches.InlineHashes getInlineHashes(ResponseAnalysis analysis) {
+        return new HashCaches.InlineHashes(getHashes(analysis.getEventHandlers()), getHashes(analysis.getInlinedStyles()));
+    }
+
+    /**
+     * Same as {@link #setPolicyInResponse(CSPedResponseBodyHolder, String, HttpServletResponse)}, for callers which
+     * already collected the hashes while rewriting the body (e.g. the streaming rewriter), avoiding another body scan.
+     */
+    public static void setPolicyInResponse(CSPedResponseBodyHolder<String> cspedResponseBodyHolder, String nonce, HttpServletResponse res,
+                                           String eventHandlerHashes, String inlinedStyleHashes) {
+        long headerStart = System.nanoTime();
+        FilterMetrics.hashesPerResponse(countHashes(eventHandlerHashes) + countHashes(inlinedStyleHashes));
+        CSPHeaders cspHeaders = CSPUtils.getResponseHeaders(nonce, eventHandlerHashes, inlinedStyleHashes);
         setEnforcedHeaders(cspedResponseBodyHolder, cspHeaders, res);
-        setReportOnlyHeaders(cspHeaders, res);
+        setReportOnlyHeaders(cspHeaders, nonce, res);
+        FilterMetrics.stageTime(FilterMetrics.Stage.HEADER, headerStart);
+    }
+
+    // Every hash is single quoted
+    private static int countHashes(String hashes) {
+        if (hashes == null) return 0;
+        int quotes = 0;
+        for (int i = 0; i < hashes.length(); i++) {
+            if (hashes.charAt(i) == '\'') quotes++;
+        }
+        return quotes / 2;
     }
 
     private static void setEnforcedHeaders(CSPedResponseBodyHolder<String> cspedResponseBodyHolder, CSPHeaders cspHeaders, HttpServletResponse res) {
-        if (isPolicyNotEmptyAndUnderTheLimit(cspHeaders.ENFORCED_POLICY)) {
-            res.setHeader(ENFORCED_POLICY_HEADER_NAME, cspHeaders.ENFORCED_POLICY);
+        String policy = fitInHeader(cspHeaders.ENFORCED_POLICY);
+        if (policy != null) {
+            res.setHeader(ENFORCED_POLICY_HEADER_NAME, policy);
             return;
         }
-        logger.warn("setEnforcedHeaders(): the Content-Security-Policy header size ({} bytes) exceeds the current limit ({} bytes), refusing to apply it to avoid application failures");
+        FilterMetrics.metaTagFallback();
+        logger.warn("setEnforcedHeaders(): the Content-Security-Policy header size ({} bytes) exceeds the current limit ({} bytes), refusing to apply it to avoid application failures",
+                StringUtils.length(cspHeaders.ENFORCED_POLICY), MAX_CSP_HEADER_SIZE);
         // TODO: report this separately to CSPDog Reporting Servers
-        // Insert the policy as a meta-tag in the body
-        cspedResponseBodyHolder
-                .set(cspedResponseBodyHolder
-                .get()
-                .replaceFirst("<head[^>]*>", "$0\n<meta http-equiv=\"Content-Security-Policy\" content=\"" + cspHeaders.ENFORCED_POLICY +  "\" />"));
+        // Insert the policy as a meta-tag in the body, right after the head tag
+        String htmlOutput = cspedResponseBodyHolder.get();
+        int headTagEnd = htmlOutput == null ? -1 : TagScanner.findHeadTagEnd(htmlOutput);
+        if (headTagEnd < 0) {
+            logger.warn("setEnforcedHeaders(): no head tag to insert the Content-Security-Policy meta tag in, the policy is not enforced");
+            return;
+        }
+        String metaPolicy = StringUtils.isEmpty(cspHeaders.ENFORCED_POLICY) ? StringUtils.EMPTY : PolicyCompaction.compact(cspHeaders.ENFORCED_POLICY);
+        StringBuilder sb = new StringBuilder(htmlOutput.length() + META_POLICY_OPENING.length() + metaPolicy.length() + META_POLICY_CLOSURE.length());
+        sb.append(htmlOutput, 0, headTagEnd)
+                .append(META_POLICY_OPENING)
+                .append(HtmlEscapes.escapeHtml4(metaPolicy))
+                .append(META_POLICY_CLOSURE)
+                .append(htmlOutput, headTagEnd, htmlOutput.length());
+        cspedResponseBodyHolder.set(sb.toString());
     }
 
-    private static void setReportOnlyHeaders(CSPHeaders cspHeaders, HttpServletResponse res) {
-        if (isPolicyNotEmptyAndUnderTheLimit(cspHeaders.REPORT_ONLY_POLICY)) {
-            res.setHeader(REPORT_ONLY_POLICY_HEADER_NAME, cspHeaders.REPORT_ONLY_POLICY);
+    private static void setReportOnlyHeaders(CSPHeaders cspHeaders, String nonce, HttpServletResponse res) {
+        String policy = fitInHeader(cspHeaders.REPORT_ONLY_POLICY);
+        if (policy != null) {
+            res.setHeader(REPORT_ONLY_POLICY_HEADER_NAME, policy);
             return;
         }
         // Removing the hashes to fail-fast but preventing application failure,
         // this needs further revision by either the AppSec team or the CSPDog agent
-        logger.warn("setReportOnlyHeaders(): the Content-Security-Policy-Report-Only header size ({} bytes) exceeds the current limit ({} bytes), refusing to apply it to avoid application failures");
+        FilterMetrics.reportOnlyHashStripping();
+        logger.warn("setReportOnlyHeaders(): the Content-Security-Policy-Report-Only header size ({} bytes) exceeds the current limit ({} bytes), refusing to apply it to avoid application failures",
+                StringUtils.length(cspHeaders.REPORT_ONLY_POLICY), MAX_CSP_HEADER_SIZE);
         // TODO: report this separately to CSPDog Reporting Servers
-        res.setHeader(REPORT_ONLY_POLICY_HEADER_NAME, cspHeaders.REPORT_ONLY_POLICY
-                .replace(UNSAFE_HASHES, EMPTY_CHAR)
-                .replaceAll(INVOCATION_HASHES_PLACEHOLDER_REGEX, EMPTY_CHAR)
-                .replaceAll(INLINE_STYLE_HASHES_PLACEHOLDER_REGEX, EMPTY_CHAR));
+        res.setHeader(REPORT_ONLY_POLICY_HEADER_NAME, getReportOnlyPolicyWithoutHashes(nonce));
     }
 
-    private static boolean isPolicyNotEmptyAndUnderTheLimit(String policy) {
-        return StringUtils.isNotEmpty(policy) && policy.length() < MAX_CSP_HEADER_SIZE;
+    /**
+     * Headers of a response which overflowed its buffer and went to the client without being fully rewritten:
+     * it is not enforced, only reported on.
+     */
+    public static void setOverflowHeaders(String nonce, HttpServletResponse res) {
+        String policy = getReportOnlyPolicyWithoutHashes(nonce);
+        if (StringUtils.isNotEmpty(policy)) res.setHeader(REPORT_ONLY_POLICY_HEADER_NAME, policy);
+    }
+
+    private static String getReportOnlyPolicyWithoutHashes(String nonce) {
+        PolicyTemplate reportOnlyPolicyTemplate = CSPConfigurationHolder.getConfiguration().getReportOnlyPolicyTemplate();
+        if (reportOnlyPolicyTemplate == null) return null;
+        return reportOnlyPolicyTemplate.render(new PolicyTemplate.Values().with(Placeholder.NONCE, nonce))
+                .replace(UNSAFE_HASHES, EMPTY_CHAR);
+    }
+
+    /**
+     * The policy itself when it is under the header size limit, compacted when that is enough to get it under,
+     * null otherwise.
+     */
+    private static String fitInHeader(String policy) {
+        if (StringUtils.isEmpty(policy)) return null;
+        if (policy.length() < MAX_CSP_HEADER_SIZE) return policy;
+        String compactedPolicy = PolicyCompaction.compact(policy);
+        if (compactedPolicy.length() >= MAX_CSP_HEADER_SIZE) return null;
+        FilterMetrics.policyCompaction();
+        logger.debug("fitInHeader(): policy compacted from {} to {} bytes to fit in a header", policy.length(), compactedPolicy.length());
+        return compactedPolicy;
     }
 
 }
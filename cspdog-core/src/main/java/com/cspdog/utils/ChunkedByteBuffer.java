@@ -0,0 +1,111 @@
+package com.cspdog.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Growable byte buffer made of {@link BufferPool} chunks, growing never copies what was already written.
+ * Not thread-safe, one per response. {@link #release()} hands the chunks back to the pool.
+ */
+public class ChunkedByteBuffer {
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+    private long size;
+
+    public void write(int b) {
+        if (current == null || !current.hasRemaining()) nextChunk();
+        current.put((byte) b);
+        size++;
+    }
+
+    public void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (current == null || !current.hasRemaining()) nextChunk();
+            int count = Math.min(length, current.remaining());
+            current.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+            size += count;
+        }
+    }
+
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    private void nextChunk() {
+        current = BufferPool.acquire();
+        chunks.add(current);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        WritableByteChannel channel = null;
+        for (ByteBuffer chunk : chunks) {
+            if (chunk.hasArray()) {
+                out.write(chunk.array(), chunk.arrayOffset(), chunk.position());
+                continue;
+            }
+            if (channel == null) channel = Channels.newChannel(out);
+            ByteBuffer readable = chunk.duplicate();
+            readable.flip();
+            while (readable.hasRemaining()) channel.write(readable);
+        }
+    }
+
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * Writes a single chunk, for writers which have to stop whenever the output is not ready.
+     */
+    public void writeChunkTo(int index, OutputStream out) throws IOException {
+        ByteBuffer chunk = chunks.get(index);
+        if (chunk.hasArray()) {
+            out.write(chunk.array(), chunk.arrayOffset(), chunk.position());
+            return;
+        }
+        ByteBuffer readable = chunk.duplicate();
+        readable.flip();
+        byte[] bytes = new byte[readable.remaining()];
+        readable.get(bytes);
+        out.write(bytes);
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[Math.toIntExact(size)];
+        int offset = 0;
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer readable = chunk.duplicate();
+            readable.flip();
+            int count = readable.remaining();
+            readable.get(bytes, offset, count);
+            offset += count;
+        }
+        return bytes;
+    }
+
+    public void reset() {
+        release();
+        size = 0;
+    }
+
+    public void release() {
+        for (ByteBuffer chunk : chunks) {
+            BufferPool.release(chunk);
+        }
+        chunks.clear();
+        current = null;
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.cspdog.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Character counterpart of {@link ChunkedByteBuffer}, replacing a <code>CharArrayWriter</code> which starts tiny and
+ * copies everything written so far every time it doubles. Not thread-safe, one per response.
+ * {@link #release()} hands the chunks back to the pool.
+ */
+public class ChunkedCharBuffer extends Writer {
+
+    private final List<char[]> chunks = new ArrayList<>();
+    private char[] current;
+    private int position;
+    private long size;
+
+    @Override
+    public void write(int c) {
+        if (current == null || position == current.length) nextChunk();
+        current[position++] = (char) c;
+        size++;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        while (length > 0) {
+            if (current == null || position == current.length) nextChunk();
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(chars, offset, current, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+            size += count;
+        }
+    }
+
+    @Override
+    public void write(String str, int offset, int length) {
+        while (length > 0) {
+            if (current == null || position == current.length) nextChunk();
+            int count = Math.min(length, current.length - position);
+            str.getChars(offset, offset + count, current, position);
+            position += count;
+            offset += count;
+            length -= count;
+            size += count;
+        }
+    }
+
+    private void nextChunk() {
+        current = BufferPool.acquireChars();
+        position = 0;
+        chunks.add(current);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void writeTo(Writer out) throws IOException {
+        for (int i = 0; i < chunks.size(); i++) {
+            char[] chunk = chunks.get(i);
+            out.write(chunk, 0, i == chunks.size() - 1 ? position : chunk.length);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(Math.toIntExact(size));
+        for (int i = 0; i < chunks.size(); i++) {
+            char[] chunk = chunks.get(i);
+            sb.append(chunk, 0, i == chunks.size() - 1 ? position : chunk.length);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to flush, everything is in memory already
+    }
+
+    @Override
+    public void close() {
+        // Chunks are handed back through release(), once the body has been sent
+    }
+
+    public void release() {
+        for (char[] chunk : chunks) {
+            BufferPool.releaseChars(chunk);
+        }
+        chunks.clear();
+        current = null;
+        position = 0;
+        size = 0;
+    }
+
+}
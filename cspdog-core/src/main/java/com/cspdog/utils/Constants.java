@@ -1,19 +1,10 @@
 package com.cspdog.utils;
 
-import java.security.SecureRandom;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 public class Constants {
 
-    public static final SecureRandom random = new SecureRandom();
-    public static final String HREF_DEEPLINKS_REGEX =
-            "href\\s*=\\s*\"javascript:([^\"]*)\"|href\\s*=\\s*'javascript:([^']*)'";
-    public static final Pattern HREF_JAVASCRIPT_PATTERN = Pattern.compile(HREF_DEEPLINKS_REGEX, Pattern.CASE_INSENSITIVE);
-    public static final String SRC_JAVASCRIPT_FALSE_REGEX = "src\\s*=\\s*\"javascript:\\s*false;?\"" +
-            "|href\\s*=\\s*\"javascript:([^\"]*)\"" +
-            "|href\\s*=\\s*'javascript:([^']*)'" +
-            "|src\\s*=\\s*'javascript:\\s*false;?'" +
-            "|src\\s*=\\s*javascript:false;?";
     public static final String SRC_ABOUT_BLANK = "src=\"about:blank\"";
     public static final String VOID0_REGEX = "(?i)void\\(0\\).*";
     public static final Pattern VOID0_PATTERN = Pattern.compile(VOID0_REGEX);
@@ -25,15 +16,6 @@ public class Constants {
     public static final String DOUBLE_QUOTES = "\"";
     public static final String NONCE_OPENING = " nonce=\"";
     public static final String CLOSING_QUOTE_SPACED = "\" ";
-    public static final String NONCE_REGEX = "<script(?:(?!nonce|src).)*?>|<style(?:(?!nonce).)*?>";
-    public static final Pattern NONCE_PATTERN = Pattern.compile(NONCE_REGEX);
-    private static final String TAG_WITH_EVENT_HANDLER_REGEX =
-            "<[^>]*\\s(on[a-zA-Z]+\\s*=\\s*\"[^\"]*\"|on[a-zA-Z]+\\s*=\\s*'[^']*'|on[a-zA-Z]+\\s*=[^'\"\\s>]*)[^>]*>";
-    public static final Pattern TAGS_WITH_EVENT_HANDLERS_PATTERN = Pattern.compile(TAG_WITH_EVENT_HANDLER_REGEX, Pattern.CASE_INSENSITIVE);
-    private static final String EVENT_HANDLER_REGEX = "on[a-zA-Z]+\\s*=\\s*(['\\\"])(.*?)\\1";
-    public static final Pattern EVENT_HANDLER_INVOCATION_PATTERN = Pattern.compile(EVENT_HANDLER_REGEX, Pattern.CASE_INSENSITIVE);
-    private static final String INLINED_STYLE_REGEX = "style\\s*=\\s*(['\"])(.*?)\\1";
-    public static final Pattern INLINED_STYLE_PATTERN = Pattern.compile(INLINED_STYLE_REGEX, Pattern.CASE_INSENSITIVE);
     public static final String DASH = "-";
     public static final String HASHING_ALGORITHM = "SHA256";
     public static final String HASHING_ALGORITHM_PREFIX = HASHING_ALGORITHM + DASH;
@@ -41,23 +23,179 @@ public class Constants {
     public static final String ENFORCED_POLICY_HEADER_NAME = "Content-Security-Policy";
     public static final String REPORT_ONLY_POLICY_HEADER_NAME = "Content-Security-Policy-Report-Only";
     public static final String PARTIAL_RESPONSE_ATTRIBUTE = "partial-response";
-    public static final String CDATA_BLOCK_REGEX = "(?s)<!\\[CDATA\\[(.*?)\\]\\]>";
     public static final String CDATA_OPENING = "<![CDATA[";
     public static final String CDATA_CLOSING = "]]>";
     public static final String STYLE_BLOCK_OPENING_NONCED = "<style type=\"text/css\" nonce=\"";
     public static final String STYLE_BLOCK_OPENING_CLOSURE = "\">";
     public static final String EMPTY_CHAR = "";
-    public static final String STYLE_DOM_SELECTOR = "[style]";
     public static final String STYLE_CLOSURE = "</style>";
     public static final String CSPDOG_STYLE_PREFIX = "cspdog-style-";
     public static final String DOT = ".";
     public static final String OPENING_CURLY_BRACE = " { ";
     public static final String CLOSING_CURLY_BRACE = " } ";
     public static final String STYLE = "style";
+    public static final String CLASS = "class";
+    public static final String COMMENT_OPENING = "<!--";
+    public static final String COMMENT_CLOSING = "-->";
+    // Elements which cannot have any child, or only text
+    public static final Set<String> VOID_ELEMENTS = Set.of("area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "source", "track", "wbr");
+    public static final Set<String> RAW_TEXT_ELEMENTS = Set.of("script", "style", "textarea", "title");
     public static final int MAX_CSP_HEADER_SIZE = 8191; // In bytes, off by 1 on purpose
+    public static final String DIRECTIVE_SEPARATOR = ";";
+    public static final String ATTR_DIRECTIVE_SUFFIX = "-attr";
+    public static final String HASH_SOURCE_PREFIX = "'sha";
+    public static final String HEAD_TAG_OPENING = "<head";
+    public static final String BODY_CLOSING_TAG = "</body";
+    public static final String EXTERNALIZED_HANDLER_PREFIX = "data-cspdog-on";
+    // Their handlers are window ones, which do not go through the document
+    public static final Set<String> WINDOW_HANDLER_ELEMENTS = Set.of("body", "frameset");
+    // Events which bubble up to the document and are only fired once the page is interactive. The others, e.g. load,
+    // error or the media ones, may fire before the delegation script is there to catch them
+    public static final Set<String> DELEGABLE_EVENT_TYPES = Set.of("auxclick", "beforeinput", "change", "click", "contextmenu", "copy", "cut",
+            "dblclick", "drag", "dragend", "dragenter", "dragleave", "dragover", "dragstart", "drop", "input", "keydown", "keypress", "keyup",
+            "mousedown", "mousemove", "mouseout", "mouseover", "mouseup", "paste", "pointercancel", "pointerdown", "pointermove", "pointerout",
+            "pointerover", "pointerup", "reset", "select", "submit", "touchcancel", "touchend", "touchmove", "touchstart", "wheel");
+    public static final String META_POLICY_OPENING = "\n<meta http-equiv=\"Content-Security-Policy\" content=\"";
+    public static final String META_POLICY_CLOSURE = "\" />";
     public static final String UNSAFE_HASHES = "'unsafe-hashes'";
-    public static final String NONCE_PLACEHOLDER_REGEX = "\\{nonce}";
-    public static final String INVOCATION_HASHES_PLACEHOLDER_REGEX = "\\{invocation_hashes}";
-    public static final String INLINE_STYLE_HASHES_PLACEHOLDER_REGEX = "\\{inline_style_hashes}";
+    public static final String NONCE_PLACEHOLDER = "nonce";
+    public static final String EVENT_HANDLER_HASHES_PLACEHOLDER = "eventhandlerhashes";
+    public static final String INVOCATION_HASHES_PLACEHOLDER = "invocation_hashes"; // Alias of eventhandlerhashes
+    public static final String INLINE_STYLE_HASHES_PLACEHOLDER = "inlinestyleshashes";
+    public static final String INLINE_STYLE_HASHES_ALIAS_PLACEHOLDER = "inline_style_hashes"; // Alias of inlinestyleshashes
+    public static final int MAX_TAG_LOOKAHEAD = 16384; // In chars, longer tags are passed through unprocessed
+    public static final String SCRIPT = "script";
+    public static final String HREF = "href";
+    public static final String SRC = "src";
+    public static final String NONCE = "nonce";
+    public static final String JAVASCRIPT_SCHEME = "javascript:";
+    public static final String FALSE = "false";
+    public static final String SEMICOLON = ";";
+    // Configuration keys, as init-params and in the configuration file. As environment variables they are
+    // prefixed and snake-cased, e.g. streamingRewrite -> CSPDOG_STREAMING_REWRITE
+    public static final String ENFORCED_POLICY_KEY = "enforcedPolicy";
+    public static final String REPORT_ONLY_POLICY_KEY = "reportOnlyPolicy";
+    public static final String STREAMING_REWRITE_KEY = "streamingRewrite";
+    public static final String DIRECT_BYTE_BUFFERS_KEY = "directByteBuffers";
+    public static final String REWRITABLE_CONTENT_TYPES_KEY = "rewritableContentTypes";
+    public static final String MAX_REWRITABLE_CONTENT_LENGTH_KEY = "maxRewritableContentLength";
+    public static final String INCLUDED_URL_PATTERNS_KEY = "includedUrlPatterns";
+    public static final String EXCLUDED_URL_PATTERNS_KEY = "excludedUrlPatterns";
+    public static final String ATTRIBUTE_HASH_CACHE_MAX_ENTRIES_KEY = "attributeHashCacheMaxEntries";
+    public static final String BODY_HASH_CACHE_MAX_ENTRIES_KEY = "bodyHashCacheMaxEntries";
+    public static final String HASH_CACHE_TTL_MILLIS_KEY = "hashCacheTtlMillis";
+    public static final String CONTENT_ADDRESSED_STYLE_CLASSES_KEY = "contentAddressedStyleClasses";
+    public static final String BUFFER_MEMORY_BUDGET_KEY = "bufferMemoryBudget";
+    public static final String REWRITE_OFFLOAD_KEY = "rewriteOffload";
+    public static final String REWRITE_LATENCY_BUDGET_MILLIS_KEY = "rewriteLatencyBudgetMillis";
+    public static final String EXTERNALIZE_EVENT_HANDLERS_KEY = "externalizeEventHandlers";
+    public static final String HASH_MANIFEST_KEY = "hashManifest";
+    public static final String NONCE_PROVIDER_KEY = "nonceProvider";
+    public static final String REWRITE_ENGINE_KEY = "rewriteEngine";
+    public static final String REWRITE_ENGINE_ROUTES_KEY = "rewriteEngineRoutes";
+    public static final String COMPRESS_RESPONSES_KEY = "compressResponses";
+    public static final String COMPRESSION_MIN_SIZE_KEY = "compressionMinSize";
+    public static final String REPORT_BUFFER_CAPACITY_KEY = "reportBufferCapacity";
+    public static final String REPORT_FLUSH_INTERVAL_MILLIS_KEY = "reportFlushIntervalMillis";
+    public static final String REPORT_SINK_KEY = "reportSink";
+    public static final String REPORT_FILE_KEY = "reportFile";
+    public static final String REPORT_FILE_MAX_SIZE_KEY = "reportFileMaxSize";
+    public static final String REWRITE_SAMPLE_RATE_KEY = "rewriteSampleRate";
+    public static final String REWRITE_SAMPLE_ROUTES_KEY = "rewriteSampleRoutes";
+    public static final String REWRITE_SAMPLE_USER_AGENTS_KEY = "rewriteSampleUserAgents";
+    public static final String UNSAMPLED_POLICY_KEY = "unsampledPolicy";
+    public static final String OUTPUT_CACHE_MAX_BYTES_KEY = "outputCacheMaxBytes";
+    public static final String HASH_STORE_FILE_KEY = "hashStoreFile";
+    public static final String HASH_STORE_MAX_BYTES_KEY = "hashStoreMaxBytes";
+    public static final String HASH_STORE_FLUSH_INTERVAL_MILLIS_KEY = "hashStoreFlushIntervalMillis";
+    public static final String CONFIGURATION_FILE_KEY = "configFile";
+    public static final String CONFIGURATION_RELOAD_SECONDS_KEY = "configReloadSeconds";
+    public static final String[] CONFIGURATION_KEYS = {ENFORCED_POLICY_KEY, REPORT_ONLY_POLICY_KEY, STREAMING_REWRITE_KEY,
+            DIRECT_BYTE_BUFFERS_KEY, REWRITABLE_CONTENT_TYPES_KEY, MAX_REWRITABLE_CONTENT_LENGTH_KEY, INCLUDED_URL_PATTERNS_KEY,
+            EXCLUDED_URL_PATTERNS_KEY, ATTRIBUTE_HASH_CACHE_MAX_ENTRIES_KEY, BODY_HASH_CACHE_MAX_ENTRIES_KEY, HASH_CACHE_TTL_MILLIS_KEY,
+            CONTENT_ADDRESSED_STYLE_CLASSES_KEY, BUFFER_MEMORY_BUDGET_KEY, REWRITE_OFFLOAD_KEY, REWRITE_LATENCY_BUDGET_MILLIS_KEY,
+            EXTERNALIZE_EVENT_HANDLERS_KEY, HASH_MANIFEST_KEY, NONCE_PROVIDER_KEY, REWRITE_ENGINE_KEY, REWRITE_ENGINE_ROUTES_KEY,
+            COMPRESS_RESPONSES_KEY, COMPRESSION_MIN_SIZE_KEY, REPORT_BUFFER_CAPACITY_KEY, REPORT_FLUSH_INTERVAL_MILLIS_KEY,
+            REPORT_SINK_KEY, REPORT_FILE_KEY, REPORT_FILE_MAX_SIZE_KEY, REWRITE_SAMPLE_RATE_KEY, REWRITE_SAMPLE_ROUTES_KEY,
+            REWRITE_SAMPLE_USER_AGENTS_KEY, UNSAMPLED_POLICY_KEY, OUTPUT_CACHE_MAX_BYTES_KEY, HASH_STORE_FILE_KEY,
+            HASH_STORE_MAX_BYTES_KEY, HASH_STORE_FLUSH_INTERVAL_MILLIS_KEY};
+    public static final String ENVIRONMENT_VARIABLE_PREFIX = "CSPDOG_";
+    public static final String CONFIGURATION_RELOAD_THREAD_NAME = "cspdog-config-reload";
+    public static final String CONFIGURATION_WATCHER_THREAD_NAME = "cspdog-config-watcher";
+    public static final String REWRITE_OFFLOAD_THREAD_NAME = "cspdog-rewrite";
+    public static final String REPORT_FLUSH_THREAD_NAME = "cspdog-report-flush";
+    public static final String HASH_STORE_THREAD_NAME = "cspdog-hash-store";
+    public static final String SYSTEM_PROPERTY_PREFIX = "cspdog.";
+    public static final String DEFAULT_POLICY = "script-src 'self' 'nonce-{nonce}' 'unsafe-eval' 'unsafe-hashes' {eventhandlerhashes} ; style-src 'unsafe-hashes' {inlinestyleshashes} ;";
+    public static final int DEFAULT_ATTRIBUTE_HASH_CACHE_MAX_ENTRIES = 10000;
+    public static final int DEFAULT_BODY_HASH_CACHE_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_HASH_CACHE_TTL_MILLIS = 60 * 60 * 1000;
+    public static final int BODY_DIGEST_BUFFER_SIZE = 8192; // In bytes, per thread
+    public static final String LIST_SEPARATOR = ",";
+    public static final String ROUTE_ENGINE_SEPARATOR = "=";
+    public static final String[] DEFAULT_REWRITABLE_CONTENT_TYPES = {"text/html", "application/xhtml+xml", "text/xml", "application/xml"};
+    public static final long DEFAULT_MAX_REWRITABLE_CONTENT_LENGTH = 10 * 1024 * 1024; // In bytes
+    public static final String CONTENT_LENGTH_HEADER_NAME = "Content-Length";
+    public static final String CONTENT_ENCODING_HEADER_NAME = "Content-Encoding";
+    public static final String ACCEPT_ENCODING_HEADER_NAME = "Accept-Encoding";
+    public static final String VARY_HEADER_NAME = "Vary";
+    public static final String GZIP_ENCODING = "gzip";
+    public static final String X_GZIP_ENCODING = "x-gzip";
+    public static final String DEFLATE_ENCODING = "deflate";
+    public static final String WILDCARD_ENCODING = "*";
+    public static final String QUALITY_PARAMETER = "q=";
+    public static final int MAX_TRACKED_ROUTES = 1000;
+    public static final String OTHER_ROUTES = "other";
+    public static final String UNKNOWN_ROUTE = "unknown";
+    public static final String SLASH = "/";
+    public static final String[] WELCOME_FILES = {"index.html", "index.htm"};
+    public static final String[] STATIC_PAGE_EXTENSIONS = {".html", ".htm"};
+    public static final String WEB_INF_DIRECTORY = "/WEB-INF/";
+    public static final String META_INF_DIRECTORY = "/META-INF/";
+    public static final String HASH_MANIFEST_RESOURCE = "/WEB-INF/cspdog-hashes.manifest";
+    public static final String HASH_MANIFEST_SEPARATOR = "\t";
+    public static final String METRICS_OBJECT_NAME = "com.cspdog:type=FilterMetrics";
+    public static final int BYTE_BUFFER_CHUNK_SIZE = 8192; // In bytes
+    public static final int MAX_POOLED_BYTE_BUFFERS = 1024; // Up to 8 MB kept around for reuse
+    public static final int CHAR_BUFFER_CHUNK_SIZE = 4096; // In chars, 8 KB each
+    public static final int MAX_POOLED_CHAR_BUFFERS = 1024; // Up to 8 MB kept around for reuse
+    public static final long BUFFER_RESERVATION_SIZE = 64 * 1024; // In bytes, taken out of the budget at once by a response
+    public static final long DEFAULT_BUFFER_MEMORY_BUDGET = 256 * 1024 * 1024; // In bytes, across all in-flight responses
+    public static final long DEFAULT_REWRITE_LATENCY_BUDGET_MILLIS = 250; // Waited for an offloaded rewrite, per response
+    public static final int REWRITE_OFFLOAD_MAX_IN_FLIGHT_PER_CORE = 4; // Offloaded rewrites running, late ones included
+    public static final String DEFAULT_REWRITE_ENGINE = "regex";
+    public static final long DEFAULT_COMPRESSION_MIN_SIZE = 1024; // Smaller bodies gain little out of compression
+    public static final int MAX_POOLED_DEFLATERS = 64; // Per format, their native state freed beyond
+    public static final int DEFAULT_REPORT_BUFFER_CAPACITY = 8192;
+    public static final long DEFAULT_REPORT_FLUSH_INTERVAL_MILLIS = 1000;
+    public static final long DEFAULT_REPORT_FILE_MAX_SIZE = 10 * 1024 * 1024; // In bytes
+    public static final String DEFAULT_REPORT_FILE_NAME = "cspdog-reports.jsonl";
+    public static final int REPORT_FILES_KEPT = 5; // Rolled over files, besides the current one
+    public static final int MAX_REPORT_BODY_SIZE = 64 * 1024; // In bytes, browsers send a few KB at most
+    public static final int MAX_REPORT_FIELD_LENGTH = 512; // In chars, URLs beyond are cut
+    public static final int MAX_REPORT_READS_IN_FLIGHT = 256; // Request bodies being received at once
+    public static final int REPORT_READ_CHUNK_SIZE = 4096; // In bytes
+    public static final long REPORT_READ_TIMEOUT_MILLIS = 10000;
+    public static final int SC_TOO_MANY_REQUESTS = 429; // No constant for it in HttpServletResponse
+    public static final String REPORT_RETRY_AFTER_SECONDS = "5";
+    public static final String CSP_REPORT_CONTENT_TYPE = "application/csp-report";
+    public static final String REPORTS_CONTENT_TYPE = "application/reports+json";
+    public static final String JSON_CONTENT_TYPE = "application/json";
+    public static final String RETRY_AFTER_HEADER_NAME = "Retry-After";
+    public static final String CSP_VIOLATION_REPORT_TYPE = "csp-violation";
+    public static final double DEFAULT_REWRITE_SAMPLE_RATE = 1; // Every response rewritten
+    public static final String USER_AGENT_HEADER_NAME = "User-Agent";
+    public static final String[] BOT_USER_AGENT_TOKENS = {"bot", "crawl", "spider", "slurp"};
+    public static final String[] MOBILE_USER_AGENT_TOKENS = {"mobile", "android", "iphone", "ipad"};
+    public static final String DESKTOP_USER_AGENT_TOKEN = "mozilla/";
+    public static final long DEFAULT_OUTPUT_CACHE_MAX_BYTES = 32 * 1024 * 1024;
+    public static final int OUTPUT_CACHE_BYTES_PER_COUNTER = 1024; // Frequency sketch sized for pages of a kilobyte and more
+    public static final int OUTPUT_CACHE_ENTRY_OVERHEAD = 128; // In bytes, the entry and its arrays
+    public static final long DEFAULT_HASH_STORE_MAX_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_HASH_STORE_FLUSH_INTERVAL_MILLIS = 5000;
+    public static final int HASH_STORE_MAGIC = 0x43535048; // "CSPH"
+    public static final int HASH_STORE_VERSION = 1;
+    public static final String HASH_STORE_PREVIOUS_SUFFIX = ".1";
+    public static final long HASH_STORE_CLOSE_TIMEOUT_MILLIS = 5000;
 
 }
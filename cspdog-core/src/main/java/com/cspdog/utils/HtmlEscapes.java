@@ -0,0 +1,137 @@
+package com.cspdog.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HTML 4 character references, as browsers read them in attribute values: the 252 named references, and decimal or
+ * hexadecimal numeric ones, every reference ending with a semicolon. Anything which is not a known reference is kept
+ * as it is.
+ */
+public final class HtmlEscapes {
+
+    // Named references of the ISO-8859-1 characters, from U+00A0 on
+    private static final String[] LATIN_1_NAMES = {
+            "nbsp", "iexcl", "cent", "pound", "curren", "yen", "brvbar", "sect", "uml", "copy", "ordf", "laquo", "not",
+            "shy", "reg", "macr", "deg", "plusmn", "sup2", "sup3", "acute", "micro", "para", "middot", "cedil", "sup1",
+            "ordm", "raquo", "frac14", "frac12", "frac34", "iquest", "Agrave", "Aacute", "Acirc", "Atilde", "Auml",
+            "Aring", "AElig", "Ccedil", "Egrave", "Eacute", "Ecirc", "Euml", "Igrave", "Iacute", "Icirc", "Iuml", "ETH",
+            "Ntilde", "Ograve", "Oacute", "Ocirc", "Otilde", "Ouml", "times", "Oslash", "Ugrave", "Uacute", "Ucirc",
+            "Uuml", "Yacute", "THORN", "szlig", "agrave", "aacute", "acirc", "atilde", "auml", "aring", "aelig",
+            "ccedil", "egrave", "eacute", "ecirc", "euml", "igrave", "iacute", "icirc", "iuml", "eth", "ntilde",
+            "ograve", "oacute", "ocirc", "otilde", "ouml", "divide", "oslash", "ugrave", "uacute", "ucirc", "uuml",
+            "yacute", "thorn", "yuml"};
+    private static final int LATIN_1_FIRST_CODE_POINT = 0xA0;
+    private static final String[] EXTENDED_NAMES = {
+            "OElig", "oelig", "Scaron", "scaron", "Yuml", "fnof", "circ", "tilde", "Alpha", "Beta", "Gamma", "Delta",
+            "Epsilon", "Zeta", "Eta", "Theta", "Iota", "Kappa", "Lambda", "Mu", "Nu", "Xi", "Omicron", "Pi", "Rho",
+            "Sigma", "Tau", "Upsilon", "Phi", "Chi", "Psi", "Omega", "alpha", "beta", "gamma", "delta", "epsilon",
+            "zeta", "eta", "theta", "iota", "kappa", "lambda", "mu", "nu", "xi", "omicron", "pi", "rho", "sigmaf",
+            "sigma", "tau", "upsilon", "phi", "chi", "psi", "omega", "thetasym", "upsih", "piv", "ensp", "emsp",
+            "thinsp", "zwnj", "zwj", "lrm", "rlm", "ndash", "mdash", "lsquo", "rsquo", "sbquo", "ldquo", "rdquo",
+            "bdquo", "dagger", "Dagger", "bull", "hellip", "permil", "prime", "Prime", "lsaquo", "rsaquo", "oline",
+            "frasl", "euro", "image", "weierp", "real", "trade", "alefsym", "larr", "uarr", "rarr", "darr", "harr",
+            "crarr", "lArr", "uArr", "rArr", "dArr", "hArr", "forall", "part", "exist", "empty", "nabla", "isin",
+            "notin", "ni", "prod", "sum", "minus", "lowast", "radic", "prop", "infin", "ang", "and", "or", "cap", "cup",
+            "int", "there4", "sim", "cong", "asymp", "ne", "equiv", "le", "ge", "sub", "sup", "nsub", "sube", "supe",
+            "oplus", "otimes", "perp", "sdot", "lceil", "rceil", "lfloor", "rfloor", "lang", "rang", "loz", "spades",
+            "clubs", "hearts", "diams"};
+    private static final int[] EXTENDED_CODE_POINTS = {
+            338, 339, 352, 353, 376, 402, 710, 732, 913, 914, 915, 916, 917, 918, 919, 920, 921, 922, 923, 924, 925,
+            926, 927, 928, 929, 931, 932, 933, 934, 935, 936, 937, 945, 946, 947, 948, 949, 950, 951, 952, 953, 954,
+            955, 956, 957, 958, 959, 960, 961, 962, 963, 964, 965, 966, 967, 968, 969, 977, 978, 982, 8194, 8195, 8201,
+            8204, 8205, 8206, 8207, 8211, 8212, 8216, 8217, 8218, 8220, 8221, 8222, 8224, 8225, 8226, 8230, 8240, 8242,
+            8243, 8249, 8250, 8254, 8260, 8364, 8465, 8472, 8476, 8482, 8501, 8592, 8593, 8594, 8595, 8596, 8629, 8656,
+            8657, 8658, 8659, 8660, 8704, 8706, 8707, 8709, 8711, 8712, 8713, 8715, 8719, 8721, 8722, 8727, 8730, 8733,
+            8734, 8736, 8743, 8744, 8745, 8746, 8747, 8756, 8764, 8773, 8776, 8800, 8801, 8804, 8805, 8834, 8835, 8836,
+            8838, 8839, 8853, 8855, 8869, 8901, 8968, 8969, 8970, 8971, 9001, 9002, 9674, 9824, 9827, 9829, 9830};
+    private static final Map<String, Integer> codePointsByName = new HashMap<>(512);
+    private static final Map<Integer, String> namesByCodePoint = new HashMap<>(512);
+    // Longest named reference, "thetasym", with its ampersand and semicolon
+    private static final int MAX_REFERENCE_LENGTH = 10;
+
+    static {
+        addReference("quot", '"');
+        addReference("amp", '&');
+        addReference("lt", '<');
+        addReference("gt", '>');
+        for (int i = 0; i < LATIN_1_NAMES.length; i++) {
+            addReference(LATIN_1_NAMES[i], LATIN_1_FIRST_CODE_POINT + i);
+        }
+        for (int i = 0; i < EXTENDED_NAMES.length; i++) {
+            addReference(EXTENDED_NAMES[i], EXTENDED_CODE_POINTS[i]);
+        }
+    }
+
+    private HtmlEscapes() {
+    }
+
+    private static void addReference(String name, int codePoint) {
+        codePointsByName.put(name, codePoint);
+        namesByCodePoint.put(codePoint, name);
+    }
+
+    /**
+     * The text with every character which has a named reference escaped with it.
+     */
+    public static String escapeHtml4(String text) {
+        if (text == null) return null;
+        StringBuilder sb = null;
+        int copied = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            // Markup delimiters aside, ASCII has no named reference
+            if (c < 0x80 && c != '"' && c != '&' && c != '<' && c != '>') continue;
+            String name = namesByCodePoint.get((int) c);
+            if (name == null) continue;
+            if (sb == null) sb = new StringBuilder(text.length() + 16);
+            sb.append(text, copied, i).append('&').append(name).append(';');
+            copied = i + 1;
+        }
+        if (sb == null) return text;
+        return sb.append(text, copied, text.length()).toString();
+    }
+
+    /**
+     * The text with its character references replaced with the characters they stand for.
+     */
+    public static String unescapeHtml4(String text) {
+        if (text == null) return null;
+        int ampersand = text.indexOf('&');
+        if (ampersand < 0) return text;
+        StringBuilder sb = new StringBuilder(text.length());
+        int copied = 0;
+        for (; ampersand >= 0; ampersand = text.indexOf('&', ampersand + 1)) {
+            int semicolon = text.indexOf(';', ampersand + 1);
+            if (semicolon < 0) break;
+            if (semicolon - ampersand + 1 > MAX_REFERENCE_LENGTH && (ampersand + 1 == text.length() || text.charAt(ampersand + 1) != '#')) continue;
+            int codePoint = resolve(text, ampersand + 1, semicolon);
+            if (codePoint < 0) continue;
+            sb.append(text, copied, ampersand).appendCodePoint(codePoint);
+            copied = semicolon + 1;
+            ampersand = semicolon;
+        }
+        return sb.append(text, copied, text.length()).toString();
+    }
+
+    /**
+     * Code point of the reference between the ampersand and the semicolon, -1 if it is not one.
+     */
+    private static int resolve(String text, int start, int end) {
+        if (start == end) return -1;
+        if (text.charAt(start) != '#') {
+            Integer codePoint = codePointsByName.get(text.substring(start, end));
+            return codePoint == null ? -1 : codePoint;
+        }
+        boolean hexadecimal = start + 1 < end && (text.charAt(start + 1) == 'x' || text.charAt(start + 1) == 'X');
+        int digits = start + (hexadecimal ? 2 : 1);
+        if (digits == end) return -1;
+        try {
+            int codePoint = Integer.parseInt(text, digits, end, hexadecimal ? 16 : 10);
+            return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.cspdog.utils;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static com.cspdog.utils.Constants.*;
+
+/**
+ * Shrinks a rendered policy without changing what it allows, so it can still go in a header rather than a meta tag:
+ * <ul>
+ *     <li>repeated directives are dropped, browsers only honour the first one</li>
+ *     <li>repeated sources within a directive are dropped, e.g. a hash of both a handler and a style, or a
+ *     placeholder used twice in the template</li>
+ *     <li>hashes of a directive also listed in its <code>-attr</code> counterpart are dropped, inline handlers and
+ *     styles being matched against the latter</li>
+ *     <li>whitespace is collapsed</li>
+ * </ul>
+ * Only meant for policies over {@link Constants#MAX_CSP_HEADER_SIZE}, as it allocates per directive and source.
+ */
+public final class PolicyCompaction {
+
+    private PolicyCompaction() {
+    }
+
+    public static String compact(String policy) {
+        List<String> names = new ArrayList<>();
+        List<Set<String>> sources = new ArrayList<>();
+        for (String directive : StringUtils.split(policy, DIRECTIVE_SEPARATOR)) {
+            String[] tokens = StringUtils.split(directive);
+            if (tokens.length == 0) continue;
+            String name = tokens[0].toLowerCase(Locale.ROOT);
+            if (names.contains(name)) continue;
+            Set<String> directiveSources = new LinkedHashSet<>();
+            for (int i = 1; i < tokens.length; i++) {
+                directiveSources.add(tokens[i]);
+            }
+            names.add(name);
+            sources.add(directiveSources);
+        }
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            if (!name.endsWith(ATTR_DIRECTIVE_SUFFIX)) continue;
+            int element = names.indexOf(name.substring(0, name.length() - ATTR_DIRECTIVE_SUFFIX.length()));
+            if (element < 0) continue;
+            Set<String> attributeSources = sources.get(i);
+            sources.get(element).removeIf(source -> isHash(source) && attributeSources.contains(source));
+        }
+        StringBuilder sb = new StringBuilder(policy.length());
+        for (int i = 0; i < names.size(); i++) {
+            if (sb.length() > 0) sb.append(BLANK_SPACE);
+            sb.append(names.get(i));
+            for (String source : sources.get(i)) {
+                sb.append(BLANK_SPACE).append(source);
+            }
+            sb.append(DIRECTIVE_SEPARATOR);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isHash(String source) {
+        return source.regionMatches(true, 0, HASH_SOURCE_PREFIX, 0, HASH_SOURCE_PREFIX.length());
+    }
+
+}
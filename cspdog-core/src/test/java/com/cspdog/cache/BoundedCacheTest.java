@@ -0,0 +1,50 @@
+package com.cspdog.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void testGetAndPut() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, 60_000);
+        assertNull(cache.get("sayHi();"));
+        cache.put("sayHi();", "SHA256-gbbBOORvGXZmIA6BOnpHAMAWTvCqLZu3ENf57MWLd+Y=");
+        assertEquals("SHA256-gbbBOORvGXZmIA6BOnpHAMAWTvCqLZu3ENf57MWLd+Y=", cache.get("sayHi();"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testSizeBound() {
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(100, 60_000);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+        }
+        assertTrue(cache.size() <= 100);
+        assertTrue(cache.getEvictions() >= 900);
+    }
+
+    @Test
+    public void testTTLExpiry() throws Exception {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, 1);
+        cache.put("color:red;", "hash");
+        Thread.sleep(5);
+        assertNull(cache.get("color:red;"));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testFingerprintIgnoresNonce() {
+        String firstBody = "<script nonce=\"abc123\">sayHi();</script><p onclick=\"sayHi();\">Hi</p>";
+        String secondBody = "<script nonce=\"xyz789\">sayHi();</script><p onclick=\"sayHi();\">Hi</p>";
+        assertEquals(HashCaches.fingerprint(firstBody, "abc123"), HashCaches.fingerprint(secondBody, "xyz789"));
+        assertNotEquals(HashCaches.fingerprint(firstBody, "abc123"), HashCaches.fingerprint(secondBody.replace("sayHi", "sayBye"), "xyz789"));
+    }
+
+}
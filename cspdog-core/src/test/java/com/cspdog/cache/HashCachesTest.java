@@ -0,0 +1,33 @@
+package com.cspdog.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class HashCachesTest {
+
+    @Test
+    public void testDigestSkipsNonce() {
+        String template = "<script nonce=\"%s\">go();</script><p onclick=\"a()\">Hi</p>";
+        assertEquals(HashCaches.digest(String.format(template, "n0nce1"), "n0nce1"),
+                HashCaches.digest(String.format(template, "n0nce2"), "n0nce2"));
+        assertEquals(HashCaches.fingerprint(String.format(template, "n0nce1"), "n0nce1"),
+                HashCaches.fingerprint(String.format(template, "n0nce2"), "n0nce2"));
+    }
+
+    @Test
+    public void testDigestOfOtherBody() {
+        assertNotEquals(HashCaches.digest("<p onclick=\"a()\">Hi</p>", null), HashCaches.digest("<p onclick=\"b()\">Hi</p>", null));
+        // Code units, not just their low bytes
+        assertNotEquals(HashCaches.digest("\u0141", null), HashCaches.digest("A", null));
+    }
+
+    @Test
+    public void testDigestLongerThanBuffer() {
+        String body = "<p style=\"color:red\">x</p>".repeat(2000);
+        assertEquals(HashCaches.digest(body, null), HashCaches.digest(new String(body.toCharArray()), null));
+        assertNotEquals(HashCaches.digest(body, null), HashCaches.digest(body + " ", null));
+    }
+
+}
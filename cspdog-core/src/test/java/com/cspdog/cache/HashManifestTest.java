@@ -0,0 +1,95 @@
+package com.cspdog.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HashManifestTest {
+
+    private static final String PAGE = "<html><head></head><body><button onclick=\"myFunction()\" style=\"color: red\">Go</button></body></html>";
+
+    @TempDir
+    Path webappDirectory;
+
+    @AfterEach
+    public void tearDown() {
+        HashManifest.reset();
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        Files.writeString(webappDirectory.resolve("index.html"), PAGE);
+        Files.createDirectories(webappDirectory.resolve("sub"));
+        Files.writeString(webappDirectory.resolve("sub/page.htm"), "<p>static</p>");
+        Files.createDirectories(webappDirectory.resolve("WEB-INF"));
+        Files.writeString(webappDirectory.resolve("WEB-INF/private.html"), PAGE);
+        Files.writeString(webappDirectory.resolve("page.jsp"), PAGE);
+
+        Map<String, HashManifest.Entry> entries = HashManifest.scan(webappDirectory, List.of(".html", ".htm"));
+
+        assertEquals(List.of("/index.html", "/sub/page.htm"), List.copyOf(entries.keySet()));
+        HashManifest.Entry index = entries.get("/index.html");
+        assertTrue(index.getHashes().getEventHandlerHashes().contains("'SHA256-"));
+        assertTrue(index.getHashes().getInlinedStyleHashes().contains("'SHA256-"));
+        assertEquals("", entries.get("/sub/page.htm").getHashes().getEventHandlerHashes().trim());
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Map<String, HashManifest.Entry> entries = Map.of("/index.html", HashManifest.analyze(PAGE), "/empty.html", HashManifest.analyze(""));
+        StringWriter manifest = new StringWriter();
+        HashManifest.write(entries, manifest);
+
+        Map<String, HashManifest.Entry> read = HashManifest.read(new StringReader(manifest.toString()));
+
+        assertEquals(2, read.size());
+        HashManifest.Entry written = entries.get("/index.html");
+        assertEquals(written.getDigest(), read.get("/index.html").getDigest());
+        assertEquals(written.getHashes().getEventHandlerHashes(), read.get("/index.html").getHashes().getEventHandlerHashes());
+        assertEquals(written.getHashes().getInlinedStyleHashes(), read.get("/index.html").getHashes().getInlinedStyleHashes());
+        assertEquals(written.getExternalizedHashes().getEventHandlerHashes(), read.get("/index.html").getExternalizedHashes().getEventHandlerHashes());
+        StringWriter rewritten = new StringWriter();
+        HashManifest.write(read, rewritten);
+        assertEquals(manifest.toString(), rewritten.toString());
+    }
+
+    @Test
+    public void testGetHashes() {
+        HashManifest.Entry entry = HashManifest.analyze(PAGE);
+        HashManifest.setEntries(Map.of("/index.html", entry));
+
+        assertSame(entry.getHashes(), HashManifest.getHashes("/index.html", PAGE, false));
+        // Welcome file
+        assertSame(entry.getHashes(), HashManifest.getHashes("/", PAGE, false));
+        // Page changed since the manifest was computed
+        assertNull(HashManifest.getHashes("/index.html", PAGE.replace("red", "blue"), false));
+        assertNull(HashManifest.getHashes("/other.html", PAGE, false));
+    }
+
+    @Test
+    public void testGetHashes_ExternalizedEventHandlers() {
+        HashManifest.Entry entry = HashManifest.analyze(PAGE);
+        HashManifest.setEntries(Map.of("/index.html", entry));
+
+        HashCaches.InlineHashes hashes = HashManifest.getHashes("/index.html", PAGE, true);
+        // The handler is moved into the delegation script, only the style is left to hash
+        assertSame(entry.getExternalizedHashes(), hashes);
+        assertEquals("", hashes.getEventHandlerHashes().trim());
+        assertEquals(entry.getHashes().getInlinedStyleHashes(), hashes.getInlinedStyleHashes());
+        assertTrue(entry.getHashes().getEventHandlerHashes().contains("'SHA256-"));
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.cspdog.cache;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PersistentHashStoreTest {
+
+    private static final String HASH = "SHA256-gbbBOORvGXZmIA6BOnpHAMAWTvCqLZu3ENf57MWLd+Y=";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testGetAndPut() throws IOException {
+        try (PersistentHashStore store = new PersistentHashStore(directory.resolve("hashes.store"), 64 * 1024)) {
+            assertNull(store.getAttributeHash("sayHi();"));
+            store.putAttributeHash("sayHi();", HASH);
+            store.putBodyHashes(HashCaches.digest("<p onclick=\"go()\">", null), new HashCaches.InlineHashes("'SHA256-a=' ", ""));
+
+            assertEquals(HASH, store.getAttributeHash("sayHi();"));
+            assertNull(store.getAttributeHash("sayHo();"));
+            HashCaches.InlineHashes hashes = store.getBodyHashes(HashCaches.digest("<p onclick=\"go()\">", null));
+            assertEquals("'SHA256-a=' ", hashes.getEventHandlerHashes());
+            assertEquals("", hashes.getInlinedStyleHashes());
+            assertNull(store.getBodyHashes(HashCaches.digest("<p onclick=\"stop()\">", null)));
+        }
+    }
+
+    @Test
+    public void testReopened() throws IOException {
+        Path file = directory.resolve("hashes.store");
+        try (PersistentHashStore store = new PersistentHashStore(file, 1024 * 1024)) {
+            for (int i = 0; i < 5000; i++) {
+                store.putAttributeHash("go(" + i + ");", HASH + i);
+            }
+            // Already there, not appended again
+            store.putAttributeHash("go(0);", HASH);
+            assertEquals(5000, store.size());
+        }
+        try (PersistentHashStore store = new PersistentHashStore(file, 1024 * 1024)) {
+            assertEquals(5000, store.size());
+            assertEquals(HASH + 4999, store.getAttributeHash("go(4999);"));
+            store.putAttributeHash("color: red;", HASH);
+        }
+        try (PersistentHashStore store = new PersistentHashStore(file, 1024 * 1024)) {
+            assertEquals(5001, store.size());
+            assertEquals(HASH, store.getAttributeHash("color: red;"));
+        }
+    }
+
+    @Test
+    public void testTornRecordIgnored() throws IOException {
+        Path file = directory.resolve("hashes.store");
+        try (PersistentHashStore store = new PersistentHashStore(file, 64 * 1024)) {
+            store.putAttributeHash("first();", HASH);
+            store.putAttributeHash("second();", HASH);
+        }
+        // A crash halfway through the second record
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            long secondValue = 8 + 8 + 5 + "first();".length() + HASH.length() + 8 + 5 + "second();".length();
+            raf.seek(secondValue);
+            raf.write(new byte[4]);
+        }
+        try (PersistentHashStore store = new PersistentHashStore(file, 64 * 1024)) {
+            assertEquals(1, store.size());
+            assertEquals(HASH, store.getAttributeHash("first();"));
+            assertNull(store.getAttributeHash("second();"));
+            // Appended over the torn record
+            store.putAttributeHash("third();", HASH);
+        }
+        try (PersistentHashStore store = new PersistentHashStore(file, 64 * 1024)) {
+            assertEquals(2, store.size());
+            assertEquals(HASH, store.getAttributeHash("third();"));
+        }
+    }
+
+    @Test
+    public void testFull() throws IOException {
+        Path file = directory.resolve("hashes.store");
+        try (PersistentHashStore store = new PersistentHashStore(file, 2048)) {
+            for (int i = 0; i < 100; i++) {
+                store.putAttributeHash("go(" + i + ");", HASH);
+            }
+            int kept = store.size();
+            assertTrue(kept > 0 && kept < 100);
+            assertNull(store.getAttributeHash("go(99);"));
+
+            // Rolled over by the background flush, new entries are learned again
+            store.flush();
+            assertTrue(Files.exists(directory.resolve("hashes.store.1")));
+            store.putAttributeHash("go(99);", HASH);
+            assertEquals(HASH, store.getAttributeHash("go(99);"));
+            assertEquals(HASH, store.getAttributeHash("go(" + (kept - 1) + ");"));
+        }
+    }
+
+    @Test
+    public void testPreviousGenerationPromoted() throws IOException {
+        Path file = directory.resolve("hashes.store");
+        try (PersistentHashStore store = new PersistentHashStore(file, 2048)) {
+            for (int i = 0; i < 100; i++) {
+                store.putAttributeHash("go(" + i + ");", HASH);
+            }
+            store.flush();
+            // Found in the previous generation, copied into the current one
+            assertEquals(HASH, store.getAttributeHash("go(0);"));
+            for (int i = 100; i < 200; i++) {
+                store.putAttributeHash("go(" + i + ");", HASH);
+            }
+            store.flush();
+            assertEquals(HASH, store.getAttributeHash("go(0);"));
+            assertNull(store.getAttributeHash("go(1);"));
+        }
+        try (PersistentHashStore store = new PersistentHashStore(file, 2048)) {
+            assertEquals(HASH, store.getAttributeHash("go(0);"));
+        }
+    }
+
+    @Test
+    public void testLockedFileReadOnly() throws IOException {
+        Path file = directory.resolve("hashes.store");
+        try (PersistentHashStore writer = new PersistentHashStore(file, 64 * 1024)) {
+            writer.putAttributeHash("sayHi();", HASH);
+            try (PersistentHashStore reader = new PersistentHashStore(file, 64 * 1024)) {
+                assertFalse(reader.isWritable());
+                assertEquals(HASH, reader.getAttributeHash("sayHi();"));
+                reader.putAttributeHash("sayHo();", HASH);
+                assertNull(reader.getAttributeHash("sayHo();"));
+            }
+        }
+    }
+
+    @Test
+    public void testNotAStore() throws IOException {
+        Path file = directory.resolve("notes.txt");
+        Files.writeString(file, "not a hash store at all");
+        assertThrows(IOException.class, () -> new PersistentHashStore(file, 64 * 1024));
+        assertEquals("not a hash store at all", Files.readString(file));
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.cspdog.cache;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.metrics.FilterMetrics;
+import com.cspdog.rewriter.Rewriter;
+import com.cspdog.rewriter.Rewriters;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RewrittenOutputCacheTest {
+
+    private static final HashCaches.InlineHashes HASHES = new HashCaches.InlineHashes("'SHA256-a=' ", "");
+
+    private final Rewriter rewriter = Rewriters.get("regex");
+    private final CSPConfiguration configuration = CSPConfiguration.builder().build();
+
+    @BeforeEach
+    public void setUp() {
+        FilterMetrics.reset();
+    }
+
+    @Test
+    public void testRender() {
+        RewrittenOutputCache cache = new RewrittenOutputCache(1024 * 1024);
+        String body = "<script>a();</script><style>b{}</style>";
+        long fingerprint = HashCaches.fingerprint(body, null);
+        assertNull(cache.get(fingerprint, body, rewriter, configuration));
+        cache.put(fingerprint, body, rewriter, configuration, "<script nonce=\"n0nce\">a();</script><style nonce=\"n0nce\">b{}</style>", "n0nce", HASHES);
+
+        RewrittenOutputCache.Entry entry = cache.get(fingerprint, body, rewriter, configuration);
+        assertNotNull(entry);
+        assertEquals("<script nonce=\"fresh\">a();</script><style nonce=\"fresh\">b{}</style>", entry.render("fresh"));
+        assertEquals(HASHES, entry.getHashes());
+        assertEquals(1, FilterMetrics.getOutputCacheHits());
+        assertEquals(1, FilterMetrics.getOutputCacheMisses());
+        assertEquals(0.5, FilterMetrics.getOutputCacheHitRatio());
+    }
+
+    @Test
+    public void testMissOnOtherBodyOrConfiguration() {
+        RewrittenOutputCache cache = new RewrittenOutputCache(1024 * 1024);
+        String body = "<p>same fingerprint</p>";
+        long fingerprint = HashCaches.fingerprint(body, null);
+        cache.put(fingerprint, body, rewriter, configuration, body, "n0nce", HASHES);
+
+        // A colliding fingerprint, or a configuration reloaded since, is not served the entry
+        assertNull(cache.get(fingerprint, "<p>another body</p>", rewriter, configuration));
+        assertNull(cache.get(fingerprint, body, rewriter, configuration.toBuilder().build()));
+        assertNotNull(cache.get(fingerprint, body, rewriter, configuration));
+    }
+
+    @Test
+    public void testNonceInBodyNotCached() {
+        RewrittenOutputCache cache = new RewrittenOutputCache(1024 * 1024);
+        String body = "<p>n0nce</p><script></script>";
+        long fingerprint = HashCaches.fingerprint(body, null);
+        cache.put(fingerprint, body, rewriter, configuration, "<p>n0nce</p><script nonce=\"n0nce\"></script>", "n0nce", HASHES);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testMemoryBound() {
+        RewrittenOutputCache cache = new RewrittenOutputCache(64 * 1024);
+        for (int i = 0; i < 200; i++) {
+            String body = "<p>" + i + "</p>" + "x".repeat(1000);
+            long fingerprint = HashCaches.fingerprint(body, null);
+            // The later bodies seen more often, so they take the place of the earlier ones
+            for (int lookups = 0; lookups <= i / 20; lookups++) {
+                cache.get(fingerprint, body, rewriter, configuration);
+            }
+            cache.put(fingerprint, body, rewriter, configuration, body, "n0nce", HASHES);
+        }
+        assertTrue(cache.getWeightedSize() <= 64 * 1024);
+        assertTrue(cache.size() > 0);
+        assertTrue(FilterMetrics.getOutputCacheEvictions() > 0);
+    }
+
+    @Test
+    public void testFrequentBodiesNotEvictedByOneOffs() {
+        RewrittenOutputCache cache = new RewrittenOutputCache(16 * 1024);
+        String popular = "<p>popular</p>" + "x".repeat(1000);
+        long popularFingerprint = HashCaches.fingerprint(popular, null);
+        for (int i = 0; i < 5; i++) {
+            cache.get(popularFingerprint, popular, rewriter, configuration);
+        }
+        cache.put(popularFingerprint, popular, rewriter, configuration, popular, "n0nce", HASHES);
+        for (int i = 0; i < 100; i++) {
+            String oneOff = "<p>" + i + "</p>" + "x".repeat(1000);
+            long fingerprint = HashCaches.fingerprint(oneOff, null);
+            cache.get(fingerprint, oneOff, rewriter, configuration);
+            cache.put(fingerprint, oneOff, rewriter, configuration, oneOff, "n0nce", HASHES);
+        }
+        assertNotNull(cache.get(popularFingerprint, popular, rewriter, configuration));
+        assertTrue(FilterMetrics.getOutputCacheRejections() > 0);
+    }
+
+    @Test
+    public void testDisabled() {
+        RewrittenOutputCache cache = new RewrittenOutputCache(0);
+        String body = "<p>Hi</p>";
+        cache.put(1, body, rewriter, configuration, body, "n0nce", HASHES);
+        assertNull(cache.get(1, body, rewriter, configuration));
+        assertEquals(0, FilterMetrics.getOutputCacheMisses());
+    }
+
+}
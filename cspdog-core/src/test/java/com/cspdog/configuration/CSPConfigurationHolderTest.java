@@ -1,11 +1,30 @@
 package com.cspdog.configuration;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class CSPConfigurationHolderTest {
 
+    @AfterEach
+    public void tearDown() {
+        CSPConfigurationHolder.setConfigurationSupplier(null);
+        System.clearProperty("cspdog.configFile");
+        CSPConfigurationHolder.readCSPConfiguration();
+    }
+
     @Test
     public void testReadCSPConfiguration() {
         CSPConfigurationHolder.readCSPConfiguration();
@@ -14,20 +33,103 @@ public class CSPConfigurationHolderTest {
 
     @Test
     public void testIsCSPConfigured() {
-        CSPConfiguration.ENFORCED_POLICY = null;
-        CSPConfiguration.REPORT_ONLY_POLICY = null;
+        CSPConfigurationHolder.setConfiguration(CSPConfiguration.builder().enforcedPolicy(null).reportOnlyPolicy(null).build());
         assertFalse(CSPConfigurationHolder.isCSPConfigured());
 
-        CSPConfiguration.ENFORCED_POLICY = "script-src 'self'";
-        CSPConfiguration.REPORT_ONLY_POLICY = null;
+        CSPConfigurationHolder.setConfiguration(CSPConfiguration.builder().enforcedPolicy("script-src 'self'").reportOnlyPolicy(null).build());
         assertFalse(CSPConfigurationHolder.isCSPConfigured());
 
-        CSPConfiguration.ENFORCED_POLICY = null;
-        CSPConfiguration.REPORT_ONLY_POLICY = "script-src 'self'";
+        CSPConfigurationHolder.setConfiguration(CSPConfiguration.builder().enforcedPolicy(null).reportOnlyPolicy("script-src 'self'").build());
         assertFalse(CSPConfigurationHolder.isCSPConfigured());
 
-        CSPConfiguration.ENFORCED_POLICY = "script-src 'self'";
-        CSPConfiguration.REPORT_ONLY_POLICY = "script-src 'self'";
+        CSPConfigurationHolder.setConfiguration(CSPConfiguration.builder().enforcedPolicy("script-src 'self'").reportOnlyPolicy("script-src 'self'").build());
         assertTrue(CSPConfigurationHolder.isCSPConfigured());
     }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testSetConfiguration_LegacyPolicies() {
+        CSPConfigurationHolder.setConfiguration(CSPConfiguration.builder().enforcedPolicy("script-src 'self'").reportOnlyPolicy("style-src 'self'").build());
+        assertEquals("script-src 'self'", CSPConfiguration.ENFORCED_POLICY);
+        assertEquals("style-src 'self'", CSPConfiguration.REPORT_ONLY_POLICY);
+    }
+
+    @Test
+    public void testReadCSPConfiguration_FileAndSupplier(@TempDir Path directory) throws Exception {
+        Path configurationFile = directory.resolve("cspdog.yml");
+        Files.write(configurationFile, List.of(
+                "# CSPDog",
+                "enforcedPolicy: \"script-src 'self' 'nonce-{nonce}'\"",
+                "streamingRewrite: true",
+                "maxRewritableContentLength: 1024"));
+        System.setProperty("cspdog.configFile", configurationFile.toString());
+        CSPConfigurationHolder.setConfigurationSupplier(() -> Map.of("maxRewritableContentLength", "2048"));
+
+        CSPConfigurationHolder.readCSPConfiguration();
+
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        assertEquals("script-src 'self' 'nonce-{nonce}'", configuration.getEnforcedPolicy());
+        assertTrue(configuration.getEnforcedPolicyTemplate().contains(PolicyTemplate.Placeholder.NONCE));
+        assertTrue(configuration.isStreamingRewrite());
+        // The supplier overrides the file
+        assertEquals(2048, configuration.getMaxRewritableContentLength());
+    }
+
+    @Test
+    public void testReadCSPConfiguration_MalformedKeepsCurrent() {
+        CSPConfigurationHolder.readCSPConfiguration();
+        CSPConfiguration current = CSPConfigurationHolder.getConfiguration();
+        CSPConfigurationHolder.setConfigurationSupplier(() -> Map.of("maxRewritableContentLength", "ten"));
+
+        CSPConfigurationHolder.readCSPConfiguration();
+
+        assertSame(current, CSPConfigurationHolder.getConfiguration());
+    }
+
+    @Test
+    public void testReadCSPConfiguration_SampleRates() {
+        CSPConfigurationHolder.setConfigurationSupplier(() -> Map.of("rewriteSampleRate", "0.25",
+                "rewriteSampleRoutes", "/checkout/.*=0, /blog/.*=0.5", "rewriteSampleUserAgents", "Bot=0,mobile=0.1"));
+
+        CSPConfigurationHolder.readCSPConfiguration();
+
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        assertEquals(0.25, configuration.getRewriteSampleRate());
+        assertEquals(List.of("/checkout/.*", "/blog/.*"), configuration.getRewriteSampleRoutes().keySet().stream().map(Pattern::pattern).toList());
+        assertEquals(List.of(0.0, 0.5), List.copyOf(configuration.getRewriteSampleRoutes().values()));
+        assertEquals(Map.of("bot", 0.0, "mobile", 0.1), configuration.getRewriteSampleUserAgents());
+
+        // Out of range, the current rates are kept
+        CSPConfigurationHolder.setConfigurationSupplier(() -> Map.of("rewriteSampleRate", "1.5"));
+        CSPConfigurationHolder.readCSPConfiguration();
+        assertSame(configuration, CSPConfigurationHolder.getConfiguration());
+    }
+
+    @Test
+    public void testReadCSPConfiguration_RegexesWithCommas() {
+        CSPConfigurationHolder.setConfigurationSupplier(() -> Map.of("excludedUrlPatterns", "/v\\d{1,3}/.*, /(a|b),/c\\,d, /[,;]x",
+                "rewriteSampleRoutes", "/api/v\\d{1,2}/.*=0,/blog/.*=0.5"));
+
+        CSPConfigurationHolder.readCSPConfiguration();
+
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        assertEquals(List.of("/v\\d{1,3}/.*", "/(a|b)", "/c\\,d", "/[,;]x"),
+                configuration.getExcludedURLPatterns().stream().map(Pattern::pattern).toList());
+        assertTrue(configuration.getExcludedURLPatterns().get(0).matcher("/v12/x").matches());
+        assertEquals(List.of("/api/v\\d{1,2}/.*", "/blog/.*"), configuration.getRewriteSampleRoutes().keySet().stream().map(Pattern::pattern).toList());
+    }
+
+    @Test
+    public void testSetConfiguration_Null() {
+        CSPConfiguration current = CSPConfigurationHolder.getConfiguration();
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> CSPConfigurationHolder.setConfiguration(null));
+        assertTrue(e.getMessage().contains("null"));
+        assertSame(current, CSPConfigurationHolder.getConfiguration());
+    }
+
+    @Test
+    public void testToEnvironmentVariableName() {
+        assertEquals("CSPDOG_STREAMING_REWRITE", CSPConfigurationHolder.toEnvironmentVariableName("streamingRewrite"));
+        assertEquals("CSPDOG_ENFORCED_POLICY", CSPConfigurationHolder.toEnvironmentVariableName("enforcedPolicy"));
+    }
 }
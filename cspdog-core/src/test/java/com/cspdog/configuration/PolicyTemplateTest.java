@@ -0,0 +1,38 @@
+package com.cspdog.configuration;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PolicyTemplateTest {
+
+    private static final PolicyTemplate.Values VALUES = new PolicyTemplate.Values()
+            .with(PolicyTemplate.Placeholder.NONCE, "nonce-123")
+            .with(PolicyTemplate.Placeholder.EVENT_HANDLER_HASHES, "'SHA256-a=' ")
+            .with(PolicyTemplate.Placeholder.INLINE_STYLE_HASHES, "'SHA256-b=' ");
+
+    @Test
+    public void testRender() {
+        PolicyTemplate template = PolicyTemplate.parse("script-src 'self' 'nonce-{nonce}' {eventhandlerhashes}; style-src {inlinestyleshashes};");
+        String rendered = template.render(VALUES);
+        assertEquals("script-src 'self' 'nonce-nonce-123' 'SHA256-a=' ; style-src 'SHA256-b=' ;", rendered);
+        assertEquals(rendered.length(), template.getRenderedLength(VALUES));
+    }
+
+    @Test
+    public void testRender_AliasedPlaceholders() {
+        PolicyTemplate template = PolicyTemplate.parse("script-src {invocation_hashes}; style-src {inline_style_hashes}");
+        assertTrue(template.contains(PolicyTemplate.Placeholder.EVENT_HANDLER_HASHES));
+        assertEquals("script-src 'SHA256-a=' ; style-src 'SHA256-b=' ", template.render(VALUES));
+    }
+
+    @Test
+    public void testRender_UnknownPlaceholdersAndMissingValues() {
+        PolicyTemplate template = PolicyTemplate.parse("script-src {unknown} 'nonce-{nonce}' {eventhandlerhashes}{");
+        assertFalse(template.contains(PolicyTemplate.Placeholder.INLINE_STYLE_HASHES));
+        assertEquals("script-src {unknown} 'nonce-' {", template.render(new PolicyTemplate.Values()));
+    }
+
+}
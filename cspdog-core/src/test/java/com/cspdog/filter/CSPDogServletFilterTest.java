@@ -1,7 +1,19 @@
 package com.cspdog.filter;
 
 import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.cache.HashCaches;
+import com.cspdog.cache.HashManifest;
+import com.cspdog.cache.RewrittenOutputCache;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.metrics.FilterMetrics;
+import com.cspdog.metrics.RouteCounters;
+import com.cspdog.utils.BufferPool;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.junit.jupiter.api.BeforeEach;
@@ -10,8 +22,22 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import static com.cspdog.utils.Constants.ENFORCED_POLICY_HEADER_NAME;
 import static com.cspdog.utils.Constants.REPORT_ONLY_POLICY_HEADER_NAME;
@@ -36,6 +62,7 @@ public class CSPDogServletFilterTest {
         MockitoAnnotations.openMocks(this);
         filter = new CSPDogServletFilter();
         filter.init();
+        RewrittenOutputCache.reset();
     }
 
     @Test
@@ -55,8 +82,7 @@ public class CSPDogServletFilterTest {
 
     @Test
     public void testDoFilter_NoCSPConfig() throws Exception {
-        CSPConfiguration.ENFORCED_POLICY = null;
-        CSPConfiguration.REPORT_ONLY_POLICY = null;
+        CSPConfigurationHolder.setConfiguration(CSPConfiguration.builder().enforcedPolicy(null).reportOnlyPolicy(null).build());
         when(response.getWriter()).thenReturn(getWriter());
 
         filter.doFilter(request, response, filterChain);
@@ -91,7 +117,463 @@ public class CSPDogServletFilterTest {
         verify(pw).write(anyString());
     }
 
+    @Test
+    public void testDoFilter_OutputStream() throws Exception {
+        // Nothing the streaming rewriter would miss, bytes are rewritten as they are written
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder().outputCacheMaxBytes(0).build());
+        RewrittenOutputCache.reset();
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        when(response.getCharacterEncoding()).thenReturn("UTF-8");
+        when(response.getOutputStream()).thenReturn(getOutputStream(sent));
+        doAnswer(invocation -> {
+            HttpServletResponse wrapper = invocation.getArgument(1);
+            wrapper.addIntHeader("content-length", 10);
+            wrapper.getOutputStream().write("<html><head><script>var \u00f1 = 1;</script></head><body onclick=\"myFunction()\">\u00d1and\u00fa</body></html>".getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
+
+        String body = sent.toString(StandardCharsets.UTF_8);
+        assertTrue(body.startsWith("<html><head><script nonce=\""));
+        assertTrue(body.endsWith("<body onclick=\"myFunction()\">\u00d1and\u00fa</body></html>"));
+        verify(response, never()).addIntHeader(anyString(), anyInt());
+        verify(response).setContentLengthLong(sent.size());
+        ArgumentCaptor<String> headerValueCaptor = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq(ENFORCED_POLICY_HEADER_NAME), headerValueCaptor.capture());
+        assertTrue(headerValueCaptor.getValue().contains("'SHA256-DLsspdO65egz8GmJ7gT7AHNirrsTFzKLBvF8tcsc82Y='"));
+    }
+
+    @Test
+    public void testDoFilter_OutputStreamThroughConfiguredPipeline() throws Exception {
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder().externalizeEventHandlers(true).build());
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        when(response.getCharacterEncoding()).thenReturn("UTF-8");
+        when(response.getOutputStream()).thenReturn(getOutputStream(sent));
+        doAnswer(invocation -> {
+            HttpServletResponse wrapper = invocation.getArgument(1);
+            wrapper.addHeader("Content-Length", "10");
+            wrapper.getOutputStream().write("<html><head></head><body><a onclick=\"go()\">\u00d1and\u00fa</a></body></html>".getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
+
+        // Buffered as written, then rewritten by the configured engine with the handlers externalized
+        String body = sent.toString(StandardCharsets.UTF_8);
+        assertTrue(body.startsWith("<html><head></head><body><a data-cspdog-onclick=\"0\">\u00d1and\u00fa</a><script nonce=\""), body);
+        verify(response, never()).getWriter();
+        verify(response, never()).addHeader(eq("Content-Length"), anyString());
+        verify(response).setContentLength(sent.size());
+        verify(response).setHeader(eq(ENFORCED_POLICY_HEADER_NAME), argThat(policy -> policy != null && !policy.contains("'SHA256-")));
+    }
+
+    @Test
+    public void testDoFilter_HashManifestHit() throws Exception {
+        String page = "<html><head></head><body onclick=\"myFunction()\">Hi</body></html>";
+        HashCaches.InlineHashes hashes = new HashCaches.InlineHashes("'SHA256-fromManifest=' ", "");
+        HashManifest.setEntries(Map.of("/index.html", new HashManifest.Entry(HashCaches.digest(page, null), hashes, hashes)));
+        FilterMetrics.reset();
+        when(request.getServletPath()).thenReturn("/index.html");
+        when(response.getWriter()).thenReturn(getWriter());
+        doAnswer(invocation -> {
+            HttpServletResponse wrapper = invocation.getArgument(1);
+            wrapper.getWriter().write(page);
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
+
+        ArgumentCaptor<String> headerValueCaptor = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq(ENFORCED_POLICY_HEADER_NAME), headerValueCaptor.capture());
+        assertTrue(headerValueCaptor.getValue().contains("'SHA256-fromManifest='"));
+        assertEquals(1, FilterMetrics.getHashManifestHits());
+        HashManifest.reset();
+    }
+
+    @Test
+    public void testDoFilter_RewrittenOutputCacheHit() throws Exception {
+        String page = "<html><head><script>go();</script></head><body onclick=\"myFunction()\">Hi</body></html>";
+        FilterMetrics.reset();
+        doAnswer(invocation -> {
+            HttpServletResponse wrapper = invocation.getArgument(1);
+            wrapper.getWriter().write(page);
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+        StringWriter firstBody = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(firstBody));
+        filter.doFilter(request, response, filterChain);
+        StringWriter secondBody = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(secondBody));
+        filter.doFilter(request, response, filterChain);
+
+        ArgumentCaptor<String> headerValueCaptor = ArgumentCaptor.forClass(String.class);
+        verify(response, times(2)).setHeader(eq(ENFORCED_POLICY_HEADER_NAME), headerValueCaptor.capture());
+        String firstNonce = getNonce(headerValueCaptor.getAllValues().get(0));
+        String secondNonce = getNonce(headerValueCaptor.getAllValues().get(1));
+        assertNotEquals(firstNonce, secondNonce);
+        // Same rewrite and hashes, with the nonce of the second response spliced in
+        assertEquals(firstBody.toString().replace(firstNonce, secondNonce), secondBody.toString());
+        assertEquals(headerValueCaptor.getAllValues().get(0).replace(firstNonce, secondNonce), headerValueCaptor.getAllValues().get(1));
+        assertEquals(1, FilterMetrics.getOutputCacheHits());
+        assertEquals(1, FilterMetrics.getOutputCacheMisses());
+    }
+
+    @Test
+    public void testDoFilter_NonHTMLContentTypeBypassed() throws Exception {
+        RouteCounters.reset();
+        PrintWriter pw = mock(PrintWriter.class);
+        when(request.getServletPath()).thenReturn("/api");
+        when(response.getContentType()).thenReturn("application/json;charset=UTF-8");
+        when(response.getWriter()).thenReturn(pw);
+        doAnswer(invocation -> {
+            HttpServletResponse wrapper = invocation.getArgument(1);
+            wrapper.setContentLength(13);
+            wrapper.getWriter().write("{\"a\": \"<b>\"}");
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
+
+        // Straight to the client, untouched, with the length the servlet declared
+        verify(pw).write("{\"a\": \"<b>\"}");
+        verify(response).setContentLengthLong(13);
+        verify(response, never()).setHeader(anyString(), anyString());
+        assertEquals(1, RouteCounters.getBypassed("/api"));
+        assertEquals(0, RouteCounters.getRewritten("/api"));
+    }
+
+    @Test
+    public void testDoFilter_Unsampled() throws Exception {
+        RouteCounters.reset();
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder()
+                .rewriteSampleRate(0).unsampledPolicy("script-src 'self'; report-uri /csp-reports").build());
+        when(request.getServletPath()).thenReturn("/page");
+
+        filter.doFilter(request, response, filterChain);
+
+        // Not even wrapped
+        verify(filterChain).doFilter(request, response);
+        verify(response).setHeader(REPORT_ONLY_POLICY_HEADER_NAME, "script-src 'self'; report-uri /csp-reports");
+        verify(response, never()).setHeader(eq(ENFORCED_POLICY_HEADER_NAME), any());
+        assertEquals(1, RouteCounters.getUnsampled("/page"));
+    }
+
+    @Test
+    public void testDoFilter_ExcludedURLBypassed() throws Exception {
+        RouteCounters.reset();
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder()
+                .excludedURLPatterns(List.of(Pattern.compile("/static/.*"))).build());
+        when(request.getServletPath()).thenReturn("/static");
+        when(request.getPathInfo()).thenReturn("/app.css");
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(filterChain).doFilter(request, response);
+        verify(response, never()).setHeader(anyString(), anyString());
+        assertEquals(1, RouteCounters.getBypassed("/static"));
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder()
+                .excludedURLPatterns(List.of()).build());
+    }
+
+    @Test
+    public void testDoFilter_OverflowToPassthrough() throws Exception {
+        BufferPool.resetGauges();
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder()
+                .maxRewritableContentLength(40).build());
+        StringWriter sent = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(sent));
+        doAnswer(invocation -> {
+            HttpServletResponse wrapper = invocation.getArgument(1);
+            wrapper.getWriter().write("<html><head><script>var a = 1;</script>");
+            wrapper.getWriter().write("</head><body onclick=\"myFunction()\">Hello</body></html>");
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
+
+        // Sent unmodified, only reported on
+        assertEquals("<html><head><script>var a = 1;</script></head><body onclick=\"myFunction()\">Hello</body></html>", sent.toString());
+        verify(response).setHeader(eq(REPORT_ONLY_POLICY_HEADER_NAME), argThat(policy -> policy.contains("'nonce-")));
+        verify(response, never()).setHeader(eq(ENFORCED_POLICY_HEADER_NAME), anyString());
+        assertEquals(1, BufferPool.getOverflows());
+        assertEquals(0, BufferPool.getBytesInUse());
+    }
+
+    @Test
+    public void testDoFilter_OutOfMemoryBudget() throws Exception {
+        BufferPool.resetGauges();
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder()
+                .bufferMemoryBudget(0).build());
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(getOutputStream(sent));
+        doAnswer(invocation -> {
+            HttpServletResponse wrapper = invocation.getArgument(1);
+            wrapper.getOutputStream().write("<html><head><script>var a = 1;</script></head></html>".getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
 
+        assertEquals("<html><head><script>var a = 1;</script></head></html>", sent.toString(StandardCharsets.UTF_8));
+        assertEquals(1, BufferPool.getOverflows());
+        assertEquals(0, BufferPool.getHighWaterMark());
+    }
+
+    @Test
+    public void testDoFilter_RewriteOffload() throws Exception {
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder()
+                .rewriteOffload(true).rewriteLatencyBudgetMillis(10000).build());
+        StringWriter sent = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(sent));
+        doAnswer(invocation -> {
+            HttpServletResponse wrapper = invocation.getArgument(1);
+            wrapper.getWriter().write("<html><head><script>var a = 1;</script></head><body onclick=\"myFunction()\">Hello</body></html>");
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
+
+        assertTrue(sent.toString().startsWith("<html><head><script nonce=\""));
+        verify(response).setHeader(eq(ENFORCED_POLICY_HEADER_NAME), argThat(policy -> policy != null && policy.contains("'nonce-")));
+    }
+
+    @Test
+    public void testDoFilter_RewriteOffloadOverBudget() throws Exception {
+        RouteCounters.reset();
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder()
+                .rewriteOffload(true).rewriteLatencyBudgetMillis(0).build());
+        when(request.getServletPath()).thenReturn("/slow");
+        StringWriter sent = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(sent));
+        String page = "<html><head><script>var a = 1;</script></head><body>" + "<div onclick=\"a()\">x</div>".repeat(20000) + "</body></html>";
+        doAnswer(invocation -> {
+            HttpServletResponse wrapper = invocation.getArgument(1);
+            wrapper.getWriter().write(page);
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
+
+        // Sent as it came, without the headers the late rewrite may still get to
+        assertEquals(page, sent.toString());
+        verify(response, never()).setHeader(eq(ENFORCED_POLICY_HEADER_NAME), notNull());
+        verify(response).setHeader(ENFORCED_POLICY_HEADER_NAME, null);
+        assertEquals(1, RouteCounters.getTimedOut("/slow"));
+    }
+
+    @Test
+    public void testDoFilter_RewriteOffloadSaturated() throws Exception {
+        FilterMetrics.reset();
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder()
+                .rewriteOffload(true).rewriteLatencyBudgetMillis(0).build());
+        awaitNoRewriteInFlight();
+        CountDownLatch stuck = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(RewriteOffload.getMaxInFlight());
+        try {
+            // Callers still waiting for their rewrites
+            for (int i = 0; i < RewriteOffload.getMaxInFlight(); i++) {
+                callers.execute(() -> {
+                    try {
+                        RewriteOffload.call(() -> stuck.await(10, TimeUnit.SECONDS), 10000);
+                    } catch (Exception e) {
+                        // Not what is tested
+                    }
+                });
+            }
+            for (int i = 0; i < 500 && RewriteOffload.getInFlight() < RewriteOffload.getMaxInFlight(); i++) {
+                Thread.sleep(10);
+            }
+            StringWriter sent = new StringWriter();
+            when(response.getWriter()).thenReturn(new PrintWriter(sent));
+            doAnswer(invocation -> {
+                HttpServletResponse wrapper = invocation.getArgument(1);
+                wrapper.getWriter().write("<html><head><script>var a = 1;</script></head></html>");
+                return null;
+            }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+            filter.doFilter(request, response, filterChain);
+
+            assertEquals("<html><head><script>var a = 1;</script></head></html>", sent.toString());
+            verify(response).setHeader(ENFORCED_POLICY_HEADER_NAME, null);
+            assertEquals(1, FilterMetrics.getOffloadRejections());
+        } finally {
+            stuck.countDown();
+            callers.shutdown();
+        }
+        awaitNoRewriteInFlight();
+    }
+
+    private static void awaitNoRewriteInFlight() throws InterruptedException {
+        // Late rewrites of other tests run to their end
+        for (int i = 0; i < 500 && RewriteOffload.getInFlight() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, RewriteOffload.getInFlight());
+    }
+
+    @Test
+    public void testDoFilter_Compressed() throws Exception {
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder()
+                .compressResponses(true).compressionMinSize(1024).build());
+        when(request.getHeader("Accept-Encoding")).thenReturn("deflate;q=0.5, gzip");
+        when(response.getCharacterEncoding()).thenReturn("UTF-8");
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(getOutputStream(sent));
+        String page = "<html><head><script>var a = 1;</script></head><body>" + "<p onclick=\"a()\">\u00d1and\u00fa</p>".repeat(500) + "</body></html>";
+        doAnswer(invocation -> {
+            HttpServletResponse wrapper = invocation.getArgument(1);
+            wrapper.getWriter().write(page);
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(response, never()).getWriter();
+        verify(response).setHeader("Content-Encoding", "gzip");
+        verify(response).addHeader("Vary", "Accept-Encoding");
+        String body = new String(new GZIPInputStream(new ByteArrayInputStream(sent.toByteArray())).readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(body.startsWith("<html><head><script nonce=\""));
+        assertTrue(body.endsWith("<p onclick=\"a()\">\u00d1and\u00fa</p></body></html>"));
+        assertTrue(sent.size() < body.length() / 10);
+    }
+
+    @Test
+    public void testDoFilter_CompressedOutputStream() throws Exception {
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder()
+                .compressResponses(true).compressionMinSize(16).build());
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip;q=0, deflate");
+        when(response.getCharacterEncoding()).thenReturn("UTF-8");
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(getOutputStream(sent));
+        doAnswer(invocation -> {
+            HttpServletResponse wrapper = invocation.getArgument(1);
+            wrapper.getOutputStream().write("<html><head><script>var \u00f1 = 1;</script></head></html>".getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
+
+        verify(response).setHeader("Content-Encoding", "deflate");
+        verify(response, never()).setContentLengthLong(anyLong());
+        String body = new String(new InflaterInputStream(new ByteArrayInputStream(sent.toByteArray())).readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(body.startsWith("<html><head><script nonce=\""));
+        assertTrue(body.endsWith(">var \u00f1 = 1;</script></head></html>"));
+    }
+
+    @Test
+    public void testDoFilter_NotCompressed() throws Exception {
+        CSPConfigurationHolder.setConfiguration(CSPConfigurationHolder.getConfiguration().toBuilder()
+                .compressResponses(true).compressionMinSize(1024).build());
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+        StringWriter sent = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(sent));
+        doAnswer(invocation -> {
+            HttpServletResponse wrapper = invocation.getArgument(1);
+            wrapper.getWriter().write("<html><head><script>var a = 1;</script></head></html>");
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
+
+        // Below the minimum size
+        assertTrue(sent.toString().startsWith("<html><head><script nonce=\""));
+        verify(response, never()).setHeader(eq("Content-Encoding"), any());
+        verify(response, never()).addHeader(eq("Vary"), any());
+    }
+
+    @Test
+    public void testDoFilter_Async() throws Exception {
+        AsyncContext containerAsyncContext = mock(AsyncContext.class);
+        when(request.startAsync(any(), any())).thenReturn(containerAsyncContext);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        List<WriteListener> writeListeners = new ArrayList<>();
+        when(response.getOutputStream()).thenReturn(getOutputStream(sent, writeListeners));
+        AtomicReference<AsyncContext> asyncContext = new AtomicReference<>();
+        doAnswer(invocation -> {
+            HttpServletRequest wrapper = invocation.getArgument(0);
+            asyncContext.set(wrapper.startAsync());
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
+
+        // Nothing sent while the servlet is still working on it
+        assertEquals(0, sent.size());
+        verify(response, never()).setHeader(eq(ENFORCED_POLICY_HEADER_NAME), anyString());
+
+        asyncContext.get().getResponse().getWriter().write("<html><head><script>var a = 1;</script></head><body>Hello</body></html>");
+        asyncContext.get().complete();
+
+        // Handed to the container output, sent once it reports it ready
+        assertEquals(1, writeListeners.size());
+        verify(containerAsyncContext, never()).complete();
+        writeListeners.get(0).onWritePossible();
+        assertTrue(sent.toString(StandardCharsets.ISO_8859_1).startsWith("<html><head><script nonce=\""));
+        verify(response).setHeader(eq(ENFORCED_POLICY_HEADER_NAME), anyString());
+        verify(response).setContentLengthLong(sent.size());
+        verify(containerAsyncContext).complete();
+    }
+
+    @Test
+    public void testDoFilter_AsyncTimeout() throws Exception {
+        AsyncContext containerAsyncContext = mock(AsyncContext.class);
+        when(request.startAsync(any(), any())).thenReturn(containerAsyncContext);
+        List<AsyncListener> listeners = new ArrayList<>();
+        doAnswer(invocation -> listeners.add(invocation.getArgument(0))).when(containerAsyncContext).addListener(any());
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(getOutputStream(sent));
+        String body = "<html><head><script>var a = 1;</script></head><body>Hello</body></html>";
+        doAnswer(invocation -> {
+            HttpServletRequest wrapper = invocation.getArgument(0);
+            AsyncContext asyncContext = wrapper.startAsync();
+            asyncContext.getResponse().getWriter().write(body);
+            // Never completed, the servlet lost track of it
+            return null;
+        }).when(filterChain).doFilter(any(HttpServletRequest.class), any());
+
+        filter.doFilter(request, response, filterChain);
+        assertEquals(0, sent.size());
+
+        AsyncEvent timeout = new AsyncEvent(containerAsyncContext);
+        for (AsyncListener listener : listeners) {
+            listener.onTimeout(timeout);
+        }
+
+        // Sent as it was written rather than left for the container to finish empty
+        assertEquals(body, sent.toString(StandardCharsets.ISO_8859_1));
+        verify(response).setContentLength(body.length());
+        verify(response, never()).setHeader(eq(ENFORCED_POLICY_HEADER_NAME), anyString());
+        verify(containerAsyncContext, never()).complete();
+    }
+
+    private ServletOutputStream getOutputStream(ByteArrayOutputStream target) {
+        return getOutputStream(target, new ArrayList<>());
+    }
+
+    private ServletOutputStream getOutputStream(ByteArrayOutputStream target, List<WriteListener> writeListeners) {
+        return new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                writeListeners.add(writeListener);
+            }
+
+            @Override
+            public void write(int b) {
+                target.write(b);
+            }
+        };
+    }
+
+    private static String getNonce(String policy) {
+        int start = policy.indexOf("'nonce-") + "'nonce-".length();
+        return policy.substring(start, policy.indexOf('\'', start));
+    }
 
     private PrintWriter getWriter() {
         StringWriter stringWriter = new StringWriter();
@@ -0,0 +1,102 @@
+package com.cspdog.filter;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class CompressionStageTest {
+
+    private CSPConfiguration configuration;
+
+    @BeforeEach
+    public void setUp() {
+        configuration = CSPConfigurationHolder.getConfiguration();
+        CSPConfigurationHolder.setConfiguration(configuration.toBuilder().compressResponses(true).compressionMinSize(100).build());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        CSPConfigurationHolder.setConfiguration(configuration);
+    }
+
+    @Test
+    public void testGetAcceptedEncoding() {
+        assertNull(getAcceptedEncoding(null));
+        assertNull(getAcceptedEncoding("identity"));
+        assertNull(getAcceptedEncoding("gzip;q=0, deflate;q=0"));
+        assertNull(getAcceptedEncoding("br, *;q=0"));
+        assertEquals(CompressionStage.Encoding.GZIP, getAcceptedEncoding("gzip, deflate, br"));
+        assertEquals(CompressionStage.Encoding.GZIP, getAcceptedEncoding("deflate, gzip"));
+        assertEquals(CompressionStage.Encoding.GZIP, getAcceptedEncoding("X-GZIP"));
+        assertEquals(CompressionStage.Encoding.DEFLATE, getAcceptedEncoding("gzip;q=0.2, deflate;q=0.8"));
+        assertEquals(CompressionStage.Encoding.DEFLATE, getAcceptedEncoding("gzip;q=0, *"));
+        assertEquals(CompressionStage.Encoding.GZIP, getAcceptedEncoding("*"));
+        // Garbled weights are not acceptable
+        assertEquals(CompressionStage.Encoding.DEFLATE, getAcceptedEncoding("gzip;q=high, deflate"));
+
+        CSPConfigurationHolder.setConfiguration(configuration.toBuilder().compressResponses(false).build());
+        assertNull(getAcceptedEncoding("gzip"));
+    }
+
+    @Test
+    public void testSelect() {
+        HttpServletResponse res = mock(HttpServletResponse.class);
+        assertNull(CompressionStage.select(CompressionStage.Encoding.GZIP, res, 99));
+        verify(res, never()).addHeader(anyString(), anyString());
+
+        assertEquals(CompressionStage.Encoding.GZIP, CompressionStage.select(CompressionStage.Encoding.GZIP, res, 100));
+        verify(res).addHeader("Vary", "Accept-Encoding");
+        verify(res).setHeader("Content-Encoding", "gzip");
+
+        // Representation still depends on Accept-Encoding
+        HttpServletResponse identity = mock(HttpServletResponse.class);
+        assertNull(CompressionStage.select(null, identity, 100));
+        verify(identity).addHeader("Vary", "Accept-Encoding");
+
+        HttpServletResponse varied = mock(HttpServletResponse.class);
+        when(varied.getHeaders("Vary")).thenReturn(List.of("Origin, accept-encoding"));
+        CompressionStage.select(CompressionStage.Encoding.DEFLATE, varied, 100);
+        verify(varied, never()).addHeader(anyString(), anyString());
+
+        // Already encoded by the servlet
+        HttpServletResponse encoded = mock(HttpServletResponse.class);
+        when(encoded.containsHeader("Content-Encoding")).thenReturn(true);
+        assertNull(CompressionStage.select(CompressionStage.Encoding.GZIP, encoded, 100));
+        verify(encoded, never()).setHeader(anyString(), anyString());
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        // Several pooled buffers worth, multi-byte characters straddling their boundaries
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 100000; i++) {
+            sb.append("<p>").append(i).append(" \u00d1and\u00fa \ud83d\ude00</p>");
+        }
+        String body = sb.toString();
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+        CompressionStage.write(body, StandardCharsets.UTF_8, CompressionStage.Encoding.GZIP, sent);
+
+        assertEquals(body, new String(new GZIPInputStream(new ByteArrayInputStream(sent.toByteArray())).readAllBytes(), StandardCharsets.UTF_8));
+    }
+
+    private static CompressionStage.Encoding getAcceptedEncoding(String acceptEncoding) {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getHeader("Accept-Encoding")).thenReturn(acceptEncoding);
+        return CompressionStage.getAcceptedEncoding(req);
+    }
+
+}
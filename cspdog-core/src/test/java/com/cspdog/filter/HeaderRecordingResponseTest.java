@@ -0,0 +1,66 @@
+package com.cspdog.filter;
+
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import static com.cspdog.utils.Constants.ENFORCED_POLICY_HEADER_NAME;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+public class HeaderRecordingResponseTest {
+
+    @Test
+    public void testReplayTo() {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        HeaderRecordingResponse recording = new HeaderRecordingResponse(response);
+        recordChanges(recording);
+        verifyNoInteractions(response);
+
+        recording.replayTo(response);
+
+        InOrder inOrder = inOrder(response);
+        inOrder.verify(response).setHeader(ENFORCED_POLICY_HEADER_NAME, "script-src 'self'");
+        inOrder.verify(response).addHeader("Vary", "Accept-Encoding");
+        inOrder.verify(response).setIntHeader("X-Hashes", 2);
+        inOrder.verify(response).addIntHeader("X-Hashes", 3);
+        inOrder.verify(response).setDateHeader("Expires", 0L);
+        inOrder.verify(response).addDateHeader("Last-Modified", 1L);
+        inOrder.verify(response).setStatus(203);
+        inOrder.verify(response).setContentLength(42);
+        inOrder.verify(response).setContentLengthLong(43L);
+        inOrder.verify(response).setContentType("text/html");
+    }
+
+    @Test
+    public void testReplayTo_TimedOut() {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        HeaderRecordingResponse recording = new HeaderRecordingResponse(response);
+        recordChanges(recording);
+
+        // Over the latency budget the filter sends the unprocessed body and never replays, the late changes are lost
+        verifyNoInteractions(response);
+        assertThrows(IllegalStateException.class, () -> recording.sendError(500));
+        assertThrows(IllegalStateException.class, () -> recording.sendRedirect("/elsewhere"));
+        assertThrows(IllegalStateException.class, recording::getWriter);
+        assertThrows(IllegalStateException.class, recording::getOutputStream);
+        assertThrows(IllegalStateException.class, recording::reset);
+        verifyNoInteractions(response);
+    }
+
+    private static void recordChanges(HeaderRecordingResponse recording) {
+        recording.setHeader(ENFORCED_POLICY_HEADER_NAME, "script-src 'self'");
+        recording.addHeader("Vary", "Accept-Encoding");
+        recording.setIntHeader("X-Hashes", 2);
+        recording.addIntHeader("X-Hashes", 3);
+        recording.setDateHeader("Expires", 0L);
+        recording.addDateHeader("Last-Modified", 1L);
+        recording.setStatus(203);
+        recording.setContentLength(42);
+        recording.setContentLengthLong(43L);
+        recording.setContentType("text/html");
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.cspdog.filter;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import jakarta.servlet.http.HttpServletRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class RewriteSamplingTest {
+
+    private static final String DESKTOP = "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36";
+    private static final String MOBILE = "Mozilla/5.0 (iPhone; CPU iPhone OS 17_0 like Mac OS X) AppleWebKit/605.1.15 Mobile/15E148";
+    private static final String BOT = "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)";
+
+    private CSPConfiguration configuration;
+
+    @BeforeEach
+    public void setUp() {
+        configuration = CSPConfigurationHolder.getConfiguration();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        CSPConfigurationHolder.setConfiguration(configuration);
+    }
+
+    @Test
+    public void testClassify() {
+        assertEquals(RewriteSampling.UserAgentClass.DESKTOP, RewriteSampling.classify(DESKTOP));
+        assertEquals(RewriteSampling.UserAgentClass.MOBILE, RewriteSampling.classify(MOBILE));
+        assertEquals(RewriteSampling.UserAgentClass.BOT, RewriteSampling.classify(BOT));
+        assertEquals(RewriteSampling.UserAgentClass.OTHER, RewriteSampling.classify("curl/8.4.0"));
+        assertEquals(RewriteSampling.UserAgentClass.OTHER, RewriteSampling.classify(null));
+    }
+
+    @Test
+    public void testGetRate() {
+        Map<Pattern, Double> routes = new LinkedHashMap<>();
+        routes.put(Pattern.compile("/checkout/.*"), 0.0);
+        routes.put(Pattern.compile("/.*"), 0.5);
+        CSPConfiguration sampled = CSPConfiguration.builder().rewriteSampleRate(0.2).rewriteSampleRoutes(routes)
+                .rewriteSampleUserAgents(Map.of("mobile", 0.5)).build();
+
+        assertEquals(0.0, RewriteSampling.getRate(sampled, "/checkout/pay", RewriteSampling.UserAgentClass.DESKTOP));
+        assertEquals(0.5, RewriteSampling.getRate(sampled, "/blog", RewriteSampling.UserAgentClass.DESKTOP));
+        assertEquals(0.25, RewriteSampling.getRate(sampled, "/blog", RewriteSampling.UserAgentClass.MOBILE));
+        assertEquals(0.2, RewriteSampling.getRate(sampled, "", RewriteSampling.UserAgentClass.BOT));
+    }
+
+    @Test
+    public void testIsSampled() {
+        CSPConfigurationHolder.setConfiguration(configuration.toBuilder().rewriteSampleRate(0.3).build());
+        int sampled = 0;
+        for (int i = 0; i < 10000; i++) {
+            HttpServletRequest req = request("session" + i);
+            boolean first = RewriteSampling.isSampled(req, "/page");
+            // Same answer for the whole session
+            assertEquals(first, RewriteSampling.isSampled(req, "/other"));
+            if (first) sampled++;
+        }
+        assertTrue(sampled > 2800 && sampled < 3200, "sampled " + sampled);
+
+        // A higher rate keeps every session sampled so far
+        for (int i = 0; i < 1000; i++) {
+            double point = RewriteSampling.getSessionPoint("session" + i);
+            CSPConfigurationHolder.setConfiguration(configuration.toBuilder().rewriteSampleRate(0.3).build());
+            boolean before = RewriteSampling.isSampled(request("session" + i), "/page");
+            CSPConfigurationHolder.setConfiguration(configuration.toBuilder().rewriteSampleRate(0.6).build());
+            assertTrue(!before || RewriteSampling.isSampled(request("session" + i), "/page"));
+            assertEquals(before, point < 0.3);
+        }
+    }
+
+    @Test
+    public void testIsSampled_NoSession() {
+        CSPConfigurationHolder.setConfiguration(configuration.toBuilder().rewriteSampleRate(0.5).build());
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getRemoteAddr()).thenReturn("192.0.2.1");
+        when(req.getHeader("User-Agent")).thenReturn(DESKTOP);
+
+        boolean sampled = RewriteSampling.isSampled(req, "/page");
+
+        assertEquals(RewriteSampling.getSessionPoint("192.0.2.1 " + DESKTOP) < 0.5, sampled);
+        assertEquals(sampled, RewriteSampling.isSampled(req, "/page"));
+    }
+
+    @Test
+    public void testIsSampled_Default() {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+
+        assertTrue(RewriteSampling.isSampled(req, "/page"));
+        verifyNoInteractions(req);
+    }
+
+    private static HttpServletRequest request(String sessionId) {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getRequestedSessionId()).thenReturn(sessionId);
+        when(req.getHeader("User-Agent")).thenReturn(DESKTOP);
+        return req;
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.cspdog.metrics;
+
+import com.cspdog.cache.HashCaches;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.utils.BufferPool;
+import com.cspdog.utils.CSPUtils;
+import com.cspdog.utils.CSPedResponseBodyHolder;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+
+import static com.cspdog.utils.Constants.METRICS_OBJECT_NAME;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class FilterMetricsTest {
+
+    @BeforeEach
+    public void setUp() {
+        CSPConfigurationHolder.readCSPConfiguration();
+        FilterMetrics.reset();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        FilterMetrics.reset();
+    }
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMean());
+        assertEquals(100, histogram.getMax());
+        // Upper bound of the 33-63 bucket
+        assertEquals(63, histogram.getPercentile(0.5));
+        // Capped at the maximum rather than the bucket upper bound, 127
+        assertEquals(100, histogram.getPercentile(0.99));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    @Test
+    public void testSetPolicyInResponse() {
+        CSPUtils.setPolicyInResponse(new CSPedResponseBodyHolder<>("<html><body onclick=\"a()\"><p style=\"color:red;\">Hi</p></body></html>"),
+                "nonce-123", mock(HttpServletResponse.class));
+        assertEquals(1, FilterMetrics.getStageTime(FilterMetrics.Stage.HASH).getCount());
+        assertEquals(1, FilterMetrics.getStageTime(FilterMetrics.Stage.HEADER).getCount());
+        assertEquals(2, FilterMetrics.getHashesPerResponse().getMax());
+        // Enforced and report-only headers
+        assertEquals(2, FilterMetrics.getHeaderSize().getCount());
+        assertEquals(0, FilterMetrics.getMetaTagFallbacks());
+        assertEquals(0, FilterMetrics.getReportOnlyHashStrippings());
+    }
+
+    @Test
+    public void testSetPolicyInResponse_OverTheHeaderLimit() {
+        StringBuilder html = new StringBuilder("<html><head></head><body>");
+        for (int i = 0; i < 200; i++) {
+            html.append("<a onclick=\"go(").append(i).append(")\">").append(i).append("</a>");
+        }
+        CSPedResponseBodyHolder<String> holder = new CSPedResponseBodyHolder<>(html.append("</body></html>").toString());
+        CSPUtils.setPolicyInResponse(holder, "nonce-123", mock(HttpServletResponse.class));
+        assertEquals(200, FilterMetrics.getHashesPerResponse().getMax());
+        assertEquals(1, FilterMetrics.getMetaTagFallbacks());
+        assertEquals(1, FilterMetrics.getReportOnlyHashStrippings());
+        assertTrue(holder.get().contains("<meta http-equiv=\"Content-Security-Policy\""));
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(METRICS_OBJECT_NAME);
+        FilterMetrics.register();
+        FilterMetrics.register();
+        try {
+            FilterMetrics.bodySize(1000);
+            FilterMetrics.exceptionFallback();
+            CompositeData bodySize = (CompositeData) mBeanServer.getAttribute(objectName, "BodySize");
+            assertEquals(1L, bodySize.get("count"));
+            assertEquals(1000L, bodySize.get("max"));
+            assertEquals(1L, mBeanServer.getAttribute(objectName, "ExceptionFallbacks"));
+            // Still used by the other registration
+            FilterMetrics.unregister();
+            assertTrue(mBeanServer.isRegistered(objectName));
+        } finally {
+            FilterMetrics.unregister();
+        }
+        assertFalse(mBeanServer.isRegistered(objectName));
+    }
+
+    @Test
+    public void testRegister_CompanionMetrics() throws Exception {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(METRICS_OBJECT_NAME);
+        RouteCounters.reset();
+        HashCaches.reset();
+        BufferPool.resetGauges();
+        FilterMetrics.register();
+        try {
+            RouteCounters.rewritten("/a");
+            RouteCounters.rewritten("/a");
+            RouteCounters.bypassed("/b");
+            RouteCounters.timedOut("/a");
+            RouteCounters.unsampled("/b");
+            TabularData rewritten = (TabularData) mBeanServer.getAttribute(objectName, "RewrittenByRoute");
+            assertEquals(2L, rewritten.get(new Object[]{"/a"}).get("value"));
+            assertEquals(0L, rewritten.get(new Object[]{"/b"}).get("value"));
+            assertEquals(1L, ((TabularData) mBeanServer.getAttribute(objectName, "BypassedByRoute")).get(new Object[]{"/b"}).get("value"));
+            assertEquals(1L, ((TabularData) mBeanServer.getAttribute(objectName, "TimedOutByRoute")).get(new Object[]{"/a"}).get("value"));
+            assertEquals(1L, ((TabularData) mBeanServer.getAttribute(objectName, "UnsampledByRoute")).get(new Object[]{"/b"}).get("value"));
+
+            // The same template under two nonces
+            CSPUtils.setPolicyInResponse(new CSPedResponseBodyHolder<>("<p nonce=\"nonce-123\" onclick=\"a()\">"), "nonce-123",
+                    mock(HttpServletResponse.class));
+            CSPUtils.setPolicyInResponse(new CSPedResponseBodyHolder<>("<p nonce=\"nonce-456\" onclick=\"a()\">"), "nonce-456",
+                    mock(HttpServletResponse.class));
+            assertEquals(1L, mBeanServer.getAttribute(objectName, "BodyHashCacheMisses"));
+            assertEquals(1L, mBeanServer.getAttribute(objectName, "BodyHashCacheHits"));
+            assertEquals(0L, mBeanServer.getAttribute(objectName, "BodyHashCacheEvictions"));
+            assertEquals(HashCaches.getAttributeHashes().getMisses(), mBeanServer.getAttribute(objectName, "AttributeHashCacheMisses"));
+            assertEquals(HashCaches.getAttributeHashes().getHits(), mBeanServer.getAttribute(objectName, "AttributeHashCacheHits"));
+            assertEquals(0L, mBeanServer.getAttribute(objectName, "AttributeHashCacheEvictions"));
+
+            assertTrue(BufferPool.tryReserve(4096));
+            BufferPool.overflowed();
+            assertEquals(4096L, mBeanServer.getAttribute(objectName, "BufferBytesInUse"));
+            assertTrue((Long) mBeanServer.getAttribute(objectName, "BufferHighWaterMark") >= 4096L);
+            assertEquals(1L, mBeanServer.getAttribute(objectName, "BufferOverflows"));
+            BufferPool.unreserve(4096);
+
+            mBeanServer.invoke(objectName, "reset", null, null);
+            assertTrue(((TabularData) mBeanServer.getAttribute(objectName, "RewrittenByRoute")).isEmpty());
+            assertEquals(0L, mBeanServer.getAttribute(objectName, "BufferOverflows"));
+        } finally {
+            FilterMetrics.unregister();
+            RouteCounters.reset();
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.cspdog.nonce;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ThreadLocalNonceProviderTest {
+
+    @Test
+    public void testEncoding() {
+        Random random = new Random(42);
+        byte[] bytes = new byte[40];
+        char[] encoded = new char[NonceEncoding.NONCE_CHARS];
+        for (int i = 0; i < 1000; i++) {
+            random.nextBytes(bytes);
+            int offset = random.nextInt(bytes.length - NonceEncoding.NONCE_BYTES + 1);
+            NonceEncoding.encode(bytes, offset, encoded);
+            byte[] nonceBytes = new byte[NonceEncoding.NONCE_BYTES];
+            System.arraycopy(bytes, offset, nonceBytes, 0, nonceBytes.length);
+            assertEquals(Base64.getEncoder().encodeToString(nonceBytes), new String(encoded));
+        }
+    }
+
+    @Test
+    public void testNextNonce() throws InterruptedException {
+        NonceProvider provider = new ThreadLocalNonceProvider();
+        Set<String> nonces = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            // More than a batch per thread
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    nonces.add(provider.nextNonce());
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4000, nonces.size());
+        Set<Integer> lengths = new HashSet<>();
+        for (String nonce : nonces) {
+            lengths.add(Base64.getDecoder().decode(nonce).length);
+        }
+        assertEquals(Set.of(16), lengths);
+    }
+
+    @Test
+    public void testCreate() {
+        assertInstanceOf(ThreadLocalNonceProvider.class, NonceProviders.create(null));
+        assertInstanceOf(SecureRandomNonceProvider.class, NonceProviders.create(SecureRandomNonceProvider.class.getName()));
+        // Not a provider, or no such class
+        assertInstanceOf(ThreadLocalNonceProvider.class, NonceProviders.create(String.class.getName()));
+        assertInstanceOf(ThreadLocalNonceProvider.class, NonceProviders.create("com.example.Missing"));
+        assertTrue(NonceProviders.create(" " + SecureRandomNonceProvider.class.getName()).nextNonce().endsWith("=="));
+    }
+
+}
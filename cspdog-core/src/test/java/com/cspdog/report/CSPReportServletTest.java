@@ -0,0 +1,180 @@
+package com.cspdog.report;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class CSPReportServletTest {
+
+    private static final String REPORT = "{\"csp-report\": {\"violated-directive\": \"script-src\", \"blocked-uri\": \"inline\"}}";
+
+    @Mock
+    private HttpServletRequest request;
+
+    @Mock
+    private HttpServletResponse response;
+
+    @Mock
+    private AsyncContext asyncContext;
+
+    private CSPConfiguration configuration;
+    private CSPReportServlet servlet;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        configuration = CSPConfigurationHolder.getConfiguration();
+        CSPConfigurationHolder.setConfiguration(configuration.toBuilder().reportBufferCapacity(2)
+                .reportFlushIntervalMillis(60000).reportSink(ReportIngestionTest.RecordingSink.class.getName()).build());
+        ReportIngestionTest.batches.clear();
+        servlet = new CSPReportServlet();
+        servlet.init();
+        when(request.getContentType()).thenReturn("application/csp-report");
+        when(request.getContentLengthLong()).thenReturn(-1L);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        servlet.destroy();
+        CSPConfigurationHolder.setConfiguration(configuration);
+    }
+
+    @Test
+    public void testDoPost_Async() throws Exception {
+        byte[] body = REPORT.getBytes(StandardCharsets.UTF_8);
+        ServletInputStream in = getInputStream(body);
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync()).thenReturn(asyncContext);
+        when(request.getInputStream()).thenReturn(in);
+
+        servlet.doPost(request, response);
+
+        // Nothing read on the request thread
+        verify(asyncContext).setTimeout(anyLong());
+        verify(response, never()).setStatus(anyInt());
+        ArgumentCaptor<ReadListener> readListenerCaptor = ArgumentCaptor.forClass(ReadListener.class);
+        verify(in).setReadListener(readListenerCaptor.capture());
+        ReadListener readListener = readListenerCaptor.getValue();
+        readListener.onDataAvailable();
+        readListener.onAllDataRead();
+
+        verify(response).setStatus(HttpServletResponse.SC_NO_CONTENT);
+        verify(asyncContext).complete();
+        ReportIngestion.flush();
+        assertEquals(new Violation("script-src", "inline", null, null, null), ReportIngestionTest.batches.get(0).get(0).getViolation());
+    }
+
+    @Test
+    public void testDoPost_AsyncTimeout() throws Exception {
+        ServletInputStream in = getInputStream(REPORT.getBytes(StandardCharsets.UTF_8));
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync()).thenReturn(asyncContext);
+        when(request.getInputStream()).thenReturn(in);
+
+        servlet.doPost(request, response);
+
+        ArgumentCaptor<AsyncListener> asyncListenerCaptor = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(asyncListenerCaptor.capture());
+        ArgumentCaptor<ReadListener> readListenerCaptor = ArgumentCaptor.forClass(ReadListener.class);
+        verify(in).setReadListener(readListenerCaptor.capture());
+        AsyncEvent event = new AsyncEvent(asyncContext);
+        asyncListenerCaptor.getValue().onTimeout(event);
+        // Late reads and errors, completed once only
+        readListenerCaptor.getValue().onAllDataRead();
+        readListenerCaptor.getValue().onError(new IOException("reset"));
+        asyncListenerCaptor.getValue().onError(event);
+        asyncListenerCaptor.getValue().onComplete(event);
+
+        verify(response).setStatus(HttpServletResponse.SC_REQUEST_TIMEOUT);
+        verify(response, never()).setStatus(HttpServletResponse.SC_NO_CONTENT);
+        verify(asyncContext, times(1)).complete();
+    }
+
+    @Test
+    public void testDoPost_Blocking() throws Exception {
+        when(request.getInputStream()).thenReturn(getInputStream("[{\"type\": \"csp-violation\", \"body\": {}}, {\"type\": \"csp-violation\", \"body\": {}}]"
+                .getBytes(StandardCharsets.UTF_8)));
+        when(request.getContentType()).thenReturn("application/reports+json");
+
+        servlet.doPost(request, response);
+
+        verify(response).setStatus(HttpServletResponse.SC_NO_CONTENT);
+
+        // The buffer is full now, shed before reading
+        HttpServletResponse shedResponse = mock(HttpServletResponse.class);
+        servlet.doPost(request, shedResponse);
+
+        verify(shedResponse).setStatus(429);
+        verify(shedResponse).setHeader("Retry-After", "5");
+        verify(request, times(1)).getInputStream();
+    }
+
+    @Test
+    public void testDoPost_Refused() throws Exception {
+        when(request.getContentType()).thenReturn("text/plain");
+        servlet.doPost(request, response);
+        verify(response).setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+
+        HttpServletResponse tooLarge = mock(HttpServletResponse.class);
+        when(request.getContentType()).thenReturn("application/csp-report; charset=utf-8");
+        when(request.getContentLengthLong()).thenReturn(1024L * 1024);
+        servlet.doPost(request, tooLarge);
+        verify(tooLarge).setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+
+        HttpServletResponse malformed = mock(HttpServletResponse.class);
+        when(request.getContentLengthLong()).thenReturn(-1L);
+        when(request.getInputStream()).thenReturn(getInputStream("{\"csp-report\":".getBytes(StandardCharsets.UTF_8)));
+        servlet.doPost(request, malformed);
+        verify(malformed).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        verify(request, never()).startAsync();
+    }
+
+    private static ServletInputStream getInputStream(byte[] body) {
+        ByteArrayInputStream source = new ByteArrayInputStream(body);
+        return spy(new ServletInputStream() {
+            @Override
+            public boolean isFinished() {
+                return source.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+            }
+
+            @Override
+            public int read() {
+                return source.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return source.read(b, off, len);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.cspdog.report;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.metrics.FilterMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReportIngestionTest {
+
+    static final List<List<AggregatedViolation>> batches = new ArrayList<>();
+
+    private CSPConfiguration configuration;
+
+    @BeforeEach
+    public void setUp() {
+        configuration = CSPConfigurationHolder.getConfiguration();
+        CSPConfigurationHolder.setConfiguration(configuration.toBuilder().reportBufferCapacity(4)
+                .reportFlushIntervalMillis(60000).reportSink(RecordingSink.class.getName()).build());
+        batches.clear();
+        FilterMetrics.reset();
+        ReportIngestion.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ReportIngestion.stop();
+        CSPConfigurationHolder.setConfiguration(configuration);
+    }
+
+    @Test
+    public void testFlush_Deduplicates() {
+        Violation first = new Violation("script-src", "inline", "https://example.com/", "https://example.com/a", "enforce");
+        Violation second = new Violation("style-src", "inline", "https://example.com/", "https://example.com/a", "enforce");
+        assertTrue(ReportIngestion.offer(first));
+        assertTrue(ReportIngestion.offer(second));
+        // Same violation on another page
+        assertTrue(ReportIngestion.offer(new Violation("script-src", "inline", "https://example.com/", "https://example.com/b", "enforce")));
+        assertTrue(ReportIngestion.offer(first));
+        assertTrue(ReportIngestion.isOverloaded());
+        assertFalse(ReportIngestion.offer(second));
+
+        ReportIngestion.flush();
+
+        assertEquals(1, batches.size());
+        List<AggregatedViolation> batch = batches.get(0);
+        assertEquals(2, batch.size());
+        assertEquals(first, batch.get(0).getViolation());
+        assertEquals("https://example.com/a", batch.get(0).getViolation().getDocumentUri());
+        assertEquals(3, batch.get(0).getCount());
+        assertEquals(1, batch.get(1).getCount());
+        assertEquals(4, FilterMetrics.getReportsAccepted());
+        assertEquals(1, FilterMetrics.getReportsShed());
+        assertFalse(ReportIngestion.isOverloaded());
+
+        ReportIngestion.flush();
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void testRollingFileReportSink(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("reports").resolve("reports.jsonl");
+        RollingFileReportSink sink = new RollingFileReportSink(file, 300, 2);
+        AggregatedViolation aggregatedViolation = new AggregatedViolation(new Violation("script-src", "https://evil.example.com/\"x\".js", null, null, null));
+        aggregatedViolation.increment();
+
+        for (int i = 0; i < 4; i++) {
+            sink.write(List.of(aggregatedViolation, aggregatedViolation));
+        }
+        sink.close();
+
+        String line = Files.readAllLines(file, StandardCharsets.UTF_8).get(0);
+        assertTrue(line.startsWith("{\"directive\":\"script-src\",\"blockedUri\":\"https://evil.example.com/\\\"x\\\".js\",\"sourceFile\":null,"));
+        assertTrue(line.contains("\"count\":1,\"time\":\""));
+        assertTrue(Files.size(file) <= 300);
+        assertTrue(Files.exists(directory.resolve("reports").resolve("reports.jsonl.1")));
+        assertTrue(Files.exists(directory.resolve("reports").resolve("reports.jsonl.2")));
+        assertFalse(Files.exists(directory.resolve("reports").resolve("reports.jsonl.3")));
+    }
+
+    public static class RecordingSink implements ReportSink {
+        @Override
+        public void write(List<AggregatedViolation> batch) {
+            batches.add(batch);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.cspdog.report;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReportParserTest {
+
+    @Test
+    public void testParse_CSPReport() throws IOException {
+        String body = "{\"csp-report\": {\"document-uri\": \"https://example.com/page\", \"referrer\": \"\","
+                + " \"violated-directive\": \"script-src-elem 'self'\", \"original-policy\": \"script-src 'self'; report-uri /csp\","
+                + " \"blocked-uri\": \"https://evil.example.com/x.js\", \"line-number\": 12, \"source-file\": \"https:\\/\\/example.com\\/app.js\","
+                + " \"disposition\": \"report\", \"status-code\": 200, \"script-sample\": \"\\u00d1and\\u00fa \\\"q\\\"\"}}";
+
+        List<Violation> violations = parse(body);
+
+        assertEquals(1, violations.size());
+        Violation violation = violations.get(0);
+        assertEquals("script-src-elem", violation.getDirective());
+        assertEquals("https://evil.example.com/x.js", violation.getBlockedUri());
+        assertEquals("https://example.com/app.js", violation.getSourceFile());
+        assertEquals("https://example.com/page", violation.getDocumentUri());
+        assertEquals("report", violation.getDisposition());
+    }
+
+    @Test
+    public void testParse_Reports() throws IOException {
+        String body = "[{\"age\": 10, \"body\": {\"blockedURL\": \"inline\", \"columnNumber\": 3, \"disposition\": \"enforce\","
+                + " \"documentURL\": \"https://example.com/\", \"effectiveDirective\": \"style-src-attr\", \"lineNumber\": 9,"
+                + " \"originalPolicy\": \"style-src 'self'\", \"sample\": \"\", \"sourceFile\": \"https://example.com/\", \"statusCode\": 200},"
+                + " \"type\": \"csp-violation\", \"url\": \"https://example.com/\", \"user_agent\": \"Mozilla/5.0\"},"
+                + " {\"type\": \"deprecation\", \"body\": {\"id\": \"x\", \"message\": \"[nested]\"}},"
+                + " {\"type\": \"csp-violation\", \"body\": {\"effectiveDirective\": \"img-src\", \"blockedURL\": null, \"sourceFile\": [1, {}]}}]";
+
+        List<Violation> violations = parse(body);
+
+        assertEquals(2, violations.size());
+        assertEquals(new Violation("style-src-attr", "inline", "https://example.com/", null, null), violations.get(0));
+        assertEquals("https://example.com/", violations.get(0).getDocumentUri());
+        assertEquals("enforce", violations.get(0).getDisposition());
+        assertEquals(new Violation("img-src", null, null, null, null), violations.get(1));
+    }
+
+    @Test
+    public void testParse_Malformed() {
+        assertThrows(IOException.class, () -> parse(""));
+        assertThrows(IOException.class, () -> parse("\"csp-report\""));
+        assertThrows(IOException.class, () -> parse("{\"csp-report\": {\"blocked-uri\": \"x\"}"));
+        assertThrows(IOException.class, () -> parse("[{\"type\": \"csp-violation\" \"body\": {}}]"));
+        assertThrows(IOException.class, () -> parse("{\"csp-report\": {\"blocked-uri\": \"\\x\"}}"));
+        assertThrows(IOException.class, () -> parse("{\"csp-report\": {\"line-number\": 12abc}}"));
+        assertThrows(IOException.class, () -> parse("[".repeat(100)));
+    }
+
+    @Test
+    public void testParse_LongFieldsCut() throws IOException {
+        List<Violation> violations = parse("{\"csp-report\": {\"blocked-uri\": \"https://example.com/" + "a".repeat(2000) + "\"}}");
+
+        assertEquals(512, violations.get(0).getBlockedUri().length());
+    }
+
+    private static List<Violation> parse(String body) throws IOException {
+        List<Violation> violations = new ArrayList<>();
+        ReportParser.parse(body, violations::add);
+        return violations;
+    }
+
+}
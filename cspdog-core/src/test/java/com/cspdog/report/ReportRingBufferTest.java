@@ -0,0 +1,65 @@
+package com.cspdog.report;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReportRingBufferTest {
+
+    @Test
+    public void testOfferPoll() {
+        ReportRingBuffer buffer = new ReportRingBuffer(3);
+        assertEquals(4, buffer.getCapacity());
+        assertNull(buffer.poll());
+
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(buffer.offer(violation(i)));
+            }
+            // Full, refused rather than waited on
+            assertFalse(buffer.offer(violation(4)));
+            assertEquals(4, buffer.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(violation(i), buffer.poll());
+            }
+            assertNull(buffer.poll());
+            assertEquals(0, buffer.size());
+        }
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        ReportRingBuffer buffer = new ReportRingBuffer(1024);
+        int producers = 4;
+        int perProducer = 20000;
+        AtomicInteger refused = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    if (!buffer.offer(violation(producer * perProducer + i))) refused.incrementAndGet();
+                }
+                done.countDown();
+            }).start();
+        }
+        Set<Violation> polled = new HashSet<>();
+        while (done.getCount() > 0 || buffer.size() > 0) {
+            Violation violation = buffer.poll();
+            if (violation != null) assertTrue(polled.add(violation));
+        }
+
+        // Every offer accepted comes out exactly once
+        assertEquals(producers * perProducer, polled.size() + refused.get());
+    }
+
+    private static Violation violation(int i) {
+        return new Violation("script-src", "https://example.com/" + i, null, null, null);
+    }
+
+}
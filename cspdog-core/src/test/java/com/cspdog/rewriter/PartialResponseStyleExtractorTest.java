@@ -0,0 +1,156 @@
+package com.cspdog.rewriter;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.nonce.ThreadLocalNonceProvider;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.jsoup.select.Elements;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.cspdog.utils.Constants.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Differential tests: the streaming extractor has to give the same output as the former jsoup DOM rewriting,
+ * kept here as the reference, generated class names aside.
+ */
+public class PartialResponseStyleExtractorTest {
+
+    private static final String NONCE = "nonce-123";
+    private static final Pattern CLASS_NAME_PATTERN = Pattern.compile(CSPDOG_STYLE_PREFIX + "\\d+");
+
+    private static final String[] CDATA_CONTENTS = {
+            "<div id=\"form:j_idt12\" style=\"color:red;\">Partial content</div>",
+            "<div id=\"a\" style=\"color:red;\">A</div><div id=\"b\" style=\"color:blue;\">B</div>",
+            "<span>Before</span><div id=\"a\" class=\"ui-panel\" style=\"width: 20%\">A</div>",
+            "<div style=\"margin: 0\" id=\"a\" class=\"ui-panel ui-widget\">A</div>",
+            "<table id=\"grid\"><tr style=\"color: #033\" onclick=\"PrimeFaces.ab({s:'grid:0'});return false;\"><td>Order 1</td><td style=\"width: 20%\">7.00</td></tr></table>",
+            "<div id=\"outer\"><p>Text</p><div id=\"inner\"><span style=\"font-weight: bold\">Bold</span></div></div>",
+            "<div style=\"font-family: &quot;Open Sans&quot;, Arial\">Quoted font</div>",
+            "<div class=\"\" style=\"color: red\">Empty class</div>",
+            "<!-- <div style=\"color: red\">commented</div> --><div style=\"color: blue\">Blue</div>",
+            "<ul><li style=\"display: none\">1</li><li>2</li><li style=\"display: block\">3</li></ul>",
+            "<div id=\"no-styles\">Nothing to move</div>",
+            "-4402717830573049387:1",
+    };
+
+    @AfterEach
+    public void tearDown() {
+        CSPConfigurationHolder.setConfiguration(CSPConfiguration.builder().build());
+    }
+
+    @Test
+    public void testProcess_SameOutputAsDOMRewriting() {
+        for (String cdataContent : CDATA_CONTENTS) {
+            String partialResponse = partialResponse(cdataContent);
+            assertEquals(normalizeClassNames(jsoupReference(partialResponse)),
+                    normalizeClassNames(PartialResponseStyleExtractor.process(partialResponse, NONCE)), cdataContent);
+        }
+    }
+
+    @Test
+    public void testProcess_SeveralUpdates() {
+        String partialResponse = "<?xml version='1.0' encoding='UTF-8'?>\n<partial-response id=\"j_id1\"><changes>"
+                + "<update id=\"form:a\"><![CDATA[" + CDATA_CONTENTS[1] + "]]></update>"
+                + "<update id=\"form:b\"><![CDATA[" + CDATA_CONTENTS[2] + "]]></update>"
+                + "<update id=\"j_id1:javax.faces.ViewState:0\"><![CDATA[-4402717830573049387:1]]></update>"
+                + "</changes></partial-response>";
+        assertEquals(normalizeClassNames(jsoupReference(partialResponse)),
+                normalizeClassNames(PartialResponseStyleExtractor.process(partialResponse, NONCE)));
+    }
+
+    @Test
+    public void testProcess_NoStylesSameInstance() {
+        String partialResponse = partialResponse("<div id=\"a\">No style=\"attribute\" here</div>");
+        assertSame(partialResponse, PartialResponseStyleExtractor.process(partialResponse, NONCE));
+    }
+
+    @Test
+    public void testProcess_ContentAddressedClasses() {
+        CSPConfigurationHolder.setConfiguration(CSPConfiguration.builder().contentAddressedStyleClasses(true).build());
+        String partialResponse = partialResponse("<ul id=\"list\"><li style=\"color: red\">1</li><li style=\"color: red\">2</li><li style=\"color: blue\">3</li></ul>");
+        String red = PartialResponseStyleExtractor.getContentAddressedClassName("color: red");
+        String blue = PartialResponseStyleExtractor.getContentAddressedClassName("color: blue");
+
+        String actual = PartialResponseStyleExtractor.process(partialResponse, NONCE);
+
+        // A single rule per declaration, the block inside the root element of the update
+        assertEquals(partialResponse("<ul id=\"list\"><style type=\"text/css\" nonce=\"nonce-123\">"
+                + "." + red + " { color: red } ." + blue + " { color: blue } </style>"
+                + "<li class=\"" + red + "\">1</li><li class=\"" + red + "\">2</li><li class=\"" + blue + "\">3</li></ul>"), actual);
+        // Same update, same output
+        assertEquals(actual, PartialResponseStyleExtractor.process(partialResponse, "nonce-123"));
+    }
+
+    @Test
+    public void testProcess_ContentAddressedClasses_StylishRoot() {
+        CSPConfigurationHolder.setConfiguration(CSPConfiguration.builder().contentAddressedStyleClasses(true).build());
+        String className = PartialResponseStyleExtractor.getContentAddressedClassName("width: 20%");
+
+        assertEquals(partialResponse("<div id=\"a\" class=\"" + className + "\"><style type=\"text/css\" nonce=\"nonce-123\">."
+                        + className + " { width: 20% } </style>A</div>"),
+                PartialResponseStyleExtractor.process(partialResponse("<div id=\"a\" style=\"width: 20%\">A</div>"), NONCE));
+        // No room for the block inside a void element, it goes before it
+        assertEquals(partialResponse("<style type=\"text/css\" nonce=\"nonce-123\">." + className + " { width: 20% } </style>"
+                        + "<input id=\"a\" class=\"" + className + "\" /><span>A</span>"),
+                PartialResponseStyleExtractor.process(partialResponse("<input id=\"a\" style=\"width: 20%\" /><span>A</span>"), NONCE));
+    }
+
+    private static String partialResponse(String cdataContent) {
+        return "<partial-response><changes><update id=\"form:j_idt12\"><![CDATA[" + cdataContent + "]]></update></changes></partial-response>";
+    }
+
+    /**
+     * Class names numbered in order of appearance, which is the same for both paths.
+     */
+    private static String normalizeClassNames(String output) {
+        Map<String, String> classNames = new HashMap<>();
+        Matcher matcher = CLASS_NAME_PATTERN.matcher(output);
+        StringBuilder sb = new StringBuilder();
+        while (matcher.find()) {
+            String className = classNames.computeIfAbsent(matcher.group(), name -> CSPDOG_STYLE_PREFIX + classNames.size());
+            matcher.appendReplacement(sb, className);
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    // Former RegexRewriter.processPartialResponseStyles, parsing every CDATA block into a jsoup XML document
+    private static String jsoupReference(String htmlOutput) {
+        Matcher matcher = Pattern.compile("(?s)<!\\[CDATA\\[(.*?)\\]\\]>").matcher(htmlOutput);
+        StringBuffer resultBuffer = new StringBuffer();
+        while (matcher.find()) {
+            String replacement = CDATA_OPENING + jsoupProcessBlock(matcher.group(1)) + CDATA_CLOSING;
+            matcher.appendReplacement(resultBuffer, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(resultBuffer);
+        return resultBuffer.toString();
+    }
+
+    private static String jsoupProcessBlock(String htmlBlock) {
+        StringBuilder sb = new StringBuilder(STYLE_BLOCK_OPENING_NONCED + NONCE + STYLE_BLOCK_OPENING_CLOSURE);
+        Document content = Jsoup.parse(htmlBlock, EMPTY_CHAR, Parser.xmlParser());
+        Elements allStylishNodes = content.select("[style]");
+        if (allStylishNodes.isEmpty()) return htmlBlock;
+        for (Element stylishNode : allStylishNodes) {
+            String newCSSClassName = CSPDOG_STYLE_PREFIX + Math.abs(ThreadLocalNonceProvider.nextLong());
+            sb.append(DOT).append(newCSSClassName).append(OPENING_CURLY_BRACE).append(stylishNode.attr(STYLE)).append(CLOSING_CURLY_BRACE);
+            stylishNode.removeAttr(STYLE);
+            stylishNode.addClass(newCSSClassName);
+        }
+        sb.append(STYLE_CLOSURE);
+        allStylishNodes.first().before(sb.toString());
+        return content.html();
+    }
+
+}
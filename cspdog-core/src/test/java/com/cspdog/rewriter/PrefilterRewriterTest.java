@@ -0,0 +1,104 @@
+package com.cspdog.rewriter;
+
+import com.cspdog.configuration.CSPConfiguration;
+import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.metrics.FilterMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrefilterRewriterTest {
+
+    private static final String NONCE = "nonce-123";
+
+    private static final String[] FRAGMENTS = {
+            "<html>", "<body>", "</body>", "<head>", "<script>", "<script src=\"a.js\">", "<script nonce=\"x\">", "</script>",
+            "<style>", "<style nonce=\"y\">", "</style>", "<script", "<style", ">", "\n", "<", "=", "\"", "'", "text",
+            "<div onclick=\"a()\">", "<A\tONCLICK=\"b()\">", "<a href='#'onmouseover=\"c(1)\">", "<p/onblur='d()'>",
+            "<span style=\"color:red\">", "<span\nSTYLE='margin:0'>", "<a href=\"javascript:go('x');\">", "<iframe src=\"javascript:false\">",
+            "<a title=\"x < y\" onclick=\"e()\">", "<a title='<b onclick=\"f()\">'>", "<img onerror=x>", "<![CDATA[", "]]>",
+            "<partial-response>", "<update id=\"u\">", " onclick=\"g()\" ", " style=\"h\" ", "javascript:", "<div\u2003onclick=\"i()\">",
+    };
+
+    private final RegexRewriter regexRewriter = new RegexRewriter();
+    private final PrefilterRewriter prefilterRewriter = new PrefilterRewriter();
+
+    @Test
+    public void testSameOutputAsRegex() {
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        // Random style class names would differ between the two
+        CSPConfigurationHolder.setConfiguration(configuration.toBuilder().contentAddressedStyleClasses(true).build());
+        Random random = new Random(11);
+        for (int i = 0; i < 5000; i++) {
+            String html = randomHTML(random);
+            for (boolean externalize : new boolean[]{false, true}) {
+                ResponseAnalysis expected = regexRewriter.analyze(html, externalize);
+                ResponseAnalysis actual = prefilterRewriter.analyze(html, externalize);
+                assertEquals(expected.getEventHandlers(), actual.getEventHandlers(), html);
+                assertEquals(expected.getInlinedStyles(), actual.getInlinedStyles(), html);
+                assertEquals(expected.isPartialResponse(), actual.isPartialResponse(), html);
+                assertEquals(expected.getExternalizedHandlers(), actual.getExternalizedHandlers(), html);
+                assertEquals(regexRewriter.getCSPedResponseBody(html, NONCE, expected),
+                        prefilterRewriter.getCSPedResponseBody(html, NONCE, actual), html);
+            }
+        }
+        CSPConfigurationHolder.setConfiguration(configuration);
+    }
+
+    @Test
+    public void testNothingToRewrite() {
+        FilterMetrics.reset();
+        String html = "<html><head><title>Plain</title></head><body><p class=\"x\">Only text, <b>bold</b> and <a href=\"/next\">links</a></p></body></html>";
+        ResponseAnalysis analysis = prefilterRewriter.analyze(html, false);
+        assertSame(html, prefilterRewriter.getCSPedResponseBody(html, NONCE, analysis));
+        assertEquals(0, analysis.getNonceOffsetCount());
+        assertTrue(analysis.getEventHandlers().isEmpty());
+        assertEquals(1, FilterMetrics.getPrefilterSkips());
+    }
+
+    @Test
+    public void testLiteralPrefilter() {
+        LiteralPrefilter.Matches matches = LiteralPrefilter.find("<SCRIPT>a</SCRIPT><p\tONclick=\"x\"><style>");
+        assertEquals(2, matches.getTagOpeningCount());
+        assertEquals(0, matches.getTagOpening(0));
+        assertEquals(33, matches.getTagOpening(1));
+        assertEquals(1, matches.getAttributeLiteralCount());
+        assertEquals(22, matches.getAttributeLiteralEnd(0));
+        assertTrue(LiteralPrefilter.find("<p class=\"stylish\">Plain text, <b>bold</b></p>").isEmpty());
+    }
+
+    @Test
+    public void testRewriters() {
+        assertEquals(List.of(RegexRewriter.NAME, PrefilterRewriter.NAME), new ArrayList<>(Rewriters.getNames()));
+        assertInstanceOf(PrefilterRewriter.class, Rewriters.get(PrefilterRewriter.NAME));
+        // Unknown engines fall back to the default one
+        assertInstanceOf(RegexRewriter.class, Rewriters.get("missing"));
+        assertNotEquals(PrefilterRewriter.NAME, Rewriters.get("missing").getName());
+
+        CSPConfiguration configuration = CSPConfigurationHolder.getConfiguration();
+        CSPConfigurationHolder.setConfiguration(configuration.toBuilder()
+                .rewriteEngineRoutes(Map.of(Pattern.compile("/static/.*"), PrefilterRewriter.NAME)).build());
+        assertEquals(PrefilterRewriter.NAME, Rewriters.forPath("/static/index.html").getName());
+        assertEquals(RegexRewriter.NAME, Rewriters.forPath("/app").getName());
+        CSPConfigurationHolder.setConfiguration(configuration.toBuilder().apply(Map.of("rewriteEngine", "prefilter",
+                "rewriteEngineRoutes", "/app/.*=regex")).build());
+        assertEquals(RegexRewriter.NAME, Rewriters.forPath("/app/page").getName());
+        assertEquals(PrefilterRewriter.NAME, Rewriters.forPath("/other").getName());
+        CSPConfigurationHolder.setConfiguration(configuration);
+    }
+
+    private static String randomHTML(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = random.nextInt(16); i > 0; i--) {
+            sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        }
+        return sb.toString();
+    }
+
+}
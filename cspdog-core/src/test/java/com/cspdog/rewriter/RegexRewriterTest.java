@@ -21,6 +21,14 @@ public class RegexRewriterTest {
         rewriter = new RegexRewriter();
     }
 
+    @Test
+    public void testGetName_DefaultsToClassName() {
+        assertEquals("regex", new RegexRewriter().getName());
+        // An engine written before names were introduced
+        Rewriter legacyRewriter = new LegacyRewriter();
+        assertEquals(LegacyRewriter.class.getName(), legacyRewriter.getName());
+    }
+
     @Test
     public void testGetCSPedResponseBodyWithDoubleQuotedHref() {
         String input = "<html><body><a href=\"javascript:alert('Hello');\">Click me</a></body></html>";
@@ -125,4 +133,17 @@ public class RegexRewriterTest {
         String actual = rewriter.getCSPedResponseBody(input, "nonce-123");
         assertEquals(input, actual);
     }
+
+    private static class LegacyRewriter implements Rewriter {
+        @Override
+        public String getCSPedResponseBody(String regularHTMLResponse, String nonce) {
+            return regularHTMLResponse;
+        }
+
+        @Override
+        public String injectNonce(String preNonceResponse, String nonce) {
+            return preNonceResponse;
+        }
+    }
+
 }
@@ -0,0 +1,180 @@
+package com.cspdog.rewriter;
+
+import com.cspdog.cache.HashCaches;
+import com.cspdog.utils.CSPUtils;
+import com.cspdog.utils.CSPedResponseBodyHolder;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.Set;
+
+import static com.cspdog.utils.Constants.ENFORCED_POLICY_HEADER_NAME;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class ResponseAnalysisTest {
+
+    private static final String NONCE = "nonce-123";
+
+    private static final String[] PAGES = {
+            "<html><head><script>var a = 1;</script><style>p {}</style></head><body onload=\"init()\"><p style=\"color:red;\">Hi</p></body></html>",
+            "<html><body><a href=\"javascript:alert('Hello');\" onmouseover=\"hover()\">Click me</a><iframe src=\"javascript:false\"></iframe></body></html>",
+            "<html><body><a href='javascript:void(0)'>Nothing</a><a href='javascript:go(\"x\")'>Go</a></body></html>",
+            "<partial-response><changes><update id=\"f\"><![CDATA[<div id=\"f\" style=\"color:red;\" onclick=\"a()\">A</div>]]></update></changes></partial-response>",
+            "<html><body><button onclick=\"a > b && go()\">Go</button><script src=\"a.js\"></script><script nonce=\"x\"></script></body></html>",
+    };
+
+    @Test
+    public void testAnalyze() {
+        ResponseAnalysis analysis = ResponseAnalysis.analyze(PAGES[0]);
+        assertEquals(2, analysis.getNonceOffsetCount());
+        assertEquals(PAGES[0].indexOf("<script>") + 7, analysis.getNonceOffset(0));
+        assertEquals(PAGES[0].indexOf("<style>") + 6, analysis.getNonceOffset(1));
+        assertEquals(Set.of("init()"), analysis.getEventHandlers());
+        assertEquals(Set.of("color:red;"), analysis.getInlinedStyles());
+        assertTrue(analysis.getAttributeRewrites().isEmpty());
+        assertFalse(analysis.isPartialResponse());
+    }
+
+    @Test
+    public void testAnalyze_JavascriptURLs() {
+        ResponseAnalysis analysis = ResponseAnalysis.analyze(PAGES[1]);
+        List<ResponseAnalysis.AttributeRewrite> javascriptURLs = analysis.getAttributeRewrites();
+        assertEquals(2, javascriptURLs.size());
+        assertEquals("href=\"javascript:alert('Hello');\"", PAGES[1].substring(javascriptURLs.get(0).start, javascriptURLs.get(0).end));
+        assertEquals("href=\"#\" onclick=\"alert('Hello');\"", javascriptURLs.get(0).replacement);
+        assertEquals("src=\"about:blank\"", javascriptURLs.get(1).replacement);
+        // The handler the URL turns into is hashed as well
+        assertEquals(Set.of("alert('Hello');", "hover()"), analysis.getEventHandlers());
+    }
+
+    @Test
+    public void testAnalyze_PartialResponse() {
+        ResponseAnalysis analysis = ResponseAnalysis.analyze(PAGES[3]);
+        assertTrue(analysis.isPartialResponse());
+        assertTrue(analysis.hasExtractableStyles());
+        assertEquals(Set.of("color:red;"), analysis.getInlinedStyles());
+        new RegexRewriter().getCSPedResponseBody(PAGES[3], NONCE, analysis);
+        // Moved into the nonced block
+        assertTrue(analysis.getInlinedStyles().isEmpty());
+    }
+
+    @Test
+    public void testAnalyze_ExternalizedEventHandlers() {
+        String page = "<html><head></head><body onload=\"init()\"><a href=\"javascript:go('x');\" onmouseover=\"hover()\">A</a>"
+                + "<button onclick=\"go(&quot;x&quot;)\" onBlur='hover()'>B</button><script onload=\"a < b\">var a;</script></body></html>";
+        ResponseAnalysis analysis = ResponseAnalysis.analyze(page, true);
+        // Window handlers, and the ones of events which do not bubble, stay inline, and hashed
+        assertEquals(Set.of("init()", "hover()", "a < b"), analysis.getEventHandlers());
+        assertEquals(List.of("go('x');", "hover()", "go(&quot;x&quot;)"), analysis.getExternalizedHandlers());
+        assertEquals(Set.of("click", "mouseover"), analysis.getExternalizedEventTypes());
+
+        String rewritten = new RegexRewriter().getCSPedResponseBody(page, NONCE, analysis);
+        assertTrue(rewritten.contains("<a href=\"#\" data-cspdog-onclick=\"0\" data-cspdog-onmouseover=\"1\">A</a>"), rewritten);
+        assertTrue(rewritten.contains("<button data-cspdog-onclick=\"2\" onBlur='hover()'>B</button>"), rewritten);
+        assertTrue(rewritten.contains("<script onload=\"a < b\" nonce=\"nonce-123\" >var a;</script>"), rewritten);
+        assertTrue(rewritten.contains("<body onload=\"init()\">"), rewritten);
+        // A single nonced script right before the end of the body, the handlers unescaped, then the dispatcher
+        assertTrue(rewritten.contains("<script nonce=\"nonce-123\">(function(){var h=["
+                + "function(event){with(document)with(this.form||{})with(this){go('x');\n}},"
+                + "function(event){with(document)with(this.form||{})with(this){hover()\n}},"
+                + "function(event){with(document)with(this.form||{})with(this){go(\"x\")\n}}];function d(e){"), rewritten);
+        assertTrue(rewritten.endsWith("['click','mouseover'].forEach(function(t){document.addEventListener(t,d);});})();</script></body></html>"), rewritten);
+        assertEquals(2, rewritten.split("<script", -1).length - 1, rewritten);
+
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        setPolicyInResponse(rewritten, response, analysis);
+        String policy = getEnforcedPolicy(response);
+        assertEquals(3, policy.split("'SHA256-", -1).length - 1, policy);
+    }
+
+    @Test
+    public void testAnalyze_ExternalizedEventHandlers_NonBubblingEvents() {
+        String page = "<body><img src=\"a.png\" onload=\"shown(this)\" onerror=\"this.src='b.png'\">"
+                + "<video onplay=\"played()\" onclick=\"go(1)\"></video></body>";
+        ResponseAnalysis analysis = ResponseAnalysis.analyze(page, true);
+        // The image may load, or fail, before the delegation script at the end of the body runs
+        assertEquals(Set.of("shown(this)", "this.src='b.png'", "played()"), analysis.getEventHandlers());
+        assertEquals(List.of("go(1)"), analysis.getExternalizedHandlers());
+        assertEquals(Set.of("click"), analysis.getExternalizedEventTypes());
+
+        String rewritten = new RegexRewriter().getCSPedResponseBody(page, NONCE, analysis);
+        assertTrue(rewritten.startsWith("<body><img src=\"a.png\" onload=\"shown(this)\" onerror=\"this.src='b.png'\">"
+                + "<video onplay=\"played()\" data-cspdog-onclick=\"0\"></video><script nonce=\"nonce-123\">"), rewritten);
+    }
+
+    @Test
+    public void testAnalyze_ExternalizedEventHandlers_ScriptEndingHandler() {
+        String page = "<div onclick=\"x = '</script><!--'; // done\">A</div>";
+        String rewritten = new RegexRewriter().getCSPedResponseBody(page, NONCE, ResponseAnalysis.analyze(page, true));
+        // Appended at the very end without a body, unable to close the script early
+        assertTrue(rewritten.startsWith("<div data-cspdog-onclick=\"0\">A</div><script nonce=\"nonce-123\">"), rewritten);
+        assertTrue(rewritten.contains("(function(){var h=[function(event){with(document)with(this.form||{})with(this){x = '<\\/script><\\!--'; // done\n}}];"), rewritten);
+        assertEquals(1, rewritten.split("</script>", -1).length - 1);
+    }
+
+    @Test
+    public void testAnalyze_ExternalizedEventHandlers_MalformedHandler() {
+        String page = "<body><a onclick=\"go(1)\">A</a><b onclick=\"}); steal(); (function(){\">B</b>"
+                + "<i onclick=\"if (a) { go(2)\">C</i></body>";
+        ResponseAnalysis analysis = ResponseAnalysis.analyze(page, true);
+        // Unable to break out of its function, nor to break the others, as it stays inline and hashed
+        assertEquals(List.of("go(1)"), analysis.getExternalizedHandlers());
+        assertEquals(Set.of("}); steal(); (function(){", "if (a) { go(2)"), analysis.getEventHandlers());
+
+        String rewritten = new RegexRewriter().getCSPedResponseBody(page, NONCE, analysis);
+        assertTrue(rewritten.startsWith("<body><a data-cspdog-onclick=\"0\">A</a><b onclick=\"}); steal(); (function(){\">B</b>"
+                + "<i onclick=\"if (a) { go(2)\">C</i><script nonce=\"nonce-123\">"), rewritten);
+        assertTrue(rewritten.contains("(function(){var h=[function(event){with(document)with(this.form||{})with(this){go(1)\n}}];"), rewritten);
+        assertTrue(rewritten.endsWith("})();</script></body>"), rewritten);
+    }
+
+    @Test
+    public void testIsDelegable() {
+        for (String handler : new String[]{"go(1)", "if (a) { b(); } return false;", "x = '})' + \"]\" + `${a + `}`}`;", "a = /[/}]/g; b = a.c[0] / 2;",
+                "return /}/.test(a)", "a = b[0] / 2 // })", "/* }) */ go()", "go(&quot;}&quot;)"}) {
+            assertTrue(EventDelegation.isDelegable(handler), handler);
+        }
+        for (String handler : new String[]{"}); steal(); (function(){", "go(", "x = '}", "x = `${a`", "/* })", "a = (b) /}/.test(c)",
+                "a++ /}/", "if (a) {} /}/", "x = 1 <!-- }", "for (a of /}/)", "go())"}) {
+            assertFalse(EventDelegation.isDelegable(handler), handler);
+        }
+    }
+
+    @Test
+    public void testAnalyze_ExternalizedEventHandlers_PartialResponse() {
+        ResponseAnalysis analysis = ResponseAnalysis.analyze(PAGES[3], true);
+        assertFalse(analysis.hasExternalizedHandlers());
+        assertEquals(Set.of("a()"), analysis.getEventHandlers());
+    }
+
+    @Test
+    public void testSetPolicyInResponse_SameHeadersAsScanningRewrittenBody() {
+        RegexRewriter rewriter = new RegexRewriter();
+        for (String page : PAGES) {
+            ResponseAnalysis analysis = ResponseAnalysis.analyze(page);
+            String rewritten = rewriter.getCSPedResponseBody(page, NONCE, analysis);
+            HttpServletResponse fromAnalysis = mock(HttpServletResponse.class);
+            setPolicyInResponse(rewritten, fromAnalysis, analysis);
+            HttpServletResponse fromScan = mock(HttpServletResponse.class);
+            CSPUtils.setPolicyInResponse(new CSPedResponseBodyHolder<>(rewritten), NONCE, fromScan);
+            assertEquals(getEnforcedPolicy(fromScan), getEnforcedPolicy(fromAnalysis), page);
+        }
+    }
+
+    private static void setPolicyInResponse(String rewritten, HttpServletResponse response, ResponseAnalysis analysis) {
+        HashCaches.InlineHashes hashes = CSPUtils.getInlineHashes(analysis);
+        CSPUtils.setPolicyInResponse(new CSPedResponseBodyHolder<>(rewritten), NONCE, response, hashes.getEventHandlerHashes(), hashes.getInlinedStyleHashes());
+    }
+
+    private static String getEnforcedPolicy(HttpServletResponse response) {
+        ArgumentCaptor<String> policy = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq(ENFORCED_POLICY_HEADER_NAME), policy.capture());
+        return policy.getValue();
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.cspdog.rewriter;
+
+import com.cspdog.utils.CSPUtils;
+import com.cspdog.utils.ChunkedByteBuffer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StreamingRewriterTest {
+
+    private static final String[] BODIES = {
+            "<html><body><a href=\"javascript:alert('Hello');\">Click me</a></body></html>",
+            "<html><body><a href='javascript:alert(\"Hello\");console.log(\"I said hello!\");'>Click me</a></body></html>",
+            "<html><body><a href=\"javascript:\">Click me</a></body></html>",
+            "<html><body><a href='javascript:void(0)'>Click me</a></body></html>",
+            "<html><body><iframe src=\"javascript:false\"></iframe></body></html>",
+            "<html><head><script>console.log('hello');</script><script src=\"/app.js\"></script><style>p { color: red; }</style></head><body></body></html>",
+            "<html><head><script nonce=\"already\">if (a < b && b > c) { x = '<div>'; }</script></head><body><p>1 < 2</p></body></html>",
+            "<html><body><a href=\"/index.html\">Home</a></body></html>"
+    };
+
+    private StreamingRewriter streamingRewriter;
+    private RegexRewriter regexRewriter;
+
+    @BeforeEach
+    public void setUp() {
+        streamingRewriter = new StreamingRewriter();
+        regexRewriter = new RegexRewriter();
+    }
+
+    @Test
+    public void testGetCSPedResponseBody_SameOutputAsRegexRewriter() {
+        for (String body : BODIES) {
+            assertEquals(regexRewriter.getCSPedResponseBody(body, "nonce-123"), streamingRewriter.getCSPedResponseBody(body, "nonce-123"));
+        }
+    }
+
+    @Test
+    public void testSessionWrite_TagsSpanningChunks() {
+        for (String body : BODIES) {
+            String expected = streamingRewriter.getCSPedResponseBody(body, "nonce-123");
+            for (int split = 1; split < body.length(); split++) {
+                StreamingRewriter.Session session = streamingRewriter.newSession("nonce-123");
+                session.write(body.substring(0, split));
+                session.write(body.substring(split));
+                assertEquals(expected, session.finish());
+            }
+        }
+    }
+
+    @Test
+    public void testSessionWrite_StringsLongerThanTheCopyBuffer() {
+        // Tags straddling the slices a long string is copied in, after a short write sized the buffer
+        String body = "<p>" + "<a href=\"javascript:go();\">x</a><script>var a;</script>".repeat(500) + "</p>";
+        StreamingRewriter.Session session = streamingRewriter.newSession("nonce-123");
+        session.write("<div>");
+        session.write(body);
+        assertEquals(regexRewriter.getCSPedResponseBody("<div>" + body, "nonce-123"), session.finish());
+    }
+
+    @Test
+    public void testRewritingOutputStream_SameOutputAsSession() {
+        for (String body : BODIES) {
+            String bodyWithUtf8 = body.replace("<body>", "<body><p title=\"\u00e9t\u00e9\">\u0141\u00f3d\u017a < \u00e9</p>");
+            String expected = streamingRewriter.getCSPedResponseBody(bodyWithUtf8, "nonce-123");
+            byte[] bytes = bodyWithUtf8.getBytes(StandardCharsets.UTF_8);
+            for (int split = 1; split < bytes.length; split += 7) {
+                RewritingOutputStream out = new RewritingOutputStream(streamingRewriter.newSession("nonce-123"), StandardCharsets.UTF_8);
+                out.write(bytes, 0, split);
+                out.write(bytes, split, bytes.length - split);
+                ChunkedByteBuffer rewritten = out.finish();
+                assertEquals(expected, new String(rewritten.toByteArray(), StandardCharsets.UTF_8));
+                rewritten.release();
+            }
+        }
+    }
+
+    @Test
+    public void testIsAsciiCompatible() {
+        for (String charset : new String[]{"UTF-8", "US-ASCII", "ISO-8859-1", "ISO-8859-15", "windows-1252", "KOI8-R", "latin1", "cp1250"}) {
+            assertTrue(RewritingOutputStream.isAsciiCompatible(Charset.forName(charset)), charset);
+        }
+        // Multibyte sequences reusing ASCII bytes, or ASCII not encoded as itself
+        for (String charset : new String[]{"UTF-16", "UTF-16LE", "UTF-32", "Shift_JIS", "GB18030", "ISO-2022-JP", "IBM037"}) {
+            assertFalse(RewritingOutputStream.isAsciiCompatible(Charset.forName(charset)), charset);
+        }
+    }
+
+    @Test
+    public void testRewritingOutputStream_NotAsciiCompatible() {
+        // Both chars end with a backslash byte in Shift_JIS
+        String body = BODIES[5].replace("<body>", "<body><p title=\"\u8868\">\u30BD</p>");
+        Charset shiftJis = Charset.forName("Shift_JIS");
+        byte[] bytes = body.getBytes(shiftJis);
+        RewritingOutputStream out = new RewritingOutputStream(streamingRewriter.newSession("nonce-123"), shiftJis);
+        out.write(bytes, 0, bytes.length);
+        ChunkedByteBuffer rewritten = out.finish();
+        assertEquals(streamingRewriter.getCSPedResponseBody(body, "nonce-123"), new String(rewritten.toByteArray(), shiftJis));
+        rewritten.release();
+    }
+
+    @Test
+    public void testSessionCollectsHashes() {
+        StreamingRewriter.Session session = streamingRewriter.newSession("nonce-123");
+        session.write("<html><body onclick=\"myFunction()\"><p style=\"color:red;\">Hello</p><a href=\"javascript:sayHi();\">Hi</a></body></html>");
+        session.finish();
+
+        assertTrue(session.hasCollectedHashes());
+        assertTrue(session.getEventHandlerHashes().contains("'" + CSPUtils.generateCSPHashForInlinedElement("myFunction()") + "' "));
+        assertTrue(session.getEventHandlerHashes().contains("'" + CSPUtils.generateCSPHashForInlinedElement("sayHi();") + "' "));
+        assertEquals("'SHA256-BQ5eA/mw6jES31KSfh/A55TC7nzftLBWpZBzzDfwUrA=' ", session.getInlinedStyleHashes());
+    }
+
+    @Test
+    public void testSessionWrite_OversizedTagPassedThrough() {
+        StringBuilder body = new StringBuilder("<script data-x=\"");
+        body.append("x".repeat(20000)).append("\">alert(1)</script>");
+        String actual = streamingRewriter.getCSPedResponseBody(body.toString(), "nonce-123");
+        assertFalse(actual.contains("nonce-123"));
+        assertEquals(body.toString(), actual);
+    }
+
+    @Test
+    public void testProcessPartialResponseStyles() {
+        String input = "<partial-response><changes><update id=\"form:j_idt12\"><![CDATA[<div id=\"form:j_idt12\" style=\"color:red;\">Partial content</div>]]></update></changes></partial-response>";
+        StreamingRewriter.Session session = streamingRewriter.newSession("nonce-123");
+        session.write(input);
+        String actual = session.finish();
+        assertTrue(actual.contains("<style type=\"text/css\" nonce=\"nonce-123\">"));
+        assertFalse(session.hasCollectedHashes());
+    }
+
+}
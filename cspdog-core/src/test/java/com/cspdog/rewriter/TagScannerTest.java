@@ -0,0 +1,143 @@
+package com.cspdog.rewriter;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Differential tests against the regular expressions the scanner replaced, kept here as the reference,
+ * and adversarial inputs which used to make them backtrack, each bound in time.
+ */
+public class TagScannerTest {
+
+    private static final String NONCE_SEGMENT = " nonce=\"abc\" ";
+    private static final Pattern NONCE_PATTERN = Pattern.compile("<script(?:(?!nonce|src).)*?>|<style(?:(?!nonce).)*?>");
+    private static final Pattern TAGS_WITH_EVENT_HANDLERS_PATTERN = Pattern.compile(
+            "<[^>]*\\s(on[a-zA-Z]+\\s*=\\s*\"[^\"]*\"|on[a-zA-Z]+\\s*=\\s*'[^']*'|on[a-zA-Z]+\\s*=[^'\"\\s>]*)[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern EVENT_HANDLER_INVOCATION_PATTERN = Pattern.compile("on[a-zA-Z]+\\s*=\\s*(['\\\"])(.*?)\\1", Pattern.CASE_INSENSITIVE);
+    // Big enough for a quadratic scan to take minutes
+    private static final int ADVERSARIAL_LENGTH = 2 * 1024 * 1024;
+    private static final Duration TIME_BOUND = Duration.ofSeconds(2);
+
+    private static final String[] FRAGMENTS = {
+            "<script>", "<script type=\"text/javascript\">", "<script src=\"a.js\">", "<script nonce=\"x\">", "</script>",
+            "<style>", "<style media=\"print\">", "<style nonce=\"y\">", "</style>", "<script", "<style", ">", "\n",
+            "<div onclick=\"a()\">", "<a href=\"#\" onmouseover='b(1)'>", "<p>", "text", " src ", "nonce", "<", "=",
+            "\"", "'", "if (a < b && c > d) {}", "<scripts>", "<SCRIPT>", "<img onerror=x>",
+    };
+
+    @Test
+    public void testInjectNonce_SameOutputAsRegex() {
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            String html = randomHTML(random);
+            assertEquals(regexInjectNonce(html), TagScanner.injectNonce(html, NONCE_SEGMENT), html);
+        }
+    }
+
+    @Test
+    public void testInjectNonce_NothingToNonce() {
+        String html = "<html><script src=\"a.js\"></script><style nonce=\"x\"></style></html>";
+        assertSame(html, TagScanner.injectNonce(html, NONCE_SEGMENT));
+    }
+
+    @Test
+    public void testForEachOpeningTag_SameHandlersAsRegex() {
+        Random random = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            // Well-formed single-line tags, where the regular expressions were right
+            StringBuilder html = new StringBuilder();
+            for (int j = random.nextInt(8); j > 0; j--) {
+                html.append(random.nextBoolean() ? "<div id=\"d" + j + "\"" : "<a href='#'");
+                if (random.nextBoolean()) html.append(" onclick=\"f(").append(random.nextInt(3)).append(")\"");
+                if (random.nextBoolean()) html.append(" onBlur='g(\"x\")'");
+                html.append(random.nextBoolean() ? ">text" : "/>");
+            }
+            assertEquals(regexEventHandlers(html.toString()), scannerEventHandlers(html.toString()), html.toString());
+        }
+    }
+
+    @Test
+    public void testForEachOpeningTag_QuotedGreaterThan() {
+        assertEquals(List.of("a > b && go()"), scannerEventHandlers("<button onclick=\"a > b && go()\">Go</button>"));
+    }
+
+    @Test
+    public void testInjectNonce_UnterminatedScriptTags() {
+        String html = "<script type=\"text/javascript\" ".repeat(ADVERSARIAL_LENGTH / 32);
+        assertTimeoutPreemptively(TIME_BOUND, () -> TagScanner.injectNonce(html, NONCE_SEGMENT));
+    }
+
+    @Test
+    public void testInjectNonce_LargeTagsStoppingShortOfClosing() {
+        String html = ("<style" + " a".repeat(2000) + " nonce ").repeat(ADVERSARIAL_LENGTH / 4008);
+        assertTimeoutPreemptively(TIME_BOUND, () -> TagScanner.injectNonce(html, NONCE_SEGMENT));
+    }
+
+    @Test
+    public void testForEachOpeningTag_UnterminatedQuotes() {
+        String html = "<a title=\"x <b onclick='y ".repeat(ADVERSARIAL_LENGTH / 26);
+        assertTimeoutPreemptively(TIME_BOUND, () -> TagScanner.forEachOpeningTag(html, tag -> { }));
+    }
+
+    @Test
+    public void testForEachOpeningTag_MinifiedScript() {
+        String html = "<script>" + "for(i=0;i<n;i++)if(a<b&&c.onload=\"x\")d=e;".repeat(ADVERSARIAL_LENGTH / 42) + "</script>";
+        assertTimeoutPreemptively(TIME_BOUND, () -> TagScanner.forEachOpeningTag(html, tag -> { }));
+    }
+
+    @Test
+    public void testForEachOpeningTag_NoClosingBracket() {
+        String html = "<div onclick=\"a()\" ".repeat(ADVERSARIAL_LENGTH / 20);
+        assertTimeoutPreemptively(TIME_BOUND, () -> TagScanner.forEachOpeningTag(html, tag -> { }));
+    }
+
+    private static String randomHTML(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = random.nextInt(12); i > 0; i--) {
+            sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String regexInjectNonce(String html) {
+        Matcher matcher = NONCE_PATTERN.matcher(html);
+        StringBuilder sb = new StringBuilder();
+        while (matcher.find()) {
+            String tag = matcher.group();
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(tag.substring(0, tag.length() - 1) + NONCE_SEGMENT + ">"));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    private static List<String> regexEventHandlers(String html) {
+        List<String> handlers = new ArrayList<>();
+        Matcher tagMatcher = TAGS_WITH_EVENT_HANDLERS_PATTERN.matcher(html);
+        while (tagMatcher.find()) {
+            Matcher invocationMatcher = EVENT_HANDLER_INVOCATION_PATTERN.matcher(tagMatcher.group());
+            while (invocationMatcher.find()) handlers.add(invocationMatcher.group(2));
+        }
+        return handlers;
+    }
+
+    private static List<String> scannerEventHandlers(String html) {
+        List<String> handlers = new ArrayList<>();
+        TagScanner.forEachOpeningTag(html, tag -> {
+            for (HtmlTag.Attribute attribute : tag.getAttributes()) {
+                if (attribute.isEventHandler() && attribute.isQuoted()) handlers.add(attribute.getValue());
+            }
+        });
+        return handlers;
+    }
+
+}
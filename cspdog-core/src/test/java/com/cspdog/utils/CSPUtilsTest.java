@@ -1,6 +1,8 @@
 package com.cspdog.utils;
 
+import com.cspdog.configuration.CSPConfiguration;
 import com.cspdog.configuration.CSPConfigurationHolder;
+import com.cspdog.rewriter.ResponseAnalysis;
 import jakarta.servlet.http.HttpServletResponse;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
@@ -94,6 +96,51 @@ public class CSPUtilsTest {
         assertTrue(reportOnlyHeader.length() > 0);
     }
 
+    @Test
+    public void testSetPolicyInResponse_CompactedUnderMaxSize() {
+        String policy = "script-src 'self' 'unsafe-hashes' {eventhandlerhashes} ; script-src-attr 'unsafe-hashes' {eventhandlerhashes} ;";
+        CSPConfigurationHolder.setConfiguration(CSPConfiguration.builder().enforcedPolicy(policy).reportOnlyPolicy(policy).build());
+        try {
+            StringBuilder html = new StringBuilder("<html><head></head><body>");
+            for (int i = 0; i < 100; i++) {
+                html.append("<a onclick=\"go(").append(i).append(")\">").append(i).append("</a>");
+            }
+            CSPedResponseBodyHolder<String> cspedResponseBodyHolder = new CSPedResponseBodyHolder<>(html.append("</body></html>").toString());
+            HttpServletResponse response = mock(HttpServletResponse.class);
+            CSPUtils.setPolicyInResponse(cspedResponseBodyHolder, "nonce-123", response);
+
+            // Hashes only kept in script-src-attr, which inline handlers are matched against
+            ArgumentCaptor<String> enforcedCaptor = ArgumentCaptor.forClass(String.class);
+            verify(response).setHeader(eq(Constants.ENFORCED_POLICY_HEADER_NAME), enforcedCaptor.capture());
+            String enforcedHeader = enforcedCaptor.getValue();
+            assertTrue(enforcedHeader.length() < Constants.MAX_CSP_HEADER_SIZE);
+            assertTrue(enforcedHeader.startsWith("script-src 'self' 'unsafe-hashes'; script-src-attr 'unsafe-hashes' 'SHA256-"));
+            assertFalse(cspedResponseBodyHolder.get().contains("<meta"));
+            ArgumentCaptor<String> reportOnlyCaptor = ArgumentCaptor.forClass(String.class);
+            verify(response).setHeader(eq(Constants.REPORT_ONLY_POLICY_HEADER_NAME), reportOnlyCaptor.capture());
+            assertEquals(enforcedHeader, reportOnlyCaptor.getValue());
+        } finally {
+            CSPConfigurationHolder.readCSPConfiguration();
+        }
+    }
+
+    @Test
+    public void testSetPolicyInResponse_MetaTagAfterHeadTag() {
+        CSPConfigurationHolder.readCSPConfiguration();
+        String htmlBody = generateHtmlWithManyStyles(200).replace("<html><head>", "<html><header></header><HEAD lang=\"a>b\">");
+        CSPedResponseBodyHolder<String> cspedResponseBodyHolder = new CSPedResponseBodyHolder<>(htmlBody);
+        CSPUtils.setPolicyInResponse(cspedResponseBodyHolder, "nonce-123", mock(HttpServletResponse.class));
+        assertTrue(cspedResponseBodyHolder.get().startsWith("<html><header></header><HEAD lang=\"a>b\">\n<meta http-equiv=\"Content-Security-Policy\" content=\"script-src 'self' 'nonce-nonce-123'"));
+    }
+
+    @Test
+    public void testCompact() {
+        assertEquals("script-src 'self' 'sha256-a=' 'sha256-b='; style-src 'none';",
+                PolicyCompaction.compact("script-src  'self' 'sha256-a=' 'sha256-b=' 'sha256-a='  ; ; style-src 'none' ; script-src 'unsafe-inline' ;"));
+        assertEquals("script-src 'self' 'sha256-b='; script-src-attr 'sha256-a=';",
+                PolicyCompaction.compact("script-src 'self' 'sha256-a=' 'sha256-b=' ; script-src-attr 'sha256-a=' ;"));
+    }
+
     private String generateHtmlWithManyStyles(int count) {
         StringBuilder sb = new StringBuilder("<html><head></head><body>");
         for (int i = 0; i < count; i++) {
@@ -105,15 +152,8 @@ public class CSPUtilsTest {
     }
 
 
-    // Helper method to access private getInlinedStyleHashes for testing
     private String getInlinedStyleHashes(String html) {
-        try {
-            Method method = CSPUtils.class.getDeclaredMethod("getInlinedStyleHashes", String.class);
-            method.setAccessible(true);
-            return (String) method.invoke(null, html);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return CSPUtils.getInlineHashes(ResponseAnalysis.analyze(html)).getInlinedStyleHashes();
     }
 
 }
@@ -0,0 +1,38 @@
+package com.cspdog.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class HtmlEscapesTest {
+
+    @Test
+    public void testUnescapeHtml4() {
+        assertEquals("alert(\"<b>\" & 'x')", HtmlEscapes.unescapeHtml4("alert(&quot;&lt;b&gt;&quot; &amp; &#39;x&#x27;)"));
+        assertEquals("\u00A0\u00E9\u00FF \u0152\u03B8\u03D1\u2666", HtmlEscapes.unescapeHtml4("&nbsp;&eacute;&yuml; &OElig;&theta;&thetasym;&diams;"));
+        assertEquals("\uD83D\uDE00", HtmlEscapes.unescapeHtml4("&#x1F600;"));
+        assertEquals("{", HtmlEscapes.unescapeHtml4("&#X7b;"));
+        assertEquals("&#x7B;", HtmlEscapes.unescapeHtml4("&amp;#x7B;"));
+        assertNull(HtmlEscapes.unescapeHtml4(null));
+    }
+
+    @Test
+    public void testUnescapeHtml4_NotReferences() {
+        assertEquals("a && b; c < d", HtmlEscapes.unescapeHtml4("a && b; c < d"));
+        assertEquals("&amp &bogus; &; &#; &#x; &#xZZ; &#1114112; &AMP;", HtmlEscapes.unescapeHtml4("&amp &bogus; &; &#; &#x; &#xZZ; &#1114112; &AMP;"));
+        assertEquals("&&lt", HtmlEscapes.unescapeHtml4("&&amp;lt"));
+        assertEquals("&unterminated <", HtmlEscapes.unescapeHtml4("&unterminated &lt;"));
+        assertSame("no references", HtmlEscapes.unescapeHtml4("no references"));
+    }
+
+    @Test
+    public void testEscapeHtml4() {
+        assertEquals("&lt;meta content=&quot;a &amp; b&quot;&gt; 'x'", HtmlEscapes.escapeHtml4("<meta content=\"a & b\"> 'x'"));
+        assertEquals("&nbsp;&eacute; &euro;&thetasym; \u4E2D", HtmlEscapes.escapeHtml4("\u00A0\u00E9 \u20AC\u03D1 \u4E2D"));
+        assertSame("script-src 'self'", HtmlEscapes.escapeHtml4("script-src 'self'"));
+        assertNull(HtmlEscapes.escapeHtml4(null));
+    }
+
+}